@@ -0,0 +1,127 @@
+package checkers.inference.benchmarks;
+
+import org.checkerframework.common.basetype.BaseAnnotatedTypeFactory;
+import org.checkerframework.framework.type.QualifierHierarchy;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import checkers.inference.DefaultSlotManager;
+import checkers.inference.InferenceMain;
+import checkers.inference.InferrableChecker;
+
+/**
+ * The javac and Checker Framework state that slots, constraints and solvers need, without compiling
+ * any real sources.  javac is run with annotation processing only on an empty class; while it runs,
+ * the checker is initialized and its real type factory is created, exactly as InferenceMain does.
+ *
+ * Benchmarks create one environment per trial and a fresh slot manager per data set, see
+ * newSlotManager.
+ */
+public class BenchmarkEnvironment {
+
+    public final ProcessingEnvironment processingEnv;
+    public final BaseAnnotatedTypeFactory realTypeFactory;
+    public final QualifierHierarchy qualifierHierarchy;
+    public final AnnotationMirror top;
+    public final AnnotationMirror bottom;
+
+    private BenchmarkEnvironment(SetupProcessor setup) {
+        this.processingEnv = setup.environment;
+        this.realTypeFactory = setup.realTypeFactory;
+        this.qualifierHierarchy = realTypeFactory.getQualifierHierarchy();
+        this.top = qualifierHierarchy.getTopAnnotations().iterator().next();
+        this.bottom = qualifierHierarchy.getBottomAnnotations().iterator().next();
+    }
+
+    /**
+     * Initialize checkerClass and its real type factory in a javac run on an empty class.
+     */
+    public static BenchmarkEnvironment create(Class<? extends InferrableChecker> checkerClass) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("Benchmarks need a JDK, not a JRE.");
+        }
+
+        JavaFileObject anchor = new SimpleJavaFileObject(URI.create("string:///BenchmarkAnchor.java"),
+                                                         JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return "class BenchmarkAnchor {}";
+            }
+        };
+
+        SetupProcessor setup = new SetupProcessor(checkerClass);
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, null,
+                Arrays.asList("-proc:only", "-classpath", System.getProperty("java.class.path")),
+                null, Collections.singletonList(anchor));
+        task.setProcessors(Collections.singletonList(setup));
+        task.call();
+
+        if (setup.realTypeFactory == null) {
+            throw new IllegalStateException("Could not initialize " + checkerClass.getName(), setup.failure);
+        }
+        return new BenchmarkEnvironment(setup);
+    }
+
+    /**
+     * Create a slot manager, with a ConstantSlot for every real qualifier, and install it in a new
+     * InferenceMain instance, where the solvers and serializers look it up.
+     */
+    public DefaultSlotManager newSlotManager() {
+        DefaultSlotManager slotManager =
+                new DefaultSlotManager(processingEnv, realTypeFactory.getSupportedTypeQualifiers(), true);
+        InferenceMain.resetInstance().setSlotManager(slotManager);
+        return slotManager;
+    }
+
+    @SupportedAnnotationTypes("*")
+    private static class SetupProcessor extends AbstractProcessor {
+        private final Class<? extends InferrableChecker> checkerClass;
+        private ProcessingEnvironment environment;
+        private BaseAnnotatedTypeFactory realTypeFactory;
+        private RuntimeException failure;
+
+        SetupProcessor(Class<? extends InferrableChecker> checkerClass) {
+            this.checkerClass = checkerClass;
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            if (realTypeFactory != null || failure != null) {
+                return false;
+            }
+            try {
+                InferrableChecker checker = checkerClass.getDeclaredConstructor().newInstance();
+                checker.init(processingEnv);
+                checker.initChecker();
+                realTypeFactory = checker.createRealTypeFactory();
+                environment = processingEnv;
+            } catch (ReflectiveOperationException e) {
+                failure = new RuntimeException(e);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            return false;
+        }
+    }
+}
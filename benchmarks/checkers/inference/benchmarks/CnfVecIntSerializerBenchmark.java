@@ -0,0 +1,42 @@
+package checkers.inference.benchmarks;
+
+import org.checkerframework.javacutil.AnnotationUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sat4j.core.VecInt;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.lang.model.element.AnnotationMirror;
+
+import checkers.inference.model.ConstantSlot;
+import checkers.inference.model.serialization.CnfVecIntSerializer;
+
+/**
+ * CnfVecIntSerializer.convertAll on normalized constraints, as done by MaxSat2TypeSolver.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CnfVecIntSerializerBenchmark {
+
+    @Benchmark
+    public List<VecInt> convertAll(TwoTypeConstraintsState state) {
+        final AnnotationMirror top = state.environment.top;
+        CnfVecIntSerializer serializer = new CnfVecIntSerializer(state.slotManager) {
+            @Override
+            protected boolean isTop(ConstantSlot constantSlot) {
+                return AnnotationUtils.areSame(constantSlot.getValue(), top);
+            }
+        };
+        return serializer.convertAll(state.normalized);
+    }
+}
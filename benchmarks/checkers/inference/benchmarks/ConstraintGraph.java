@@ -0,0 +1,203 @@
+package checkers.inference.benchmarks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import checkers.inference.SlotManager;
+import checkers.inference.model.ConstantSlot;
+import checkers.inference.model.Constraint;
+import checkers.inference.model.EqualityConstraint;
+import checkers.inference.model.ExistentialVariableSlot;
+import checkers.inference.model.InequalityConstraint;
+import checkers.inference.model.Slot;
+import checkers.inference.model.SubtypeConstraint;
+import checkers.inference.model.VariableSlot;
+
+/**
+ * A random set of slots and constraints over a given set of constants, with the size and shape given
+ * by a GraphShape.  The variables are split into connected components and every constraint is between
+ * variables of one component or between a variable of a component and a constant.
+ *
+ * Each component gets a share of the constraints proportional to its number of variables.  A very
+ * small component cannot hold many distinct constraints, so with many tiny components the graph may
+ * have somewhat fewer constraints than asked for; use constraints.size() rather than the shape.
+ *
+ * The default shape is a single component of constraints / 2 variables whose constraints are single
+ * equalities, with no chains, and existentials one level deep; for the same shape and seed the graph is
+ * always the same, so benchmark results can be compared across runs.
+ */
+public class ConstraintGraph {
+
+    public final GraphShape shape;
+    public final List<VariableSlot> variables = new ArrayList<>();
+    public final Set<Constraint> constraints = new LinkedHashSet<>();
+
+    /** The number of variables of every connected component, in order of creation */
+    public final List<Integer> componentSizes = new ArrayList<>();
+
+    /** Every slot in the slot manager, including its constants */
+    public final List<Slot> slots;
+
+    private final SlotManager slotManager;
+    private final List<ConstantSlot> constants;
+    private final Random random;
+
+    /**
+     * @param slotManager the slot manager that assigns the ids of the new slots and records them
+     * @param constants the constants constraints may refer to
+     * @param shape the size and shape of the graph
+     */
+    public ConstraintGraph(SlotManager slotManager, List<ConstantSlot> constants, GraphShape shape) {
+        this.shape = shape;
+        this.slotManager = slotManager;
+        this.constants = constants;
+        this.random = new Random(shape.seed);
+
+        final int numVariables = Math.max(2, shape.constraints / 2);
+        for (int i = 0; i < numVariables; i++) {
+            variables.add(newVariable());
+        }
+
+        int start = 0;
+        while (start < numVariables) {
+            int size = Math.min(nextComponentSize(numVariables), numVariables - start);
+            componentSizes.add(size);
+
+            // Split the constraints by cumulative variable count so the shares add up exactly
+            int quota = (int) ((long) shape.constraints * (start + size) / numVariables
+                             - (long) shape.constraints * start / numVariables);
+            addConstraints(variables.subList(start, start + size), quota);
+            start += size;
+        }
+
+        slots = slotManager.getSlots();
+    }
+
+    /**
+     * Convenience constructor for the default shape with the given size and mix of constants and
+     * existentials.
+     */
+    public ConstraintGraph(SlotManager slotManager, List<ConstantSlot> constants, int numConstraints,
+                           double constantRatio, double existentialRatio, long seed) {
+        this(slotManager, constants, new GraphShape(numConstraints, constantRatio, existentialRatio, seed));
+    }
+
+    private int nextComponentSize(int numVariables) {
+        final int mean = shape.componentSize;
+        if (mean <= 0 || mean >= numVariables) {
+            return numVariables;
+        }
+
+        switch (shape.componentSizes) {
+            case FIXED:
+                return mean;
+
+            case GEOMETRIC:
+                // 1 + failures before the first success, with success probability 1 / mean
+                double p = 1.0 / mean;
+                return 1 + (int) Math.floor(Math.log(1 - random.nextDouble()) / Math.log(1 - p));
+
+            case POWER_LAW:
+                // Pareto with shape 2, whose mean is twice its minimum
+                double minimum = Math.max(1.0, mean / 2.0);
+                double size = minimum / Math.sqrt(1 - random.nextDouble());
+                return (int) Math.min(numVariables, Math.floor(size));
+
+            default:
+                throw new IllegalArgumentException("Unhandled component size distribution " + shape.componentSizes);
+        }
+    }
+
+    private void addConstraints(List<VariableSlot> component, int quota) {
+        final int target = constraints.size() + quota;
+
+        // Give up on components too small to hold quota distinct constraints
+        int attempts = 10 * quota + 10;
+        final boolean chains = shape.equalityChainLength > 2 && component.size() > 1;
+        while (constraints.size() < target && attempts-- > 0) {
+            if (chains && random.nextDouble() < shape.equalityRatio) {
+                addEqualityChain(component, target);
+            } else {
+                addConstraint(component, !chains);
+            }
+        }
+    }
+
+    /**
+     * Add a constraint of a random kind between random ends.  The ends are drawn before the kind and
+     * the kinds are ordered subtype, equality, inequality.
+     * @param equalities whether the constraint may be an equality, otherwise the share of equalities is
+     *                   spread over the other kinds
+     */
+    private void addConstraint(List<VariableSlot> component, boolean equalities) {
+        Slot[] ends = randomEnds(component);
+        double kind = random.nextDouble();
+
+        double inequalityStart = 1 - shape.inequalityRatio;
+        double equalityStart = inequalityStart - shape.equalityRatio;
+        boolean subtype = equalities ? kind < equalityStart : kind * (1 - shape.equalityRatio) < equalityStart;
+        if (subtype) {
+            constraints.add(new SubtypeConstraint(ends[0], ends[1]));
+        } else if (equalities && kind < inequalityStart) {
+            constraints.add(new EqualityConstraint(ends[0], ends[1]));
+        } else {
+            constraints.add(new InequalityConstraint(ends[0], ends[1]));
+        }
+    }
+
+    private void addEqualityChain(List<VariableSlot> component, int target) {
+        Slot previous = randomVariable(component);
+        for (int i = 1; i < shape.equalityChainLength && constraints.size() < target; i++) {
+            Slot next = randomVariable(component);
+            if (next != previous) {
+                constraints.add(new EqualityConstraint(previous, next));
+                previous = next;
+            }
+        }
+    }
+
+    /**
+     * Pick the two sides of a binary constraint: at least one variable of the component, which may be
+     * an existential, and a second variable or a constant, in random order.
+     */
+    private Slot[] randomEnds(List<VariableSlot> component) {
+        Slot first = randomVariable(component);
+        Slot second = random.nextDouble() < shape.constantRatio || component.size() < 2
+                ? constants.get(random.nextInt(constants.size()))
+                : randomVariable(component);
+
+        if (random.nextDouble() < shape.existentialRatio) {
+            first = newExistential(component);
+        }
+
+        return random.nextBoolean() ? new Slot[] {second, first} : new Slot[] {first, second};
+    }
+
+    /**
+     * An existential nested shape.existentialDepth deep whose innermost alternative is a variable of
+     * the component.  Every potential slot is a new variable, like the annotation on a use of a type variable.
+     */
+    private ExistentialVariableSlot newExistential(List<VariableSlot> component) {
+        VariableSlot alternative = randomVariable(component);
+        ExistentialVariableSlot existential = null;
+        for (int depth = 0; depth < Math.max(1, shape.existentialDepth); depth++) {
+            existential = new ExistentialVariableSlot(slotManager.nextId(), newVariable(), alternative);
+            slotManager.addVariable(existential);
+            alternative = existential;
+        }
+        return existential;
+    }
+
+    private VariableSlot randomVariable(List<VariableSlot> component) {
+        return component.get(random.nextInt(component.size()));
+    }
+
+    private VariableSlot newVariable() {
+        VariableSlot variable = new VariableSlot(slotManager.nextId());
+        slotManager.addVariable(variable);
+        return variable;
+    }
+}
@@ -0,0 +1,63 @@
+package checkers.inference.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import checkers.inference.ConstraintNormalizer;
+import checkers.inference.DefaultSlotManager;
+import checkers.inference.model.ConstantSlot;
+import checkers.inference.model.Constraint;
+import ostrusted.OsTrustedChecker;
+
+/**
+ * ConstraintNormalizer.normalize on constraint sets with few and with many existential variables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConstraintNormalizerBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int constraints;
+
+    @Param({"0.05", "0.5"})
+    public double existentialRatio;
+
+    private Set<Constraint> input;
+
+    @Setup
+    public void setUp() {
+        // normalize logs every pass at INFO
+        Logger.getLogger(ConstraintNormalizer.class.getName()).setLevel(Level.WARNING);
+
+        BenchmarkEnvironment environment = BenchmarkEnvironment.create(OsTrustedChecker.class);
+        DefaultSlotManager slotManager = environment.newSlotManager();
+        ConstantSlot top = (ConstantSlot) slotManager.getSlot(environment.top);
+        ConstantSlot bottom = (ConstantSlot) slotManager.getSlot(environment.bottom);
+        input = new ConstraintGraph(slotManager, Arrays.asList(top, bottom),
+                                    constraints, 0.2, existentialRatio, 42).constraints;
+    }
+
+    @Benchmark
+    public Set<Constraint> normalize() {
+        return new ConstraintNormalizer().normalize(input);
+    }
+}
@@ -0,0 +1,87 @@
+package checkers.inference.benchmarks;
+
+/**
+ * The size and shape of a synthetic ConstraintGraph.  The defaults give one connected graph, shaped
+ * roughly like the output of constraint generation on a real program: mostly subtype constraints,
+ * some equalities and a few inequalities, between variables or between a variable and a constant.
+ */
+public class GraphShape {
+
+    /** How the number of variables in a connected component is chosen */
+    public enum ComponentSizes {
+        /** every component has componentSize variables */
+        FIXED,
+
+        /** component sizes are geometrically distributed with mean componentSize */
+        GEOMETRIC,
+
+        /**
+         * component sizes follow a Pareto distribution with mean componentSize: most components are
+         * small but a few are very large, like the components of methods and of widely used fields
+         */
+        POWER_LAW
+    }
+
+    /** The number of constraints, there are half as many variables */
+    public int constraints = 1000;
+
+    /** The fraction of constraints between a variable and a constant rather than two variables */
+    public double constantRatio = 0.2;
+
+    /** The fraction of constraints that are equalities */
+    public double equalityRatio = 0.2;
+
+    /**
+     * The number of variables in a chain of equalities v1 == v2 == ... == vn, which is what a chain of
+     * assignments of one value produces.  2 means every equality is independent of the others.
+     */
+    public int equalityChainLength = 2;
+
+    /** The fraction of constraints that are inequalities */
+    public double inequalityRatio = 0.1;
+
+    /**
+     * The fraction of constraints on an ExistentialVariableSlot, which ConstraintNormalizer turns into
+     * ExistentialConstraints
+     */
+    public double existentialRatio = 0.05;
+
+    /**
+     * How deeply ExistentialVariableSlots are nested: 1 is (@potential | @alternative), 2 is
+     * (@potential | (@potential' | @alternative)), like a type variable use whose declared bound is
+     * itself a type variable use
+     */
+    public int existentialDepth = 1;
+
+    /** The mean number of variables in a connected component, 0 or less for a single component */
+    public int componentSize = 0;
+
+    public ComponentSizes componentSizes = ComponentSizes.FIXED;
+
+    /** The seed of all random choices, the same shape and seed always give the same graph */
+    public long seed = 42;
+
+    public GraphShape() {
+    }
+
+    public GraphShape(int constraints, double constantRatio, double existentialRatio, long seed) {
+        this.constraints = constraints;
+        this.constantRatio = constantRatio;
+        this.existentialRatio = existentialRatio;
+        this.seed = seed;
+    }
+
+    @Override
+    public String toString() {
+        return "constraints=" + constraints
+             + ",constantRatio=" + constantRatio
+             + ",equalityRatio=" + equalityRatio
+             + ",equalityChainLength=" + equalityChainLength
+             + ",inequalityRatio=" + inequalityRatio
+             + ",existentialRatio=" + existentialRatio
+             + ",existentialDepth=" + existentialDepth
+             + ",componentSize=" + componentSize
+             + ",componentSizes=" + componentSizes
+             + ",seed=" + seed;
+    }
+}
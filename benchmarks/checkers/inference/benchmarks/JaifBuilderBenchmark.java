@@ -0,0 +1,87 @@
+package checkers.inference.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.annotation.Annotation;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import checkers.inference.model.AnnotationLocation;
+import checkers.inference.model.AnnotationLocation.AstPathLocation;
+import checkers.inference.model.AnnotationLocation.ClassDeclLocation;
+import checkers.inference.util.JaifBuilder;
+import ostrusted.qual.OsTrusted;
+import ostrusted.qual.OsUntrusted;
+
+import com.sun.source.tree.Tree;
+
+import scenelib.annotations.io.ASTPath;
+import scenelib.annotations.io.ASTRecord;
+
+/**
+ * JaifBuilder.createJaif for solutions with many annotated locations spread over many classes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JaifBuilderBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int locations;
+
+    /** The average number of locations per class */
+    @Param({"50"})
+    public int locationsPerClass;
+
+    private Map<AnnotationLocation, String> values;
+    private Set<Class<? extends Annotation>> annotationClasses;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        final String trusted = "@" + OsTrusted.class.getCanonicalName();
+        final String untrusted = "@" + OsUntrusted.class.getCanonicalName();
+        final int classes = Math.max(1, locations / locationsPerClass);
+
+        values = new HashMap<>();
+        for (int c = 0; c < classes; c++) {
+            values.put(new ClassDeclLocation("bench.pkg" + (c % 10), "Class" + c), trusted);
+        }
+        while (values.size() < locations) {
+            int c = random.nextInt(classes);
+            String className = "bench.pkg" + (c % 10) + ".Class" + c;
+            String methodName = "method" + random.nextInt(10) + "(I)V";
+            ASTRecord method = new ASTRecord(null, className, methodName, null, ASTPath.empty());
+            ASTRecord parameter = method.extend(Tree.Kind.METHOD, ASTPath.PARAMETER, random.nextInt(5));
+            if (random.nextBoolean()) {
+                parameter = parameter.extend(Tree.Kind.VARIABLE, ASTPath.TYPE, -1);
+            }
+            values.put(new AstPathLocation(parameter), random.nextBoolean() ? trusted : untrusted);
+        }
+
+        annotationClasses = new HashSet<>(Arrays.<Class<? extends Annotation>>asList(OsTrusted.class, OsUntrusted.class));
+    }
+
+    @Benchmark
+    public String createJaif() {
+        return new JaifBuilder(values, annotationClasses).createJaif();
+    }
+}
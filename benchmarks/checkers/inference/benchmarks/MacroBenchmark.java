@@ -0,0 +1,349 @@
+package checkers.inference.benchmarks;
+
+import org.plumelib.options.Option;
+import org.plumelib.options.OptionGroup;
+import org.plumelib.options.Options;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import checkers.inference.InferenceOptions;
+
+/**
+ * Runs inference end to end, through scripts/inference, with each shipped type system over the test
+ * corpora in testing/ and testdata/ and optionally over an external source tree.  Every run writes
+ * a --metricsFile, from which the per-phase wall times, the slot and constraint counts, the peak heap
+ * and the peak RSS of the inference JVM are copied into one CSV row.  The CSV has a fixed set of
+ * columns in a fixed order, so the files of two revisions can be diffed or joined.
+ *
+ * Run it with "gradle macroBenchmark -PmacroArgs='--corpora common --iterations 5'" after "gradle dist".
+ * Each corpus is inferred in a single invocation, or one invocation per file with --perFile.  The
+ * first --warmups runs of every corpus and type system are not recorded; they fill the OS file cache
+ * and, if --extraArgs enables them, the stub annotation cache and the class data sharing archive.
+ */
+public class MacroBenchmark {
+
+    /** The phases recorded by InferenceMetrics, in the order of the CSV columns */
+    private static final List<String> phases = Arrays.asList(
+            "javacStartup", "compilation", "visit", "flow", "normalization", "solving", "writeJaif");
+
+    private static class Corpus {
+        final String directory;
+        final List<String> typesystems;
+
+        Corpus(String directory, List<String> typesystems) {
+            this.directory = directory;
+            this.typesystems = typesystems;
+        }
+    }
+
+    private static final Map<String, Corpus> shippedCorpora = new LinkedHashMap<>();
+    static {
+        // Unannotated code, which every type system can infer
+        List<String> all = new ArrayList<>(InferenceOptions.typesystems.keySet());
+        shippedCorpora.put("common", new Corpus("testing/common", all));
+        shippedCorpora.put("typevar", new Corpus("testing/typevar", all));
+        shippedCorpora.put("annotated", new Corpus("testing/annotated", all));
+
+        shippedCorpora.put("ostrusted", new Corpus("testing/ostrusted", Collections.singletonList("ostrusted")));
+        shippedCorpora.put("testdata-ostrusted", new Corpus("testdata/ostrusted", Collections.singletonList("ostrusted")));
+        shippedCorpora.put("testdata-interning", new Corpus("testdata/interning", Collections.singletonList("interning")));
+        shippedCorpora.put("testdata-iflowsource",
+                new Corpus("testdata/iflowsource", Arrays.asList("sparta-source", "sparta-source-SAT")));
+        shippedCorpora.put("testdata-iflowsink",
+                new Corpus("testdata/iflowsink", Arrays.asList("sparta-sink", "sparta-sink-SAT")));
+
+        // These use the qualifiers of checkers that are not part of this repository, run them with
+        // --typesystems or with --extraArgs naming the checker and solver
+        shippedCorpora.put("tainted", new Corpus("testing/tainted", Collections.<String>emptyList()));
+        shippedCorpora.put("encrypted", new Corpus("testing/encrypted", Collections.<String>emptyList()));
+    }
+
+    // ------------------------------------------------------
+    @OptionGroup("Corpora")
+
+    @Option("Comma separated corpora to run, of: common, typevar, annotated, ostrusted, testdata-ostrusted, "
+          + "testdata-interning, testdata-iflowsource, testdata-iflowsink, tainted, encrypted")
+    public static String corpora = "common,typevar,annotated,ostrusted,testdata-ostrusted,testdata-interning,"
+                                 + "testdata-iflowsource,testdata-iflowsink";
+
+    @Option("Comma separated type systems to run every corpus with, instead of the type systems each corpus "
+          + "is meant for")
+    public static String typesystems;
+
+    @Option("An external source tree to infer as the corpus \"external\", in addition to the selected corpora")
+    public static String external;
+
+    @Option("Comma separated type systems to run the external source tree with")
+    public static String externalTypesystems = "ostrusted";
+
+    @Option("Classpath of the external source tree")
+    public static String externalClasspath;
+
+    // ------------------------------------------------------
+    @OptionGroup("Runs")
+
+    @Option("The number of unrecorded runs of each corpus and type system before the recorded ones")
+    public static int warmups = 1;
+
+    @Option("The number of recorded runs of each corpus and type system")
+    public static int iterations = 3;
+
+    @Option("Infer each file of a corpus separately instead of the whole corpus at once")
+    public static boolean perFile;
+
+    @Option("Additional arguments for scripts/inference, separated by spaces, e.g. \"--hacks=true\"")
+    public static String extraArgs = "";
+
+    @Option("Give up on a run after this many seconds")
+    public static int timeoutSeconds = 1800;
+
+    @Option("The inference script to run")
+    public static String inferenceScript = "scripts/inference";
+
+    @Option("Directory for the jaifs, class files, metrics and logs of the runs")
+    public static String workDir = "build/macro-benchmark";
+
+    @Option("The CSV file to write the recorded runs to")
+    public static String output = "macro-benchmark.csv";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Options options = new Options("MacroBenchmark [options]", MacroBenchmark.class);
+        options.parse(true, args);
+
+        Map<String, Corpus> selected = new LinkedHashMap<>();
+        for (String name : corpora.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            Corpus corpus = shippedCorpora.get(name);
+            if (corpus == null) {
+                System.err.println("Unknown corpus " + name + ", use one of " + shippedCorpora.keySet());
+                System.exit(1);
+            }
+            selected.put(name, corpus);
+        }
+        if (external != null) {
+            selected.put("external", new Corpus(external, splitList(externalTypesystems)));
+        }
+
+        new MacroBenchmark().run(selected);
+    }
+
+    private final String revision = getRevision();
+
+    private void run(Map<String, Corpus> selected) throws IOException, InterruptedException {
+        File outputFile = new File(output);
+        try (PrintWriter csv = new PrintWriter(outputFile, StandardCharsets.UTF_8.name())) {
+            List<String> header = new ArrayList<>(Arrays.asList(
+                    "revision", "corpus", "typesystem", "unit", "iteration", "status", "files", "wallMillis"));
+            for (String phase : phases) {
+                header.add(phase + "Millis");
+            }
+            header.addAll(Arrays.asList("slots", "constraints", "normalizedConstraints", "peakHeapBytes", "peakRssBytes"));
+            csv.println(String.join(",", header));
+
+            for (Map.Entry<String, Corpus> entry : selected.entrySet()) {
+                String name = entry.getKey();
+                Corpus corpus = entry.getValue();
+                List<String> files = findJavaFiles(new File(corpus.directory));
+                if (files.isEmpty()) {
+                    System.out.println("No Java files in " + corpus.directory + ", skipping " + name);
+                    continue;
+                }
+
+                List<String> corpusTypesystems = typesystems != null ? splitList(typesystems) : corpus.typesystems;
+                if (corpusTypesystems.isEmpty()) {
+                    // The checker and solver must come from --extraArgs
+                    corpusTypesystems = Collections.singletonList("");
+                }
+
+                for (String typesystem : corpusTypesystems) {
+                    if (perFile) {
+                        for (String file : files) {
+                            runUnit(csv, name, typesystem, new File(file).getName(), Collections.singletonList(file));
+                        }
+                    } else {
+                        runUnit(csv, name, typesystem, "all", files);
+                    }
+                }
+            }
+        }
+        System.out.println("Wrote " + outputFile.getAbsolutePath());
+    }
+
+    private void runUnit(PrintWriter csv, String corpus, String typesystem, String unit, List<String> files)
+            throws IOException, InterruptedException {
+        for (int run = 1; run <= warmups + iterations; run++) {
+            boolean warmup = run <= warmups;
+            String label = corpus + " " + (typesystem.isEmpty() ? "-" : typesystem) + " " + unit
+                         + (warmup ? " warm-up " + run : " iteration " + (run - warmups));
+            System.out.println(label);
+
+            File runDir = new File(workDir, corpus + File.separator + (typesystem.isEmpty() ? "custom" : typesystem)
+                                          + File.separator + unit);
+            File classDir = new File(runDir, "classes");
+            Files.createDirectories(classDir.toPath());
+            File metrics = new File(runDir, "metrics.json");
+            File log = new File(runDir, "inference.log");
+            metrics.delete();
+
+            List<String> command = new ArrayList<>();
+            command.add(inferenceScript);
+            command.add("--mode");
+            command.add("INFER");
+            if (!typesystem.isEmpty()) {
+                command.add("--typesystem");
+                command.add(typesystem);
+            }
+            command.add("--jaifFile");
+            command.add(new File(runDir, "inference.jaif").getPath());
+            command.add("--metricsFile");
+            command.add(metrics.getPath());
+            if (corpus.equals("external") && externalClasspath != null) {
+                command.add("--targetclasspath");
+                command.add(externalClasspath);
+            }
+            command.addAll(splitArgs(extraArgs));
+            // The javac options and the files follow "--", the options first
+            command.add("--");
+            command.add("-d");
+            command.add(classDir.getPath());
+            command.addAll(files);
+
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(log)
+                    .start();
+
+            String status;
+            if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+                status = "timeout";
+            } else {
+                status = process.exitValue() == 0 ? "ok" : "failed";
+            }
+            long wallMillis = (System.nanoTime() - start) / 1000000;
+
+            if (!status.equals("ok")) {
+                System.out.println("  " + status + ", see " + log);
+            }
+            if (!warmup) {
+                csv.println(toRow(corpus, typesystem, unit, run - warmups, status, files.size(), wallMillis, metrics));
+                csv.flush();
+            }
+        }
+    }
+
+    private String toRow(String corpus, String typesystem, String unit, int iteration, String status,
+                         int files, long wallMillis, File metrics) throws IOException {
+        List<String> row = new ArrayList<>(Arrays.asList(revision, corpus, typesystem.isEmpty() ? "-" : typesystem,
+                unit, Integer.toString(iteration), status, Integer.toString(files), Long.toString(wallMillis)));
+
+        JsonObject report = null;
+        if (metrics.isFile()) {
+            try (Reader reader = Files.newBufferedReader(metrics.toPath(), StandardCharsets.UTF_8)) {
+                report = new JsonParser().parse(reader).getAsJsonObject();
+            }
+        }
+
+        JsonObject phaseReports = report != null && report.has("phases") ? report.getAsJsonObject("phases") : null;
+        for (String phase : phases) {
+            if (phaseReports != null && phaseReports.has(phase)) {
+                row.add(String.format("%.1f", phaseReports.getAsJsonObject(phase).get("wallMillis").getAsDouble()));
+            } else {
+                row.add("");
+            }
+        }
+
+        row.add(report != null ? Long.toString(sum(report.getAsJsonObject("slots"))) : "");
+        row.add(report != null ? Long.toString(sum(report.getAsJsonObject("constraints"))) : "");
+        row.add(getLong(report, "normalizedConstraints"));
+        row.add(getLong(report, "peakHeapBytes"));
+        row.add(getLong(report, "peakRssBytes"));
+        return String.join(",", row);
+    }
+
+    private static long sum(JsonObject counts) {
+        long sum = 0;
+        if (counts != null) {
+            for (Map.Entry<String, JsonElement> count : counts.entrySet()) {
+                sum += count.getValue().getAsLong();
+            }
+        }
+        return sum;
+    }
+
+    private static String getLong(JsonObject report, String key) {
+        return report != null && report.has(key) ? Long.toString(report.get(key).getAsLong()) : "";
+    }
+
+    private static List<String> findJavaFiles(File directory) throws IOException {
+        if (!directory.isDirectory()) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            return paths.filter(path -> path.toString().endsWith(".java") && Files.isRegularFile(path))
+                        .map(Path::toString)
+                        .sorted()
+                        .collect(Collectors.toList());
+        }
+    }
+
+    private static List<String> splitList(String list) {
+        List<String> elements = new ArrayList<>();
+        for (String element : list.split(",")) {
+            if (!element.trim().isEmpty()) {
+                elements.add(element.trim());
+            }
+        }
+        return elements;
+    }
+
+    private static List<String> splitArgs(String args) {
+        List<String> split = new ArrayList<>();
+        for (String arg : args.trim().split("\\s+")) {
+            if (!arg.isEmpty()) {
+                split.add(arg);
+            }
+        }
+        return split;
+    }
+
+    /**
+     * @return the abbreviated git revision of the working directory, or "" if it is not a git checkout
+     */
+    private static String getRevision() {
+        try {
+            Process git = new ProcessBuilder("git", "rev-parse", "--short", "HEAD").redirectErrorStream(true).start();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(git.getInputStream(), StandardCharsets.UTF_8))) {
+                String line = reader.readLine();
+                return git.waitFor() == 0 && line != null ? line.trim() : "";
+            }
+        } catch (IOException | InterruptedException e) {
+            return "";
+        }
+    }
+}
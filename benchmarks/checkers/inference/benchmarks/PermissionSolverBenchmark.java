@@ -0,0 +1,83 @@
+package checkers.inference.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import checkers.inference.ConstraintNormalizer;
+import checkers.inference.DefaultSlotManager;
+import checkers.inference.InferenceSolution;
+import checkers.inference.model.Constraint;
+import sparta.checkers.IFlowSourceChecker;
+import sparta.checkers.iflow.util.PFPermission;
+import sparta.checkers.sat.PermissionSolution;
+import sparta.checkers.sat.PermissionSolver;
+import sparta.checkers.sat.SourceSerializer;
+import sparta.checkers.sat.SourceSolver;
+
+/**
+ * The SPARTA SAT solvers: a single PermissionSolver, which solves the constraints for one
+ * permission, and the SourceSolver, which runs a PermissionSolver for every permission used.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PermissionSolverBenchmark {
+
+    @Param({"1000", "10000"})
+    public int constraints;
+
+    /** The number of distinct source permissions used by the constants */
+    @Param({"4", "16"})
+    public int permissions;
+
+    private BenchmarkEnvironment environment;
+    private PFPermission solvedPermission;
+    private ConstraintGraph graph;
+    private Set<Constraint> normalized;
+
+    @Setup(Level.Trial)
+    public void createEnvironment() {
+        Logger.getLogger(ConstraintNormalizer.class.getName()).setLevel(java.util.logging.Level.WARNING);
+        environment = BenchmarkEnvironment.create(IFlowSourceChecker.class);
+    }
+
+    @Setup(Level.Iteration)
+    public void createConstraints() {
+        final DefaultSlotManager slotManager = environment.newSlotManager();
+        SourceConstants sources = new SourceConstants(environment, slotManager, permissions, 42);
+        solvedPermission = sources.permissions.get(0);
+        graph = new ConstraintGraph(slotManager, sources.constants, constraints, 0.2, 0.05, 42);
+        normalized = new ConstraintNormalizer().normalize(graph.constraints);
+    }
+
+    @Benchmark
+    public PermissionSolution permissionSolver() {
+        PermissionSolver solver = new PermissionSolver(solvedPermission);
+        solver.configure(normalized, new SourceSerializer(solvedPermission));
+        return solver.solve();
+    }
+
+    @Benchmark
+    public InferenceSolution sourceSolver() {
+        return new SourceSolver().solve(new HashMap<String, String>(), graph.slots, normalized,
+                environment.qualifierHierarchy, environment.processingEnv);
+    }
+}
@@ -0,0 +1,75 @@
+package checkers.inference.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.lang.model.element.AnnotationMirror;
+
+import checkers.inference.DefaultSlotManager;
+import checkers.inference.model.Slot;
+import checkers.inference.model.VariableSlot;
+import ostrusted.OsTrustedChecker;
+
+/**
+ * DefaultSlotManager.getSlot and getAnnotation, which convert between slots and the VarAnnots and
+ * real annotations on types, for every slot of a slot manager.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SlotManagerBenchmark {
+
+    @Param({"1000", "100000"})
+    public int slots;
+
+    private DefaultSlotManager slotManager;
+    private List<Slot> allSlots;
+    private AnnotationMirror[] annotations;
+
+    @Setup
+    public void setUp() {
+        BenchmarkEnvironment environment = BenchmarkEnvironment.create(OsTrustedChecker.class);
+        slotManager = environment.newSlotManager();
+        for (int i = 0; i < slots; i++) {
+            slotManager.addVariable(new VariableSlot(slotManager.nextId()));
+        }
+
+        allSlots = slotManager.getSlots();
+        annotations = new AnnotationMirror[allSlots.size() + 2];
+        for (int i = 0; i < allSlots.size(); i++) {
+            annotations[i] = slotManager.getAnnotation(allSlots.get(i));
+        }
+        annotations[allSlots.size()] = environment.top;
+        annotations[allSlots.size() + 1] = environment.bottom;
+    }
+
+    @Benchmark
+    public void getSlot(Blackhole blackhole) {
+        for (AnnotationMirror annotation : annotations) {
+            blackhole.consume(slotManager.getSlot(annotation));
+        }
+    }
+
+    @Benchmark
+    public void getAnnotation(Blackhole blackhole) {
+        for (Slot slot : allSlots) {
+            blackhole.consume(slotManager.getAnnotation(slot));
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package checkers.inference.benchmarks;
+
+import org.checkerframework.framework.type.QualifierHierarchy;
+import org.plumelib.options.Option;
+import org.plumelib.options.OptionGroup;
+import org.plumelib.options.Options;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.lang.model.element.AnnotationMirror;
+
+import checkers.inference.ConstraintNormalizer;
+import checkers.inference.DefaultSlotManager;
+import checkers.inference.InferenceMain;
+import checkers.inference.InferenceSolution;
+import checkers.inference.InferenceSolver;
+import checkers.inference.InferrableChecker;
+import checkers.inference.model.ConstantSlot;
+import checkers.inference.model.Constraint;
+import checkers.inference.model.ExistentialVariableSlot;
+import checkers.inference.model.VariableSlot;
+import checkers.inference.solver.MaxSat2TypeSolver;
+import checkers.inference.solver.PropagationSolver;
+import ostrusted.OsTrustedChecker;
+import sparta.checkers.IFlowSourceChecker;
+import sparta.checkers.propagation.IFlowSourceSolver;
+import sparta.checkers.sat.SourceSolver;
+
+/**
+ * Runs every solver of a type system over synthetic ConstraintGraphs of increasing size and records,
+ * for every solver and size, the time and the heap the solver needs and how far its solution agrees
+ * with the solution of the first solver.  The result is one scaling curve per solver, written as a CSV
+ * file with one row per solver run and summarized on standard out.
+ *
+ * Run it with "gradle solverScaling -PscalingArgs='--sizes 1000,100000 --componentSize 50'", see the
+ * options below.  All solvers run in the same JVM, one after another, on the same normalized
+ * constraints.  A solver whose median time at one size exceeds --maxSeconds, or that runs out of memory,
+ * is not run on the larger sizes.
+ *
+ * The heap of a run is the peak heap usage during the run less the heap in use before it, after a
+ * full garbage collection, so it excludes the graph itself.
+ */
+public class SolverScalingSuite {
+
+    private static final Logger logger = Logger.getLogger(SolverScalingSuite.class.getName());
+
+    /** The solvers registered for each type system, see InferenceOptions.typesystems */
+    private static final Map<String, List<Class<? extends InferenceSolver>>> registeredSolvers = new LinkedHashMap<>();
+    static {
+        registeredSolvers.put("ostrusted",
+                Arrays.<Class<? extends InferenceSolver>>asList(PropagationSolver.class, MaxSat2TypeSolver.class));
+        registeredSolvers.put("sparta-source",
+                Arrays.<Class<? extends InferenceSolver>>asList(IFlowSourceSolver.class, SourceSolver.class));
+    }
+
+    // ------------------------------------------------------
+    @OptionGroup("Solvers")
+
+    @Option("The type system whose qualifiers the constraints use: ostrusted or sparta-source")
+    public static String typesystem = "ostrusted";
+
+    @Option("Comma separated fully-qualified names of the solvers to run, by default all solvers registered for the "
+          + "type system.  The first solver's solutions are the reference for agreement.")
+    public static String solvers;
+
+    @Option("Comma separated numbers of constraints to generate")
+    public static String sizes = "1000,10000,100000,1000000";
+
+    @Option("The number of times each solver is run on each graph")
+    public static int repetitions = 3;
+
+    @Option("Do not run a solver on larger graphs once its median time on a graph exceeds this many seconds")
+    public static int maxSeconds = 300;
+
+    @Option("The CSV file to write every run to")
+    public static String output = "solver-scaling.csv";
+
+    // ------------------------------------------------------
+    @OptionGroup("Graph shape, see GraphShape")
+
+    @Option("Fraction of constraints between a variable and a constant")
+    public static double constantRatio = 0.2;
+
+    @Option("Fraction of constraints that are equalities")
+    public static double equalityRatio = 0.2;
+
+    @Option("Number of variables in a chain of equalities")
+    public static int equalityChainLength = 2;
+
+    @Option("Fraction of constraints that are inequalities")
+    public static double inequalityRatio = 0.1;
+
+    @Option("Fraction of constraints on an existential variable")
+    public static double existentialRatio = 0.05;
+
+    @Option("Nesting depth of existential variables")
+    public static int existentialDepth = 1;
+
+    @Option("Mean number of variables in a connected component, 0 for a single component")
+    public static int componentSize = 0;
+
+    @Option("Distribution of component sizes: FIXED, GEOMETRIC or POWER_LAW")
+    public static GraphShape.ComponentSizes componentSizes = GraphShape.ComponentSizes.FIXED;
+
+    @Option("Number of distinct source permissions used by the constants, for sparta-source")
+    public static int permissions = 8;
+
+    @Option("Seed of the random graphs")
+    public static long seed = 42;
+
+    public static void main(String[] args) throws ReflectiveOperationException, FileNotFoundException {
+        Options options = new Options("SolverScalingSuite [options]", SolverScalingSuite.class);
+        options.parse(true, args);
+
+        if (!registeredSolvers.containsKey(typesystem)) {
+            System.err.println("Unknown type system " + typesystem + ", use one of " + registeredSolvers.keySet());
+            System.exit(1);
+        }
+
+        // The normalizer logs every pass and PropagationSolver warns about every existential constraint
+        Logger.getLogger(ConstraintNormalizer.class.getName()).setLevel(Level.WARNING);
+        Logger.getLogger(InferenceMain.class.getName()).setLevel(Level.SEVERE);
+
+        new SolverScalingSuite(getSolverClasses()).run();
+    }
+
+    private static List<Class<? extends InferenceSolver>> getSolverClasses() throws ClassNotFoundException {
+        if (solvers == null || solvers.isEmpty()) {
+            return registeredSolvers.get(typesystem);
+        }
+
+        List<Class<? extends InferenceSolver>> solverClasses = new ArrayList<>();
+        for (String name : solvers.split(",")) {
+            solverClasses.add(Class.forName(name.trim()).asSubclass(InferenceSolver.class));
+        }
+        return solverClasses;
+    }
+
+    private final List<Class<? extends InferenceSolver>> solverClasses;
+    private final BenchmarkEnvironment environment;
+    private final QualifierHierarchy qualifierHierarchy;
+
+    /** Solvers that were too slow or ran out of memory on a smaller graph */
+    private final Set<Class<? extends InferenceSolver>> retired = new HashSet<>();
+
+    /** Median milliseconds of every solver at every size, for the summary */
+    private final Map<String, Map<Integer, String>> curves = new LinkedHashMap<>();
+
+    private SolverScalingSuite(List<Class<? extends InferenceSolver>> solverClasses) {
+        this.solverClasses = solverClasses;
+        Class<? extends InferrableChecker> checker =
+                typesystem.equals("sparta-source") ? IFlowSourceChecker.class : OsTrustedChecker.class;
+        this.environment = BenchmarkEnvironment.create(checker);
+        this.qualifierHierarchy = environment.qualifierHierarchy;
+    }
+
+    private void run() throws ReflectiveOperationException, FileNotFoundException {
+        File outputFile = new File(output);
+        try (PrintWriter csv = new PrintWriter(outputFile)) {
+            csv.println("typesystem,solver,constraints,normalizedConstraints,variables,components,"
+                      + "repetition,wallMillis,heapBytes,agreement,status");
+
+            System.out.println("Graph shape: " + getShape(0).toString().replaceFirst("constraints=0,", ""));
+            for (String size : sizes.split(",")) {
+                runSize(Integer.parseInt(size.trim()), csv);
+                csv.flush();
+            }
+        }
+
+        printSummary();
+        System.out.println("Wrote " + outputFile.getAbsolutePath());
+    }
+
+    private void runSize(int size, PrintWriter csv) throws ReflectiveOperationException {
+        DefaultSlotManager slotManager = environment.newSlotManager();
+        List<ConstantSlot> constants;
+        if (typesystem.equals("sparta-source")) {
+            constants = new SourceConstants(environment, slotManager, permissions, seed).constants;
+        } else {
+            constants = Arrays.asList((ConstantSlot) slotManager.getSlot(environment.top),
+                                      (ConstantSlot) slotManager.getSlot(environment.bottom));
+        }
+
+        ConstraintGraph graph = new ConstraintGraph(slotManager, constants, getShape(size));
+        Set<Constraint> normalized = new ConstraintNormalizer().normalize(graph.constraints);
+
+        List<VariableSlot> compared = new ArrayList<>();
+        for (VariableSlot variable : slotManager.getVariableSlots()) {
+            if (!(variable instanceof ExistentialVariableSlot)) {
+                compared.add(variable);
+            }
+        }
+
+        System.out.println(graph.constraints.size() + " constraints, " + normalized.size() + " normalized, "
+                         + compared.size() + " variables in " + graph.componentSizes.size() + " components");
+
+        InferenceSolution reference = null;
+        for (Class<? extends InferenceSolver> solverClass : solverClasses) {
+            String solverName = solverClass.getSimpleName();
+            if (retired.contains(solverClass)) {
+                curves.computeIfAbsent(solverName, name -> new LinkedHashMap<>()).put(size, "skipped");
+                continue;
+            }
+
+            List<Long> millis = new ArrayList<>();
+            String status = "ok";
+            for (int repetition = 1; repetition <= repetitions; repetition++) {
+                InferenceSolver solver = solverClass.getDeclaredConstructor().newInstance();
+
+                System.gc();
+                resetPeakHeap();
+                long heapBefore = heapUsed();
+                long start = System.nanoTime();
+
+                InferenceSolution solution = null;
+                try {
+                    solution = solver.solve(new HashMap<String, String>(), graph.slots, normalized,
+                                            qualifierHierarchy, environment.processingEnv);
+                    status = solution == null ? "no solution" : "ok";
+                } catch (OutOfMemoryError e) {
+                    status = "out of memory";
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, solverName + " failed on " + size + " constraints", e);
+                    status = "error";
+                }
+
+                long wallMillis = (System.nanoTime() - start) / 1000000;
+                long heapBytes = Math.max(0, peakHeap() - heapBefore);
+
+                String agreement = "";
+                if (solution != null && repetition == 1) {
+                    if (reference == null) {
+                        reference = solution;
+                    }
+                    agreement = String.format("%.4f", agreement(reference, solution, compared));
+                }
+
+                csv.println(typesystem + "," + solverClass.getName() + "," + graph.constraints.size() + ","
+                          + normalized.size() + "," + compared.size() + "," + graph.componentSizes.size() + ","
+                          + repetition + "," + wallMillis + "," + heapBytes + "," + agreement + "," + status);
+
+                if (!status.equals("ok")) {
+                    break;
+                }
+                millis.add(wallMillis);
+            }
+
+            String point;
+            if (status.equals("ok")) {
+                Collections.sort(millis);
+                long median = millis.get(millis.size() / 2);
+                point = median + " ms";
+                if (median > maxSeconds * 1000L) {
+                    retired.add(solverClass);
+                }
+            } else {
+                point = status;
+                retired.add(solverClass);
+            }
+            curves.computeIfAbsent(solverName, name -> new LinkedHashMap<>()).put(size, point);
+            System.out.println("  " + solverName + ": " + point);
+        }
+    }
+
+    private GraphShape getShape(int size) {
+        GraphShape shape = new GraphShape(size, constantRatio, existentialRatio, seed);
+        shape.equalityRatio = equalityRatio;
+        shape.equalityChainLength = equalityChainLength;
+        shape.inequalityRatio = inequalityRatio;
+        shape.existentialDepth = existentialDepth;
+        shape.componentSize = componentSize;
+        shape.componentSizes = componentSizes;
+        return shape;
+    }
+
+    /**
+     * The fraction of variables that both solutions give equivalent annotations or both leave unsolved.
+     * Annotations are compared by subtyping in both directions, so that e.g. @Source values in a different
+     * order count as the same.
+     */
+    private double agreement(InferenceSolution reference, InferenceSolution solution, List<VariableSlot> variables) {
+        if (variables.isEmpty()) {
+            return 1.0;
+        }
+
+        int agreed = 0;
+        for (VariableSlot variable : variables) {
+            AnnotationMirror expected = reference.getAnnotation(variable.getId());
+            AnnotationMirror actual = solution.getAnnotation(variable.getId());
+            if (expected == null || actual == null) {
+                if (expected == actual) {
+                    agreed++;
+                }
+            } else if (qualifierHierarchy.isSubtype(expected, actual) && qualifierHierarchy.isSubtype(actual, expected)) {
+                agreed++;
+            }
+        }
+        return agreed / (double) variables.size();
+    }
+
+    private void printSummary() {
+        System.out.println();
+        System.out.println("Median solving time per solver and number of constraints:");
+        for (Map.Entry<String, Map<Integer, String>> curve : curves.entrySet()) {
+            System.out.println(curve.getKey());
+            for (Map.Entry<Integer, String> point : curve.getValue().entrySet()) {
+                System.out.println(String.format("  %10d  %s", point.getKey(), point.getValue()));
+            }
+        }
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,68 @@
+package checkers.inference.benchmarks;
+
+import org.checkerframework.javacutil.AnnotationBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.lang.model.element.AnnotationMirror;
+
+import checkers.inference.SlotManager;
+import checkers.inference.model.ConstantSlot;
+import sparta.checkers.iflow.util.PFPermission;
+import sparta.checkers.qual.FlowPermission;
+import sparta.checkers.qual.Source;
+
+/**
+ * ConstantSlots for @Source annotations over a random subset of the source permissions: top and bottom,
+ * and a constant for every permission and every pair of neighbouring permissions, so that constraints
+ * relate the permissions to each other.
+ */
+public class SourceConstants {
+
+    /** The permissions used by the constants, other than ANY */
+    public final List<PFPermission> permissions = new ArrayList<>();
+    public final List<ConstantSlot> constants = new ArrayList<>();
+
+    /**
+     * @param environment an environment for IFlowSourceChecker
+     * @param slotManager the slot manager that records the constants
+     * @param numPermissions the number of distinct source permissions to use
+     * @param seed the seed of the choice of permissions
+     */
+    public SourceConstants(BenchmarkEnvironment environment, SlotManager slotManager, int numPermissions, long seed) {
+        List<String> sources = new ArrayList<>();
+        for (FlowPermission permission : FlowPermission.values()) {
+            if (permission.isSource() && permission != FlowPermission.ANY
+                    && permission != FlowPermission.EXTRA_DEFAULT) {
+                sources.add(permission.name());
+            }
+        }
+        Collections.shuffle(sources, new Random(seed));
+        sources = sources.subList(0, Math.max(1, Math.min(numPermissions, sources.size())));
+        for (String source : sources) {
+            permissions.add(new PFPermission(FlowPermission.valueOf(source)));
+        }
+
+        constants.add(newConstant(environment, slotManager, Collections.singletonList(FlowPermission.ANY.name())));
+        constants.add(newConstant(environment, slotManager, Collections.<String>emptyList()));
+        for (int i = 0; i < sources.size(); i++) {
+            constants.add(newConstant(environment, slotManager, sources.subList(i, i + 1)));
+            if (i + 1 < sources.size()) {
+                constants.add(newConstant(environment, slotManager, sources.subList(i, i + 2)));
+            }
+        }
+    }
+
+    private static ConstantSlot newConstant(BenchmarkEnvironment environment, SlotManager slotManager,
+                                            List<String> sources) {
+        AnnotationBuilder builder = new AnnotationBuilder(environment.processingEnv, Source.class);
+        builder.setValue("value", sources);
+        AnnotationMirror source = builder.build();
+        ConstantSlot constant = new ConstantSlot(source, slotManager.nextId());
+        slotManager.addVariable(constant);
+        return constant;
+    }
+}
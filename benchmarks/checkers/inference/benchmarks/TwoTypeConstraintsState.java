@@ -0,0 +1,65 @@
+package checkers.inference.benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import checkers.inference.ConstraintNormalizer;
+import checkers.inference.DefaultSlotManager;
+import checkers.inference.model.ConstantSlot;
+import checkers.inference.model.Constraint;
+import ostrusted.OsTrustedChecker;
+
+/**
+ * Synthetic constraints for the two qualifier OsTrusted type system, shared by the benchmarks of
+ * the normalizer, the CNF serializer and the two type solvers.
+ *
+ * The CNF serializer takes a fresh id from the slot manager for every existential variable it
+ * encodes, so the slot manager and the constraints are created again for every iteration to keep
+ * the number of SAT variables the same from iteration to iteration.
+ */
+@State(Scope.Benchmark)
+public class TwoTypeConstraintsState {
+
+    @Param({"1000", "10000", "100000"})
+    public int constraints;
+
+    @Param({"0.2"})
+    public double constantRatio;
+
+    @Param({"0.05"})
+    public double existentialRatio;
+
+    @Param({"42"})
+    public long seed;
+
+    public BenchmarkEnvironment environment;
+    public DefaultSlotManager slotManager;
+    public ConstantSlot topSlot;
+    public ConstantSlot bottomSlot;
+    public ConstraintGraph graph;
+    public Set<Constraint> normalized;
+
+    @Setup(Level.Trial)
+    public void createEnvironment() {
+        // ConstraintNormalizer logs every pass at INFO
+        Logger.getLogger(ConstraintNormalizer.class.getName()).setLevel(java.util.logging.Level.WARNING);
+        environment = BenchmarkEnvironment.create(OsTrustedChecker.class);
+    }
+
+    @Setup(Level.Iteration)
+    public void createConstraints() {
+        slotManager = environment.newSlotManager();
+        topSlot = (ConstantSlot) slotManager.getSlot(environment.top);
+        bottomSlot = (ConstantSlot) slotManager.getSlot(environment.bottom);
+        graph = new ConstraintGraph(slotManager, Arrays.asList(topSlot, bottomSlot),
+                                    constraints, constantRatio, existentialRatio, seed);
+        normalized = new ConstraintNormalizer().normalize(graph.constraints);
+    }
+}
@@ -0,0 +1,39 @@
+package checkers.inference.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import checkers.inference.InferenceSolution;
+import checkers.inference.solver.MaxSat2TypeSolver;
+import checkers.inference.solver.PropagationSolver;
+
+/**
+ * The two solvers for type systems with two qualifiers, solving the same normalized constraints.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TwoTypeSolverBenchmark {
+
+    @Benchmark
+    public InferenceSolution propagationSolver(TwoTypeConstraintsState state) {
+        return new PropagationSolver().solve(new HashMap<String, String>(), state.graph.slots,
+                state.normalized, state.environment.qualifierHierarchy, state.environment.processingEnv);
+    }
+
+    @Benchmark
+    public InferenceSolution maxSat2TypeSolver(TwoTypeConstraintsState state) {
+        return new MaxSat2TypeSolver().solve(new HashMap<String, String>(), state.graph.slots,
+                state.normalized, state.environment.qualifierHierarchy, state.environment.processingEnv);
+    }
+}
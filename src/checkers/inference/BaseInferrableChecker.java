@@ -10,6 +10,7 @@ import org.checkerframework.javacutil.Pair;
 
 import java.util.List;
 
+import javax.lang.model.element.Element;
 import javax.lang.model.element.VariableElement;
 
 import checkers.inference.dataflow.InferenceAnalysis;
@@ -24,6 +25,8 @@ import com.sun.source.util.Trees;
  */
 public abstract class BaseInferrableChecker extends InferenceChecker implements InferrableChecker {
 
+    private int reportedErrorCount = 0;
+
     @Override
     public void initChecker() {
         // In between these brackets, is code copied directly from SourceChecker
@@ -96,4 +99,26 @@ public abstract class BaseInferrableChecker extends InferenceChecker implements
     public boolean isInsertMainModOfLocalVar() {
         return false;
     }
+
+    @Override
+    public void reportError(Object source, String messageKey, Object... args) {
+        if (!isSuppressed(source, messageKey)) {
+            reportedErrorCount += 1;
+        }
+        super.reportError(source, messageKey, args);
+    }
+
+    private boolean isSuppressed(Object source, String messageKey) {
+        if (source instanceof Element) {
+            return shouldSuppressWarnings((Element) source, messageKey);
+        } else if (source instanceof Tree) {
+            return shouldSuppressWarnings((Tree) source, messageKey);
+        }
+        return false;
+    }
+
+    @Override
+    public int getReportedErrorCount() {
+        return reportedErrorCount;
+    }
 }
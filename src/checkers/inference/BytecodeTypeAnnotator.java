@@ -6,6 +6,7 @@ import org.checkerframework.framework.type.AnnotatedTypeMirror;
 import javax.lang.model.element.Element;
 
 import checkers.inference.util.CopyUtil;
+import checkers.inference.util.StubAnnotationCache;
 
 
 /**
@@ -17,16 +18,30 @@ import checkers.inference.util.CopyUtil;
  * whether a library was in bytecode or source code.  Note: I believe this is
  * much less of an issue these days since the game is more akin to
  * human aided automatic solving.
+ *
+ * If a StubAnnotationCache is given, the real annotations of an element are taken from the cache
+ * when possible and recorded in it otherwise.
  */
 public class BytecodeTypeAnnotator {
     private final AnnotatedTypeFactory realTypeFactory;
     private final InferenceAnnotatedTypeFactory inferenceTypeFactory;
+    private final StubAnnotationCache stubAnnotationCache;
 
 
     public BytecodeTypeAnnotator(InferenceAnnotatedTypeFactory inferenceTypeFactory,
                                  AnnotatedTypeFactory realTypeFactory) {
+        this(inferenceTypeFactory, realTypeFactory, null);
+    }
+
+    /**
+     * @param stubAnnotationCache the cache of real annotations for library elements, may be null
+     */
+    public BytecodeTypeAnnotator(InferenceAnnotatedTypeFactory inferenceTypeFactory,
+                                 AnnotatedTypeFactory realTypeFactory,
+                                 StubAnnotationCache stubAnnotationCache) {
         this.realTypeFactory = realTypeFactory;
         this.inferenceTypeFactory = inferenceTypeFactory;
+        this.stubAnnotationCache = stubAnnotationCache;
     }
 
     /**
@@ -37,9 +52,14 @@ public class BytecodeTypeAnnotator {
      * @param inferenceType The type of element.  inferenceType will be annotated by this method
      */
     public void annotate(final Element element, final AnnotatedTypeMirror inferenceType) {
-        final AnnotatedTypeMirror realType = realTypeFactory.getAnnotatedType(element);
+        if (stubAnnotationCache == null || !stubAnnotationCache.apply(element, inferenceType)) {
+            final AnnotatedTypeMirror realType = realTypeFactory.getAnnotatedType(element);
 
-        CopyUtil.copyAnnotations(realType, inferenceType);
+            CopyUtil.copyAnnotations(realType, inferenceType);
+            if (stubAnnotationCache != null) {
+                stubAnnotationCache.record(element, realType);
+            }
+        }
         inferenceTypeFactory.getNewConstantToVariableAnnotator().visit(inferenceType);
     }
 }
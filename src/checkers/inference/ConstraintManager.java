@@ -18,6 +18,9 @@ public class ConstraintManager {
 
     private final Set<Constraint> constraints = new HashSet<Constraint>();
 
+    // Also receives the constraints that are added while it is set, see startRecording
+    private Set<Constraint> recorded = null;
+
     public Set<Constraint> getConstraints() {
         return constraints;
     }
@@ -25,6 +28,9 @@ public class ConstraintManager {
     public void add(Constraint constraint) {
         if (!ignoreConstraints) {
             constraints.add(constraint);
+            if (recorded != null) {
+                recorded.add(constraint);
+            }
         }
     }
 
@@ -44,4 +50,16 @@ public class ConstraintManager {
         this.ignoreConstraints = false;
     }
 
+    /**
+     * Add every constraint that is added from now on, including those this manager already holds, to
+     * recorded as well, until stopRecording is called.
+     */
+    public void startRecording(Set<Constraint> recorded) {
+        this.recorded = recorded;
+    }
+
+    public void stopRecording() {
+        this.recorded = null;
+    }
+
 }
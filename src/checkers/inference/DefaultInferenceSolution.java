@@ -1,15 +1,55 @@
 package checkers.inference;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import javax.lang.model.element.AnnotationMirror;
 
+import checkers.inference.model.Slot;
+import checkers.inference.model.VariableSlot;
+
 public class DefaultInferenceSolution implements InferenceSolution {
 
     private final Map<Integer, AnnotationMirror> varIdToAnnotation;
+    private final Set<Integer> approximated;
 
     public DefaultInferenceSolution(Map<Integer, AnnotationMirror> varIdToAnnotation) {
+        this(varIdToAnnotation, Collections.<Integer>emptySet());
+    }
+
+    /**
+     * @param approximated the ids of the variables whose solution is only an approximation, see
+     *                     InferenceSolution.isApproximated
+     */
+    public DefaultInferenceSolution(Map<Integer, AnnotationMirror> varIdToAnnotation, Set<Integer> approximated) {
         this.varIdToAnnotation = varIdToAnnotation;
+        this.approximated = approximated;
+    }
+
+    /**
+     * Create the solution of the variables among slots whose stable keys have an annotation in
+     * annotations, e.g. the solution of another run, see InferenceSolution.getAnnotationsByStableKey.
+     */
+    public static DefaultInferenceSolution fromStableKeys(Map<Long, AnnotationMirror> annotations,
+                                                          Collection<? extends Slot> slots) {
+        Map<Integer, AnnotationMirror> varIdToAnnotation = new HashMap<>();
+        for (Slot slot : slots) {
+            if (!slot.isVariable()) {
+                continue;
+            }
+
+            VariableSlot variable = (VariableSlot) slot;
+            if (variable.hasStableKey()) {
+                AnnotationMirror annotation = annotations.get(variable.getStableKey());
+                if (annotation != null) {
+                    varIdToAnnotation.put(variable.getId(), annotation);
+                }
+            }
+        }
+        return new DefaultInferenceSolution(varIdToAnnotation);
     }
 
     @Override
@@ -21,5 +61,10 @@ public class DefaultInferenceSolution implements InferenceSolution {
     public AnnotationMirror getAnnotation(int variableId) {
         return varIdToAnnotation.get(variableId);
     }
+
+    @Override
+    public boolean isApproximated(int variableId) {
+        return approximated.contains(variableId);
+    }
 }
 
@@ -110,6 +110,13 @@ public class DefaultSlotManager implements SlotManager {
         return nextId++;
     }
 
+    /**
+     * @return the id the next call to nextId returns, every slot created so far has a smaller id
+     */
+    int peekNextId() {
+        return nextId;
+    }
+
     /**
      * @inheritDoc
      */
@@ -220,6 +227,17 @@ public class DefaultSlotManager implements SlotManager {
         throw new BugInCF( annotationMirror + " is a type of AnnotationMirror not handled by getVariableSlot." );
     }
 
+    /**
+     * @return the ConstantSlot this slot manager stores for the real qualifier of annotationMirror, or
+     * null if it does not store constants or annotationMirror is not a real qualifier
+     */
+    ConstantSlot getStoredConstant( final AnnotationMirror annotationMirror ) {
+        if (constantStore == null) {
+            return null;
+        }
+        return constantStore.get(AnnotationUtils.annotationName(annotationMirror));
+    }
+
     /**
      * @inheritDoc
      */
@@ -0,0 +1,458 @@
+package checkers.inference;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.TypeElement;
+
+import com.sun.source.tree.CompilationUnitTree;
+
+import checkers.inference.model.AnnotationLocation;
+import checkers.inference.model.AnnotationLocation.AstPathLocation;
+import checkers.inference.model.AnnotationLocation.ClassDeclLocation;
+import checkers.inference.model.CombVariableSlot;
+import checkers.inference.model.Constraint;
+import checkers.inference.model.ExistentialVariableSlot;
+import checkers.inference.model.RefinementVariableSlot;
+import checkers.inference.model.Slot;
+import checkers.inference.model.VariableSlot;
+import checkers.inference.model.serialization.ConstraintFile;
+
+/**
+ * The slots and constraints of every source file from earlier runs, see InferenceOptions.incrementalCacheDir.
+ *
+ * The cache directory holds one ConstraintFile per source file, with the slots created and the
+ * constraints added while its classes were visited, and an index.  The index records, per source file,
+ * its top-level classes, the source files it depends on and a key: a hash of the content of the file
+ * and of the files it depends on.  A file depends on the files that declare the elements it uses, which
+ * the InferenceAnnotatedTypeFactory reports to addDependency while the file is visited, and on the files
+ * that declare the classes its slots are located in.  An entry is used as long as its key matches the
+ * current sources, the other files are dirty.
+ *
+ * Only the dirty files are visited by the InferenceChecker, which reports each of them to beginUnit and
+ * endUnit.  Their entries are then written by save and the entries of the other files are added to a
+ * ShardMerger by addCleanSources, which unifies the slots of the same declaration by location like it
+ * does for shards of the sources.
+ *
+ * Slots without a location, e.g. those of library declarations, are not unified, so every file has its
+ * own copy of them.  The whole cache is ignored when the checker, the javac options or the classpath change.
+ */
+public class IncrementalCache {
+
+    private static final Logger logger = Logger.getLogger(IncrementalCache.class.getName());
+
+    private static final String INDEX = "index";
+    private static final String HEADER = "# incremental inference cache ";
+
+    private final File cacheDir;
+    private final String configuration;
+
+    // The content hash of every source file of this run, by URI
+    private final Map<String, String> contentHashes = new LinkedHashMap<>();
+    // The entries of the index, by the URI of their source file
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    private final List<String> dirtySources = new ArrayList<>();
+    private final Set<String> dirtyUris = new HashSet<>();
+
+    // The slots and constraints of the dirty files visited so far, by URI
+    private final Map<String, Unit> units = new LinkedHashMap<>();
+    private Unit currentUnit = null;
+    // Slots created between two files are recorded for the second one
+    private int firstUnrecordedId = 1;
+
+    private static class Entry {
+        final String key;
+        final String file;
+        final List<String> classNames;
+        final List<String> dependencies;
+
+        Entry(String key, String file, List<String> classNames, List<String> dependencies) {
+            this.key = key;
+            this.file = file;
+            this.classNames = classNames;
+            this.dependencies = dependencies;
+        }
+    }
+
+    private static class Unit {
+        final Set<String> classNames = new LinkedHashSet<>();
+        final List<Integer> slotIds = new ArrayList<>();
+        final Set<Constraint> constraints = new LinkedHashSet<>();
+        // The compilation units that declare the elements the unit uses
+        final Set<CompilationUnitTree> usedUnits = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    /**
+     * Read the index in cacheDir, if there is one, and find the dirty files among sources.
+     * @throws IOException if one of the sources cannot be read
+     */
+    public IncrementalCache(final File cacheDir, final String[] sources) throws IOException {
+        this.cacheDir = cacheDir;
+        this.configuration = computeConfiguration();
+
+        for (String source : sources) {
+            contentHashes.put(toUri(source), hex(sha256().digest(Files.readAllBytes(new File(source).toPath()))));
+        }
+
+        readIndex();
+
+        for (String source : sources) {
+            final String uri = toUri(source);
+            final Entry entry = entries.get(uri);
+            final boolean valid = entry != null
+                    && new File(cacheDir, entry.file).isFile()
+                    && entry.key.equals(key(uri, entry.dependencies));
+            if (!valid && dirtyUris.add(uri)) {
+                dirtySources.add(source);
+            }
+        }
+        logger.fine(String.format("%d of %d source files are dirty", dirtySources.size(), contentHashes.size()));
+    }
+
+    /**
+     * @return the source files, in the order given to the constructor, whose constraints have to be generated
+     */
+    public List<String> getDirtySources() {
+        return dirtySources;
+    }
+
+    /**
+     * Record the slots created and constraints added from now on for the file of compilationUnit, until
+     * endUnit is called.
+     * @param element the top-level class of compilationUnit that is visited
+     */
+    public void beginUnit(final CompilationUnitTree compilationUnit, final TypeElement element) {
+        final String uri = compilationUnit.getSourceFile().toUri().normalize().toString();
+        currentUnit = units.get(uri);
+        if (currentUnit == null) {
+            currentUnit = new Unit();
+            units.put(uri, currentUnit);
+        }
+        currentUnit.classNames.add(element.getQualifiedName().toString());
+        InferenceMain.getInstance().getConstraintManager().startRecording(currentUnit.constraints);
+    }
+
+    /**
+     * Record that the file being visited, if any, uses a declaration of compilationUnit.
+     * @param compilationUnit the unit that declares a used element, null for elements without source
+     */
+    public void addDependency(final CompilationUnitTree compilationUnit) {
+        if (currentUnit != null && compilationUnit != null) {
+            currentUnit.usedUnits.add(compilationUnit);
+        }
+    }
+
+    public void endUnit() {
+        final InferenceMain inferenceMain = InferenceMain.getInstance();
+        inferenceMain.getConstraintManager().stopRecording();
+
+        final int nextId = ((DefaultSlotManager) inferenceMain.getSlotManager()).peekNextId();
+        for (int id = firstUnrecordedId; id < nextId; id++) {
+            currentUnit.slotIds.add(id);
+        }
+        firstUnrecordedId = nextId;
+        currentUnit = null;
+    }
+
+    /**
+     * Write the entries of the dirty files, with the slots of slotManager recorded for them, and the index.
+     * The entries of files that are no longer among the sources, e.g. removed or renamed ones, are deleted.
+     */
+    public void save(final SlotManager slotManager) throws IOException {
+        Files.createDirectories(cacheDir.toPath());
+        pruneRemovedSources();
+
+        final Map<String, String> sourceOfClass = new HashMap<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (contentHashes.containsKey(entry.getKey()) && !dirtyUris.contains(entry.getKey())) {
+                for (String className : entry.getValue().classNames) {
+                    sourceOfClass.put(className, entry.getKey());
+                }
+            }
+        }
+        for (Map.Entry<String, Unit> unit : units.entrySet()) {
+            for (String className : unit.getValue().classNames) {
+                sourceOfClass.put(className, unit.getKey());
+            }
+        }
+
+        for (String uri : contentHashes.keySet()) {
+            if (!dirtyUris.contains(uri)) {
+                continue;
+            }
+
+            // A dirty file without classes has nothing to record
+            final Unit unit = units.containsKey(uri) ? units.get(uri) : new Unit();
+            final List<Slot> slots = unitSlots(slotManager, unit);
+            final String file = hex(sha256().digest(uri.getBytes(StandardCharsets.UTF_8))) + ".constraints";
+            ConstraintFile.write(new File(cacheDir, file), slots, unit.constraints);
+
+            final List<String> dependencies = dependencies(uri, unit, slots, sourceOfClass);
+            entries.put(uri, new Entry(key(uri, dependencies), file, new ArrayList<>(unit.classNames), dependencies));
+        }
+
+        writeIndex();
+    }
+
+    private void pruneRemovedSources() throws IOException {
+        int pruned = 0;
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<String, Entry> entry = it.next();
+            if (!contentHashes.containsKey(entry.getKey())) {
+                Files.deleteIfExists(new File(cacheDir, entry.getValue().file).toPath());
+                it.remove();
+                pruned++;
+            }
+        }
+        if (pruned > 0) {
+            logger.fine("Removed the entries of " + pruned + " source files that are no longer compiled");
+        }
+    }
+
+    /**
+     * Add the entries of the files that are not dirty to merger, in the order of the sources.
+     * @throws IOException if an entry cannot be read, see invalidate
+     */
+    public void addCleanSources(final ShardMerger merger, final ProcessingEnvironment processingEnv,
+                                final Set<Class<? extends Annotation>> realQualifiers) throws IOException {
+        for (String uri : contentHashes.keySet()) {
+            if (dirtyUris.contains(uri)) {
+                continue;
+            }
+            final DefaultSlotManager entrySlots = new DefaultSlotManager(processingEnv, realQualifiers, true);
+            final Set<Constraint> constraints =
+                    ConstraintFile.read(new File(cacheDir, entries.get(uri).file), entrySlots, processingEnv);
+            merger.add(entrySlots, constraints);
+        }
+    }
+
+    /**
+     * Delete the index, so that every file is dirty in the next run.
+     */
+    public void invalidate() {
+        new File(cacheDir, INDEX).delete();
+    }
+
+    /**
+     * @return the registered slots recorded for unit and those its constraints refer to, including the
+     * registered slots they are built from or linked to
+     */
+    private static List<Slot> unitSlots(final SlotManager slotManager, final Unit unit) {
+        final Set<Slot> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        final List<Slot> slots = new ArrayList<>();
+        for (Integer id : unit.slotIds) {
+            collectSlots(slotManager, slotManager.getVariable(id), visited, slots);
+        }
+        for (Constraint constraint : unit.constraints) {
+            for (Slot slot : constraint.getSlots()) {
+                collectSlots(slotManager, slot, visited, slots);
+            }
+        }
+        return slots;
+    }
+
+    private static void collectSlots(final SlotManager slotManager, final Slot slot,
+                                     final Set<Slot> visited, final List<Slot> slots) {
+        if (slot == null || !visited.add(slot)) {
+            return;
+        }
+
+        final VariableSlot variable = (VariableSlot) slot;
+        switch (slot.getKind()) {
+            case COMB_VARIABLE:
+                collectSlots(slotManager, ((CombVariableSlot) slot).getFirst(), visited, slots);
+                collectSlots(slotManager, ((CombVariableSlot) slot).getSecond(), visited, slots);
+                break;
+            case REFINEMENT_VARIABLE:
+                collectSlots(slotManager, ((RefinementVariableSlot) slot).getRefined(), visited, slots);
+                break;
+            case EXISTENTIAL_VARIABLE:
+                collectSlots(slotManager, ((ExistentialVariableSlot) slot).getPotentialSlot(), visited, slots);
+                collectSlots(slotManager, ((ExistentialVariableSlot) slot).getAlternativeSlot(), visited, slots);
+                break;
+            default:
+                break;
+        }
+        for (Slot mergedTo : variable.getMergedToSlots()) {
+            collectSlots(slotManager, mergedTo, visited, slots);
+        }
+        for (Slot refinedTo : variable.getRefinedToSlots()) {
+            collectSlots(slotManager, refinedTo, visited, slots);
+        }
+
+        if (slotManager.getVariable(variable.getId()) == slot) {
+            slots.add(slot);
+        }
+    }
+
+    /**
+     * @return the sorted URIs of the other source files that declare the elements unit uses or the classes
+     * slots are located in
+     */
+    private List<String> dependencies(final String uri, final Unit unit, final List<Slot> slots,
+                                      final Map<String, String> sourceOfClass) {
+        final Set<String> dependencies = new TreeSet<>();
+        for (CompilationUnitTree usedUnit : unit.usedUnits) {
+            final String source = usedUnit.getSourceFile().toUri().normalize().toString();
+            if (contentHashes.containsKey(source) && !source.equals(uri)) {
+                dependencies.add(source);
+            }
+        }
+        for (Slot slot : slots) {
+            final AnnotationLocation location = slot.getLocation();
+            String className;
+            if (location instanceof AstPathLocation) {
+                className = ((AstPathLocation) location).getClassName();
+            } else if (location instanceof ClassDeclLocation) {
+                className = ((ClassDeclLocation) location).getClassName();
+            } else {
+                continue;
+            }
+            if (className == null) {
+                continue;
+            }
+
+            // Locations use flat names, the source file is found by the top-level class
+            final int nested = className.indexOf('$');
+            if (nested != -1) {
+                className = className.substring(0, nested);
+            }
+            final String source = sourceOfClass.get(className);
+            if (source != null && !source.equals(uri)) {
+                dependencies.add(source);
+            }
+        }
+        return new ArrayList<>(dependencies);
+    }
+
+    private String key(final String uri, final List<String> dependencies) {
+        final MessageDigest digest = sha256();
+        update(digest, contentHashes.get(uri));
+        for (String dependency : dependencies) {
+            final String contentHash = contentHashes.get(dependency);
+            update(digest, dependency);
+            update(digest, contentHash == null ? "-" : contentHash);
+        }
+        return hex(digest.digest());
+    }
+
+    private void readIndex() {
+        final File index = new File(cacheDir, INDEX);
+        if (!index.isFile()) {
+            logger.fine("No incremental cache in " + cacheDir);
+            return;
+        }
+
+        try {
+            final List<String> lines = Files.readAllLines(index.toPath(), StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(HEADER + configuration)) {
+                logger.fine("Ignoring the incremental cache in " + cacheDir + ", it was written by another configuration");
+                return;
+            }
+
+            for (String line : lines.subList(1, lines.size())) {
+                final String[] fields = line.split("\t", -1);
+                if (fields.length != 5) {
+                    logger.warning("Ignoring malformed line of " + index + ": " + line);
+                    continue;
+                }
+                entries.put(fields[0], new Entry(fields[1], fields[2], splitList(fields[3]), splitList(fields[4])));
+            }
+        } catch (IOException e) {
+            logger.warning("Could not read the incremental cache index " + index + ": " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        final Path target = new File(cacheDir, INDEX).toPath();
+        // Write to a temporary file first so that an interrupted run never leaves a partial index
+        final Path temp = Files.createTempFile(cacheDir.toPath(), INDEX, ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(HEADER + configuration);
+            writer.newLine();
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                final Entry value = entry.getValue();
+                writer.write(entry.getKey() + "\t" + value.key + "\t" + value.file + "\t"
+                        + String.join(" ", value.classNames) + "\t" + String.join(" ", value.dependencies));
+                writer.newLine();
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.fine("Wrote " + entries.size() + " entries to the incremental cache in " + cacheDir);
+    }
+
+    private static List<String> splitList(final String field) {
+        return field.isEmpty() ? new ArrayList<String>() : Arrays.asList(field.split(" "));
+    }
+
+    /**
+     * @return a hash of everything besides the sources that the constraints depend on
+     */
+    private static String computeConfiguration() {
+        final MessageDigest digest = sha256();
+        update(digest, InferenceOptions.VERSION);
+        update(digest, System.getProperty("java.version"));
+        update(digest, String.valueOf(InferenceOptions.checker));
+        update(digest, String.valueOf(InferenceOptions.hacks));
+        for (File jar : Arrays.asList(InferenceOptions.pathToThisJar, InferenceOptions.checkerJar)) {
+            if (jar.isFile()) {
+                update(digest, jar.getAbsolutePath() + ":" + jar.length() + ":" + jar.lastModified());
+            }
+        }
+        if (InferenceOptions.javacOptions != null) {
+            update(digest, String.join(" ", InferenceOptions.javacOptions));
+        }
+        update(digest, System.getProperty("java.class.path"));
+        return hex(digest.digest());
+    }
+
+    static String toUri(final String source) {
+        return new File(source).getAbsoluteFile().toURI().normalize().toString();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void update(final MessageDigest digest, final String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static String hex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -40,6 +40,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import javax.lang.model.element.AnnotationMirror;
@@ -59,7 +60,9 @@ import checkers.inference.model.Slot;
 import checkers.inference.model.VariableSlot;
 import checkers.inference.qual.VarAnnot;
 import checkers.inference.util.ConstantToVariableAnnotator;
+import checkers.inference.util.InferenceMetrics;
 import checkers.inference.util.InferenceUtil;
+import checkers.inference.util.TreePathIndex;
 
 import com.sun.source.tree.ClassTree;
 import com.sun.source.tree.CompilationUnitTree;
@@ -128,6 +131,17 @@ public class InferenceAnnotatedTypeFactory extends BaseAnnotatedTypeFactory {
     // the same variable slot for all of these locations.  This map contains those variables.
     private Map<Class<? extends Annotation>, VariableSlot> constantToVarAnnot = new HashMap<>();
 
+    // Set by applySolution once inference is over, null while inferring
+    private SolutionOverlay solutionOverlay;
+    private QualifierHierarchy inferenceQualifierHierarchy;
+    private TypeHierarchy inferenceTypeHierarchy;
+
+    // The number of calls into this factory that are currently on the stack, see inInferenceHierarchy
+    private int nestedComputations = 0;
+
+    // Finds trees of the current and of other compilation units, see getTreePathIndex
+    private final TreePathIndex treePathIndex;
+
     public InferenceAnnotatedTypeFactory(
             InferenceChecker inferenceChecker,
             boolean withCombineConstraints,
@@ -138,6 +152,7 @@ public class InferenceAnnotatedTypeFactory extends BaseAnnotatedTypeFactory {
 
         super(inferenceChecker, true);
 
+        this.treePathIndex = new TreePathIndex(getTreeUtils());
         this.withCombineConstraints = withCombineConstraints;
         this.realTypeFactory = realTypeFactory;
         this.inferenceChecker = inferenceChecker;
@@ -146,7 +161,8 @@ public class InferenceAnnotatedTypeFactory extends BaseAnnotatedTypeFactory {
         this.constraintManager = constraintManager;
 
         variableAnnotator = new VariableAnnotator(this, realTypeFactory, realChecker, slotManager, constraintManager);
-        bytecodeTypeAnnotator = new BytecodeTypeAnnotator(this, realTypeFactory);
+        bytecodeTypeAnnotator = new BytecodeTypeAnnotator(this, realTypeFactory,
+                                                          InferenceMain.getInstance().getStubAnnotationCache());
 
         unqualified = new AnnotationBuilder(processingEnv, Unqualified.class).build();
         varAnnot = new AnnotationBuilder(processingEnv, VarAnnot.class).build();
@@ -178,6 +194,141 @@ public class InferenceAnnotatedTypeFactory extends BaseAnnotatedTypeFactory {
                 realChecker, realTypeFactory, variableAnnotator, slotManager));
     }
 
+    /**
+     * With --stubCacheDir, stub files are not parsed by this factory.  The types of library elements are
+     * copied from the realTypeFactory, which has already parsed the same stub files, or from the
+     * StubAnnotationCache by the BytecodeTypeAnnotator and declaration annotations are taken from the
+     * realTypeFactory, see getDeclAnnotations.
+     */
+    @Override
+    public void parseStubFiles() {
+        if (InferenceOptions.stubCacheDir == null) {
+            super.parseStubFiles();
+        }
+    }
+
+    /**
+     * With --stubCacheDir, declaration annotations, e.g. purity annotations used by flow analysis, are
+     * taken from the realTypeFactory, which has them for both source and stub declarations; they do not
+     * take part in inference.
+     */
+    @Override
+    public Set<AnnotationMirror> getDeclAnnotations(Element elt) {
+        if (InferenceOptions.stubCacheDir == null) {
+            return super.getDeclAnnotations(elt);
+        }
+        return realTypeFactory.getDeclAnnotations(elt);
+    }
+
+    /**
+     * Use the given solution rather than generate constraints.  From now on, the types this factory
+     * returns to its clients, e.g. the real checker's visitor, have their VarAnnots replaced by the
+     * annotations of the solution, and getQualifierHierarchy and getTypeHierarchy return the
+     * hierarchies of the real type factory.
+     *
+     * Internally types are still computed with VarAnnots and the inference hierarchies, see
+     * inInferenceHierarchy, so flow analysis and the caches of this factory and the VariableAnnotator
+     * see the same slots they saw during inference.
+     */
+    public void applySolution(final SolutionOverlay solutionOverlay) {
+        this.solutionOverlay = solutionOverlay;
+        this.inferenceQualifierHierarchy = qualHierarchy;
+        this.inferenceTypeHierarchy = typeHierarchy;
+        useRealHierarchies();
+    }
+
+    private void useRealHierarchies() {
+        qualHierarchy = realTypeFactory.getQualifierHierarchy();
+        typeHierarchy = realTypeFactory.getTypeHierarchy();
+    }
+
+    /**
+     * Compute a type with the inference hierarchies.  If a solution has been applied, only the
+     * outermost computation switches hierarchies and only its result should have the solution applied.
+     */
+    private <T> T inInferenceHierarchy(final Supplier<T> computation) {
+        if (solutionOverlay == null) {
+            return computation.get();
+        }
+
+        if (nestedComputations++ == 0) {
+            qualHierarchy = inferenceQualifierHierarchy;
+            typeHierarchy = inferenceTypeHierarchy;
+        }
+        try {
+            return computation.get();
+        } finally {
+            if (--nestedComputations == 0) {
+                useRealHierarchies();
+            }
+        }
+    }
+
+    private <T extends AnnotatedTypeMirror> T withSolution(final T type) {
+        if (solutionOverlay != null && nestedComputations == 0 && type != null) {
+            solutionOverlay.apply(type);
+        }
+        return type;
+    }
+
+    private ParameterizedExecutableType withSolution(final ParameterizedExecutableType methodType) {
+        if (solutionOverlay != null && nestedComputations == 0) {
+            solutionOverlay.apply(methodType.executableType);
+            for (AnnotatedTypeMirror typeArg : methodType.typeArgs) {
+                solutionOverlay.apply(typeArg);
+            }
+        }
+        return methodType;
+    }
+
+    @Override
+    public AnnotatedTypeMirror getAnnotatedType(final Tree tree) {
+        if (solutionOverlay == null) {
+            return super.getAnnotatedType(tree);
+        }
+        return withSolution(inInferenceHierarchy(() -> super.getAnnotatedType(tree)));
+    }
+
+    @Override
+    public AnnotatedTypeMirror getAnnotatedType(final Element element) {
+        if (solutionOverlay == null) {
+            return super.getAnnotatedType(element);
+        }
+        return withSolution(inInferenceHierarchy(() -> super.getAnnotatedType(element)));
+    }
+
+    @Override
+    public AnnotatedTypeMirror fromElement(final Element element) {
+        if (solutionOverlay == null) {
+            return super.fromElement(element);
+        }
+        return withSolution(inInferenceHierarchy(() -> super.fromElement(element)));
+    }
+
+    @Override
+    public AnnotatedTypeMirror getAnnotatedTypeFromTypeTree(final Tree tree) {
+        if (solutionOverlay == null) {
+            return super.getAnnotatedTypeFromTypeTree(tree);
+        }
+        return withSolution(inInferenceHierarchy(() -> super.getAnnotatedTypeFromTypeTree(tree)));
+    }
+
+    @Override
+    public AnnotatedDeclaredType getSelfType(final Tree tree) {
+        if (solutionOverlay == null) {
+            return super.getSelfType(tree);
+        }
+        return withSolution(inInferenceHierarchy(() -> super.getSelfType(tree)));
+    }
+
+    @Override
+    public AnnotatedTypeMirror getReceiverType(final ExpressionTree expression) {
+        if (solutionOverlay == null) {
+            return super.getReceiverType(expression);
+        }
+        return withSolution(inInferenceHierarchy(() -> super.getReceiverType(expression)));
+    }
+
     public AnnotationMirror getUnqualified() {
         return unqualified;
     }
@@ -338,6 +489,13 @@ public class InferenceAnnotatedTypeFactory extends BaseAnnotatedTypeFactory {
      */
     @Override
     public ParameterizedExecutableType methodFromUse(final MethodInvocationTree methodInvocationTree) {
+        if (solutionOverlay == null) {
+            return inferMethodFromUse(methodInvocationTree);
+        }
+        return withSolution(inInferenceHierarchy(() -> inferMethodFromUse(methodInvocationTree)));
+    }
+
+    private ParameterizedExecutableType inferMethodFromUse(final MethodInvocationTree methodInvocationTree) {
         assert methodInvocationTree != null : "MethodInvocationTree in methodFromUse was null.  " +
                                               "Current path:\n" + this.visitorState.getPath();
         final ExecutableElement methodElem = TreeUtils.elementFromUse(methodInvocationTree);
@@ -393,6 +551,13 @@ public class InferenceAnnotatedTypeFactory extends BaseAnnotatedTypeFactory {
      */
     @Override
     public ParameterizedExecutableType constructorFromUse(final NewClassTree newClassTree) {
+        if (solutionOverlay == null) {
+            return inferConstructorFromUse(newClassTree);
+        }
+        return withSolution(inInferenceHierarchy(() -> inferConstructorFromUse(newClassTree)));
+    }
+
+    private ParameterizedExecutableType inferConstructorFromUse(final NewClassTree newClassTree) {
         assert newClassTree != null : "NewClassTree was null when attempting to get constructorFromUse. " +
                                       "Current path:\n" + this.visitorState.getPath();
 
@@ -469,7 +634,9 @@ public class InferenceAnnotatedTypeFactory extends BaseAnnotatedTypeFactory {
     protected void performFlowAnalysis(final ClassTree classTree) {
         final InferenceMain inferenceMain = InferenceMain.getInstance();
         inferenceMain.setPerformingFlow(true);
+        InferenceMetrics.Timer flowTimer = inferenceMain.getMetrics().start("flow");
         super.performFlowAnalysis(classTree);
+        InferenceMetrics.stop(flowTimer);
         inferenceMain.setPerformingFlow(false);
     }
 
@@ -543,6 +710,12 @@ public class InferenceAnnotatedTypeFactory extends BaseAnnotatedTypeFactory {
      * */
     @Override
     public void addComputedTypeAnnotations(final Element element, final AnnotatedTypeMirror type) {
+        final IncrementalCache incrementalCache = InferenceMain.getInstance().getIncrementalCache();
+        if (incrementalCache != null) {
+            // The constraints of the current file depend on the declaration even if it is in the store
+            incrementalCache.addDependency(treePathIndex.getCompilationUnit(element));
+        }
+
         if (!variableAnnotator.annotateElementFromStore(element, type)) {
 
             Tree declaration = declarationFromElement(element);
@@ -555,7 +728,15 @@ public class InferenceAnnotatedTypeFactory extends BaseAnnotatedTypeFactory {
             }
 
             if (declaration != null) {
-                treeAnnotator.visit(declaration, type);
+                // The declaration may be in another compilation unit, whose trees must get the same
+                // locations as when that unit is the root
+                CompilationUnitTree previous =
+                        variableAnnotator.setDeclaringUnit(treePathIndex.getCompilationUnit(element));
+                try {
+                    treeAnnotator.visit(declaration, type);
+                } finally {
+                    variableAnnotator.setDeclaringUnit(previous);
+                }
             } else {
                 bytecodeTypeAnnotator.annotate(element, type);
 
@@ -563,6 +744,15 @@ public class InferenceAnnotatedTypeFactory extends BaseAnnotatedTypeFactory {
         }
     }
 
+    /**
+     * The index of TreePaths for the VariableAnnotator, the InferenceTreeAnnotator and the InferenceValidator.
+     * Unlike getPath, it never traverses a compilation unit more than once, and it also finds the trees of
+     * other compilation units given the element they belong to.
+     */
+    public TreePathIndex getTreePathIndex() {
+        return treePathIndex;
+    }
+
     @Override
     public void setRoot(final CompilationUnitTree root) {
         logger.fine("\nCHANGING COMPILATION UNIT ( " + compilationUnitsHandled + " ): " + root.getSourceFile().getName() + " \n");
@@ -572,6 +762,8 @@ public class InferenceAnnotatedTypeFactory extends BaseAnnotatedTypeFactory {
         compilationUnitsHandled += 1;
         this.realTypeFactory.setRoot( root );
         this.variableAnnotator.clearTreeInfo();
+        this.variableAnnotator.setRoot(root);
+        this.treePathIndex.setRoot(root);
         super.setRoot(root);
     }
 
@@ -3,8 +3,20 @@ package checkers.inference;
 import org.checkerframework.common.basetype.BaseTypeChecker;
 import org.checkerframework.common.basetype.BaseTypeVisitor;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.lang.model.element.TypeElement;
+
+import com.sun.source.util.TreePath;
+
+import checkers.inference.util.InferenceMetrics;
+
 public class InferenceChecker extends BaseTypeChecker {
 
+    // The classes processed so far, only recorded when the solution is typechecked in this compilation
+    private final List<TreePath> processedClasses = new ArrayList<>();
+
     @Override
     public void initChecker() {
         InferenceMain.getInstance().recordInferenceCheckerInstance(this);
@@ -21,4 +33,48 @@ public class InferenceChecker extends BaseTypeChecker {
     protected BaseTypeVisitor<?> createSourceVisitor() {
         return null;
     }
+
+    @Override
+    public void typeProcess(TypeElement element, TreePath tree) {
+        if (getClass() == InferenceChecker.class
+                && !InferenceMain.getInstance().isInShard(tree.getCompilationUnit())) {
+            // Another thread generates the constraints of this class, see InferenceMain.generateInShards
+            return;
+        }
+        if (typechecksSolution()) {
+            processedClasses.add(tree);
+        }
+        InferenceMetrics.Timer visitTimer = null;
+        IncrementalCache incrementalCache = null;
+        if (getClass() == InferenceChecker.class) {
+            visitTimer = InferenceMain.getInstance().getMetrics().startCompilationUnit(
+                    tree.getCompilationUnit().getSourceFile().getName() + ":" + element.getQualifiedName());
+            incrementalCache = InferenceMain.getInstance().getIncrementalCache();
+        }
+        if (incrementalCache != null) {
+            incrementalCache.beginUnit(tree.getCompilationUnit(), element);
+        }
+        super.typeProcess(element, tree);
+        if (incrementalCache != null) {
+            incrementalCache.endUnit();
+        }
+        InferenceMetrics.stop(visitTimer);
+    }
+
+    /**
+     * Called once every class has been processed.  If requested, the constraints are solved and the
+     * solution is typechecked here, while the trees of this compilation are still available.
+     */
+    @Override
+    public void typeProcessingOver() {
+        if (typechecksSolution()) {
+            InferenceMain.getInstance().solveAndTypecheckSolution(processedClasses);
+        }
+        super.typeProcessingOver();
+    }
+
+    private boolean typechecksSolution() {
+        // Real checkers extend this class (see BaseInferrableChecker) but only the InferenceChecker infers
+        return InferenceOptions.typecheckSolution && getClass() == InferenceChecker.class;
+    }
 }
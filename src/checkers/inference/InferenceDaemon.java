@@ -0,0 +1,454 @@
+package checkers.inference;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import checkers.inference.util.StubAnnotationCache;
+
+/**
+ * A long-lived JVM that runs InferenceLauncher requests so that the Checker Framework, javac, the checker
+ * and the AFU are loaded and JIT compiled once rather than once per run.
+ *
+ * Start the daemon with:
+ * <pre>{@code
+ *   java -classpath <inference classpath> checkers.inference.InferenceDaemon [--port N] [--portFile file]
+ * }</pre>
+ * and run the launcher as usual with the additional option {@code --daemonPort N}.  The launcher then
+ * only parses its arguments and forwards them to the daemon, which runs them as if --singleJvm had been
+ * passed (see InferenceLauncher.launchInProcess) and streams the output back.
+ *
+ * The daemon listens on the loopback interface only.  Since any local user can connect to it, every
+ * request starts with a random token that the daemon writes to ~/.checker-framework-inference/daemon-PORT,
+ * readable by its owner only, and deletes when it stops; requests without the token are refused.
+ *
+ * The daemon handles one request at a time; inference keeps its state in static fields
+ * (InferenceMain.getInstance(), InferenceOptions).  InferenceOptions are reset to their defaults before
+ * each request and InferenceMain is reset by the launcher.  The launcher, InferenceOptions and
+ * InferenceMain exit through InferenceExitException.exit, which in the daemon ends the request, with the
+ * exit status as its result, rather than the daemon.
+ *
+ * Every request compiles in a new javac Context, so the real checker parses its stub files again.  With
+ * --stubCacheDir the stub annotation cache of the last request is kept, and a request with the same cache
+ * key starts from its entries instead of reading the cache file.
+ *
+ * Relative paths are resolved against the daemon's working directory, so requests must come from the
+ * directory the daemon was started in; other requests are refused.
+ *
+ * The protocol is line based, UTF-8 encoded and tab separated:
+ * <pre>{@code
+ *   request:  TOKEN TAB <token>
+ *             CWD TAB <working directory>
+ *             ARG TAB <argument>              (zero or more)
+ *             RUN
+ *   reply:    OUT TAB <line> | ERR TAB <line>  (zero or more)
+ *             EXIT TAB <status>
+ * }</pre>
+ * A request consisting of the token and the line SHUTDOWN stops the daemon.
+ */
+public class InferenceDaemon {
+
+    private static final String TOKEN = "TOKEN";
+    private static final String CWD = "CWD";
+    private static final String ARG = "ARG";
+    private static final String RUN = "RUN";
+    private static final String SHUTDOWN = "SHUTDOWN";
+    private static final String OUT = "OUT";
+    private static final String ERR = "ERR";
+    private static final String EXIT = "EXIT";
+
+    private static final int TOKEN_BYTES = 32;
+
+    private static volatile boolean running = false;
+
+    // The stub annotation cache of the last request, see getStubAnnotationCache
+    private static volatile StubAnnotationCache stubAnnotationCache = null;
+
+    private final int port;
+    private final File portFile;
+    private final File workingDir = new File("").getAbsoluteFile();
+
+    public InferenceDaemon(int port, File portFile) {
+        this.port = port;
+        this.portFile = portFile;
+    }
+
+    /**
+     * @return true if this JVM is an inference daemon
+     */
+    public static boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Keep cache, the stub annotation cache of the current request, for the next requests.  Does nothing
+     * if this JVM is not a daemon.
+     */
+    static void retainStubAnnotationCache(StubAnnotationCache cache) {
+        if (running) {
+            stubAnnotationCache = cache;
+        }
+    }
+
+    /**
+     * @return the stub annotation cache of the last request that used one, whose entries a new cache for
+     * the same key starts from, or null
+     */
+    static StubAnnotationCache getStubAnnotationCache() {
+        return stubAnnotationCache;
+    }
+
+    /**
+     * Usage: InferenceDaemon [--port N] [--portFile file] [--stop]
+     * A port of 0, the default, lets the operating system choose a free port, which is printed and, if
+     * requested, written to the port file.  With --stop, the daemon listening on the given port is stopped;
+     * like the launcher, this needs the token the daemon wrote for the port.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = 0;
+        File portFile = null;
+        boolean stop = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--portFile") && i + 1 < args.length) {
+                portFile = new File(args[++i]);
+            } else if (args[i].equals("--stop")) {
+                stop = true;
+            } else {
+                System.err.println("Usage: InferenceDaemon [--port N] [--portFile file] [--stop]");
+                System.exit(1);
+            }
+        }
+
+        if (stop) {
+            String token = readToken(port);
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                Writer requestWriter = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                requestWriter.write(TOKEN + "\t" + token + "\n");
+                requestWriter.write(SHUTDOWN + "\n");
+                requestWriter.flush();
+                new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+            }
+            return;
+        }
+
+        new InferenceDaemon(port, portFile).serve();
+    }
+
+    public void serve() throws IOException {
+        final PrintStream daemonOut = System.out;
+        final PrintStream daemonErr = System.err;
+
+        File tokenFile = null;
+        try (ServerSocket serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress())) {
+            running = true;
+            installLogHandler();
+
+            int boundPort = serverSocket.getLocalPort();
+            byte[] tokenBytes = new byte[TOKEN_BYTES];
+            new SecureRandom().nextBytes(tokenBytes);
+            String token = toHex(tokenBytes);
+            tokenFile = getTokenFile(boundPort);
+            writeOwnerOnly(tokenFile, token);
+
+            if (portFile != null) {
+                Files.write(portFile.toPath(), Collections.singletonList(String.valueOf(boundPort)), StandardCharsets.UTF_8);
+            }
+            daemonOut.println("Inference daemon listening on port " + boundPort + " in " + workingDir);
+
+            boolean shutdown = false;
+            while (!shutdown) {
+                try (Socket socket = serverSocket.accept()) {
+                    shutdown = handle(socket, token);
+                } catch (IOException e) {
+                    daemonErr.println("Lost connection to inference daemon client: " + e.getMessage());
+                } finally {
+                    System.setOut(daemonOut);
+                    System.setErr(daemonErr);
+                }
+            }
+
+        } finally {
+            running = false;
+            if (tokenFile != null) {
+                Files.deleteIfExists(tokenFile.toPath());
+            }
+        }
+    }
+
+    /**
+     * Handle a single request.
+     * @return true if the daemon should shut down
+     */
+    private boolean handle(Socket socket, String token) throws IOException {
+        BufferedReader requestReader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        Writer replyWriter = new BufferedWriter(
+                new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+        String tokenLine = requestReader.readLine();
+        if (tokenLine == null || !MessageDigest.isEqual((TOKEN + "\t" + token).getBytes(StandardCharsets.UTF_8),
+                                                        tokenLine.getBytes(StandardCharsets.UTF_8))) {
+            reply(replyWriter, ERR, "The request does not have the token of the inference daemon");
+            reply(replyWriter, EXIT, "1");
+            return false;
+        }
+
+        String clientDir = null;
+        List<String> args = new ArrayList<>();
+        String line;
+        while ((line = requestReader.readLine()) != null && !line.equals(RUN)) {
+            if (line.equals(SHUTDOWN)) {
+                reply(replyWriter, EXIT, "0");
+                return true;
+            }
+
+            String[] field = line.split("\t", 2);
+            if (field[0].equals(CWD)) {
+                clientDir = field[1];
+            } else if (field[0].equals(ARG)) {
+                args.add(field[1]);
+            }
+        }
+
+        if (line == null) {
+            // The client went away before finishing its request
+            return false;
+        }
+
+        if (clientDir == null || !new File(clientDir).getAbsoluteFile().equals(workingDir)) {
+            reply(replyWriter, ERR, "The inference daemon runs in " + workingDir + ", not in " + clientDir);
+            reply(replyWriter, EXIT, "1");
+            return false;
+        }
+
+        PrintStream out = new PrintStream(new LineForwardingStream(replyWriter, OUT), true, "UTF-8");
+        PrintStream err = new PrintStream(new LineForwardingStream(replyWriter, ERR), true, "UTF-8");
+        System.setOut(out);
+        System.setErr(err);
+
+        int status = run(args.toArray(new String[args.size()]), out, err);
+
+        out.close();
+        err.close();
+        reply(replyWriter, EXIT, String.valueOf(status));
+        return false;
+    }
+
+    private int run(String[] args, PrintStream out, PrintStream err) {
+        try {
+            InferenceOptions.resetToDefaults();
+            new InferenceLauncher(out, err).launch(args);
+            return 0;
+
+        } catch (Throwable t) {
+            InferenceExitException exit = InferenceExitException.find(t);
+            if (exit != null) {
+                return exit.getStatus();
+            }
+            t.printStackTrace(err);
+            return 1;
+
+        } finally {
+            InferenceMain.clearInstance();
+            out.flush();
+            err.flush();
+        }
+    }
+
+    private static void reply(Writer replyWriter, String kind, String text) throws IOException {
+        synchronized (replyWriter) {
+            replyWriter.write(kind + "\t" + text + "\n");
+            replyWriter.flush();
+        }
+    }
+
+    /**
+     * The ConsoleHandler captures System.err when it is created, replace it by one that always writes to
+     * the current System.err so that log messages reach the client of the current request.
+     */
+    private static void installLogHandler() {
+        Logger root = Logger.getLogger("");
+        for (Handler handler : root.getHandlers()) {
+            if (handler instanceof ConsoleHandler) {
+                root.removeHandler(handler);
+            }
+        }
+        root.addHandler(new ConsoleHandler() {
+            @Override
+            public synchronized void publish(LogRecord record) {
+                if (isLoggable(record)) {
+                    System.err.print(getFormatter().format(record));
+                }
+            }
+        });
+    }
+
+    /**
+     * Send the arguments of a launcher run to the daemon listening on the given port and copy its output
+     * to out and err.
+     * @return the exit status of the run
+     */
+    public static int sendRequest(int port, String[] args, PrintStream out, PrintStream err) {
+        String token;
+        try {
+            token = readToken(port);
+        } catch (IOException e) {
+            err.println("Could not read the token of the inference daemon on port " + port + " from "
+                      + getTokenFile(port) + ": " + e.getMessage());
+            err.flush();
+            return 1;
+        }
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            Writer requestWriter = new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            requestWriter.write(TOKEN + "\t" + token + "\n");
+            requestWriter.write(CWD + "\t" + new File("").getAbsolutePath() + "\n");
+            for (String arg : args) {
+                requestWriter.write(ARG + "\t" + arg + "\n");
+            }
+            requestWriter.write(RUN + "\n");
+            requestWriter.flush();
+
+            BufferedReader replyReader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = replyReader.readLine()) != null) {
+                String[] field = line.split("\t", 2);
+                String text = field.length > 1 ? field[1] : "";
+                if (field[0].equals(OUT)) {
+                    out.println(text);
+                } else if (field[0].equals(ERR)) {
+                    err.println(text);
+                } else if (field[0].equals(EXIT)) {
+                    return Integer.parseInt(text);
+                }
+            }
+
+            err.println("The inference daemon closed the connection before the run finished.");
+            return 1;
+
+        } catch (IOException e) {
+            err.println("Could not reach the inference daemon on port " + port + ": " + e.getMessage());
+            return 1;
+        } finally {
+            out.flush();
+            err.flush();
+        }
+    }
+
+    /**
+     * @return the file the daemon listening on port writes its token to
+     */
+    private static File getTokenFile(int port) {
+        return new File(new File(System.getProperty("user.home"), ".checker-framework-inference"), "daemon-" + port);
+    }
+
+    private static String readToken(int port) throws IOException {
+        List<String> lines = Files.readAllLines(getTokenFile(port).toPath(), StandardCharsets.UTF_8);
+        if (lines.isEmpty()) {
+            throw new IOException("The token file is empty");
+        }
+        return lines.get(0);
+    }
+
+    /**
+     * Write text to a new file that only the current user can read, in a directory only they can list.
+     */
+    private static void writeOwnerOnly(File file, String text) throws IOException {
+        Path dir = file.getAbsoluteFile().getParentFile().toPath();
+        Path path = file.toPath();
+        Files.createDirectories(dir);
+        Files.deleteIfExists(path);
+        if (dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwx------"));
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(path);
+            File created = path.toFile();
+            if (!(created.setReadable(false, false) && created.setReadable(true, true)
+                  && created.setWritable(false, false) && created.setWritable(true, true))) {
+                throw new IOException("Could not restrict the permissions of " + file + " to its owner");
+            }
+        }
+        Files.write(path, Collections.singletonList(text), StandardCharsets.UTF_8);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Forwards each complete line written to it as a reply of the given kind.
+     */
+    private static class LineForwardingStream extends OutputStream {
+        private final Writer replyWriter;
+        private final String kind;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        LineForwardingStream(Writer replyWriter, String kind) {
+            this.replyWriter = replyWriter;
+            this.kind = kind;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (b == '\n') {
+                forwardLine();
+            } else {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (line.size() > 0) {
+                forwardLine();
+            }
+        }
+
+        private void forwardLine() throws IOException {
+            String text;
+            try {
+                text = line.toString("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IOException(e);
+            }
+            if (text.endsWith("\r")) {
+                text = text.substring(0, text.length() - 1);
+            }
+            line.reset();
+            reply(replyWriter, kind, text);
+        }
+    }
+}
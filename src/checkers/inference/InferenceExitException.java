@@ -0,0 +1,45 @@
+package checkers.inference;
+
+/**
+ * Ends the request an InferenceDaemon is handling with an exit status.  The launcher, InferenceOptions
+ * and InferenceMain call exit wherever they would call System.exit, so that a failing request ends
+ * that request rather than the daemon.
+ */
+public class InferenceExitException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public InferenceExitException(int status) {
+        super("Inference exited with status " + status);
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Exit the JVM with status or, in an inference daemon, throw an InferenceExitException that ends
+     * the current request with it.
+     */
+    public static void exit(int status) {
+        if (InferenceDaemon.isRunning()) {
+            throw new InferenceExitException(status);
+        }
+        System.exit(status);
+    }
+
+    /**
+     * @return the InferenceExitException that t is or was caused by, e.g. when javac wraps the exceptions
+     * of annotation processors, or null if there is none
+     */
+    public static InferenceExitException find(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InferenceExitException) {
+                return (InferenceExitException) cause;
+            }
+        }
+        return null;
+    }
+}
@@ -10,15 +10,35 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import checkers.inference.InferenceOptions.AfuRunner;
 import checkers.inference.InferenceOptions.InitStatus;
+import checkers.inference.util.AfuSession;
+import checkers.inference.util.AfuWorkerSession;
+import checkers.inference.util.AppCdsArchive;
+import checkers.inference.util.InProcessAfuSession;
+import checkers.inference.util.ParallelJaifInserter;
+import checkers.inference.util.ParallelJaifInserter.InsertionResult;
 
 
 /**
@@ -40,6 +60,13 @@ public class InferenceLauncher {
     private static final String PROP_PREFIX = "InferenceLauncher";
     private static final String RUNTIME_BCP_PROP = PROP_PREFIX + ".runtime.bcp";
 
+    // Created on first use if --cdsArchiveDir is given, see getCdsJvmArgs
+    private AppCdsArchive appCdsArchive;
+
+    // The sourcepath of the original files the AFU did not write, set by insertJaifWithSession, null
+    // if the files to typecheck need no other sources
+    private String typecheckSourcepath;
+
     public InferenceLauncher(PrintStream outStream, PrintStream errStream) {
         this.outStream = outStream;
         this.errStream = errStream;
@@ -61,7 +88,17 @@ public class InferenceLauncher {
         } catch (IllegalArgumentException iexc) {
             outStream.println("Could not recognize mode: " + InferenceOptions.mode + "\n"
                     + "valid modes: " + UtilPlume.join(", ", Mode.values()));
-            System.exit(1);
+            InferenceExitException.exit(1);
+        }
+
+        if (InferenceOptions.daemonPort != 0 && !InferenceDaemon.isRunning()) {
+            exitOnNonZeroStatus(InferenceDaemon.sendRequest(InferenceOptions.daemonPort, args, outStream, errStream));
+            return;
+        }
+
+        if (InferenceOptions.singleJvm || InferenceDaemon.isRunning()) {
+            launchInProcess(mode);
+            return;
         }
 
         switch (mode) {
@@ -80,12 +117,47 @@ public class InferenceLauncher {
 
             case ROUNDTRIP_TYPECHECK:
                 infer();
+                if (InferenceOptions.typecheckSolution) {
+                    // Already typechecked by the inference step
+                    break;
+                }
                 List<String> updatedJavaFiles =  insertJaif();
                 typecheck(updatedJavaFiles.toArray(new String[updatedJavaFiles.size()]));
                 break;
         }
     }
 
+    /**
+     * Runs the tasks for the given mode in this JVM rather than in a new JVM per task.
+     * The Checker Framework, javac, and the AFU are loaded only once and are shared by
+     * inference, insertion, and typechecking.
+     */
+    protected void launchInProcess(Mode mode) {
+        switch (mode) {
+            case TYPECHECK:
+                typecheckInProcess(InferenceOptions.javaFiles);
+                break;
+
+            case INFER:
+                inferInProcess();
+                break;
+
+            case ROUNDTRIP:
+                inferInProcess();
+                insertJaifInProcess();
+                break;
+
+            case ROUNDTRIP_TYPECHECK:
+                inferInProcess();
+                if (InferenceOptions.typecheckSolution) {
+                    break;
+                }
+                List<String> updatedJavaFiles = insertJaifInProcess();
+                typecheckInProcess(updatedJavaFiles.toArray(new String[updatedJavaFiles.size()]));
+                break;
+        }
+    }
+
     /**
      * Mode describes what actions should be performed by the launcher.
      */
@@ -125,7 +197,12 @@ public class InferenceLauncher {
             options.add("-J-Xrunjdwp:transport=dt_socket,server=y,suspend=y,address=" + InferenceOptions.debug);
         }
 
+        for (String cdsArg : getCdsJvmArgs(false)) {
+            options.add("-J" + cdsArg);
+        }
+
         options.addAll(InferenceOptions.javacOptions);
+        addTypecheckSourcepath(options);
         options.addAll(Arrays.asList(javaFiles));
 
         final CheckerMain checkerMain = new CheckerMain(InferenceOptions.checkerJar, options);
@@ -151,10 +228,252 @@ public class InferenceLauncher {
      */
     public void infer() {
         printStep("Inferring", outStream);
+        if (InferenceOptions.generationJvms > 1) {
+            List<List<String>> shards = partitionByPackage(InferenceOptions.javaFiles, InferenceOptions.generationJvms);
+            if (shards.size() > 1) {
+                inferInShardJvms(shards);
+                return;
+            }
+        }
+
+        List<String> argList = getInferenceMainCommand(true);
+        addSolvingOptions(argList);
+        addIfTrue("--typecheckSolution", InferenceOptions.typecheckSolution, argList);
+        addIfNotNull("--incrementalCacheDir", InferenceOptions.incrementalCacheDir, argList);
+        if (InferenceOptions.generationThreads > 1) {
+            argList.add("--generationThreads");
+            argList.add(String.valueOf(InferenceOptions.generationThreads));
+        }
+        addJavacArguments(argList, Collections.<String>emptyList(), Arrays.asList(InferenceOptions.javaFiles));
+
+        if (InferenceOptions.printCommands) {
+            outStream.println("Running infer command:");
+            outStream.println(String.join(" ", argList));
+        }
+
+        int result = ExecUtil.execute(argList.toArray(new String[argList.size()]), outStream, System.err);
+        outStream.flush();
+        errStream.flush();
+
+        if (result == 0 && appCdsArchive != null) {
+            appCdsArchive.createArchive(outStream);
+        }
+
+        reportStatus("Inference", result, outStream);
+        outStream.flush();
+        exitOnNonZeroStatus(result);
+    }
+
+    /**
+     * Generate the constraints of each shard in its own InferenceMain JVM, all running at once, then merge
+     * and solve them in one more JVM.  Each shard JVM compiles every source file but only generates the
+     * constraints of the classes of its shard (see InferenceOptions.shardSourcesFile), so a JVM holds the
+     * trees of the whole program but the slots, constraints and type factory caches of its shard only.
+     * Only the first shard writes class files.  The shards are written to files in a temporary
+     * directory, which is removed once the constraints are solved or generation failed, unless
+     * InferenceOptions.keepShards is set.
+     */
+    private void inferInShardJvms(List<List<String>> shards) {
+        final File shardDir;
+        try {
+            shardDir = Files.createTempDirectory("inference-shards").toFile();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create a directory for the shards.", e);
+        }
+
+        int result;
+        try {
+            result = generateAndMergeShards(shards, shardDir);
+        } finally {
+            if (InferenceOptions.keepShards) {
+                errStream.println("The shards are kept in " + shardDir);
+            } else {
+                deleteDirectory(shardDir);
+            }
+        }
+
+        outStream.flush();
+        errStream.flush();
+        reportStatus("Inference", result, outStream);
+        outStream.flush();
+        exitOnNonZeroStatus(result);
+    }
+
+    /**
+     * Run a JVM for each shard, writing its files to shardDir, and, if they all succeed, the JVM that
+     * merges and solves them.
+     * @return the exit status of the first failing JVM, or 0
+     */
+    private int generateAndMergeShards(List<List<String>> shards, File shardDir) {
+        final List<List<String>> commands = new ArrayList<>();
+        final List<String> shardOutputs = new ArrayList<>();
+        final String sourcepath = InferenceMain.getShardSourcepath();
+        for (int i = 0; i < shards.size(); i++) {
+            File sourcesFile = new File(shardDir, "shard-" + i + ".sources");
+            File outputFile = new File(shardDir, "shard-" + i + ".constraints");
+            try {
+                Files.write(sourcesFile.toPath(), shards.get(i), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not write " + sourcesFile, e);
+            }
+            shardOutputs.add(outputFile.getAbsolutePath());
+
+            List<String> argList = getInferenceMainCommand(i == 0);
+            argList.addAll(Arrays.asList("--shardSourcesFile", sourcesFile.getAbsolutePath(),
+                                         "--shardOutput", outputFile.getAbsolutePath()));
+            addIfNotNull("--logLevel", InferenceOptions.logLevel, argList);
+            addIfNotNull("--stubCacheDir", InferenceOptions.stubCacheDir, argList);
+            addIfTrue("--hacks", InferenceOptions.hacks, argList);
+            if (InferenceOptions.generationThreads > 1) {
+                argList.add("--generationThreads");
+                argList.add(String.valueOf(InferenceOptions.generationThreads));
+            }
+
+            // Every shard only compiles its own sources and reads the others from the sourcepath
+            addJavacArguments(argList, InferenceMain.getShardJavacArgs(sourcepath, shards.get(i), i == 0),
+                              Collections.<String>emptyList());
+            commands.add(argList);
+        }
+
+        if (InferenceOptions.printCommands) {
+            for (int i = 0; i < commands.size(); i++) {
+                outStream.println("Running infer command for shard " + i + " (" + shards.get(i).size() + " files):");
+                outStream.println(String.join(" ", commands.get(i)));
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(commands.size());
+        List<Future<Integer>> results = new ArrayList<>();
+        List<ByteArrayOutputStream> outputs = new ArrayList<>();
+        int result = 0;
+        try {
+            for (final List<String> command : commands) {
+                final ByteArrayOutputStream output = new ByteArrayOutputStream();
+                outputs.add(output);
+                results.add(executor.submit(
+                        () -> ExecUtil.execute(command.toArray(new String[command.size()]), output, output)));
+            }
+
+            for (int i = 0; i < results.size(); i++) {
+                int shardResult;
+                try {
+                    shardResult = results.get(i).get();
+                } catch (ExecutionException e) {
+                    errStream.println("Could not run shard " + i + ": " + e.getCause());
+                    shardResult = 1;
+                }
+                outStream.print(outputs.get(i).toString());
+                if (shardResult != 0) {
+                    errStream.println("Constraint generation failed for shard " + i + ".");
+                    result = shardResult;
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while generating constraints.", e);
+
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (result == 0) {
+            if (appCdsArchive != null) {
+                appCdsArchive.createArchive(outStream);
+            }
+
+            List<String> argList = getInferenceMainCommand(false);
+            argList.add("--mergeShards");
+            argList.add(String.join(File.pathSeparator, shardOutputs));
+            addSolvingOptions(argList);
+            addJavacArguments(argList, Collections.<String>emptyList(), Collections.<String>emptyList());
+
+            if (InferenceOptions.printCommands) {
+                outStream.println("Running merge command:");
+                outStream.println(String.join(" ", argList));
+            }
+            result = ExecUtil.execute(argList.toArray(new String[argList.size()]), outStream, System.err);
+        }
+        return result;
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Split javaFiles into at most numShards shards of whole packages with about the same total size.
+     * Packages are assigned, largest first, to the shard with the least source so far; the files of a
+     * shard keep their order in javaFiles.
+     * @return the non-empty shards
+     */
+    static List<List<String>> partitionByPackage(String[] javaFiles, int numShards) {
+        final List<String> files = Arrays.asList(javaFiles);
+        final Map<String, List<String>> packageToSources = ParallelJaifInserter.groupByPackage(files);
+
+        final Map<String, Long> packageSizes = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : packageToSources.entrySet()) {
+            long size = 0;
+            for (String file : entry.getValue()) {
+                size += Math.max(new File(file).length(), 1);
+            }
+            packageSizes.put(entry.getKey(), size);
+        }
+
+        List<String> packages = new ArrayList<>(packageToSources.keySet());
+        packages.sort((first, second) -> {
+            int bySize = Long.compare(packageSizes.get(second), packageSizes.get(first));
+            return bySize != 0 ? bySize : first.compareTo(second);
+        });
+
+        numShards = Math.min(numShards, packages.size());
+        final long[] shardSizes = new long[numShards];
+        final List<Set<String>> shardFiles = new ArrayList<>();
+        for (int i = 0; i < numShards; i++) {
+            shardFiles.add(new HashSet<>());
+        }
+        for (String packageName : packages) {
+            int smallest = 0;
+            for (int i = 1; i < numShards; i++) {
+                if (shardSizes[i] < shardSizes[smallest]) {
+                    smallest = i;
+                }
+            }
+            shardSizes[smallest] += packageSizes.get(packageName);
+            shardFiles.get(smallest).addAll(packageToSources.get(packageName));
+        }
+
+        List<List<String>> shards = new ArrayList<>();
+        for (Set<String> shardFileSet : shardFiles) {
+            List<String> shard = new ArrayList<>();
+            for (String file : files) {
+                if (shardFileSet.contains(file)) {
+                    shard.add(file);
+                }
+            }
+            if (!shard.isEmpty()) {
+                shards.add(shard);
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * @param mayTrain whether the JVM may record the classes it loads for the class data sharing archive
+     * @return the command to run InferenceMain in a new JVM, up to and including the checker option
+     */
+    private List<String> getInferenceMainCommand(boolean mayTrain) {
         final String java = getJavaCommand(System.getProperty("java.home"), outStream);
         List<String> argList = new LinkedList<>();
         argList.add(java);
         argList.addAll(getMemoryArgs());
+        argList.addAll(getCdsJvmArgs(mayTrain));
 
         String bcp = getInferenceRuntimeBootclassPath();
         if (bcp != null && !bcp.isEmpty()) {
@@ -176,14 +495,37 @@ public class InferenceLauncher {
                         "checkers.inference.InferenceMain",
                         "--checker", InferenceOptions.checker)
         );
+        return argList;
+    }
 
+    /**
+     * Add the options of InferenceMain that are needed to solve the constraints and write the results.
+     */
+    private static void addSolvingOptions(List<String> argList) {
         addIfNotNull("--jaifFile", InferenceOptions.jaifFile, argList);
         addIfNotNull("--logLevel", InferenceOptions.logLevel, argList);
         addIfNotNull("--solver", InferenceOptions.solver, argList);
         addIfNotNull("--solverArgs", InferenceOptions.solverArgs, argList);
-
+        addIfNotNull("--stubCacheDir", InferenceOptions.stubCacheDir, argList);
+        if (InferenceOptions.solverTimeLimit > 0) {
+            argList.addAll(Arrays.asList("--solverTimeLimit", String.valueOf(InferenceOptions.solverTimeLimit)));
+        }
+        if (InferenceOptions.cnfPreprocessing) {
+            argList.add("--cnfPreprocessing");
+        }
+        if (InferenceOptions.solutionCacheDir != null) {
+            argList.addAll(Arrays.asList("--solutionCacheDir", InferenceOptions.solutionCacheDir,
+                    "--solutionCacheSize", String.valueOf(InferenceOptions.solutionCacheSize)));
+        }
+        addIfNotNull("--metricsFile", InferenceOptions.metricsFile, argList);
+        addIfNotNull("--prometheusMetricsFile", InferenceOptions.prometheusMetricsFile, argList);
         addIfTrue("--hacks", InferenceOptions.hacks, argList);
+    }
 
+    /**
+     * End the options of InferenceMain and add the javac options, followed by extraJavacArgs and javaFiles.
+     */
+    private void addJavacArguments(List<String> argList, List<String> extraJavacArgs, List<String> javaFiles) {
         argList.add("--");
 
         String compilationBcp = getInferenceCompilationBootclassPath();
@@ -194,24 +536,179 @@ public class InferenceLauncher {
         int preJavacOptsSize = argList.size();
         argList.addAll(InferenceOptions.javacOptions);
         removeXmArgs(argList, preJavacOptsSize, argList.size());
+        argList.addAll(extraJavacArgs);
 
         // TODO: NEED TO HANDLE JDK
-        argList.addAll(Arrays.asList(InferenceOptions.javaFiles));
+        argList.addAll(javaFiles);
+    }
+
+    /**
+     * Infers annotations for the set of source files found in InferenceOptions.javaFiles by running
+     * InferenceMain in this JVM.  Like infer(), memory arguments in the javac options are
+     * ignored; they only apply to the JVM, which is already running.
+     */
+    public void inferInProcess() {
+        printStep("Inferring", outStream);
+
+        final List<String> launcherJavacOptions = InferenceOptions.javacOptions;
+        final List<String> javacOptions = new ArrayList<>();
+
+        String compilationBcp = getInferenceCompilationBootclassPath();
+        if (compilationBcp != null && !compilationBcp.isEmpty()) {
+            javacOptions.add("-Xbootclasspath/p:" + compilationBcp);
+        }
+        javacOptions.addAll(getInProcessJavacOptions());
 
         if (InferenceOptions.printCommands) {
-            outStream.println("Running infer command:");
-            outStream.println(String.join(" ", argList));
+            outStream.println("Running InferenceMain in process with javac options:");
+            outStream.println(String.join(" ", javacOptions));
+        }
+
+        int result = 0;
+        InferenceOptions.javacOptions = javacOptions;
+        try {
+            InferenceMain inferenceMain = InferenceMain.resetInstance();
+            inferenceMain.setResultHandler(new InProcessResultHandler());
+            inferenceMain.run();
+
+        } catch (InProcessCompilationFailure failure) {
+            errStream.println(failure.javacOutput);
+            result = 1;
+
+        } finally {
+            InferenceOptions.javacOptions = launcherJavacOptions;
+            // Typechecking in this JVM must not see an inference run in progress
+            InferenceMain.clearInstance();
         }
 
-        int result = ExecUtil.execute(argList.toArray(new String[argList.size()]), outStream, System.err);
         outStream.flush();
         errStream.flush();
-
         reportStatus("Inference", result, outStream);
         outStream.flush();
         exitOnNonZeroStatus(result);
     }
 
+    /**
+     * Runs typechecking on the input set of files with javac running in this JVM.
+     * @param javaFiles Source files to typecheck, see typecheck(String [])
+     */
+    public void typecheckInProcess(String [] javaFiles) {
+        printStep("Typechecking", outStream);
+
+        List<String> options = new ArrayList<>();
+        options.add("-processor");
+        options.add(InferenceOptions.checker);
+        options.addAll(getInProcessJavacOptions());
+        addToClasspathOption(options, getInferenceRuntimeJars());
+        addTypecheckSourcepath(options);
+        options.addAll(Arrays.asList(javaFiles));
+
+        if (InferenceOptions.printCommands) {
+            outStream.println("Running typecheck in process with javac arguments:");
+            outStream.println(String.join(" ", options));
+        }
+
+        StringWriter javacOutput = new StringWriter();
+        boolean success = CheckerFrameworkUtil.invokeCheckerFramework(options.toArray(new String[options.size()]),
+                new PrintWriter(javacOutput, true));
+        outStream.print(javacOutput.toString());
+
+        int result = success ? 0 : 1;
+        reportStatus("Typechecking", result, outStream);
+        outStream.flush();
+        exitOnNonZeroStatus(result);
+    }
+
+    /**
+     * @return InferenceOptions.javacOptions without the options that are meant for the JVM rather than javac
+     */
+    private static List<String> getInProcessJavacOptions() {
+        List<String> javacOptions = new ArrayList<>();
+        for (String option : InferenceOptions.javacOptions) {
+            if (!option.startsWith("-J") && !option.startsWith("-Xmx") && !option.startsWith("-Xms")) {
+                javacOptions.add(option);
+            }
+        }
+        return javacOptions;
+    }
+
+    /**
+     * Append paths to the classpath option in javacOptions, or add a classpath option if there is none.
+     */
+    private static void addToClasspathOption(List<String> javacOptions, List<String> paths) {
+        String extraPaths = String.join(File.pathSeparator, paths);
+        for (int i = 0; i < javacOptions.size() - 1; i++) {
+            String option = javacOptions.get(i);
+            if (option.equals("-cp") || option.equals("-classpath") || option.equals("--class-path")) {
+                javacOptions.set(i + 1, javacOptions.get(i + 1) + File.pathSeparator + extraPaths);
+                return;
+            }
+        }
+
+        javacOptions.add("-classpath");
+        javacOptions.add(extraPaths);
+    }
+
+    /**
+     * Add typecheckSourcepath in front of the sourcepath option in javacOptions, or add a sourcepath
+     * option if there is none, so that javac reads the classes the files to typecheck refer to from
+     * their sources without typechecking or compiling those.
+     */
+    private void addTypecheckSourcepath(List<String> javacOptions) {
+        if (typecheckSourcepath == null) {
+            return;
+        }
+
+        javacOptions.add("-implicit:none");
+        for (int i = 0; i < javacOptions.size() - 1; i++) {
+            String option = javacOptions.get(i);
+            if (option.equals("-sourcepath") || option.equals("--source-path")) {
+                javacOptions.set(i + 1, typecheckSourcepath + File.pathSeparator + javacOptions.get(i + 1));
+                return;
+            }
+        }
+
+        javacOptions.add("-sourcepath");
+        javacOptions.add(typecheckSourcepath);
+    }
+
+    /**
+     * Inserts the Jaif resulting from Inference into the source code without running the
+     * insert-annotations-to-source script.  The AFU runs in a worker JVM unless --afuRunner is IN_PROCESS:
+     * the AFU calls System.exit on some errors, which would end this JVM.
+     * @return The list of source files to typecheck after insertion
+     */
+    public List<String> insertJaifInProcess() {
+        printStep("Inserting annotations", outStream);
+        if (InferenceOptions.afuRunner.equals(AfuRunner.IN_PROCESS.name())) {
+            return insertJaifWithSession(AfuRunner.IN_PROCESS);
+        }
+        return insertJaifWithSession(AfuRunner.WORKER);
+    }
+
+    /**
+     * Thrown by InProcessResultHandler so that a failed compilation stops inference without exiting the JVM.
+     */
+    private static class InProcessCompilationFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final String javacOutput;
+
+        InProcessCompilationFailure(String javacOutput) {
+            super("Error return code from javac!");
+            this.javacOutput = javacOutput;
+        }
+    }
+
+    private static class InProcessResultHandler implements InferenceMain.ResultHandler {
+        @Override
+        public void handleCompilerResult(boolean success, String javacOutStr) {
+            if (!success) {
+                throw new InProcessCompilationFailure(javacOutStr);
+            }
+        }
+    }
+
     public static String getJavaCommand(final String javaHome, final PrintStream out) {
         if (javaHome == null || javaHome.equals("")) {
             return "java";
@@ -258,7 +755,13 @@ public class InferenceLauncher {
         int result;
         String pathToAfuScripts = InferenceOptions.pathToAfuScripts == null ? "":InferenceOptions.pathToAfuScripts+File.separator;
         String insertAnnotationsScript = pathToAfuScripts+"insert-annotations-to-source";
-        if (!InferenceOptions.inPlace) {
+        if (InferenceOptions.afuWorkers > 1) {
+            return insertJaifInParallel(insertAnnotationsScript);
+
+        } else if (!InferenceOptions.afuRunner.equals(AfuRunner.SCRIPT.name())) {
+            return insertJaifWithSession(AfuRunner.valueOf(InferenceOptions.afuRunner));
+
+        } else if (!InferenceOptions.inPlace) {
             final File outputDir = new File(InferenceOptions.afuOutputDir);
             ensureDirectoryExists(outputDir);
 
@@ -320,6 +823,173 @@ public class InferenceLauncher {
         return outputJavaFiles;
     }
 
+    /**
+     * Inserts the Jaif resulting from Inference into the source code by splitting it per package
+     * and running InferenceOptions.afuWorkers insert-annotations-to-source processes at once.
+     * @return The list of source files that were potentially altered
+     */
+    private List<String> insertJaifInParallel(String insertAnnotationsScript) {
+        final File outputDir = InferenceOptions.inPlace ? null : new File(InferenceOptions.afuOutputDir);
+        final String jaifFile;
+        if (outputDir == null) {
+            jaifFile = getJaifFilePath(new File("."));
+        } else {
+            ensureDirectoryExists(outputDir);
+            jaifFile = getJaifFilePath(outputDir);
+        }
+
+        final File splitDir;
+        try {
+            splitDir = Files.createTempDirectory("inference-split-jaifs").toFile();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create a directory for split jaifs.", e);
+        }
+
+        if (InferenceOptions.printCommands) {
+            outStream.println("Inserting " + jaifFile + " with " + InferenceOptions.afuWorkers
+                    + " parallel " + insertAnnotationsScript + " processes, split jaifs and logs in: "
+                    + splitDir.getAbsolutePath());
+        }
+
+        ParallelJaifInserter inserter = new ParallelJaifInserter(insertAnnotationsScript, getAfuArgs(),
+                InferenceOptions.afuWorkers, InferenceOptions.afuTimeout, outStream);
+        InsertionResult insertionResult;
+        try {
+            insertionResult = inserter.insert(new File(jaifFile),
+                    Arrays.asList(InferenceOptions.javaFiles), splitDir, outputDir);
+            insertionResult.printFailures(errStream);
+        } finally {
+            if (InferenceOptions.keepShards) {
+                errStream.println("The split jaifs and AFU logs are kept in " + splitDir);
+            } else {
+                deleteDirectory(splitDir);
+            }
+        }
+
+        int result = insertionResult.succeeded() ? 0 : 1;
+        if (result != 0 && !InferenceOptions.keepShards) {
+            errStream.println("The AFU logs have been removed, run again with --keepShards to keep them.");
+        }
+        reportStatus("Insert annotations", result, outStream);
+        outStream.flush();
+        exitOnNonZeroStatus(result);
+
+        if (outputDir == null) {
+            return new ArrayList<>(Arrays.asList(InferenceOptions.javaFiles));
+        }
+        return insertionResult.writtenFiles;
+    }
+
+    /**
+     * Inserts the Jaif resulting from Inference into the source code using an AfuSession, i.e.
+     * without running the insert-annotations-to-source script.
+     * @param afuRunner either IN_PROCESS or WORKER
+     * @return The list of source files to typecheck after insertion.  When inserting into an
+     * output directory these are the written files, see typecheckWrittenFiles.
+     */
+    private List<String> insertJaifWithSession(AfuRunner afuRunner) {
+        final File outputDir = InferenceOptions.inPlace ? null : new File(InferenceOptions.afuOutputDir);
+        final String jaifFile;
+        if (outputDir == null) {
+            jaifFile = getJaifFilePath(new File("."));
+        } else {
+            ensureDirectoryExists(outputDir);
+            jaifFile = getJaifFilePath(outputDir);
+        }
+
+        if (InferenceOptions.printCommands) {
+            outStream.println("Inserting " + jaifFile + " using AFU runner " + afuRunner);
+        }
+
+        final AfuSession.Result insertionResult;
+        try (AfuSession session = createAfuSession(afuRunner, outputDir)) {
+            insertionResult = session.insert(Arrays.asList(new File(jaifFile)), Arrays.asList(InferenceOptions.javaFiles));
+        }
+
+        reportStatus("Insert annotations", insertionResult.status, outStream);
+        outStream.flush();
+        exitOnNonZeroStatus(insertionResult.status);
+
+        if (outputDir == null) {
+            return new ArrayList<>(Arrays.asList(InferenceOptions.javaFiles));
+        }
+        return typecheckWrittenFiles(insertionResult.writtenFiles, outputDir);
+    }
+
+    /**
+     * The AFU only writes the source files into which it inserted annotations.  Typechecking the
+     * written files alone would not compile if they refer to classes in the files it did not write, so
+     * javac reads those from the directories of the original files, put on the sourcepath by
+     * addTypecheckSourcepath, rather than parsing and typechecking every source file again.  If the
+     * original files are not in the directories of their packages javac would not find them there,
+     * and they are typechecked with the written files, see addUnwrittenSources, as they are when the
+     * AFU wrote no file.
+     * @return the files to typecheck
+     */
+    private List<String> typecheckWrittenFiles(List<String> writtenFiles, File outputDir) {
+        String sourcepath = ParallelJaifInserter.getSourcepath(Arrays.asList(InferenceOptions.javaFiles));
+        if (sourcepath == null || writtenFiles.isEmpty()) {
+            return addUnwrittenSources(writtenFiles, outputDir);
+        }
+
+        typecheckSourcepath = sourcepath;
+        return writtenFiles;
+    }
+
+    /**
+     * Add every original source file that has no counterpart in outputDir to writtenFiles.
+     */
+    private static List<String> addUnwrittenSources(List<String> writtenFiles, File outputDir) {
+        Set<String> writtenPaths = new HashSet<>();
+        for (String written : writtenFiles) {
+            writtenPaths.add(new File(written).getAbsoluteFile().toPath().normalize().toString());
+        }
+
+        List<String> javaFiles = new ArrayList<>(writtenFiles);
+        for (String javaFile : InferenceOptions.javaFiles) {
+            String packageName = ParallelJaifInserter.groupByPackage(Arrays.asList(javaFile)).keySet().iterator().next();
+            File packageDir = packageName.isEmpty()
+                    ? outputDir : new File(outputDir, packageName.replace('.', File.separatorChar));
+            File counterpart = new File(packageDir, new File(javaFile).getName()).getAbsoluteFile();
+            if (!writtenPaths.contains(counterpart.toPath().normalize().toString())) {
+                javaFiles.add(javaFile);
+            }
+        }
+        return javaFiles;
+    }
+
+    /**
+     * Create an AfuSession of the given kind.  The caller is responsible for closing it.  In an
+     * InferenceDaemon the AFU always runs in a worker JVM, a System.exit in the AFU must not stop the daemon.
+     * @param afuRunner either IN_PROCESS or WORKER
+     * @param outputDir the AFU output directory or null to insert annotations in place
+     */
+    protected AfuSession createAfuSession(AfuRunner afuRunner, File outputDir) {
+        File afuJar = InProcessAfuSession.findAfuJar(InferenceOptions.pathToAfuScripts);
+        if (afuRunner == AfuRunner.WORKER || InferenceDaemon.isRunning()) {
+            String classpath = getInferenceRuntimeClassPath();
+            if (afuJar != null) {
+                classpath += File.pathSeparator + afuJar.getAbsolutePath();
+            }
+            List<String> jvmArgs = new ArrayList<>(getMemoryArgs());
+            jvmArgs.addAll(getCdsJvmArgs(false));
+            return new AfuWorkerSession(jvmArgs, classpath, outputDir, getAfuArgs(), null);
+        }
+
+        return new InProcessAfuSession(outputDir, getAfuArgs(), afuJar);
+    }
+
+    /**
+     * @return InferenceOptions.afuOptions split into individual arguments
+     */
+    private static List<String> getAfuArgs() {
+        List<String> afuArgs = new ArrayList<>();
+        if (InferenceOptions.afuOptions != null && !InferenceOptions.afuOptions.trim().isEmpty()) {
+            afuArgs.addAll(Arrays.asList(InferenceOptions.afuOptions.trim().split("\\s+")));
+        }
+        return afuArgs;
+    }
+
     public static void ensureDirectoryExists(File path) {
         if (!path.exists()) {
             if (!path.mkdirs()) {
@@ -334,7 +1004,7 @@ public class InferenceLauncher {
      * @param output The output of the Annotation File Utilities
      * @return The files that the AFU processed
      */
-    private static List<File> findWrittenFiles(String output) {
+    public static List<File> findWrittenFiles(String output) {
         // This will be brittle; if the AFU Changes it's output string then no files will be found
         final Pattern afuWritePattern = Pattern.compile("^Writing (.*\\.java)$");
 
@@ -390,20 +1060,55 @@ public class InferenceLauncher {
         return Arrays.asList(xms, xmx);
     }
 
+    /**
+     * @param mayTrain whether the JVM runs inference and may therefore be used to create the archive
+     * @return the arguments that make a child JVM use the class data sharing archive in
+     * InferenceOptions.cdsArchiveDir, none if there is no usable archive
+     */
+    private List<String> getCdsJvmArgs(boolean mayTrain) {
+        if (InferenceOptions.cdsArchiveDir == null) {
+            return new ArrayList<>();
+        }
+
+        if (appCdsArchive == null) {
+            // Every child JVM's classpath starts with the dist jars, see getInferenceRuntimeClassPath
+            appCdsArchive = new AppCdsArchive(new File(InferenceOptions.cdsArchiveDir), getDistJars(),
+                                              InferenceOptions.rebuildCdsArchive);
+            if (!appCdsArchive.isSupported()) {
+                errStream.println("Class data sharing archives need Java 11 or later and a dist directory "
+                        + "that contains only jars, running without one.");
+            }
+        }
+        return appCdsArchive.getJvmArgs(mayTrain);
+    }
+
     /**
      * @return the paths to the set of jars that are needed to be placed on
      * the classpath of the process running inference
      */
     protected List<String> getInferenceRuntimeJars() {
-        final File distDir = InferenceOptions.pathToThisJar.getParentFile();
-        List<String> filePaths = new ArrayList<>();
-        for (File child : distDir.listFiles()) {
-            filePaths.add(child.getAbsolutePath());
-        }
+        List<String> filePaths = new ArrayList<>(getDistJars());
         filePaths.add(InferenceOptions.targetclasspath);
         return filePaths;
     }
 
+    // The contents of the dist directory, listed once per JVM since a daemon may run many launches
+    private static List<String> distJars;
+
+    private static synchronized List<String> getDistJars() {
+        if (distJars == null) {
+            final File distDir = InferenceOptions.pathToThisJar.getParentFile();
+            List<String> filePaths = new ArrayList<>();
+            for (File child : distDir.listFiles()) {
+                filePaths.add(child.getAbsolutePath());
+            }
+            // A stable order keeps the classpath, and so a class data sharing archive, valid across runs
+            Collections.sort(filePaths);
+            distJars = filePaths;
+        }
+        return distJars;
+    }
+
     // what used as bootclass to run the compiler
     protected String getInferenceRuntimeBootclassPath() {
         return System.getProperty( RUNTIME_BCP_PROP );
@@ -438,7 +1143,7 @@ public class InferenceLauncher {
 
     public static void exitOnNonZeroStatus(int result) {
         if (result != 0) {
-            System.exit(result);
+            InferenceExitException.exit(result);
         }
     }
 
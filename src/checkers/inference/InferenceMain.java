@@ -2,29 +2,50 @@ package checkers.inference;
 
 import org.checkerframework.common.basetype.BaseAnnotatedTypeFactory;
 
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.annotation.Annotation;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.processing.ProcessingEnvironment;
 import javax.lang.model.element.AnnotationMirror;
 
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.util.TreePath;
+
 import checkers.inference.InferenceOptions.InitStatus;
 import checkers.inference.model.AnnotationLocation;
 import checkers.inference.model.Constraint;
 import checkers.inference.model.VariableSlot;
+import checkers.inference.model.serialization.ConstraintFile;
 import checkers.inference.qual.VarAnnot;
+import checkers.inference.solver.ComponentCachingSolver;
+import checkers.inference.solver.PortfolioSolver;
+import checkers.inference.util.InferenceMetrics;
 import checkers.inference.util.InferenceUtil;
 import checkers.inference.util.JaifBuilder;
+import checkers.inference.util.ParallelJaifInserter;
+import checkers.inference.util.StubAnnotationCache;
+import org.checkerframework.javacutil.BugInCF;
 import org.checkerframework.javacutil.SystemUtil;
 
 /**
@@ -55,7 +76,9 @@ import org.checkerframework.javacutil.SystemUtil;
  * The constraints are solved using an InferenceSolver and then a JAIF is created to allow insertion of inferred annotations back into the input program.
  * InferenceSolver is an interface that all solvers must implement. Checker-Framework-Inference can also serialize the constraints for processing later (by a solver or by Verigames).
  *
- * In the future, Checker-Framework-Inference might be able to use the inferred annotations for type-checking without first inserting the annotations into the input program.
+ * With --typecheckSolution, Checker-Framework-Inference instead type-checks the inferred annotations without first inserting
+ * them into the input program: the InferenceChecker solves the constraints once it has processed every class and the real
+ * checker's visitor checks the same trees with the solution applied, see solveAndTypecheckSolution.
  *
  * @author mcarthur
  *
@@ -74,6 +97,19 @@ public class InferenceMain {
      */
     private static InferenceMain inferenceMainInstance;
 
+    /**
+     * The instance of the shard whose constraints the current thread generates, see generateInShards.
+     * getInstance returns it in place of inferenceMainInstance.
+     */
+    private static final ThreadLocal<InferenceMain> shardInstance = new ThreadLocal<>();
+
+    // The sources whose classes this instance visits, null if it visits every class.  Only set for
+    // shards and for the dirty sources of incremental runs.
+    private Set<URI> shardSources;
+
+    // Records the slots and constraints of each visited source file, see InferenceOptions.incrementalCacheDir
+    private IncrementalCache incrementalCache;
+
     private InferenceChecker inferenceChecker;
 
     /**
@@ -90,6 +126,7 @@ public class InferenceMain {
     private InferrableChecker realChecker;
     private BaseAnnotatedTypeFactory realTypeFactory;
     private InferenceAnnotatedTypeFactory inferenceTypeFactory;
+    private StubAnnotationCache stubAnnotationCache;
 
     private ConstraintManager constraintManager;
     private SlotManager slotManager;
@@ -103,6 +140,18 @@ public class InferenceMain {
 
     private ResultHandler resultHandler;
 
+    // The output of the inference compilation, which includes any errors found when typechecking the solution
+    private String javacOutput;
+
+    // The number of errors found when typechecking the solution, -1 if it has not been typechecked
+    private int solutionErrorCount = -1;
+
+    // Created on first use, enabled if --metricsFile or --prometheusMetricsFile is given
+    private InferenceMetrics metrics;
+
+    // Times from the start of javac until the InferenceChecker is initialized
+    private InferenceMetrics.Timer javacStartupTimer;
+
     public void setResultHandler(ResultHandler resultHandler) {
         this.resultHandler = resultHandler;
     }
@@ -127,28 +176,137 @@ public class InferenceMain {
         resultHandler = new DefaultResultHandler(logger);
     }
 
+    /**
+     * Create the instance that generates the constraints of one shard of the sources.  It shares the
+     * metrics of coordinator but has its own checkers, type factories, slots and constraints.
+     */
+    private InferenceMain(InferenceMain coordinator, Set<URI> shardSources) {
+        this.shardSources = shardSources;
+        this.metrics = coordinator.getMetrics();
+        this.hackMode = coordinator.hackMode;
+        this.resultHandler = coordinator.resultHandler;
+    }
+
     public static InferenceMain resetInstance() {
         inferenceMainInstance = null;
+        AnnotationLocation.resetInterning();
         inferenceMainInstance = new InferenceMain();
         return inferenceMainInstance;
     }
 
+    /**
+     * Discard the current instance.  Used when inference has finished but the JVM continues to run
+     * other tasks, e.g. typechecking, that should not observe an InferenceMain instance.
+     */
+    public static void clearInstance() {
+        inferenceMainInstance = null;
+        AnnotationLocation.resetInterning();
+    }
+
     /**
      * Kick off the inference process.
      */
     public void run() {
         logger.finer("Starting InferenceMain");
 
-        // Start up javac
-        startCheckerFramework();
-        solve();
-        writeJaif();
+        if (InferenceOptions.mergeShards != null) {
+            mergeShardOutputs();
+        } else {
+            // Start up javac
+            startCheckerFramework();
+            if (incrementalCache != null) {
+                mergeIncrementalCache();
+            }
+        }
+
+        if (stubAnnotationCache != null) {
+            stubAnnotationCache.save();
+            InferenceDaemon.retainStubAnnotationCache(stubAnnotationCache);
+        }
+
+        if (InferenceOptions.shardOutput != null) {
+            writeShardOutput();
+        } else if (InferenceOptions.typecheckSolution) {
+            // Solved and typechecked by the InferenceChecker, see solveAndTypecheckSolution
+            reportSolutionTypecheck();
+        } else {
+            solve();
+            writeJaif();
+        }
+
+        writeMetrics();
+    }
+
+    /**
+     * @return the metrics of this run, they are only recorded if a metrics file was requested
+     */
+    public InferenceMetrics getMetrics() {
+        if (metrics == null) {
+            metrics = new InferenceMetrics(
+                    InferenceOptions.metricsFile != null || InferenceOptions.prometheusMetricsFile != null);
+        }
+        return metrics;
+    }
+
+    private void writeMetrics() {
+        Map<String, String> runInfo = new LinkedHashMap<>();
+        runInfo.put("version", InferenceOptions.VERSION);
+        runInfo.put("checker", InferenceOptions.checker);
+        runInfo.put("solver", InferenceOptions.solver);
+        getMetrics().write(InferenceOptions.metricsFile, InferenceOptions.prometheusMetricsFile, runInfo);
     }
 
     /**
      * Run the Checker-Framework using InferenceChecker
      */
     private void startCheckerFramework() {
+        List<String> checkerFrameworkArgs = getCheckerFrameworkArgs();
+
+        String[] compiledSources = InferenceOptions.javaFiles;
+        String[] visitedSources = InferenceOptions.javaFiles;
+        if (InferenceOptions.shardSourcesFile != null) {
+            visitedSources = readShardSources();
+            shardSources = toUris(Arrays.asList(visitedSources));
+
+        } else if (InferenceOptions.incrementalCacheDir != null) {
+            List<String> dirtySources = openIncrementalCache();
+            if (dirtySources.isEmpty()) {
+                initCheckerWithoutSources(checkerFrameworkArgs);
+                return;
+            }
+            visitedSources = dirtySources.toArray(new String[dirtySources.size()]);
+            shardSources = toUris(dirtySources);
+            if (hasSourcepath()) {
+                // javac reads the other source files from the sourcepath once they are used
+                compiledSources = visitedSources;
+            }
+        }
+
+        List<List<String>> shards = partitionSources(visitedSources, InferenceOptions.generationThreads);
+        if (shards.size() > 1) {
+            generateInShards(checkerFrameworkArgs, shards);
+            return;
+        }
+
+        if (compiledSources != null) {
+            checkerFrameworkArgs.addAll(Arrays.asList(compiledSources));
+        }
+
+        logger.fine(String.format("Starting checker framework with options: %s", checkerFrameworkArgs));
+
+        StringWriter javacoutput = new StringWriter();
+        InferenceMetrics.Timer compilationTimer = getMetrics().start("compilation");
+        boolean success = invokeCheckerFramework(checkerFrameworkArgs, javacoutput);
+        InferenceMetrics.stop(compilationTimer);
+
+        javacOutput = javacoutput.toString();
+        resultHandler.handleCompilerResult(success, javacOutput);
+    }
+
+    /**
+     * @return the arguments to run the InferenceChecker with the javac options, without source files
+     */
+    private List<String> getCheckerFrameworkArgs() {
         List<String> checkerFrameworkArgs = new ArrayList<>(Arrays.asList(
                 "-processor", "checkers.inference.InferenceChecker",
                 "-Xmaxwarns", "1000",
@@ -160,6 +318,13 @@ public class InferenceMain {
             checkerFrameworkArgs.addAll(Arrays.asList("-source", "8", "-target", "8"));
         }
 
+        if (InferenceOptions.typecheckSolution) {
+            // The trees are typechecked again after the last class is processed, so javac must
+            // not desugar them in the meantime.  No class files are needed either.
+            checkerFrameworkArgs.addAll(Arrays.asList(
+                    "-XDshould-stop.ifNoError=FLOW", "-XDshouldStopPolicyIfNoError=FLOW"));
+        }
+
         if (InferenceOptions.logLevel == null) {
             InferenceUtil.setLoggingLevel(Level.FINE);
         } else {
@@ -173,18 +338,299 @@ public class InferenceMain {
         if (InferenceOptions.javacOptions != null) {
             checkerFrameworkArgs.addAll(InferenceOptions.javacOptions);
         }
+        return checkerFrameworkArgs;
+    }
 
-        if (InferenceOptions.javaFiles != null) {
-            checkerFrameworkArgs.addAll(Arrays.asList(InferenceOptions.javaFiles));
+    private String[] readShardSources() {
+        try {
+            List<String> sources = new ArrayList<>();
+            for (String line : Files.readAllLines(new File(InferenceOptions.shardSourcesFile).toPath(), StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    sources.add(line.trim());
+                }
+            }
+            return sources.toArray(new String[sources.size()]);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not read the shard sources from " + InferenceOptions.shardSourcesFile, e);
+            InferenceExitException.exit(1);
+            return null; // Dead code
         }
+    }
 
-        logger.fine(String.format("Starting checker framework with options: %s", checkerFrameworkArgs));
+    private List<String> openIncrementalCache() {
+        String[] sources = InferenceOptions.javaFiles == null ? new String[0] : InferenceOptions.javaFiles;
+        try {
+            incrementalCache = new IncrementalCache(new File(InferenceOptions.incrementalCacheDir), sources);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not read the source files", e);
+            InferenceExitException.exit(1);
+        }
+        return incrementalCache.getDirtySources();
+    }
 
-        StringWriter javacoutput = new StringWriter();
-        boolean success = CheckerFrameworkUtil.invokeCheckerFramework(checkerFrameworkArgs.toArray(new String[checkerFrameworkArgs.size()]),
+    private static boolean hasSourcepath() {
+        return InferenceOptions.javacOptions != null
+            && (InferenceOptions.javacOptions.contains("-sourcepath")
+                || InferenceOptions.javacOptions.contains("--source-path"));
+    }
+
+    private static Set<URI> toUris(List<String> files) {
+        Set<URI> uris = new HashSet<>();
+        for (String file : files) {
+            uris.add(new File(file).getAbsoluteFile().toURI().normalize());
+        }
+        return uris;
+    }
+
+    private boolean invokeCheckerFramework(List<String> checkerFrameworkArgs, StringWriter javacoutput) {
+        javacStartupTimer = getMetrics().start("javacStartup");
+        return CheckerFrameworkUtil.invokeCheckerFramework(checkerFrameworkArgs.toArray(new String[checkerFrameworkArgs.size()]),
                 new PrintWriter(javacoutput, true));
+    }
+
+    /**
+     * Split files into at most numShards shards of consecutive files with about the same total size.
+     * Files of the same package are usually given together, so consecutive files use each other more
+     * than other files, which keeps the declarations a shard creates slots for but does not own few.
+     * @return the shards, a single shard if numShards is 1 or there is only one file
+     */
+    static List<List<String>> partitionSources(String[] files, int numShards) {
+        List<List<String>> shards = new ArrayList<>();
+        if (files == null || files.length == 0) {
+            return shards;
+        }
+
+        numShards = Math.min(numShards, files.length);
+        long[] sizes = new long[files.length];
+        long totalSize = 0;
+        for (int i = 0; i < files.length; i++) {
+            // Empty and missing files still cost a little to visit
+            sizes[i] = Math.max(new File(files[i]).length(), 1);
+            totalSize += sizes[i];
+        }
+
+        List<String> shard = new ArrayList<>();
+        long size = 0;
+        for (int i = 0; i < files.length; i++) {
+            shard.add(files[i]);
+            size += sizes[i];
+
+            // Close the shard once it reaches its share of the total, keeping a file for each remaining shard
+            int remainingShards = numShards - shards.size() - 1;
+            boolean full = size * numShards >= totalSize * (shards.size() + 1);
+            if (remainingShards > 0 && (full || files.length - i - 1 == remainingShards)) {
+                shards.add(shard);
+                shard = new ArrayList<>();
+            }
+        }
+        shards.add(shard);
+        return shards;
+    }
+
+    /**
+     * Generate the constraints of each shard in its own thread, with its own javac task, and merge them.
+     *
+     * Each task only compiles the sources of its shard and reads those of the other shards it uses from
+     * the sourcepath, see getShardArgs, so the sources are parsed and attributed about once in total
+     * rather than once per thread.  Each shard has its own InferenceMain instance, which getInstance
+     * returns on the shard's thread, and therefore its own slot manager, constraint manager and flow
+     * state: nothing is shared between the threads except the metrics and the interned locations.  The
+     * shards are merged in order by a ShardMerger, so the ids of the merged slots are the same in every
+     * run with the same sources and number of threads, but they are not the ids a run with a single
+     * thread assigns.
+     */
+    private void generateInShards(final List<String> checkerFrameworkArgs, final List<List<String>> shards) {
+        final int numShards = shards.size();
+        final InferenceMain[] shardMains = new InferenceMain[numShards];
+        final StringWriter[] outputs = new StringWriter[numShards];
+        final boolean[] successes = new boolean[numShards];
+        final Throwable[] failures = new Throwable[numShards];
+        final Thread[] threads = new Thread[numShards];
+
+        logger.fine(String.format("Generating constraints in %d shards with options: %s", numShards, checkerFrameworkArgs));
+
+        InferenceMetrics.Timer compilationTimer = getMetrics().start("compilation");
+        final String sourcepath = getShardSourcepath();
+        final boolean compileShardOnly = sourcepath != null;
+        for (int i = 0; i < numShards; i++) {
+            final List<String> shardArgs = new ArrayList<>(checkerFrameworkArgs);
+            shardArgs.addAll(getShardJavacArgs(sourcepath, shards.get(i), i == 0));
+
+            final int shard = i;
+            shardMains[shard] = new InferenceMain(this, toUris(shards.get(shard)));
+            outputs[shard] = new StringWriter();
+            threads[shard] = new Thread(() -> {
+                shardInstance.set(shardMains[shard]);
+                try {
+                    successes[shard] = shardMains[shard].invokeCheckerFramework(shardArgs, outputs[shard]);
+                } catch (Throwable t) {
+                    failures[shard] = t;
+                } finally {
+                    shardInstance.remove();
+                }
+            }, "inference-shard-" + shard);
+            threads[shard].start();
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BugInCF("Interrupted while generating constraints", e);
+            }
+        }
+        InferenceMetrics.stop(compilationTimer);
+
+        for (int i = 0; i < numShards; i++) {
+            if (failures[i] != null) {
+                throw new BugInCF("Constraint generation failed for shard " + i + ": " + shards.get(i), failures[i]);
+            }
+        }
+
+        boolean success = true;
+        StringBuilder output = new StringBuilder();
+        if (compileShardOnly) {
+            // Each task reports the compiler errors of its own sources
+            for (int i = 0; i < numShards; i++) {
+                success &= successes[i];
+                output.append(outputs[i]);
+            }
+        } else {
+            // Every task reports the same compiler errors, only show those of the first failing one
+            int shown = 0;
+            for (int i = 0; i < numShards; i++) {
+                if (!successes[i]) {
+                    success = false;
+                    shown = i;
+                    break;
+                }
+            }
+            output.append(outputs[shown]);
+        }
+        javacOutput = output.toString();
+        resultHandler.handleCompilerResult(success, javacOutput);
+
+        mergeShards(shardMains);
+    }
+
+    /**
+     * @return the sourcepath from which the javac task of a shard reads the sources of the other shards,
+     * the empty string if the javac options already have one, or null if the sources are not laid out by
+     * package and every task has to compile all of them, see getShardJavacArgs
+     */
+    static String getShardSourcepath() {
+        if (hasSourcepath()) {
+            return "";
+        }
+        return ParallelJaifInserter.getSourcepath(Arrays.asList(InferenceOptions.javaFiles));
+    }
+
+    /**
+     * The javac options and source files of the task of a shard, in a thread or, for --generationJvms, in
+     * a JVM.  The task compiles the shard's sources only, the sources of the other shards are on the
+     * sourcepath so that javac reads those the shard uses, and their trees give the slots of their
+     * declarations the same locations as in the shard that owns them.  Without -implicit:none every task
+     * would also write the class files of the sources it reads.  If there is no sourcepath, every task
+     * compiles all sources instead, but the InferenceChecker still only visits those of its shard (see
+     * isInShard).
+     * @param sourcepath the result of getShardSourcepath
+     * @param first whether this is the first shard, which writes the class files if every task compiles
+     *              all sources
+     */
+    static List<String> getShardJavacArgs(final String sourcepath, final List<String> shard, final boolean first) {
+        final List<String> javacArgs = new ArrayList<>();
+        if (sourcepath != null) {
+            if (!sourcepath.isEmpty()) {
+                javacArgs.addAll(Arrays.asList("-sourcepath", sourcepath));
+            }
+            javacArgs.add("-implicit:none");
+            javacArgs.addAll(shard);
+        } else {
+            if (!first) {
+                javacArgs.addAll(Arrays.asList("-XDshould-stop.ifNoError=FLOW", "-XDshouldStopPolicyIfNoError=FLOW"));
+            }
+            javacArgs.addAll(Arrays.asList(InferenceOptions.javaFiles));
+        }
+        return javacArgs;
+    }
+
+    private void mergeShards(final InferenceMain[] shardMains) {
+        InferenceMetrics.Timer mergeTimer = getMetrics().start("shardMerge");
+
+        // The solver and the jaif only need the real checker and type factory, which are the same in every shard
+        InferenceMain first = shardMains[0];
+        inferenceChecker = first.inferenceChecker;
+        realChecker = first.realChecker;
+        realTypeFactory = first.realTypeFactory;
+
+        ShardMerger merger = new ShardMerger((DefaultSlotManager) getSlotManager());
+        for (InferenceMain shardMain : shardMains) {
+            merger.add((DefaultSlotManager) shardMain.getSlotManager(), shardMain.getConstraintManager().getConstraints());
+
+            if (shardMain.stubAnnotationCache != null) {
+                if (stubAnnotationCache == null) {
+                    stubAnnotationCache = shardMain.stubAnnotationCache;
+                } else {
+                    stubAnnotationCache.addAll(shardMain.stubAnnotationCache);
+                }
+            }
+        }
+        getConstraintManager().addAll(merger.getConstraints());
+
+        InferenceMetrics.stop(mergeTimer);
+        logger.fine(String.format("Merged %d shards into %d slots and %d constraints", shardMains.length,
+                slotManager.getSlots().size(), constraintManager.getConstraints().size()));
+    }
+
+    /**
+     * Solve the constraints and typecheck classes with the real checker, using the solution in place of
+     * the VarAnnots of the InferenceAnnotatedTypeFactory.  This is called by the InferenceChecker once it has
+     * processed every class, so the classes do not have to be parsed and attributed again.
+     *
+     * @param classes the classes processed by the InferenceChecker
+     */
+    public void solveAndTypecheckSolution(List<TreePath> classes) {
+        solve();
+        if (solverResult == null) {
+            logger.warning("No solution to typecheck.");
+            return;
+        }
+
+        InferenceAnnotatedTypeFactory inferenceTypeFactory = getInferenceTypeFactory();
+        inferenceTypeFactory.applySolution(new SolutionOverlay(getSlotManager(), solverResult, getRealTypeFactory()));
+
+        InferrableChecker checker = getRealChecker();
+        InferenceVisitor<?, ?> solutionVisitor = checker.createVisitor(inferenceChecker, inferenceTypeFactory, false);
+
+        int errorsBefore = checker.getReportedErrorCount();
+        if (errorsBefore < 0) {
+            logger.warning(checker.getClass().getName() + " does not count the errors it reports, see "
+                         + "InferrableChecker.getReportedErrorCount.");
+            return;
+        }
+        InferenceMetrics.Timer typecheckTimer = getMetrics().start("solutionTypecheck");
+        for (TreePath classPath : classes) {
+            solutionVisitor.setRoot(classPath.getCompilationUnit());
+            solutionVisitor.visit(classPath);
+        }
+        InferenceMetrics.stop(typecheckTimer);
+        solutionErrorCount = checker.getReportedErrorCount() - errorsBefore;
+        logger.fine(String.format("Typechecked the solution for %d classes", classes.size()));
+    }
 
-        resultHandler.handleCompilerResult(success, javacoutput.toString());
+    private void reportSolutionTypecheck() {
+        if (solutionErrorCount < 0) {
+            logger.severe("The solution was not typechecked.");
+            resultHandler.handleCompilerResult(false, javacOutput);
+
+        } else if (solutionErrorCount > 0) {
+            logger.severe(String.format("The inferred solution does not typecheck: %d errors.", solutionErrorCount));
+            resultHandler.handleCompilerResult(false, javacOutput);
+
+        } else {
+            logger.info("The inferred solution typechecks.");
+        }
     }
 
 
@@ -197,6 +643,126 @@ public class InferenceMain {
     public void recordInferenceCheckerInstance(InferenceChecker inferenceChecker) {
         this.inferenceChecker = inferenceChecker;
         logger.finer("Received InferenceChecker callback");
+
+        InferenceMetrics.stop(javacStartupTimer);
+        javacStartupTimer = null;
+    }
+
+    /**
+     * Write the slots and constraints of this shard to InferenceOptions.shardOutput, for a later run with
+     * InferenceOptions.mergeShards.
+     */
+    private void writeShardOutput() {
+        final InferenceMetrics metrics = getMetrics();
+        metrics.countSlots(getSlotManager().getSlots());
+        metrics.countConstraints(getConstraintManager().getConstraints());
+
+        InferenceMetrics.Timer writeTimer = metrics.start("writeShard");
+        try {
+            ConstraintFile.write(new File(InferenceOptions.shardOutput), slotManager, constraintManager.getConstraints());
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to write the constraints to " + InferenceOptions.shardOutput, e);
+            InferenceExitException.exit(1);
+        }
+        InferenceMetrics.stop(writeTimer);
+    }
+
+    /**
+     * Read the slots and constraints of the files in InferenceOptions.mergeShards and merge them, in the
+     * order given, with a ShardMerger.
+     *
+     * The solvers and the jaif need the checker and its type factories, see initCheckerWithoutSources.
+     */
+    private void mergeShardOutputs() {
+        initCheckerWithoutSources(getCheckerFrameworkArgs());
+
+        slotManager = null;
+        constraintManager = null;
+
+        InferenceMetrics.Timer mergeTimer = getMetrics().start("shardMerge");
+        ProcessingEnvironment processingEnv = inferenceChecker.getProcessingEnvironment();
+        ShardMerger merger = new ShardMerger((DefaultSlotManager) getSlotManager());
+        for (String shardOutput : InferenceOptions.mergeShards.split(File.pathSeparator)) {
+            DefaultSlotManager shardSlots =
+                    new DefaultSlotManager(processingEnv, getRealTypeFactory().getSupportedTypeQualifiers(), true);
+            try {
+                Set<Constraint> constraints = ConstraintFile.read(new File(shardOutput), shardSlots, processingEnv);
+                merger.add(shardSlots, constraints);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to read the constraints of " + shardOutput, e);
+                InferenceExitException.exit(1);
+            }
+        }
+        getConstraintManager().addAll(merger.getConstraints());
+        InferenceMetrics.stop(mergeTimer);
+
+        logger.fine(String.format("Merged %s into %d slots and %d constraints", InferenceOptions.mergeShards,
+                slotManager.getSlots().size(), constraintManager.getConstraints().size()));
+    }
+
+    /**
+     * Write the slots and constraints generated for the dirty source files to the incremental cache and
+     * merge them with those of the other source files from the cache, see IncrementalCache.
+     */
+    private void mergeIncrementalCache() {
+        InferenceMetrics.Timer cacheTimer = getMetrics().start("incrementalCache");
+        final DefaultSlotManager generatedSlots = (DefaultSlotManager) getSlotManager();
+        final Set<Constraint> generatedConstraints = getConstraintManager().getConstraints();
+        try {
+            incrementalCache.save(generatedSlots);
+
+            slotManager = null;
+            constraintManager = null;
+            ShardMerger merger = new ShardMerger((DefaultSlotManager) getSlotManager());
+            merger.add(generatedSlots, generatedConstraints);
+            incrementalCache.addCleanSources(merger, inferenceChecker.getProcessingEnvironment(),
+                    getRealTypeFactory().getSupportedTypeQualifiers());
+            getConstraintManager().addAll(merger.getConstraints());
+
+        } catch (IOException e) {
+            incrementalCache.invalidate();
+            logger.log(Level.SEVERE, "Failed to use the incremental cache in " + InferenceOptions.incrementalCacheDir
+                    + ", every source file is visited again in the next run", e);
+            InferenceExitException.exit(1);
+        }
+        InferenceMetrics.stop(cacheTimer);
+
+        logger.fine(String.format("Merged %d dirty source files with the incremental cache into %d slots and %d constraints",
+                incrementalCache.getDirtySources().size(), slotManager.getSlots().size(),
+                constraintManager.getConstraints().size()));
+    }
+
+    /**
+     * Initialize the checker and its type factories, for runs that do not visit any source file, by
+     * compiling an empty class with -proc:only.  It creates no slots or constraints.
+     */
+    private void initCheckerWithoutSources(List<String> checkerFrameworkArgs) {
+        File placeholderDir = null;
+        try {
+            placeholderDir = Files.createTempDirectory("inference-init").toFile();
+            File placeholder = new File(placeholderDir, "InferenceShardMerge.java");
+            Files.write(placeholder.toPath(), "class InferenceShardMerge {}".getBytes(StandardCharsets.UTF_8));
+
+            checkerFrameworkArgs.add("-proc:only");
+            checkerFrameworkArgs.add(placeholder.getPath());
+
+            StringWriter javacoutput = new StringWriter();
+            InferenceMetrics.Timer compilationTimer = getMetrics().start("compilation");
+            boolean success = invokeCheckerFramework(checkerFrameworkArgs, javacoutput);
+            InferenceMetrics.stop(compilationTimer);
+            javacOutput = javacoutput.toString();
+            resultHandler.handleCompilerResult(success, javacOutput);
+
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not create the class to initialize the checker with", e);
+            InferenceExitException.exit(1);
+
+        } finally {
+            if (placeholderDir != null) {
+                new File(placeholderDir, "InferenceShardMerge.java").delete();
+                placeholderDir.delete();
+            }
+        }
     }
 
     /**
@@ -204,13 +770,18 @@ public class InferenceMain {
      * The output file can be configured by the command-line argument jaiffile.
      */
     private void writeJaif() {
-        try (PrintWriter writer
-                = new PrintWriter(new FileOutputStream(InferenceOptions.jaifFile))) {
+        InferenceMetrics.Timer writeJaifTimer = getMetrics().start("writeJaif");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(InferenceOptions.jaifFile), StandardCharsets.UTF_8))) {
 
             List<VariableSlot> varSlots = slotManager.getVariableSlots();
             Map<AnnotationLocation, String> values = new HashMap<>();
             Set<Class<? extends Annotation>> annotationClasses = new HashSet<>();
 
+            // Solvers reuse a handful of AnnotationMirrors for all of their results, so
+            // only convert each distinct AnnotationMirror to a String once.
+            Map<AnnotationMirror, String> annotationToString = new IdentityHashMap<>();
+
             if (solverResult == null) {
                 annotationClasses.add(VarAnnot.class);
             } else {
@@ -227,7 +798,8 @@ public class InferenceMain {
                         // This happens for VariableSlots that have no constraints.
                         AnnotationMirror result = solverResult.getAnnotation(slot.getId());
                         if (result != null) {
-                            values.put(slot.getLocation(), result.toString());
+                            values.put(slot.getLocation(),
+                                    annotationToString.computeIfAbsent(result, AnnotationMirror::toString));
                         }
                     } else {
                         // Just use the VarAnnot in the jaif.
@@ -238,12 +810,13 @@ public class InferenceMain {
             }
 
             JaifBuilder builder = new JaifBuilder(values, annotationClasses, realChecker.isInsertMainModOfLocalVar());
-            String jaif = builder.createJaif();
-            writer.println(jaif);
+            builder.writeJaif(writer);
+            writer.write(System.lineSeparator());
 
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Failed to write out jaif file!", e);
         }
+        InferenceMetrics.stop(writeJaifTimer);
     }
 
     /**
@@ -252,21 +825,30 @@ public class InferenceMain {
     private void solve() {
         // TODO: PERHAPS ALLOW SOLVERS TO DECIDE IF/HOW THEY WANT CONSTRAINTS NORMALIZED
 
+        final InferenceMetrics metrics = getMetrics();
+        metrics.countSlots(slotManager.getSlots());
+        metrics.countConstraints(constraintManager.getConstraints());
+
+        InferenceMetrics.Timer normalizationTimer = metrics.start("normalization");
         final ConstraintNormalizer constraintNormalizer = new ConstraintNormalizer();
         Set<Constraint> normalizedConstraints = constraintNormalizer.normalize(constraintManager.getConstraints());
+        InferenceMetrics.stop(normalizationTimer);
+        metrics.countNormalizedConstraints(normalizedConstraints);
 
-        // TODO: Support multiple solvers or serialize before or after solving
+        // TODO: Serialize before or after solving
         // TODO: Prune out unneeded variables
         // TODO: Options to type-check after this.
 
         if (InferenceOptions.solver != null) {
             InferenceSolver solver = getSolver();
+            InferenceMetrics.Timer solvingTimer = metrics.start("solving");
             this.solverResult = solver.solve(
                     parseSolverArgs(),
                     slotManager.getSlots(),
                     normalizedConstraints,
                     getRealTypeFactory().getQualifierHierarchy(),
                     inferenceChecker.getProcessingEnvironment());
+            InferenceMetrics.stop(solvingTimer);
         }
     }
 
@@ -292,12 +874,24 @@ public class InferenceMain {
                 logger.finer(String.format("Created real checker: %s", realChecker));
             } catch (Throwable e) {
               logger.log(Level.SEVERE, "Error instantiating checker class \"" + InferenceOptions.checker + "\".", e);
-              System.exit(5);
+              InferenceExitException.exit(5);
           }
         }
         return realChecker;
     }
 
+    /**
+     * @return the cache of real annotations for library elements or null if --stubCacheDir was not given
+     */
+    public StubAnnotationCache getStubAnnotationCache() {
+        if (stubAnnotationCache == null && InferenceOptions.stubCacheDir != null) {
+            stubAnnotationCache = new StubAnnotationCache(new File(InferenceOptions.stubCacheDir),
+                    getRealChecker().getClass(), inferenceChecker.getProcessingEnvironment(),
+                    InferenceDaemon.getStubAnnotationCache());
+        }
+        return stubAnnotationCache;
+    }
+
     private InferenceAnnotatedTypeFactory getInferenceTypeFactory() {
         if (inferenceTypeFactory == null) {
             inferenceTypeFactory = realChecker.createInferenceATF(inferenceChecker, getRealChecker(),
@@ -322,6 +916,15 @@ public class InferenceMain {
         return realTypeFactory;
     }
 
+    /**
+     * Use slotManager rather than a DefaultSlotManager created for the InferenceChecker.  This is for
+     * tools that create slots and constraints without compiling sources, e.g. benchmarks of the solvers,
+     * which look the slot manager up through this instance.
+     */
+    public void setSlotManager(SlotManager slotManager) {
+        this.slotManager = slotManager;
+    }
+
     public SlotManager getSlotManager() {
         if (slotManager == null ) {
             slotManager = new DefaultSlotManager(inferenceChecker.getProcessingEnvironment(),
@@ -333,13 +936,22 @@ public class InferenceMain {
 
     protected InferenceSolver getSolver() {
         try {
-            InferenceSolver solver = (InferenceSolver) Class.forName(
-                    InferenceOptions.solver, true, ClassLoader.getSystemClassLoader()).getDeclaredConstructor().newInstance();
+            // Several solvers separated by commas run as a portfolio
+            List<InferenceSolver> solvers = new ArrayList<>();
+            for (String solverName : InferenceOptions.solver.split(",")) {
+                solvers.add((InferenceSolver) Class.forName(
+                        solverName.trim(), true, ClassLoader.getSystemClassLoader()).getDeclaredConstructor().newInstance());
+            }
+            InferenceSolver solver = solvers.size() == 1 ? solvers.get(0) : new PortfolioSolver(solvers);
             logger.finer("Created solver: " + solver);
+            if (InferenceOptions.solutionCacheDir != null) {
+                solver = new ComponentCachingSolver(solver, new File(InferenceOptions.solutionCacheDir),
+                                                    InferenceOptions.solutionCacheSize * 1024L * 1024L);
+            }
             return solver;
         } catch (Throwable e) {
             logger.log(Level.SEVERE, "Error instantiating solver class \"" + InferenceOptions.solver + "\".", e);
-            System.exit(5);
+            InferenceExitException.exit(5);
             return null; // Dead code
         }
     }
@@ -368,7 +980,25 @@ public class InferenceMain {
     }
 
     public static InferenceMain getInstance() {
-        return inferenceMainInstance;
+        InferenceMain shard = shardInstance.get();
+        return shard != null ? shard : inferenceMainInstance;
+    }
+
+    /**
+     * @return the incremental cache that records the slots and constraints of the visited source files,
+     * or null if there is none
+     */
+    public IncrementalCache getIncrementalCache() {
+        return incrementalCache;
+    }
+
+    /**
+     * @return true if the classes of compilationUnit should be visited by the InferenceChecker of this
+     * instance, i.e. unless this instance generates the constraints of a shard that does not contain it
+     */
+    public boolean isInShard(CompilationUnitTree compilationUnit) {
+        return shardSources == null
+            || shardSources.contains(compilationUnit.getSourceFile().toUri().normalize());
     }
 
     public ConstraintManager getConstraintManager() {
@@ -425,7 +1055,7 @@ public class InferenceMain {
             if (!success) {
                 logger.severe("Error return code from javac! Quitting.");
                 logger.info(javacOutStr);
-                System.exit(1);
+                InferenceExitException.exit(1);
             }
         }
     }
@@ -7,6 +7,8 @@ import org.plumelib.util.UtilPlume;
 import interning.InterningChecker;
 
 import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
@@ -49,6 +51,21 @@ public class InferenceOptions {
     @Option("Should we log certain exceptions rather than crash")
     public static boolean hacks;
 
+    @Option("Run inference, annotation insertion, and typechecking in the launcher's JVM instead of "
+          + "starting a new JVM for each of them")
+    public static boolean singleJvm;
+
+    @Option("Send this run to the inference daemon listening on the given local port, authenticated by the "
+          + "token the daemon wrote for the port, see InferenceDaemon")
+    public static int daemonPort = 0;
+
+    @Option("Directory of an application class data sharing archive for the JVMs the launcher starts.  The "
+          + "archive is created by the first inference run and again whenever the dist jars change.  Java 11+")
+    public static String cdsArchiveDir;
+
+    @Option("Discard the class data sharing archive in --cdsArchiveDir and create it again")
+    public static boolean rebuildCdsArchive;
+
     /**
      * The type system to use for checker, solver, and related command-line
      * options.  If you use this option, all required command-line
@@ -69,15 +86,70 @@ public class InferenceOptions {
     @Option("[InferrableChecker] the fully-qualified name of the checker to run; overrides --typesystem.")
     public static String checker;
 
-    @Option("[InferenceSolver] the fully-qualified name of the solver to use on constraints; overrides --typesystem.")
+    @Option("[InferenceSolver] the fully-qualified name of the solver to use on constraints; overrides --typesystem.  "
+          + "Several names separated by commas run at the same time and the first solution that satisfies the "
+          + "constraints is used; each must be a checkers.inference.solver.ConcurrentSolver.")
     public static String solver;
 
+    @Option("In ROUNDTRIP_TYPECHECK mode, typecheck the solution within the inference compilation instead of "
+          + "writing a jaif, inserting it, and compiling the annotated sources.")
+    public static boolean typecheckSolution;
+
     @Option("The fully-qualified name of the classpath for target program; overrides --targetclasspath.")
     public static String targetclasspath = ".";
 
     @Option("Args to pass to solver, in the format key1=value,key2=value")
     public static String solverArgs;
 
+    @Option("Directory in which the real annotations of library elements, which mostly come from stub files, "
+          + "are cached between runs.  By default nothing is cached.")
+    public static String stubCacheDir;
+
+    @Option("The number of threads that generate constraints.  If greater than 1, the source files are split "
+          + "into this many shards of about equal size and each shard is visited by its own javac task.")
+    public static int generationThreads = 1;
+
+    @Option("The number of JVMs that generate constraints.  If greater than 1, the source files are split by "
+          + "package into this many shards, each shard's constraints are generated by its own JVM and another "
+          + "JVM merges and solves them.")
+    public static int generationJvms = 1;
+
+    @Option("[path] A file listing the source files, one per line, whose constraints this run generates.  The "
+          + "other source files are compiled but not visited.  Set by the launcher for --generationJvms.")
+    public static String shardSourcesFile;
+
+    @Option("[path] Write the slots and constraints to this file instead of solving them.  Set by the "
+          + "launcher for --generationJvms.")
+    public static String shardOutput;
+
+    @Option("[paths] Merge and solve the slots and constraints of these --shardOutput files, separated by the "
+          + "path separator, instead of generating constraints for source files.")
+    public static String mergeShards;
+
+    @Option("Keep the temporary directories of the --generationJvms shard files and of the jaifs split for "
+          + "--afuWorkers instead of removing them, and print their paths.")
+    public static boolean keepShards;
+
+    @Option("Directory in which the slots and constraints of every source file are cached between runs.  Only "
+          + "the source files that changed, or that use declarations of files that changed, are visited again.")
+    public static String incrementalCacheDir;
+
+    @Option("Directory in which the solutions of independent components of the constraints are cached between "
+          + "runs.  Only the components that are not cached are given to the solver.")
+    public static String solutionCacheDir;
+
+    @Option("The size, in megabytes, beyond which the least recently used solutions of --solutionCacheDir are dropped")
+    public static int solutionCacheSize = 64;
+
+    @Option("The number of seconds the SAT solvers may take in total.  The time is split across the independent "
+          + "components of the constraints; components that are cut off get the solution of a propagation solver.")
+    public static int solverTimeLimit;
+
+    @Option("Simplify the clauses of the SAT solvers by unit propagation and variable elimination before "
+          + "solving them.  When the simplified clauses have no model, the constraints conflict and the original "
+          + "clauses are solved without the simplifications.")
+    public static boolean cnfPreprocessing;
+
     /** If jsonFile is specified this will be set to the JsonSerializerSolver */
     @Option("The JSON file to which constraints should be dumped.  This field is mutually exclusive with solver.")
     public static String jsonFile;
@@ -97,6 +169,20 @@ public class InferenceOptions {
     @Option("Additional AFU options")
     public static String afuOptions;
 
+    @Option("The number of insert-annotations-to-source processes to run concurrently.  If greater than 1, "
+          + "the jaif is split by package and each package is inserted by its own process.")
+    public static int afuWorkers = 1;
+
+    @Option("When --afuWorkers is greater than 1, the maximum number of seconds to spend inserting a single "
+          + "package, 0 for no limit.")
+    public static int afuTimeout = 0;
+
+    @Option("How to run the AFU: SCRIPT runs insert-annotations-to-source, IN_PROCESS runs the AFU in the "
+          + "launcher's JVM, WORKER runs the AFU in a reusable worker JVM.  With --singleJvm the AFU runs in a "
+          + "worker unless IN_PROCESS is given; the AFU exits the JVM on some errors.  An inference daemon "
+          + "always uses a worker.")
+    public static String afuRunner = AfuRunner.SCRIPT.name();
+
     // ------------------------------------------------------
     @OptionGroup("Help")
 
@@ -115,6 +201,13 @@ public class InferenceOptions {
     @Option(value="-p Print all commands before executing them")
     public static boolean printCommands;
 
+    @Option("Write the time, CPU time and heap usage of each inference phase and the number of slots and "
+          + "constraints to this JSON file")
+    public static String metricsFile;
+
+    @Option("Write the same metrics as --metricsFile in the Prometheus text format to this file")
+    public static String prometheusMetricsFile;
+
     // TODO: change to int
     @Option("For inference, add debug on the port indicated")
     public static String debug;
@@ -130,6 +223,9 @@ public class InferenceOptions {
     public static File distDir = new File(checkersInferenceDir, "dist");
     public static File checkerJar = new File(distDir, "checker.jar");
 
+    // The initial values of the options, see resetToDefaults.  Must follow the declarations of all options.
+    private static final Map<Field, Object> defaultValues = recordDefaultValues();
+
     public static InitStatus init(String [] args, boolean requireMode) {
         List<String> errors = new ArrayList<>();
         Options options = new Options("inference [options]", InferenceOptions.class);
@@ -170,6 +266,37 @@ public class InferenceOptions {
             errors.add("You must specify exactly one checker using --checker");
         }
 
+        if (generationThreads < 1) {
+            errors.add("--generationThreads must be at least 1.");
+        }
+
+        if (generationJvms < 1) {
+            errors.add("--generationJvms must be at least 1.");
+        } else if (generationJvms > 1 && (singleJvm || daemonPort != 0)) {
+            errors.add("--generationJvms cannot be used with --singleJvm or --daemonPort.");
+        }
+
+        if (shardOutput != null && mergeShards != null) {
+            errors.add("You may specify EITHER --shardOutput or --mergeShards but not both!");
+        }
+
+        if (incrementalCacheDir != null && (generationThreads > 1 || generationJvms > 1
+                || shardOutput != null || mergeShards != null || typecheckSolution)) {
+            errors.add("--incrementalCacheDir cannot be used with --generationThreads, --generationJvms "
+                     + "or --typecheckSolution.");
+        }
+
+        if (solverTimeLimit < 0) {
+            errors.add("--solverTimeLimit must not be negative.");
+        }
+
+        if (solutionCacheSize < 1) {
+            errors.add("--solutionCacheSize must be at least 1.");
+        }
+        if (solutionCacheDir != null && jsonFile != null) {
+            errors.add("--solutionCacheDir needs a solver, not a --jsonFile.");
+        }
+
         if (mode == null) {
             if (requireMode) {
                 errors.add("You must specify a mode of operation using -m or --mode");
@@ -185,7 +312,7 @@ public class InferenceOptions {
             } catch (IllegalArgumentException iexc) {
                 System.out.println("Could not recognize mode: " + InferenceOptions.mode + "\n"
                         + "valid modes: " + UtilPlume.join(", ", Mode.values()));
-                System.exit(1);
+                InferenceExitException.exit(1);
             }
 
             if (modeEnum != Mode.TYPECHECK) {
@@ -205,7 +332,16 @@ public class InferenceOptions {
                 }
             }
 
-            if (modeEnum.ordinal() >= Mode.ROUNDTRIP.ordinal()) {
+            if (typecheckSolution) {
+                if (modeEnum != Mode.ROUNDTRIP_TYPECHECK) {
+                    errors.add("--typecheckSolution can only be used in ROUNDTRIP_TYPECHECK mode.");
+                } else if (jsonFile != null) {
+                    errors.add("--typecheckSolution needs a solver, not a --jsonFile.");
+                } else if (generationThreads > 1 || generationJvms > 1) {
+                    errors.add("--typecheckSolution cannot be used with --generationThreads or --generationJvms.");
+                }
+
+            } else if (modeEnum.ordinal() >= Mode.ROUNDTRIP.ordinal()) {
                 if (afuOutputDir == null) {
                     if (!inPlace) {
                         errors.add("You must specify an Annotation File Utilities output directory (--afuOutputDir or -afud) or --inPlace.");
@@ -214,6 +350,13 @@ public class InferenceOptions {
                     errors.add("You cannot specify both an Annotation File Utilities output directory (--afuOutputDir or -afud) and --inPlace.");
                 }
 
+                try {
+                    afuRunner = AfuRunner.valueOf(afuRunner.toUpperCase()).name();
+                } catch (IllegalArgumentException iexc) {
+                    errors.add("Unrecognized --afuRunner: " + afuRunner + ", valid values: "
+                            + UtilPlume.join(", ", AfuRunner.values()));
+                }
+
                 if (afuOptions != null && afuOptions.contains("\\s-d\\s")) {
                     errors.add("Annotation File Utilities output dir must be specified via (--afuOutputDir or -afud) not -d in AFU Options.");
                 }
@@ -223,6 +366,20 @@ public class InferenceOptions {
         return new InitStatus(options, errors, help);
     }
 
+    /**
+     * The ways in which the Annotation File Utilities can be run, see --afuRunner.
+     */
+    public enum AfuRunner {
+        /** run the insert-annotations-to-source script in a new process for each insertion */
+        SCRIPT,
+
+        /** run the AFU in the same JVM as the launcher */
+        IN_PROCESS,
+
+        /** run the AFU in a worker JVM that is reused for every insertion */
+        WORKER
+    }
+
     public static final Map<String, TypeSystemSpec> typesystems = new LinkedHashMap<>();
     static {
         final File srcDir = new File(checkersInferenceDir, "src");
@@ -314,6 +471,35 @@ public class InferenceOptions {
         }
     }
 
+    private static Map<Field, Object> recordDefaultValues() {
+        Map<Field, Object> values = new LinkedHashMap<>();
+        for (Field field : InferenceOptions.class.getFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isStatic(modifiers) && !Modifier.isFinal(modifiers)) {
+                try {
+                    values.put(field, field.get(null));
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Restore every option, including javacOptions and javaFiles, to the value it had before init was
+     * first called.  Used to run init again in the same JVM, e.g. by the InferenceDaemon.
+     */
+    public static void resetToDefaults() {
+        for (Map.Entry<Field, Object> entry : defaultValues.entrySet()) {
+            try {
+                entry.getKey().set(null, entry.getValue());
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     private static boolean isJavaFile(String arg) {
         return arg.endsWith(".java") && new File(arg).exists();
     }
@@ -336,12 +522,12 @@ public class InferenceOptions {
             if (!errors.isEmpty()) {
                 System.out.println(String.join(errorDelimiter, errors));
                 options.printUsage();
-                System.exit(1);
+                InferenceExitException.exit(1);
             }
 
             if (printHelp) {
                 options.printUsage();
-                System.exit(0);
+                InferenceExitException.exit(0);
             }
         }
     }
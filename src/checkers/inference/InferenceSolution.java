@@ -1,7 +1,18 @@
 package checkers.inference;
 
+import org.checkerframework.javacutil.AnnotationUtils;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 import javax.lang.model.element.AnnotationMirror;
 
+import checkers.inference.model.Slot;
+import checkers.inference.model.VariableSlot;
+
 /**
  * Returned by InferenceSolvers, InferenceSolution represents the result of
  * inference.
@@ -18,5 +29,41 @@ public interface InferenceSolution {
      * doesVariableExist(id) is false.
      */
     AnnotationMirror getAnnotation(int varId);
-}
 
+    /**
+     * Is the solution of the given variable only an approximation, e.g. one a fallback solver found for a
+     * variable the solver ran out of time for?  Such solutions may differ in a run with more time, so they
+     * must not be cached.
+     */
+    default boolean isApproximated(int varId) {
+        return false;
+    }
+
+    /**
+     * Get the inferred solution of the variables among slots that have a stable key, by their key
+     * (see VariableSlot.getStableKey).  Unlike ids, keys can be matched with the slots of another run,
+     * see DefaultInferenceSolution.fromStableKeys.  A key shared by variables with different solutions
+     * is left out.
+     */
+    default Map<Long, AnnotationMirror> getAnnotationsByStableKey(Collection<? extends Slot> slots) {
+        final Map<Long, AnnotationMirror> annotations = new HashMap<>();
+        final Set<Long> ambiguous = new HashSet<>();
+        for (Slot slot : slots) {
+            if (!slot.isVariable()) {
+                continue;
+            }
+
+            final VariableSlot variable = (VariableSlot) slot;
+            if (!variable.hasStableKey() || !doesVariableExist(variable.getId())) {
+                continue;
+            }
+            final AnnotationMirror annotation = getAnnotation(variable.getId());
+            final AnnotationMirror previous = annotations.putIfAbsent(variable.getStableKey(), annotation);
+            if (previous != null && !AnnotationUtils.areSame(previous, annotation)) {
+                ambiguous.add(variable.getStableKey());
+            }
+        }
+        annotations.keySet().removeAll(ambiguous);
+        return annotations;
+    }
+}
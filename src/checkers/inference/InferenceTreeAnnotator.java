@@ -52,6 +52,7 @@ import checkers.inference.util.InferenceUtil;
 public class InferenceTreeAnnotator extends TreeAnnotator {
 
     // private final SlotManager slotManager;
+    private final InferenceAnnotatedTypeFactory inferenceTypeFactory;
     private final VariableAnnotator variableAnnotator;
     private final AnnotatedTypeFactory realTypeFactory;
     // private final InferrableChecker realChecker;
@@ -67,6 +68,7 @@ public class InferenceTreeAnnotator extends TreeAnnotator {
                                   final VariableAnnotator variableAnnotator,
                                   final SlotManager slotManager) {
         super(atypeFactory);
+        this.inferenceTypeFactory = atypeFactory;
         // this.slotManager = slotManager;
         this.variableAnnotator = variableAnnotator;
         this.realTypeFactory = realAnnotatedTypeFactory;
@@ -130,7 +132,7 @@ public class InferenceTreeAnnotator extends TreeAnnotator {
             // note, variableAnnotator should already have a type for this tree at this point
             variableAnnotator.visit(identifierType,node);
         } else {
-            TreePath path = atypeFactory.getPath(node);
+            TreePath path = inferenceTypeFactory.getTreePathIndex().getPath(node);
             if (path != null) {
                 final TreePath parentPath = path.getParentPath();
                 final Tree parentNode = parentPath.getLeaf();
@@ -419,8 +421,9 @@ public class InferenceTreeAnnotator extends TreeAnnotator {
         // to be the just the type of the variable.
         // So, the type returned from this for desugared trees is not used.
         // We don't create a LUB to reduce confusion
-        if (realTypeFactory.getPath(node) == null) {
+        if (inferenceTypeFactory.getTreePathIndex().getPath(node) == null) {
             // Desugared tree's don't have paths.
+            // (getPath would search the whole compilation unit for them every time, the index does not)
             // There currently is some case that we are missing that requires us to annotate these.
             return null;
         }
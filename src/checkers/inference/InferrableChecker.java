@@ -91,4 +91,13 @@ public interface InferrableChecker {
      * @return true if should insert annotations of main modifier of local variables
      */
     boolean isInsertMainModOfLocalVar();
+
+    /**
+     * @return the number of errors this checker has reported so far, without the suppressed ones, or -1
+     * if it does not count them.  Used to find out whether an inferred solution
+     * typechecks when it is checked in the inference compilation, where -Awarns turns errors into warnings.
+     */
+    default int getReportedErrorCount() {
+        return -1;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,214 @@
+package checkers.inference;
+
+import org.checkerframework.javacutil.BugInCF;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import checkers.inference.model.AnnotationLocation;
+import checkers.inference.model.BinaryConstraint;
+import checkers.inference.model.CombVariableSlot;
+import checkers.inference.model.CombineConstraint;
+import checkers.inference.model.ConstantSlot;
+import checkers.inference.model.Constraint;
+import checkers.inference.model.ExistentialConstraint;
+import checkers.inference.model.ExistentialVariableSlot;
+import checkers.inference.model.PreferenceConstraint;
+import checkers.inference.model.RefinementVariableSlot;
+import checkers.inference.model.Slot;
+import checkers.inference.model.VariableSlot;
+
+/**
+ * Merges the slots and constraints generated for shards of the sources, each by its own slot manager,
+ * into one slot manager and one set of constraints.  See InferenceMain.generateInShards.
+ *
+ * Every shard numbers its slots from 1, so the slots of each shard are copied into the target slot
+ * manager with new ids.  Shards are added in a fixed order and the slots of a shard are copied in the
+ * order of their ids, so the merged ids only depend on the shards and not on the order in which the
+ * shards finished.
+ *
+ * A shard also creates slots for the declarations of other shards that it uses, which it reads from
+ * the sourcepath.  Their trees get the locations they have in their own compilation unit, see
+ * VariableAnnotator.setDeclaringUnit, so a VariableSlot at the location of a slot of an earlier shard
+ * is the same variable: it is replaced by the slot of the earlier shard.  The constant slots for the
+ * real qualifiers are replaced by those of the target.
+ */
+public class ShardMerger {
+
+    private final DefaultSlotManager target;
+
+    // The first VariableSlot at each location and the index of the shard that created it
+    private final Map<AnnotationLocation, VariableSlot> declarations = new HashMap<>();
+    private final Map<AnnotationLocation, Integer> declaringShards = new HashMap<>();
+
+    private final Set<Constraint> constraints = new LinkedHashSet<>();
+
+    private int shardIndex = -1;
+
+    // The copy of each slot of the current shard
+    private Map<Slot, VariableSlot> copies;
+    private DefaultSlotManager shard;
+
+    /**
+     * @param target the slot manager of the merged slots, it must store its constants
+     */
+    public ShardMerger(DefaultSlotManager target) {
+        this.target = target;
+    }
+
+    /**
+     * Copy the slots of shardSlots into the target and add shardConstraints, over the copied slots, to
+     * the merged constraints.
+     */
+    public void add(final DefaultSlotManager shardSlots, final Collection<Constraint> shardConstraints) {
+        shardIndex += 1;
+        shard = shardSlots;
+        copies = new IdentityHashMap<>();
+
+        final List<Slot> slots = shardSlots.getSlots();
+        for (Slot slot : slots) {
+            copy(slot);
+        }
+
+        // Links can form cycles, so they are only added once every slot has its copy
+        for (Slot slot : slots) {
+            final VariableSlot source = (VariableSlot) slot;
+            final VariableSlot copy = copy(source);
+            for (CombVariableSlot mergedTo : source.getMergedToSlots()) {
+                copy.addMergedToSlot((CombVariableSlot) copy(mergedTo));
+            }
+            for (RefinementVariableSlot refinedTo : source.getRefinedToSlots()) {
+                copy.addRefinedToSlot((RefinementVariableSlot) copy(refinedTo));
+            }
+        }
+
+        for (Constraint constraint : shardConstraints) {
+            constraints.add(copy(constraint));
+        }
+
+        shard = null;
+        copies = null;
+    }
+
+    /**
+     * @return the constraints of every shard added so far, over the slots of the target
+     */
+    public Set<Constraint> getConstraints() {
+        return constraints;
+    }
+
+    private VariableSlot copy(final Slot slot) {
+        if (slot == null) {
+            return null;
+        }
+
+        VariableSlot copy = copies.get(slot);
+        if (copy == null) {
+            copy = createCopy((VariableSlot) slot);
+            copies.put(slot, copy);
+        }
+        return copy;
+    }
+
+    private VariableSlot createCopy(final VariableSlot slot) {
+        final Class<?> slotClass = slot.getClass();
+        final boolean registered = shard.getVariable(slot.getId()) == slot;
+        final VariableSlot copy;
+
+        if (slotClass.equals(ConstantSlot.class)) {
+            final ConstantSlot constant = (ConstantSlot) slot;
+            if (registered && shard.getStoredConstant(constant.getValue()) == constant) {
+                final ConstantSlot stored = target.getStoredConstant(constant.getValue());
+                if (stored != null) {
+                    return stored;
+                }
+            }
+            copy = new ConstantSlot(constant.getValue(), constant.getLocation(), target.nextId());
+
+        } else if (slotClass.equals(ExistentialVariableSlot.class)) {
+            final ExistentialVariableSlot existential = (ExistentialVariableSlot) slot;
+            final VariableSlot potential = copy(existential.getPotentialSlot());
+            final VariableSlot alternative = copy(existential.getAlternativeSlot());
+            copy = new ExistentialVariableSlot(target.nextId(), potential, alternative);
+            copy.setLocation(slot.getLocation());
+
+        } else if (slotClass.equals(CombVariableSlot.class)) {
+            final CombVariableSlot comb = (CombVariableSlot) slot;
+            final VariableSlot first = copy(comb.getFirst());
+            final VariableSlot second = copy(comb.getSecond());
+            copy = new CombVariableSlot(slot.getLocation(), target.nextId(), first, second);
+
+        } else if (slotClass.equals(RefinementVariableSlot.class)) {
+            final VariableSlot refined = copy(((RefinementVariableSlot) slot).getRefined());
+            copy = new RefinementVariableSlot(slot.getLocation(), target.nextId(), refined);
+
+        } else if (slotClass.equals(VariableSlot.class)) {
+            final AnnotationLocation location = slot.getLocation();
+            final boolean declaration = registered && location != null
+                    && location.getKind() != AnnotationLocation.Kind.MISSING;
+            if (declaration) {
+                final Integer declaringShard = declaringShards.get(location);
+                if (declaringShard != null && declaringShard != shardIndex) {
+                    return declarations.get(location);
+                }
+            }
+
+            copy = new VariableSlot(location, target.nextId());
+            copy.setInsertable(slot.isInsertable());
+            if (declaration && !declarations.containsKey(location)) {
+                declarations.put(location, copy);
+                declaringShards.put(location, shardIndex);
+            }
+
+        } else {
+            throw new BugInCF("Cannot merge slots of " + slotClass + ": " + slot);
+        }
+
+        if (registered) {
+            target.addVariable(copy);
+        }
+        return copy;
+    }
+
+    private Constraint copy(final Constraint constraint) {
+        if (constraint instanceof BinaryConstraint) {
+            final BinaryConstraint binary = (BinaryConstraint) constraint;
+            return binary.make(copy(binary.getFirst()), copy(binary.getSecond()));
+        }
+
+        if (constraint instanceof CombineConstraint) {
+            final CombineConstraint combine = (CombineConstraint) constraint;
+            return new CombineConstraint(copy(combine.getTarget()), copy(combine.getDeclared()),
+                                         copy(combine.getResult()));
+        }
+
+        if (constraint instanceof PreferenceConstraint) {
+            final PreferenceConstraint preference = (PreferenceConstraint) constraint;
+            return new PreferenceConstraint(copy(preference.getVariable()),
+                                            (ConstantSlot) copy(preference.getGoal()), preference.getWeight());
+        }
+
+        if (constraint instanceof ExistentialConstraint) {
+            final ExistentialConstraint existential = (ExistentialConstraint) constraint;
+            return new ExistentialConstraint(copy(existential.getPotentialVariable()),
+                                             copy(existential.potentialConstraints()),
+                                             copy(existential.getAlternateConstraints()));
+        }
+
+        throw new BugInCF("Cannot merge constraints of " + constraint.getClass() + ": " + constraint);
+    }
+
+    private List<Constraint> copy(final List<Constraint> constraints) {
+        final List<Constraint> copies = new ArrayList<>(constraints.size());
+        for (Constraint constraint : constraints) {
+            copies.add(copy(constraint));
+        }
+        return copies;
+    }
+}
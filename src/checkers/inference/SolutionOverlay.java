@@ -0,0 +1,167 @@
+package checkers.inference;
+
+import org.checkerframework.common.basetype.BaseAnnotatedTypeFactory;
+import org.checkerframework.framework.type.AnnotatedTypeMirror;
+import org.checkerframework.framework.type.AnnotatedTypeMirror.AnnotatedExecutableType;
+import org.checkerframework.framework.type.QualifierHierarchy;
+import org.checkerframework.framework.type.visitor.AnnotatedTypeScanner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.lang.model.element.AnnotationMirror;
+
+import checkers.inference.model.CombVariableSlot;
+import checkers.inference.model.ConstantSlot;
+import checkers.inference.model.ExistentialVariableSlot;
+import checkers.inference.model.RefinementVariableSlot;
+import checkers.inference.model.Slot;
+import checkers.inference.model.VariableSlot;
+
+import static checkers.inference.InferenceQualifierHierarchy.isUnqualified;
+import static checkers.inference.InferenceQualifierHierarchy.isVarAnnot;
+
+/**
+ * A SolutionOverlay replaces the VarAnnots of AnnotatedTypeMirrors with the "real" annotations
+ * an InferenceSolution assigned to their slots.  This lets the real checker typecheck the types
+ * created during inference as if the solution had been inserted into the source code.
+ *
+ * Not every slot has a value in the solution:
+ *   ConstantSlots have their constant value.
+ *   RefinementVariableSlots without a value have the value of the slot they refine.
+ *   ExistentialVariableSlots have the value of their potential slot if it has one, otherwise the
+ *   value of their alternative slot.
+ *   CombVariableSlots without a value have the least upper bound of their two slots.
+ *   Any other slot without a value takes part in no constraint and is given the top annotation.
+ *
+ * Slots created after solving, e.g. by flow analysis while typechecking, are resolved the same way.
+ *
+ * @see InferenceAnnotatedTypeFactory#applySolution(SolutionOverlay)
+ */
+public class SolutionOverlay {
+
+    private final SlotManager slotManager;
+    private final InferenceSolution solution;
+    private final BaseAnnotatedTypeFactory realTypeFactory;
+    private final QualifierHierarchy realQualifierHierarchy;
+    private final AnnotationMirror realTop;
+
+    private final Map<Slot, AnnotationMirror> resolved = new HashMap<>();
+
+    public SolutionOverlay(final SlotManager slotManager, final InferenceSolution solution,
+                           final BaseAnnotatedTypeFactory realTypeFactory) {
+        this.slotManager = slotManager;
+        this.solution = solution;
+        this.realTypeFactory = realTypeFactory;
+        this.realQualifierHierarchy = realTypeFactory.getQualifierHierarchy();
+        // Inference only supports type systems with a single qualifier hierarchy
+        this.realTop = realQualifierHierarchy.getTopAnnotations().iterator().next();
+    }
+
+    /**
+     * @return the real annotation for slot
+     */
+    public AnnotationMirror getAnnotation(final Slot slot) {
+        AnnotationMirror annotation = resolved.get(slot);
+        if (annotation == null) {
+            annotation = resolve(slot);
+            resolved.put(slot, annotation);
+        }
+        return annotation;
+    }
+
+    private AnnotationMirror resolve(final Slot slot) {
+        if (slot instanceof ConstantSlot) {
+            return ((ConstantSlot) slot).getValue();
+        }
+
+        if (slot instanceof VariableSlot) {
+            final VariableSlot variable = (VariableSlot) slot;
+            if (solution.doesVariableExist(variable.getId())) {
+                return solution.getAnnotation(variable.getId());
+            }
+        }
+
+        switch (slot.getKind()) {
+            case REFINEMENT_VARIABLE:
+                return getAnnotation(((RefinementVariableSlot) slot).getRefined());
+
+            case EXISTENTIAL_VARIABLE:
+                final ExistentialVariableSlot existential = (ExistentialVariableSlot) slot;
+                if (solution.doesVariableExist(existential.getPotentialSlot().getId())) {
+                    return getAnnotation(existential.getPotentialSlot());
+                }
+                return getAnnotation(existential.getAlternativeSlot());
+
+            case COMB_VARIABLE:
+                final CombVariableSlot comb = (CombVariableSlot) slot;
+                return realQualifierHierarchy.leastUpperBound(
+                        getAnnotation(comb.getFirst()), getAnnotation(comb.getSecond()));
+
+            default:
+                return realTop;
+        }
+    }
+
+    /**
+     * Replace every VarAnnot in type, including those of its component types, by its real
+     * annotation.  Types without a VarAnnot keep their real annotation, if any.
+     */
+    public void apply(final AnnotatedTypeMirror type) {
+        applier.visit(type);
+    }
+
+    private void applyToPrimary(final AnnotatedTypeMirror type) {
+        AnnotationMirror varAnnot = null;
+        List<AnnotationMirror> toRemove = new ArrayList<>();
+        for (AnnotationMirror annotation : type.getAnnotations()) {
+            if (isVarAnnot(annotation)) {
+                varAnnot = annotation;
+                toRemove.add(annotation);
+            } else if (isUnqualified(annotation)) {
+                toRemove.add(annotation);
+            }
+        }
+
+        if (varAnnot == null) {
+            if (!toRemove.isEmpty() && type.getAnnotations().size() == toRemove.size()) {
+                // Only @Unqualified, the top of the real hierarchy during inference
+                type.removeAnnotations(toRemove);
+                type.addAnnotation(realTop);
+            }
+            return;
+        }
+
+        // The VarAnnot, which always has a slot, decides the real annotation
+        for (AnnotationMirror annotation : type.getAnnotations()) {
+            if (!isVarAnnot(annotation) && realTypeFactory.isSupportedQualifier(annotation)) {
+                toRemove.add(annotation);
+            }
+        }
+        type.removeAnnotations(toRemove);
+        type.addAnnotation(getAnnotation(slotManager.getSlot(varAnnot)));
+    }
+
+    private final AnnotatedTypeScanner<Void, Void> applier = new AnnotatedTypeScanner<Void, Void>() {
+
+        @Override
+        public Void visitExecutable(AnnotatedExecutableType type, Void p) {
+            scan(type.getReturnType(), null);
+            if (type.getReceiverType() != null) {
+                scanAndReduce(type.getReceiverType(), null, null);
+            }
+            scanAndReduce(type.getParameterTypes(), null, null);
+            scanAndReduce(type.getThrownTypes(), null, null);
+            scanAndReduce(type.getTypeVariables(), null, null);
+            return null;
+        }
+
+        @Override
+        protected Void scan(AnnotatedTypeMirror type, Void p) {
+            applyToPrimary(type);
+            return super.scan(type, p);
+        }
+    };
+}
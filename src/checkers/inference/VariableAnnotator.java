@@ -77,6 +77,7 @@ import checkers.inference.util.ASTPathUtil;
 import checkers.inference.util.ConstantToVariableAnnotator;
 import checkers.inference.util.CopyUtil;
 import checkers.inference.util.InferenceUtil;
+import checkers.inference.util.TreePathIndex;
 
 
 /**
@@ -129,6 +130,15 @@ public class VariableAnnotator extends AnnotatedTypeScanner<Void,Tree> {
      */
     private final Map<Tree, VariableSlot> treeToPolyVar;
 
+    /** The compilation unit whose trees are being annotated, see setRoot */
+    private CompilationUnitTree root;
+    /** The ASTIndex of root, fetched on the first lookup of a location in root */
+    private Map<Tree, ASTRecord> rootIndex;
+    /** The locations of the trees that have been looked up, see treeToLocation */
+    private final Map<Tree, AnnotationLocation> locationCache = new IdentityHashMap<>();
+    /** The compilation unit of the declaration of another unit that is being annotated, see setDeclaringUnit */
+    private CompilationUnitTree declaringUnit;
+
 
     // An instance of @Unqualified
     private final AnnotationMirror unqualified;
@@ -175,18 +185,17 @@ public class VariableAnnotator extends AnnotatedTypeScanner<Void,Tree> {
 
 
     public static AnnotationLocation treeToLocation(AnnotatedTypeFactory typeFactory, Tree tree) {
-        final TreePath path = typeFactory.getPath(tree);
+        if (typeFactory instanceof InferenceAnnotatedTypeFactory) {
+            return ((InferenceAnnotatedTypeFactory) typeFactory).variableAnnotator.treeToLocation(tree);
+        } // else
 
+        final TreePath path = typeFactory.getPath(tree);
         if (path == null) {
             return AnnotationLocation.MISSING_LOCATION;
         } // else
 
-        ASTPathUtil.getASTRecordForPath(typeFactory, path);
-        if (tree.getKind() == Kind.CLASS || tree.getKind() == Kind.INTERFACE
-         || tree.getKind() == Kind.ENUM  || tree.getKind() == Kind.ANNOTATION_TYPE) {
-            ClassSymbol classSymbol = (ClassSymbol) TreeUtils.elementFromDeclaration((ClassTree) tree);
-            return new ClassDeclLocation(classSymbol.packge().getQualifiedName().toString(),
-                                         classSymbol.flatName().toString());
+        if (isClassDeclaration(tree)) {
+            return classDeclLocation((ClassTree) tree);
         } // else
 
         ASTRecord record = ASTPathUtil.getASTRecordForPath(typeFactory, path);
@@ -195,11 +204,73 @@ public class VariableAnnotator extends AnnotatedTypeScanner<Void,Tree> {
         }
 
         return new AstPathLocation(record);
-
     }
 
+    /**
+     * Look up the location of a tree in the current compilation unit, or else in the declaring unit, see
+     * setDeclaringUnit.  Locations are cached until the next setRoot and each tree's record is looked up
+     * at most once, in the ASTIndex of the compilation unit rather than through the tree's TreePath.
+     * A tree that is in neither unit, e.g. one created by dataflow's desugaring, gets MISSING_LOCATION.
+     */
     protected AnnotationLocation treeToLocation(Tree tree) {
-        return treeToLocation(inferenceTypeFactory, tree);
+        if (root == null) {
+            return computeLocationFromPath(tree);
+        }
+
+        AnnotationLocation location = locationCache.get(tree);
+        if (location == null) {
+            if (isClassDeclaration(tree)) {
+                location = isInRootOrDeclaringUnit(tree)
+                         ? classDeclLocation((ClassTree) tree)
+                         : AnnotationLocation.MISSING_LOCATION;
+            } else {
+                if (rootIndex == null) {
+                    // Built in a single pass over the compilation unit, and cached, by ASTIndex
+                    rootIndex = ASTIndex.indexOf(root);
+                }
+                ASTRecord record = rootIndex.get(tree);
+                if (record == null && declaringUnit != null) {
+                    record = ASTIndex.indexOf(declaringUnit).get(tree);
+                }
+                location = record == null ? AnnotationLocation.MISSING_LOCATION : new AstPathLocation(record);
+            }
+            if (location != AnnotationLocation.MISSING_LOCATION) {
+                // A tree of another unit may be looked up before its declaring unit is known
+                locationCache.put(tree, location);
+            }
+        }
+        return location;
+    }
+
+    private boolean isInRootOrDeclaringUnit(Tree tree) {
+        TreePathIndex treePathIndex = inferenceTypeFactory.getTreePathIndex();
+        return treePathIndex.getPath(tree) != null
+            || (declaringUnit != null && treePathIndex.getPath(declaringUnit, tree) != null);
+    }
+
+    private AnnotationLocation computeLocationFromPath(Tree tree) {
+        final TreePath path = inferenceTypeFactory.getPath(tree);
+        if (path == null) {
+            return AnnotationLocation.MISSING_LOCATION;
+        } // else
+
+        if (isClassDeclaration(tree)) {
+            return classDeclLocation((ClassTree) tree);
+        } // else
+
+        ASTRecord record = ASTPathUtil.getASTRecordForPath(inferenceTypeFactory, path);
+        return record == null ? AnnotationLocation.MISSING_LOCATION : new AstPathLocation(record);
+    }
+
+    private static boolean isClassDeclaration(Tree tree) {
+        return tree.getKind() == Kind.CLASS || tree.getKind() == Kind.INTERFACE
+            || tree.getKind() == Kind.ENUM  || tree.getKind() == Kind.ANNOTATION_TYPE;
+    }
+
+    private static ClassDeclLocation classDeclLocation(ClassTree tree) {
+        ClassSymbol classSymbol = (ClassSymbol) TreeUtils.elementFromDeclaration(tree);
+        return new ClassDeclLocation(classSymbol.packge().getQualifiedName().toString(),
+                                     classSymbol.flatName().toString());
     }
 
     /**
@@ -325,18 +396,6 @@ public class VariableAnnotator extends AnnotatedTypeScanner<Void,Tree> {
         return existentialVariable;
     }
 
-    /**
-     * When getting trees to annotate types we sometimes need them from other compilation units (this occurs
-     * in calls to directSupertypes for instance).  TypeFactory.getPath will NOT find these trees
-     * instead use getPath.  Note, this call should not be made often since we do not cache any of the tree
-     * lookups and we re-traverse from the root everytime.
-     */
-    public static TreePath expensiveBackupGetPath(final Element element, final Tree tree, final InferenceAnnotatedTypeFactory inferenceTypeFactory) {
-        TypeElement typeElement = ElementUtils.enclosingClass(element);
-        CompilationUnitTree compilationUnitTree = inferenceTypeFactory.getTreeUtils().getPath(typeElement).getCompilationUnit();
-        return inferenceTypeFactory.getTreeUtils().getPath(compilationUnitTree, tree);
-    }
-
     /**
      * Adds existential variables to a USE of a type parameter.
      * Note: See ExistentialVariableSlot for a key to the shorthand used below.
@@ -387,7 +446,10 @@ public class VariableAnnotator extends AnnotatedTypeScanner<Void,Tree> {
             TreePath pathToTree = inferenceTypeFactory.getPath(tree);
 
             if (pathToTree == null) {
-                pathToTree = expensiveBackupGetPath(varElem, tree, inferenceTypeFactory).getParentPath();
+                pathToTree = inferenceTypeFactory.getTreePathIndex().getPath(varElem, tree);
+                if (pathToTree != null) {
+                    pathToTree = pathToTree.getParentPath();
+                }
 
                 if (pathToTree == null) {
                     throw new BugInCF("Could not find path to tree: " + tree + "\n"
@@ -1406,7 +1468,8 @@ public class VariableAnnotator extends AnnotatedTypeScanner<Void,Tree> {
             } else if (!receiverMissingTrees.containsKey(methodElem)) {
                 TreePath pathToMethod =  inferenceTypeFactory.getPath(methodTree);
                 if (pathToMethod == null) {
-                    pathToMethod = expensiveBackupGetPath(methodElem, methodTree, inferenceTypeFactory);
+                    // The method may be declared in another compilation unit, e.g. when called from directSupertypes
+                    pathToMethod = inferenceTypeFactory.getTreePathIndex().getPath(methodElem, methodTree);
                 }
 
                 ASTRecord astRecord = ASTPathUtil.getASTRecordForPath(inferenceTypeFactory, pathToMethod);
@@ -1667,6 +1730,29 @@ public class VariableAnnotator extends AnnotatedTypeScanner<Void,Tree> {
         constraintManager.add(declConstraint);
     }
 
+    /**
+     * Start annotating the trees of a new compilation unit, forgetting the locations of the trees of the
+     * previous one.
+     */
+    public void setRoot(CompilationUnitTree root) {
+        this.root = root;
+        this.rootIndex = null;
+        this.locationCache.clear();
+    }
+
+    /**
+     * Set the compilation unit of a declaration of another unit that is about to be annotated, e.g. that of
+     * a field of another file that the current unit uses.  Its trees get the locations they have when their
+     * own unit is the root, so that every compilation, or shard, creates its slots at the same locations.
+     * @param unit the declaring unit, or null once the declaration is annotated
+     * @return the previous declaring unit, to restore after annotating the declaration
+     */
+    public CompilationUnitTree setDeclaringUnit(CompilationUnitTree unit) {
+        CompilationUnitTree previous = this.declaringUnit;
+        this.declaringUnit = unit == root ? null : unit;
+        return previous;
+    }
+
     public void clearTreeInfo() {
         // We have never cleared the tree -> VarSlot cache, can we?
         // This has been used to ensure we don't add new variables to trees that are visited twice
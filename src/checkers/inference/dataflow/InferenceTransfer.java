@@ -218,7 +218,7 @@ public class InferenceTransfer extends CFTransfer {
             // Fields from library methods can be refined, but the slotToRefine is a ConstantSlot
             // which does not have a refined slots field.
             if (slotToRefine.isVariable()) {
-                ((VariableSlot) slotToRefine).getRefinedToSlots().add(refVar);
+                ((VariableSlot) slotToRefine).addRefinedToSlot(refVar);
             }
             getInferenceAnalysis().getSlotManager().addVariable(refVar);
             createdRefinementVariables.put(assignmentTree, refVar);
@@ -338,8 +338,8 @@ public class InferenceTransfer extends CFTransfer {
             upperBoundRefVar = new RefinementVariableSlot(location, slotManager.nextId(), upperBoundSlot);
             lowerBoundRefVar = new RefinementVariableSlot(location, slotManager.nextId(), lowerBoundSlot);
 
-            upperBoundSlot.getRefinedToSlots().add(upperBoundRefVar);
-            lowerBoundSlot.getRefinedToSlots().add(lowerBoundRefVar);
+            upperBoundSlot.addRefinedToSlot(upperBoundRefVar);
+            lowerBoundSlot.addRefinedToSlot(lowerBoundRefVar);
 
             slotManager.addVariable(upperBoundRefVar);
             slotManager.addVariable(lowerBoundRefVar);
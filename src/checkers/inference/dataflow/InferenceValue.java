@@ -135,8 +135,8 @@ public class InferenceValue extends CFValue {
                         getInferenceAnalysis().getSlotManager().nextId(), var1, var2);
 
                 getInferenceAnalysis().getSlotManager().addVariable(newMergeVar);
-                var1.getMergedToSlots().add(newMergeVar);
-                var2.getMergedToSlots().add(newMergeVar);
+                var1.addMergedToSlot(newMergeVar);
+                var2.addMergedToSlot(newMergeVar);
 
                 // newMergeVar must be the supertype of var1 and var2.
                 getInferenceAnalysis().getConstraintManager().add(new SubtypeConstraint(var1, newMergeVar));
@@ -16,6 +16,15 @@ public abstract class AnnotationLocation {
      */
     public static AnnotationLocation MISSING_LOCATION = new MissingLocation();
 
+    /**
+     * Intern the AstPathLocations created from now on apart from the ones created so far, which are only
+     * equal to each other from then on.  Called when an inference run starts and ends, so that the names
+     * and paths interned by a run do not outlive its locations in a JVM that runs several.
+     */
+    public static void resetInterning() {
+        LocationInterner.reset();
+    }
+
     /**
      * Annotation locations can be of 3 kinds:
      *   a) a general location described by an Annotation File Utilities AST Path,
@@ -49,22 +58,44 @@ public abstract class AnnotationLocation {
     }
 
     /**
-     * Associates an annotation with an exact location in source using Annotation File Utilities ASTRecords
+     * Associates an annotation with an exact location in source using Annotation File Utilities ASTRecords.
+     *
+     * The record is not kept: its names and path are interned in a LocationInterner and the location only
+     * holds the interned member and path.  getAstRecord and getAstPath create the record and path again on every call, only
+     * the JaifBuilder and code that extends a location's path should need them.
      */
     public static class AstPathLocation extends AnnotationLocation {
-        private final ASTRecord astRecord;
+        private final LocationInterner.Member member;
+        private final LocationInterner.Node path;
 
         public AstPathLocation(ASTRecord astRecord) {
             super(AnnotationLocation.Kind.AST_PATH);
-            this.astRecord = astRecord;
+            final LocationInterner interner = LocationInterner.current();
+            this.member = interner.internMember(astRecord.className, astRecord.methodName, astRecord.varName);
+            this.path = interner.internPath(astRecord.astPath);
         }
 
+        /**
+         * @return a new record for this location, it has no compilation unit
+         */
         public ASTRecord getAstRecord() {
-            return astRecord;
+            return LocationInterner.expand(member, path);
         }
 
         public ASTPath getAstPath() {
-            return astRecord.astPath;
+            return getAstRecord().astPath;
+        }
+
+        public String getClassName() {
+            return member.className;
+        }
+
+        public String getMethodName() {
+            return member.methodName;
+        }
+
+        public String getVarName() {
+            return member.varName;
         }
 
         @Override
@@ -82,15 +113,16 @@ public abstract class AnnotationLocation {
             }
 
             final AstPathLocation other = (AstPathLocation) otherObj;
-            return astRecord.equals(other.astRecord);
+            return member == other.member && path == other.path;
         }
 
         public int hashCode() {
-            return 3299 * astRecord.hashCode();
+            return 3299 * (31 * member.hashCode() + path.hashCode());
         }
 
         @Override
         public String toString() {
+            ASTRecord astRecord = getAstRecord();
             return "AstPathLocation( " + astRecord.className + "." + astRecord.methodName + "."
                                        + astRecord.varName   + ":" + astRecord.toString()   + " )";
         }
@@ -41,6 +41,17 @@ public class CombVariableSlot extends VariableSlot {
         return second;
     }
 
+    @Override
+    public long getStableKey() {
+        return SlotKeys.combine(SlotKeys.of(getKind()), SlotKeys.of(getLocation()),
+                                SlotKeys.of(first), SlotKeys.of(second));
+    }
+
+    @Override
+    public boolean hasStableKey() {
+        return SlotKeys.hasStableKey(first) && SlotKeys.hasStableKey(second);
+    }
+
     /**
      * CombVariables should never be re-inserted into the source code. record
      * does not correspond to an annotatable position.
@@ -56,6 +56,20 @@ public class ConstantSlot extends VariableSlot {
         this.value = value;
     }
 
+    /**
+     * Constants with the same value are interchangeable, so the key of a constant is derived from its
+     * value instead of its location.
+     */
+    @Override
+    public long getStableKey() {
+        return SlotKeys.combine(SlotKeys.of(getKind()), SlotKeys.of(value.toString()));
+    }
+
+    @Override
+    public boolean hasStableKey() {
+        return true;
+    }
+
     @Override
     public boolean isInsertable() {
         return false;
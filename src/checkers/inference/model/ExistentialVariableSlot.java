@@ -94,6 +94,16 @@ public class ExistentialVariableSlot extends VariableSlot {
         return alternativeSlot;
     }
 
+    @Override
+    public long getStableKey() {
+        return SlotKeys.combine(SlotKeys.of(getKind()), SlotKeys.of(potentialSlot), SlotKeys.of(alternativeSlot));
+    }
+
+    @Override
+    public boolean hasStableKey() {
+        return potentialSlot.hasStableKey() && alternativeSlot.hasStableKey();
+    }
+
     @Override
     public int hashCode() {
         return 1129 * (potentialSlot.hashCode() + alternativeSlot.hashCode());
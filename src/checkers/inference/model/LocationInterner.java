@@ -0,0 +1,176 @@
+package checkers.inference.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.sun.source.tree.Tree;
+
+import scenelib.annotations.io.ASTPath;
+import scenelib.annotations.io.ASTPath.ASTEntry;
+import scenelib.annotations.io.ASTRecord;
+
+/**
+ * Shared storage for the parts of AstPathLocations, so that a location is only a pair of references.
+ *
+ * The class, method and variable names of a record are interned together as a Member.  AST paths are
+ * interned as the Nodes of a trie whose edges are path entries: the path of a node is the path of its
+ * parent extended by the node's entry, and the root is the empty path.  All paths with a common prefix
+ * share the nodes of the prefix, so the path of e.g. every parameter of a method's type arguments shares
+ * the entries leading to the method.  Interned members and nodes are canonical, so locations compare
+ * them by identity.
+ *
+ * Each inference run interns into a new interner, see reset, so the interned parts of a run are garbage
+ * collected with its locations rather than accumulating in a daemon or --singleJvm launcher.  A location
+ * keeps the member and node it was interned as, so it stays valid after a reset, but it is only equal to
+ * the locations of its own run.  Interning uses concurrent maps, the shard threads intern at the same time.
+ */
+class LocationInterner {
+
+    private static volatile LocationInterner current = new LocationInterner();
+
+    private final ConcurrentMap<Member, Member> members = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Entry, Entry> entries = new ConcurrentHashMap<>();
+    /** Every node but the root, keyed by itself: its parent and entry */
+    private final ConcurrentMap<Node, Node> nodes = new ConcurrentHashMap<>();
+    private final Node root = new Node(null, null);
+
+    private LocationInterner() {
+    }
+
+    /**
+     * @return the interner of the current inference run
+     */
+    static LocationInterner current() {
+        return current;
+    }
+
+    /**
+     * Intern the locations created from now on in a new interner.
+     */
+    static void reset() {
+        current = new LocationInterner();
+    }
+
+    Member internMember(final String className, final String methodName, final String varName) {
+        return intern(members, new Member(className, methodName, varName));
+    }
+
+    Node internPath(final ASTPath path) {
+        Node node = root;
+        for (ASTEntry astEntry : path) {
+            Entry entry = intern(entries, new Entry(astEntry.getTreeKind(), astEntry.getChildSelector(),
+                                                    astEntry.getArgument()));
+            node = intern(nodes, new Node(node, entry));
+        }
+        return node;
+    }
+
+    private static <T> T intern(final ConcurrentMap<T, T> map, final T value) {
+        final T existing = map.putIfAbsent(value, value);
+        return existing != null ? existing : value;
+    }
+
+    /**
+     * Create the record of a member and path.  The record has no compilation unit.
+     */
+    static ASTRecord expand(final Member member, final Node path) {
+        ASTRecord record = new ASTRecord(null, member.className, member.methodName, member.varName, ASTPath.empty());
+
+        List<Entry> pathEntries = new ArrayList<>();
+        for (Node node = path; node.parent != null; node = node.parent) {
+            pathEntries.add(node.entry);
+        }
+        for (int i = pathEntries.size() - 1; i >= 0; i--) {
+            Entry entry = pathEntries.get(i);
+            record = record.extend(entry.kind, entry.childSelector, entry.argument);
+        }
+        return record;
+    }
+
+    static class Member {
+        final String className;
+        final String methodName;
+        final String varName;
+
+        Member(String className, String methodName, String varName) {
+            this.className = className;
+            this.methodName = methodName;
+            this.varName = varName;
+        }
+
+        @Override
+        public boolean equals(Object otherObj) {
+            if (!(otherObj instanceof Member)) {
+                return false;
+            }
+            Member other = (Member) otherObj;
+            return Objects.equals(className, other.className) && Objects.equals(methodName, other.methodName)
+                && Objects.equals(varName, other.varName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(className, methodName, varName);
+        }
+    }
+
+    private static class Entry {
+        final Tree.Kind kind;
+        final String childSelector;
+        final int argument;
+
+        Entry(Tree.Kind kind, String childSelector, int argument) {
+            this.kind = kind;
+            this.childSelector = childSelector;
+            this.argument = argument;
+        }
+
+        @Override
+        public boolean equals(Object otherObj) {
+            if (!(otherObj instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) otherObj;
+            return kind == other.kind && childSelector.equals(other.childSelector) && argument == other.argument;
+        }
+
+        @Override
+        public int hashCode() {
+            // The ordinal rather than the identity hash code of the kind, so that hashes are the same in every run
+            return (kind.ordinal() * 31 + childSelector.hashCode()) * 31 + argument;
+        }
+    }
+
+    static class Node {
+        final Node parent;
+        final Entry entry;
+        private final int hash;
+
+        Node(Node parent, Entry entry) {
+            this.parent = parent;
+            this.entry = entry;
+            this.hash = parent == null ? 0 : parent.hash * 31 + entry.hashCode();
+        }
+
+        /**
+         * Equal to a node with the same parent, which is canonical, and an equal entry; only used to
+         * intern nodes, interned nodes are compared by identity.
+         */
+        @Override
+        public boolean equals(Object otherObj) {
+            if (!(otherObj instanceof Node)) {
+                return false;
+            }
+            Node other = (Node) otherObj;
+            return parent == other.parent && Objects.equals(entry, other.entry);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
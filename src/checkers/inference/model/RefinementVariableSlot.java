@@ -71,6 +71,11 @@ public class RefinementVariableSlot extends VariableSlot {
         return refined;
     }
 
+    @Override
+    public long getStableKey() {
+        return SlotKeys.combine(SlotKeys.of(getKind()), SlotKeys.of(getLocation()), SlotKeys.of(refined));
+    }
+
     @Override
     public <S, T> S serialize(Serializer<S, T> serializer) {
         return serializer.serialize(this);
@@ -0,0 +1,89 @@
+package checkers.inference.model;
+
+import checkers.inference.model.AnnotationLocation.AstPathLocation;
+import checkers.inference.model.AnnotationLocation.ClassDeclLocation;
+import scenelib.annotations.io.ASTPath.ASTEntry;
+import scenelib.annotations.io.ASTRecord;
+
+/**
+ * Hashes the parts of the stable keys of slots, see VariableSlot.getStableKey.  The hashes only depend on
+ * the strings and numbers hashed, never on ids or identity hash codes, so they are the same in every run.
+ */
+final class SlotKeys {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private SlotKeys() {
+    }
+
+    static long of(final Slot.Kind kind) {
+        return of(kind.name());
+    }
+
+    /**
+     * @return the key of slot, 0 for null
+     */
+    static long of(final Slot slot) {
+        return slot == null ? 0 : ((VariableSlot) slot).getStableKey();
+    }
+
+    static boolean hasStableKey(final Slot slot) {
+        return slot != null && ((VariableSlot) slot).hasStableKey();
+    }
+
+    static long of(final AnnotationLocation location) {
+        if (location instanceof AstPathLocation) {
+            final ASTRecord record = ((AstPathLocation) location).getAstRecord();
+            long key = combine(of(AnnotationLocation.Kind.AST_PATH.name()),
+                               of(record.className), of(record.methodName), of(record.varName));
+            for (ASTEntry entry : record.astPath) {
+                key = combine(key, of(entry.getTreeKind().name()), of(entry.getChildSelector()), entry.getArgument());
+            }
+            return key;
+        }
+
+        if (location instanceof ClassDeclLocation) {
+            final ClassDeclLocation classDecl = (ClassDeclLocation) location;
+            return combine(of(AnnotationLocation.Kind.CLASS_DECL.name()),
+                           of(classDecl.getPackageName()), of(classDecl.getClassName()));
+        }
+
+        return of(AnnotationLocation.Kind.MISSING.name());
+    }
+
+    /**
+     * FNV-1a over the chars of value, null hashes like the empty string with an extra char
+     */
+    static long of(final String value) {
+        long hash = FNV_OFFSET_BASIS;
+        if (value == null) {
+            return mix(hash * FNV_PRIME);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * @return a hash of the parts in order
+     */
+    static long combine(final long... parts) {
+        long hash = FNV_OFFSET_BASIS;
+        for (long part : parts) {
+            hash = mix(hash ^ part) * FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    // The finalizer of MurmurHash3, so that every bit of the input affects every bit of the hash
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -1,7 +1,11 @@
 package checkers.inference.model;
 
-import java.util.HashSet;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.Set;
+import java.util.function.IntFunction;
 
 /**
  * VariableSlot is a Slot representing an undetermined value (i.e. a variable we are solving for).
@@ -45,10 +49,12 @@ public class VariableSlot extends Slot {
     }
 
     // Slots this variable has been merged to.
-    private final Set<CombVariableSlot> mergedToSlots = new HashSet<CombVariableSlot>();
+    // Most slots are never merged or refined and the others only a few times, so these are arrays that are
+    // allocated by the first addition, rather than sets allocated with every slot.  Null means none.
+    private CombVariableSlot[] mergedToSlots;
 
     // Refinement variables that refine this slot.
-    private final Set<RefinementVariableSlot> refinedToSlots = new HashSet<RefinementVariableSlot>();
+    private RefinementVariableSlot[] refinedToSlots;
 
     @Override
     public <S, T> S serialize(Serializer<S, T> serializer) {
@@ -61,6 +67,9 @@ public class VariableSlot extends Slot {
     }
 
     public boolean isMergedTo(VariableSlot other) {
+        if (mergedToSlots == null) {
+            return false;
+        }
         for (VariableSlot mergedTo: mergedToSlots) {
             if (mergedTo.equals(other)) {
                 return true;
@@ -77,16 +86,86 @@ public class VariableSlot extends Slot {
         return id;
     }
 
+    /**
+     * Unlike the id, which depends on the order in which slots are created, this 64-bit key is derived
+     * from the kind and the location of the slot and, for slots built from other slots, from their keys.
+     * The slot at a given location therefore has the same key in every run, whatever changed elsewhere
+     * in the sources, so keys can match the slots, constraints and solutions of separate runs.
+     *
+     * Keys are hashes: distinct slots can share a key, and do whenever hasStableKey is false.
+     */
+    public long getStableKey() {
+        return SlotKeys.combine(SlotKeys.of(getKind()), SlotKeys.of(getLocation()));
+    }
+
+    /**
+     * @return true if getStableKey identifies this slot, false for slots without a location, e.g. the
+     * slots of library declarations, which all share one key
+     */
+    public boolean hasStableKey() {
+        return getLocation() != null && getLocation().getKind() != AnnotationLocation.Kind.MISSING;
+    }
+
     public VariableSlot(int id) {
         this.id = id;
     }
 
+    /**
+     * @return an unmodifiable view of the slots this variable has been merged to, see addMergedToSlot
+     */
     public Set<CombVariableSlot> getMergedToSlots() {
-        return mergedToSlots;
+        return asSet(mergedToSlots);
     }
 
+    public void addMergedToSlot(CombVariableSlot mergedTo) {
+        mergedToSlots = addIfAbsent(mergedToSlots, mergedTo, CombVariableSlot[]::new);
+    }
+
+    /**
+     * @return an unmodifiable view of the refinement variables that refine this slot, see addRefinedToSlot
+     */
     public Set<RefinementVariableSlot> getRefinedToSlots() {
-        return refinedToSlots;
+        return asSet(refinedToSlots);
+    }
+
+    public void addRefinedToSlot(RefinementVariableSlot refinedTo) {
+        refinedToSlots = addIfAbsent(refinedToSlots, refinedTo, RefinementVariableSlot[]::new);
+    }
+
+    private static <T extends VariableSlot> T[] addIfAbsent(T[] slots, T slot, IntFunction<T[]> newArray) {
+        if (slots == null) {
+            T[] added = newArray.apply(1);
+            added[0] = slot;
+            return added;
+        }
+
+        for (T existing : slots) {
+            if (existing.equals(slot)) {
+                return slots;
+            }
+        }
+        T[] added = Arrays.copyOf(slots, slots.length + 1);
+        added[slots.length] = slot;
+        return added;
+    }
+
+    private static <T extends VariableSlot> Set<T> asSet(final T[] slots) {
+        if (slots == null) {
+            return Collections.emptySet();
+        }
+
+        // The elements are distinct, see addIfAbsent
+        return new AbstractSet<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                return Collections.unmodifiableList(Arrays.asList(slots)).iterator();
+            }
+
+            @Override
+            public int size() {
+                return slots.length;
+            }
+        };
     }
 
     @Override
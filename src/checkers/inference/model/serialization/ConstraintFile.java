@@ -0,0 +1,506 @@
+package checkers.inference.model.serialization;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+
+import com.sun.source.tree.Tree;
+
+import checkers.inference.SlotManager;
+import checkers.inference.model.AnnotationLocation;
+import checkers.inference.model.AnnotationLocation.AstPathLocation;
+import checkers.inference.model.AnnotationLocation.ClassDeclLocation;
+import checkers.inference.model.BinaryConstraint;
+import checkers.inference.model.CombVariableSlot;
+import checkers.inference.model.CombineConstraint;
+import checkers.inference.model.ComparableConstraint;
+import checkers.inference.model.ConstantSlot;
+import checkers.inference.model.Constraint;
+import checkers.inference.model.EqualityConstraint;
+import checkers.inference.model.ExistentialConstraint;
+import checkers.inference.model.ExistentialVariableSlot;
+import checkers.inference.model.InequalityConstraint;
+import checkers.inference.model.PreferenceConstraint;
+import checkers.inference.model.RefinementVariableSlot;
+import checkers.inference.model.Slot;
+import checkers.inference.model.SubtypeConstraint;
+import checkers.inference.model.VariableSlot;
+import checkers.inference.util.StubAnnotationCache;
+import scenelib.annotations.io.ASTPath;
+import scenelib.annotations.io.ASTPath.ASTEntry;
+import scenelib.annotations.io.ASTRecord;
+
+/**
+ * A compact binary file of slots and constraints that can be read back by another JVM, e.g. the
+ * constraints a shard of the sources generated in its own JVM, see InferenceOptions.shardOutput.
+ *
+ * Unlike the JsonSerializer, the file keeps everything needed to merge and solve the constraints and to
+ * write the jaif: the kind, id, location and insertability of every slot, the slots comb, refinement
+ * and existential variables are built from, and the merge and refinement links.  Constants are written
+ * as encoded annotations, see StubAnnotationCache.encodeAnnotation.
+ *
+ * The file is gzipped and consists of:
+ *   a header (MAGIC and VERSION),
+ *   the slots, each after the slots it is built from, identified by their position in the file: first
+ *   the slots of the slot manager, then the slots only links or constraints refer to,
+ *   the links of the slots that have any,
+ *   the constraints.
+ * Strings are written once and referred to by their index afterwards.
+ */
+public class ConstraintFile {
+
+    private static final int MAGIC = 0x43494e46;
+    private static final int VERSION = 1;
+
+    private static final byte LOCATION_MISSING = 0;
+    private static final byte LOCATION_AST_PATH = 1;
+    private static final byte LOCATION_CLASS_DECL = 2;
+
+    private static final byte SUBTYPE = 0;
+    private static final byte EQUALITY = 1;
+    private static final byte INEQUALITY = 2;
+    private static final byte COMPARABLE = 3;
+    private static final byte COMBINE = 4;
+    private static final byte PREFERENCE = 5;
+    private static final byte EXISTENTIAL = 6;
+
+    /**
+     * Write the slots of slotManager and constraints, which may also refer to slots that are not in
+     * the slot manager, to file.
+     * @throws IOException if file cannot be written or a constant cannot be encoded
+     */
+    public static void write(final File file, final SlotManager slotManager,
+                             final Collection<Constraint> constraints) throws IOException {
+        write(file, slotManager.getSlots(), constraints);
+    }
+
+    /**
+     * Write slots, as the slots of the slot manager of the file, and constraints to file.  The file is
+     * read like one written for a slot manager holding exactly slots.
+     * @throws IOException if file cannot be written or a constant cannot be encoded
+     */
+    public static void write(final File file, final List<Slot> slots,
+                             final Collection<Constraint> constraints) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(file))))) {
+            new Writer(out).write(slots, constraints);
+        }
+    }
+
+    /**
+     * Read a file written by write.  The slots the slot manager of the writer held are added to
+     * slotManager with their ids from the file, except for the constants slotManager already stores for
+     * the real qualifiers, which are used in their place.  slotManager should therefore be a new slot
+     * manager, for the same type system, that is only read once the file is loaded.
+     * @return the constraints of the file
+     * @throws IOException if file cannot be read, is not a constraint file, or was written for other qualifiers
+     */
+    public static Set<Constraint> read(final File file, final SlotManager slotManager,
+                                       final ProcessingEnvironment processingEnv) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file))))) {
+            return new Reader(in, slotManager, processingEnv).read();
+        } catch (RuntimeException e) {
+            throw new IOException("Could not read constraints from " + file, e);
+        }
+    }
+
+    private static class Writer {
+        private final DataOutputStream out;
+        private final Map<Slot, Integer> indices = new IdentityHashMap<>();
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final Set<Slot> registered = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void write(final List<Slot> slots, final Collection<Constraint> constraints) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            registered.addAll(slots);
+            for (Slot slot : slots) {
+                writeSlot(slot);
+            }
+            for (Slot slot : slots) {
+                for (Slot mergedTo : ((VariableSlot) slot).getMergedToSlots()) {
+                    writeSlot(mergedTo);
+                }
+                for (Slot refinedTo : ((VariableSlot) slot).getRefinedToSlots()) {
+                    writeSlot(refinedTo);
+                }
+            }
+            for (Constraint constraint : constraints) {
+                for (Slot slot : constraint.getSlots()) {
+                    writeSlot(slot);
+                }
+            }
+            out.writeByte(-1);
+
+            for (Slot slot : slots) {
+                final VariableSlot variable = (VariableSlot) slot;
+                final Set<CombVariableSlot> mergedTo = variable.getMergedToSlots();
+                final Set<RefinementVariableSlot> refinedTo = variable.getRefinedToSlots();
+                if (mergedTo.isEmpty() && refinedTo.isEmpty()) {
+                    continue;
+                }
+                out.writeInt(indices.get(slot));
+                writeSlotIndices(mergedTo);
+                writeSlotIndices(refinedTo);
+            }
+            out.writeInt(-1);
+
+            out.writeInt(constraints.size());
+            for (Constraint constraint : constraints) {
+                writeConstraint(constraint);
+            }
+        }
+
+        private void writeSlot(final Slot slot) throws IOException {
+            if (slot == null || indices.containsKey(slot)) {
+                return;
+            }
+
+            // The slots this one is built from come first
+            switch (slot.getKind()) {
+                case COMB_VARIABLE:
+                    writeSlot(((CombVariableSlot) slot).getFirst());
+                    writeSlot(((CombVariableSlot) slot).getSecond());
+                    break;
+                case REFINEMENT_VARIABLE:
+                    writeSlot(((RefinementVariableSlot) slot).getRefined());
+                    break;
+                case EXISTENTIAL_VARIABLE:
+                    writeSlot(((ExistentialVariableSlot) slot).getPotentialSlot());
+                    writeSlot(((ExistentialVariableSlot) slot).getAlternativeSlot());
+                    break;
+                default:
+                    break;
+            }
+
+            indices.put(slot, indices.size());
+            final VariableSlot variable = (VariableSlot) slot;
+            out.writeByte(slot.getKind().ordinal());
+            out.writeInt(variable.getId());
+            out.writeBoolean(registered.contains(slot));
+            writeLocation(slot.getLocation());
+
+            switch (slot.getKind()) {
+                case VARIABLE:
+                    out.writeBoolean(variable.isInsertable());
+                    break;
+                case CONSTANT:
+                    final AnnotationMirror value = ((ConstantSlot) slot).getValue();
+                    final String encoded = StubAnnotationCache.encodeAnnotation(value);
+                    if (encoded == null) {
+                        throw new IOException("Cannot encode the value of constant " + slot + ": " + value);
+                    }
+                    writeString(encoded);
+                    break;
+                case COMB_VARIABLE:
+                    writeSlotIndex(((CombVariableSlot) slot).getFirst());
+                    writeSlotIndex(((CombVariableSlot) slot).getSecond());
+                    break;
+                case REFINEMENT_VARIABLE:
+                    writeSlotIndex(((RefinementVariableSlot) slot).getRefined());
+                    break;
+                case EXISTENTIAL_VARIABLE:
+                    writeSlotIndex(((ExistentialVariableSlot) slot).getPotentialSlot());
+                    writeSlotIndex(((ExistentialVariableSlot) slot).getAlternativeSlot());
+                    break;
+            }
+        }
+
+        private void writeSlotIndices(final Collection<? extends Slot> slots) throws IOException {
+            out.writeInt(slots.size());
+            for (Slot slot : slots) {
+                writeSlotIndex(slot);
+            }
+        }
+
+        private void writeSlotIndex(final Slot slot) throws IOException {
+            out.writeInt(slot == null ? -1 : indices.get(slot));
+        }
+
+        private void writeLocation(final AnnotationLocation location) throws IOException {
+            if (location instanceof AstPathLocation) {
+                final ASTRecord record = ((AstPathLocation) location).getAstRecord();
+                out.writeByte(LOCATION_AST_PATH);
+                writeString(record.className);
+                writeString(record.methodName);
+                writeString(record.varName);
+                final List<ASTEntry> entries = new ArrayList<>();
+                for (ASTEntry entry : record.astPath) {
+                    entries.add(entry);
+                }
+                out.writeInt(entries.size());
+                for (ASTEntry entry : entries) {
+                    writeString(entry.getTreeKind().name());
+                    writeString(entry.getChildSelector());
+                    out.writeInt(entry.getArgument());
+                }
+
+            } else if (location instanceof ClassDeclLocation) {
+                out.writeByte(LOCATION_CLASS_DECL);
+                writeString(((ClassDeclLocation) location).getPackageName());
+                writeString(((ClassDeclLocation) location).getClassName());
+
+            } else {
+                out.writeByte(LOCATION_MISSING);
+            }
+        }
+
+        private void writeConstraint(final Constraint constraint) throws IOException {
+            if (constraint instanceof BinaryConstraint) {
+                final byte type;
+                if (constraint instanceof SubtypeConstraint) {
+                    type = SUBTYPE;
+                } else if (constraint instanceof EqualityConstraint) {
+                    type = EQUALITY;
+                } else if (constraint instanceof InequalityConstraint) {
+                    type = INEQUALITY;
+                } else if (constraint instanceof ComparableConstraint) {
+                    type = COMPARABLE;
+                } else {
+                    throw new IOException("Unknown constraint " + constraint.getClass() + ": " + constraint);
+                }
+                out.writeByte(type);
+                writeSlotIndex(((BinaryConstraint) constraint).getFirst());
+                writeSlotIndex(((BinaryConstraint) constraint).getSecond());
+
+            } else if (constraint instanceof CombineConstraint) {
+                final CombineConstraint combine = (CombineConstraint) constraint;
+                out.writeByte(COMBINE);
+                writeSlotIndex(combine.getTarget());
+                writeSlotIndex(combine.getDeclared());
+                writeSlotIndex(combine.getResult());
+
+            } else if (constraint instanceof PreferenceConstraint) {
+                final PreferenceConstraint preference = (PreferenceConstraint) constraint;
+                out.writeByte(PREFERENCE);
+                writeSlotIndex(preference.getVariable());
+                writeSlotIndex(preference.getGoal());
+                out.writeInt(preference.getWeight());
+
+            } else if (constraint instanceof ExistentialConstraint) {
+                final ExistentialConstraint existential = (ExistentialConstraint) constraint;
+                out.writeByte(EXISTENTIAL);
+                writeSlotIndex(existential.getPotentialVariable());
+                writeConstraints(existential.potentialConstraints());
+                writeConstraints(existential.getAlternateConstraints());
+
+            } else {
+                throw new IOException("Unknown constraint " + constraint.getClass() + ": " + constraint);
+            }
+        }
+
+        private void writeConstraints(final List<Constraint> constraints) throws IOException {
+            out.writeInt(constraints.size());
+            for (Constraint constraint : constraints) {
+                writeConstraint(constraint);
+            }
+        }
+
+        private void writeString(final String string) throws IOException {
+            if (string == null) {
+                out.writeInt(-1);
+                return;
+            }
+
+            final Integer index = strings.get(string);
+            if (index != null) {
+                out.writeInt(index);
+            } else {
+                out.writeInt(strings.size());
+                strings.put(string, strings.size());
+                out.writeUTF(string);
+            }
+        }
+    }
+
+    private static class Reader {
+        private final DataInputStream in;
+        private final SlotManager slotManager;
+        private final ProcessingEnvironment processingEnv;
+        private final List<VariableSlot> slots = new ArrayList<>();
+        private final List<String> strings = new ArrayList<>();
+
+        Reader(DataInputStream in, SlotManager slotManager, ProcessingEnvironment processingEnv) {
+            this.in = in;
+            this.slotManager = slotManager;
+            this.processingEnv = processingEnv;
+        }
+
+        Set<Constraint> read() throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a constraint file.");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported constraint file version " + version);
+            }
+
+            final Slot.Kind[] kinds = Slot.Kind.values();
+            for (byte kind = in.readByte(); kind != -1; kind = in.readByte()) {
+                slots.add(readSlot(kinds[kind]));
+            }
+
+            for (int index = in.readInt(); index != -1; index = in.readInt()) {
+                final VariableSlot slot = slots.get(index);
+                final int mergedTo = in.readInt();
+                for (int i = 0; i < mergedTo; i++) {
+                    slot.addMergedToSlot((CombVariableSlot) readSlotIndex());
+                }
+                final int refinedTo = in.readInt();
+                for (int i = 0; i < refinedTo; i++) {
+                    slot.addRefinedToSlot((RefinementVariableSlot) readSlotIndex());
+                }
+            }
+
+            final int count = in.readInt();
+            final Set<Constraint> constraints = new LinkedHashSet<>();
+            for (int i = 0; i < count; i++) {
+                constraints.add(readConstraint());
+            }
+            return constraints;
+        }
+
+        private VariableSlot readSlot(final Slot.Kind kind) throws IOException {
+            final int id = in.readInt();
+            final boolean registered = in.readBoolean();
+            final AnnotationLocation location = readLocation();
+
+            final VariableSlot slot;
+            switch (kind) {
+                case VARIABLE:
+                    slot = new VariableSlot(location, id);
+                    slot.setInsertable(in.readBoolean());
+                    break;
+
+                case CONSTANT:
+                    final AnnotationMirror value = StubAnnotationCache.decodeAnnotation(readString(), processingEnv);
+                    if (registered && location == AnnotationLocation.MISSING_LOCATION) {
+                        final Slot stored = slotManager.getSlot(value);
+                        if (stored != null && slotManager.getVariable(id) == stored) {
+                            return (VariableSlot) stored;
+                        }
+                    }
+                    slot = new ConstantSlot(value, location, id);
+                    break;
+
+                case COMB_VARIABLE:
+                    slot = new CombVariableSlot(location, id, readSlotIndex(), readSlotIndex());
+                    break;
+
+                case REFINEMENT_VARIABLE:
+                    slot = new RefinementVariableSlot(location, id, readSlotIndex());
+                    break;
+
+                case EXISTENTIAL_VARIABLE:
+                    slot = new ExistentialVariableSlot(id, readSlotIndex(), readSlotIndex());
+                    slot.setLocation(location);
+                    break;
+
+                default:
+                    throw new IOException("Unknown slot kind " + kind);
+            }
+
+            if (registered) {
+                if (slotManager.getVariable(id) != null) {
+                    throw new IOException("Slot " + id + " is already used, was the file written for other qualifiers?");
+                }
+                slotManager.addVariable(slot);
+            }
+            return slot;
+        }
+
+        private VariableSlot readSlotIndex() throws IOException {
+            final int index = in.readInt();
+            return index == -1 ? null : slots.get(index);
+        }
+
+        private AnnotationLocation readLocation() throws IOException {
+            final byte kind = in.readByte();
+            switch (kind) {
+                case LOCATION_AST_PATH:
+                    ASTRecord record = new ASTRecord(null, readString(), readString(), readString(), ASTPath.empty());
+                    final int entries = in.readInt();
+                    for (int i = 0; i < entries; i++) {
+                        record = record.extend(Tree.Kind.valueOf(readString()), readString(), in.readInt());
+                    }
+                    return new AstPathLocation(record);
+
+                case LOCATION_CLASS_DECL:
+                    return new ClassDeclLocation(readString(), readString());
+
+                case LOCATION_MISSING:
+                    return AnnotationLocation.MISSING_LOCATION;
+
+                default:
+                    throw new IOException("Unknown location kind " + kind);
+            }
+        }
+
+        private Constraint readConstraint() throws IOException {
+            final byte type = in.readByte();
+            switch (type) {
+                case SUBTYPE:
+                    return new SubtypeConstraint(readSlotIndex(), readSlotIndex());
+                case EQUALITY:
+                    return new EqualityConstraint(readSlotIndex(), readSlotIndex());
+                case INEQUALITY:
+                    return new InequalityConstraint(readSlotIndex(), readSlotIndex());
+                case COMPARABLE:
+                    return new ComparableConstraint(readSlotIndex(), readSlotIndex());
+                case COMBINE:
+                    return new CombineConstraint(readSlotIndex(), readSlotIndex(), readSlotIndex());
+                case PREFERENCE:
+                    return new PreferenceConstraint(readSlotIndex(), (ConstantSlot) readSlotIndex(), in.readInt());
+                case EXISTENTIAL:
+                    return new ExistentialConstraint(readSlotIndex(), readConstraints(), readConstraints());
+                default:
+                    throw new IOException("Unknown constraint type " + type);
+            }
+        }
+
+        private List<Constraint> readConstraints() throws IOException {
+            final int count = in.readInt();
+            final List<Constraint> constraints = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                constraints.add(readConstraint());
+            }
+            return constraints;
+        }
+
+        private String readString() throws IOException {
+            final int index = in.readInt();
+            if (index == -1) {
+                return null;
+            }
+            if (index == strings.size()) {
+                strings.add(in.readUTF());
+            }
+            return strings.get(index);
+        }
+    }
+}
@@ -142,13 +142,17 @@ public class JsonSerializer implements Serializer<String, JSONObject> {
 
     protected static final String VAR_PREFIX = "var:";
 
-    @SuppressWarnings("unused")
+    // The stable keys of the variables, see setWriteStableKeys.  The game side ignores it.
+    protected static final String STABLE_KEYS_KEY = "system-stable_keys";
+
     private final Collection<Slot> slots;
     private final Collection<Constraint> constraints;
     private final Map<Integer, AnnotationMirror> solutions;
 
     private AnnotationMirrorSerializer annotationSerializer;
 
+    private boolean writeStableKeys = false;
+
     public JsonSerializer(Collection<Slot> slots,
                           Collection<Constraint> constraints,
                           Map<Integer, AnnotationMirror> solutions,
@@ -170,9 +174,33 @@ public class JsonSerializer implements Serializer<String, JSONObject> {
         }
 
         result.put(CONSTRAINTS_KEY, constraintsToJsonArray(constraints));
+
+        if (writeStableKeys) {
+            result.put(STABLE_KEYS_KEY, generateStableKeysSection());
+        }
         return result;
     }
 
+    /**
+     * Also write the stable key (see VariableSlot.getStableKey) of every variable that has one, so
+     * that the constraints of separate runs can be matched.
+     */
+    public void setWriteStableKeys(boolean writeStableKeys) {
+        this.writeStableKeys = writeStableKeys;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected JSONObject generateStableKeysSection() {
+        JSONObject stableKeys = new JSONObject();
+        for (Slot slot : slots) {
+            if (slot.isVariable() && ((VariableSlot) slot).hasStableKey()) {
+                VariableSlot variable = (VariableSlot) slot;
+                stableKeys.put(VAR_PREFIX + variable.getId(), Long.toHexString(variable.getStableKey()));
+            }
+        }
+        return stableKeys;
+    }
+
     @SuppressWarnings("unchecked")
     protected JSONObject generateVariablesSection() {
         JSONObject variables = new JSONObject();
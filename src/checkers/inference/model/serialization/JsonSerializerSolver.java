@@ -30,6 +30,7 @@ public class JsonSerializerSolver implements InferenceSolver {
 
     private static final String FILE_KEY = "constraint-file";
     private static final String DEFAULT_FILE = "./constraints.json";
+    private static final String STABLE_KEYS_KEY = "stable-keys";
     private Map<String, String> configuration;
 
     @Override
@@ -45,6 +46,7 @@ public class JsonSerializerSolver implements InferenceSolver {
         AnnotationMirror bottom = qualHierarchy.getBottomAnnotations().iterator().next();
         SimpleAnnotationMirrorSerializer annotationSerializer = new SimpleAnnotationMirrorSerializer(top, bottom);
         JsonSerializer serializer = new JsonSerializer(slots, constraints, null, annotationSerializer);
+        serializer.setWriteStableKeys(Boolean.parseBoolean(configuration.get(STABLE_KEYS_KEY)));
         printJson(serializer);
 
         return null;
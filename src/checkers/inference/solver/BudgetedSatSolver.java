@@ -0,0 +1,431 @@
+package checkers.inference.solver;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import org.sat4j.core.VecInt;
+import org.sat4j.maxsat.WeightedMaxSatDecorator;
+import org.sat4j.specs.ContradictionException;
+import org.sat4j.specs.IVecInt;
+import org.sat4j.specs.TimeoutException;
+
+import checkers.inference.InferenceMain;
+import checkers.inference.InferenceOptions;
+import checkers.inference.SlotManager;
+import checkers.inference.model.VariableSlot;
+
+/**
+ * Solves CNF clauses with SAT4J within a TimeBudget, the part shared by MaxSat2TypeSolver and the
+ * SPARTA PermissionSolver.
+ *
+ * With a time limit, the clauses are split into independent components, clauses that share no
+ * variable, and small components are packed into groups of at least MIN_GROUP_CLAUSES clauses.  Each
+ * group is solved on its own, with its variables renumbered from 1, and gets its share of the budget.
+ * A group whose solver times out, or finds no model, is cut off: its variables are left without values,
+ * for the caller to fill in from another solver, and are reported by getCutOff.  Variables in no group,
+ * i.e. in no clause or only in clauses the CnfPreprocessor removed, get the default value false, as
+ * SAT4J gives them when all clauses are solved at once.
+ *
+ * Without a time limit, all clauses are solved at once as before.
+ *
+ * stop, called from another thread, ends solve early as if the budget were used up, e.g. when another
+ * solver of a PortfolioSolver won.
+ *
+ * With --cnfPreprocessing, the clauses are first simplified by a CnfPreprocessor and the
+ * variables it removed get their values after solving.  The simplifications keep only the models of
+ * all clauses, not the optimum of the soft clauses, so the simplified groups are solved as hard
+ * clauses; if one of them has no model, the clauses conflict and are solved again without the
+ * preprocessor, as soft clauses.
+ */
+public class BudgetedSatSolver {
+
+    private static final Logger logger = Logger.getLogger(BudgetedSatSolver.class.getName());
+
+    // Starting SAT4J costs more than solving a few clauses, so tiny components are solved together
+    private static final int MIN_GROUP_CLAUSES = 10000;
+
+    private static final int MAX_LOGGED_SLOTS = 5;
+
+    /**
+     * Clauses solved by one SAT4J instance.
+     */
+    public static class Group {
+        final List<VecInt> clauses = new ArrayList<>();
+        // The original number of each variable of the group is at its index - 1, null if not renumbered
+        final int[] localToGlobal;
+        final Map<Integer, Integer> globalToLocal;
+        final int numVars;
+
+        Group(int totalVars) {
+            this.localToGlobal = null;
+            this.globalToLocal = null;
+            this.numVars = totalVars;
+        }
+
+        Group(Set<Integer> vars) {
+            this.localToGlobal = new int[vars.size()];
+            this.globalToLocal = new HashMap<>();
+            int local = 0;
+            for (int var : vars) {
+                localToGlobal[local++] = var;
+                globalToLocal.put(var, local);
+            }
+            this.numVars = vars.size();
+        }
+
+        VecInt toLocal(IVecInt clause) {
+            final VecInt local = new VecInt();
+            for (int i = 0; i < clause.size(); i++) {
+                local.push(toLocal(clause.get(i)));
+            }
+            return local;
+        }
+
+        int toLocal(int literal) {
+            if (globalToLocal == null) {
+                return literal;
+            }
+            final int local = globalToLocal.get(Math.abs(literal));
+            return literal < 0 ? -local : local;
+        }
+
+        int toGlobal(int literal) {
+            if (localToGlobal == null) {
+                return literal;
+            }
+            final int global = localToGlobal[Math.abs(literal) - 1];
+            return literal < 0 ? -global : global;
+        }
+
+        public int getClauseCount() {
+            return clauses.size();
+        }
+
+        /**
+         * @return the original numbers of the variables of the group
+         */
+        public List<Integer> getVariables() {
+            final List<Integer> variables = new ArrayList<>();
+            for (int local = 1; local <= numVars; local++) {
+                variables.add(toGlobal(local));
+            }
+            return variables;
+        }
+    }
+
+    private List<Group> groups;
+    private final int totalVars;
+    private final TimeBudget budget;
+    private final Map<Integer, Boolean> values = new TreeMap<>();
+    private final List<Group> cutOff = new ArrayList<>();
+    private CnfPreprocessor preprocessor = null;
+    // The clauses before preprocessing, to solve if the preprocessed ones have no model
+    private List<VecInt> originalClauses = null;
+
+    private volatile boolean stopped = false;
+    private volatile WeightedMaxSatDecorator current = null;
+
+    /**
+     * @param totalVars the largest variable in clauses
+     * @param budget the budget to solve the clauses in, the clauses are added to its work
+     */
+    public BudgetedSatSolver(List<VecInt> clauses, int totalVars, TimeBudget budget) {
+        this.budget = budget;
+        this.totalVars = totalVars;
+        if (InferenceOptions.cnfPreprocessing) {
+            final CnfPreprocessor preprocessor = new CnfPreprocessor(clauses, totalVars);
+            if (preprocessor.isConsistent()) {
+                preprocessor.logStatistics(clauses.size());
+                this.preprocessor = preprocessor;
+                this.originalClauses = clauses;
+                clauses = preprocessor.getClauses();
+            }
+        }
+        this.groups = group(clauses);
+    }
+
+    private List<Group> group(List<VecInt> clauses) {
+        budget.addWork(clauses.size());
+        if (budget.isUnlimited()) {
+            final Group all = new Group(totalVars);
+            all.clauses.addAll(clauses);
+            return Collections.singletonList(all);
+        }
+        return split(clauses, MIN_GROUP_CLAUSES);
+    }
+
+    /**
+     * Solve every group, preferring the values in hints, see solveGroup.
+     * @throws ContradictionException if SAT4J rejects a clause
+     */
+    public void solve(IVecInt hints) throws ContradictionException {
+        if (!solveGroups(hints)) {
+            logger.warning("The preprocessed clauses have no model, solving the original clauses without preprocessing");
+            preprocessor = null;
+            values.clear();
+            cutOff.clear();
+            groups = group(originalClauses);
+            solveGroups(hints);
+        }
+
+        current = null;
+        assignUngrouped();
+        if (preprocessor != null) {
+            preprocessor.complete(values);
+        }
+    }
+
+    /**
+     * @return false if a group of preprocessed clauses has no model, so that they must be solved again
+     * without the preprocessor
+     */
+    private boolean solveGroups(IVecInt hints) throws ContradictionException {
+        for (Group group : groups) {
+            final int timeoutMs = budget.startWork(group.getClauseCount());
+            if (timeoutMs == 0 || stopped) {
+                cutOff.add(group);
+                continue;
+            }
+
+            try {
+                final WeightedMaxSatDecorator solver = solveGroup(group, localHints(group, hints), timeoutMs);
+                if (solver != null) {
+                    for (int literal : solver.model()) {
+                        final int global = group.toGlobal(literal);
+                        values.put(Math.abs(global), global > 0);
+                    }
+                } else if (preprocessor != null) {
+                    return false;
+                } else {
+                    logger.warning("No model for " + group.getClauseCount() + " clauses");
+                    cutOff.add(group);
+                }
+            } catch (TimeoutException e) {
+                logger.fine("Timed out after " + timeoutMs + " ms on " + group.getClauseCount() + " clauses");
+                cutOff.add(group);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Give the variables up to totalVars that are in no group the default value, false.
+     */
+    private void assignUngrouped() {
+        final BitSet cutOffVars = new BitSet();
+        for (Group group : cutOff) {
+            for (int var : group.getVariables()) {
+                cutOffVars.set(var);
+            }
+        }
+        for (int var = 1; var <= totalVars; var++) {
+            if (!cutOffVars.get(var)) {
+                values.putIfAbsent(var, false);
+            }
+        }
+    }
+
+    /**
+     * Make solve, running on another thread, cut off the group it is solving and the groups after it.
+     */
+    public void stop() {
+        stopped = true;
+        final WeightedMaxSatDecorator solver = current;
+        if (solver != null) {
+            solver.expireTimeout();
+        }
+    }
+
+    /**
+     * Solve the clauses of group.  Without hints they are soft clauses, as they always were.  With hints
+     * they are hard clauses, so that a hint in conflict with them is dropped rather than relaxing the
+     * clause, see WarmStart.isSatisfiable; only if the hard clauses have no model are they solved as soft
+     * clauses without the hints.  Preprocessed clauses are always hard and never relaxed, see the class
+     * comment.
+     * @return the solver with the model of the group, or null if it has none
+     */
+    private WeightedMaxSatDecorator solveGroup(Group group, IVecInt hints, int timeoutMs)
+            throws ContradictionException, TimeoutException {
+        final long start = System.currentTimeMillis();
+        if (!hints.isEmpty() || preprocessor != null) {
+            try {
+                final WeightedMaxSatDecorator solver = newSolver(group, timeoutMs, true);
+                if (hints.isEmpty() ? solver.isSatisfiable() : WarmStart.isSatisfiable(solver, hints)) {
+                    return solver;
+                }
+            } catch (ContradictionException e) {
+                // Trivially conflicting clauses, relaxed below
+            }
+            if (preprocessor != null) {
+                return null;
+            }
+            logger.fine("The " + group.getClauseCount() + " clauses conflict, solving them without warm start hints");
+        }
+
+        final int remainingMs = (int) Math.max(1, timeoutMs - (System.currentTimeMillis() - start));
+        final WeightedMaxSatDecorator solver = newSolver(group, remainingMs, false);
+        // isSatisfiable launches the solvers and waits until one of them finishes
+        return solver.isSatisfiable() ? solver : null;
+    }
+
+    private WeightedMaxSatDecorator newSolver(Group group, int timeoutMs, boolean hard)
+            throws ContradictionException, TimeoutException {
+        // When .newBoth is called, SAT4J will run two solvers and return the result of the first to halt
+        final WeightedMaxSatDecorator solver = new WeightedMaxSatDecorator(org.sat4j.pb.SolverFactory.newBoth());
+        solver.newVar(group.numVars);
+        solver.setExpectedNumberOfClauses(group.getClauseCount());
+        solver.setTimeoutMs(timeoutMs);
+        for (VecInt clause : group.clauses) {
+            if (hard) {
+                solver.addHardClause(group.toLocal(clause));
+            } else {
+                solver.addSoftClause(group.toLocal(clause));
+            }
+        }
+
+        current = solver;
+        // stop may have been called before current was set
+        if (stopped) {
+            throw new TimeoutException("Stopped");
+        }
+        return solver;
+    }
+
+    /**
+     * @return the value of each variable of the groups that were solved, by its original number, in
+     * the order of the variables
+     */
+    public Map<Integer, Boolean> getValues() {
+        return values;
+    }
+
+    /**
+     * @return the groups that were not solved in time, or that have no model
+     */
+    public List<Group> getCutOff() {
+        return cutOff;
+    }
+
+    /**
+     * Log the groups that were cut off, with a few of the slots of each, to see what to give more time.
+     * @param solverName the solver and problem the clauses encode, e.g. a permission
+     */
+    public void logCutOff(String solverName, SlotManager slotManager) {
+        if (cutOff.isEmpty()) {
+            return;
+        }
+
+        final StringBuilder message = new StringBuilder();
+        message.append(solverName).append(" cut off ").append(cutOff.size()).append(" of ").append(groups.size())
+               .append(" clause groups, they get the solution of the fallback solver:");
+        for (Group group : cutOff) {
+            final List<String> examples = new ArrayList<>();
+            for (int var : group.getVariables()) {
+                final VariableSlot slot = slotManager.getVariable(var);
+                if (slot != null) {
+                    examples.add(slot.toString());
+                }
+                if (examples.size() == MAX_LOGGED_SLOTS) {
+                    break;
+                }
+            }
+            message.append("\n  ").append(group.getClauseCount()).append(" clauses over ")
+                   .append(group.numVars).append(" variables, e.g. ").append(examples);
+        }
+        logger.warning(message.toString());
+        InferenceMain.getInstance().getMetrics().countCutOffGroups(solverName, cutOff.size());
+    }
+
+    private static IVecInt localHints(Group group, IVecInt hints) {
+        if (group.globalToLocal == null) {
+            return hints;
+        }
+        final VecInt local = new VecInt();
+        for (int i = 0; i < hints.size(); i++) {
+            if (group.globalToLocal.containsKey(Math.abs(hints.get(i)))) {
+                local.push(group.toLocal(hints.get(i)));
+            }
+        }
+        return local;
+    }
+
+    /**
+     * Split clauses into components by union-find over their variables and pack the components,
+     * in the order of their first clauses, into groups of at least minGroupClauses clauses.
+     */
+    static List<Group> split(List<VecInt> clauses, int minGroupClauses) {
+        final Map<Integer, Integer> parents = new HashMap<>();
+        for (VecInt clause : clauses) {
+            for (int i = 1; i < clause.size(); i++) {
+                union(parents, Math.abs(clause.get(0)), Math.abs(clause.get(i)));
+            }
+        }
+
+        final Map<Integer, List<VecInt>> components = new LinkedHashMap<>();
+        for (VecInt clause : clauses) {
+            if (clause.isEmpty()) {
+                continue;
+            }
+            components.computeIfAbsent(find(parents, Math.abs(clause.get(0))), root -> new ArrayList<>()).add(clause);
+        }
+
+        final List<Group> groups = new ArrayList<>();
+        List<VecInt> pending = new ArrayList<>();
+        for (List<VecInt> component : components.values()) {
+            pending.addAll(component);
+            if (pending.size() >= minGroupClauses) {
+                groups.add(toGroup(pending));
+                pending = new ArrayList<>();
+            }
+        }
+        if (!pending.isEmpty()) {
+            groups.add(toGroup(pending));
+        }
+        logger.fine("Split " + clauses.size() + " clauses into " + components.size() + " components and "
+                + groups.size() + " groups");
+        return groups;
+    }
+
+    private static Group toGroup(List<VecInt> clauses) {
+        final Set<Integer> vars = new TreeSet<>();
+        for (VecInt clause : clauses) {
+            for (int i = 0; i < clause.size(); i++) {
+                vars.add(Math.abs(clause.get(i)));
+            }
+        }
+        final Group group = new Group(vars);
+        group.clauses.addAll(clauses);
+        return group;
+    }
+
+    private static int find(Map<Integer, Integer> parents, int var) {
+        int root = var;
+        for (Integer parent = parents.get(root); parent != null; parent = parents.get(root)) {
+            root = parent;
+        }
+        // Path compression, so that later finds are short
+        while (var != root) {
+            final int parent = parents.get(var);
+            parents.put(var, root);
+            var = parent;
+        }
+        return root;
+    }
+
+    private static void union(Map<Integer, Integer> parents, int first, int second) {
+        final int firstRoot = find(parents, first);
+        final int secondRoot = find(parents, second);
+        if (firstRoot != secondRoot) {
+            parents.put(firstRoot, secondRoot);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package checkers.inference.solver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.sat4j.core.VecInt;
+
+/**
+ * Simplifies CNF clauses before they are given to SAT4J, see BudgetedSatSolver:
+ *
+ * 1) Unit propagation: the variables of unit clauses, most of which come from constraints between a
+ *    variable and a constant, are fixed, the clauses they satisfy are removed and their false literals
+ *    are removed from the other clauses, until no unit clause is left.
+ *
+ * 2) Bounded variable elimination: a variable in at most MAX_OCCURRENCES clauses, e.g. the
+ *    intermediate variable of a CombVariableSlot or RefinementVariableSlot, is replaced by the
+ *    resolvents of its positive and negative clauses if there are no more resolvents than clauses.
+ *
+ * complete then gives the fixed and eliminated variables values consistent with the model of the
+ * simplified clauses.  The simplifications treat the clauses as hard: they keep the models of all
+ * clauses, but not which assignments violate the fewest of them.  So if unit propagation finds a conflict
+ * the clauses are left as they are, and if the simplified clauses have no model BudgetedSatSolver solves
+ * the original ones instead, in both cases relaxing them as before.  Variables that the
+ * solver leaves without a value, e.g. those of groups cut off by the time budget, count as false when
+ * the eliminated variables are reconstructed.
+ */
+public class CnfPreprocessor {
+
+    private static final Logger logger = Logger.getLogger(CnfPreprocessor.class.getName());
+
+    // Bounds that keep elimination linear: more occurrences rarely give fewer resolvents
+    private static final int MAX_OCCURRENCES = 16;
+    private static final int MAX_RESOLVENT_LENGTH = 32;
+
+    private final int totalVars;
+    private final List<int[]> clauses = new ArrayList<>();
+    private final BitSet removed = new BitSet();
+    // The clauses of each literal, see index, including removed and shrunk ones, null if there are none
+    private final List<List<Integer>> occurrences;
+    // 1 for true, -1 for false, 0 if the variable is not fixed
+    private final byte[] fixed;
+
+    // The eliminated variables with the clauses they were in, in the order of elimination
+    private final List<Integer> eliminated = new ArrayList<>();
+    private final List<List<int[]>> eliminatedClauses = new ArrayList<>();
+
+    private boolean conflict = false;
+
+    /**
+     * @param totalVars the largest variable in clauses
+     */
+    public CnfPreprocessor(List<VecInt> clauses, int totalVars) {
+        this.totalVars = totalVars;
+        this.fixed = new byte[totalVars + 1];
+        this.occurrences = new ArrayList<>(Collections.nCopies(2 * totalVars + 2, null));
+
+        final Deque<Integer> units = new ArrayDeque<>();
+        for (VecInt clause : clauses) {
+            final int[] literals = normalize(clause.toArray(), clause.size());
+            if (literals != null) {
+                add(literals, units);
+            }
+        }
+
+        propagate(units);
+        if (!conflict) {
+            eliminate();
+        }
+    }
+
+    /**
+     * @return false if unit propagation found a conflict, in which case the clauses should be solved
+     * without preprocessing
+     */
+    public boolean isConsistent() {
+        return !conflict;
+    }
+
+    /**
+     * @return the clauses that are left
+     */
+    public List<VecInt> getClauses() {
+        final List<VecInt> result = new ArrayList<>();
+        for (int i = 0; i < clauses.size(); i++) {
+            if (!removed.get(i)) {
+                result.add(new VecInt(clauses.get(i)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add the values of the fixed and eliminated variables to values, a model of getClauses.
+     */
+    public void complete(Map<Integer, Boolean> values) {
+        for (int var = 1; var <= totalVars; var++) {
+            if (fixed[var] != 0) {
+                values.put(var, fixed[var] > 0);
+            }
+        }
+
+        for (int i = eliminated.size() - 1; i >= 0; i--) {
+            final int var = eliminated.get(i);
+            boolean value = false;
+            for (int[] clause : eliminatedClauses.get(i)) {
+                if (contains(clause, var) && !isSatisfiedWithout(clause, var, values)) {
+                    value = true;
+                    break;
+                }
+            }
+            values.put(var, value);
+        }
+    }
+
+    public void logStatistics(int originalClauses) {
+        int fixedVars = 0;
+        for (int var = 1; var <= totalVars; var++) {
+            if (fixed[var] != 0) {
+                fixedVars++;
+            }
+        }
+        logger.fine(String.format("Preprocessing reduced %d clauses to %d, fixed %d and eliminated %d variables",
+                originalClauses, clauses.size() - removed.cardinality(), fixedVars, eliminated.size()));
+    }
+
+    private static int index(int literal) {
+        return literal > 0 ? 2 * literal : -2 * literal + 1;
+    }
+
+    private List<Integer> occurrences(int literal) {
+        final List<Integer> clausesOfLiteral = occurrences.get(index(literal));
+        return clausesOfLiteral == null ? Collections.emptyList() : clausesOfLiteral;
+    }
+
+    /**
+     * @return the literals without duplicates, or null if the clause is a tautology
+     */
+    private static int[] normalize(int[] literals, int size) {
+        final Set<Integer> unique = new LinkedHashSet<>();
+        for (int i = 0; i < size; i++) {
+            if (unique.contains(-literals[i])) {
+                return null;
+            }
+            unique.add(literals[i]);
+        }
+        final int[] result = new int[unique.size()];
+        int i = 0;
+        for (int literal : unique) {
+            result[i++] = literal;
+        }
+        return result;
+    }
+
+    private void add(int[] literals, Deque<Integer> units) {
+        final int clause = clauses.size();
+        clauses.add(literals);
+        for (int literal : literals) {
+            List<Integer> clausesOfLiteral = occurrences.get(index(literal));
+            if (clausesOfLiteral == null) {
+                clausesOfLiteral = new ArrayList<>(2);
+                occurrences.set(index(literal), clausesOfLiteral);
+            }
+            clausesOfLiteral.add(clause);
+        }
+        if (literals.length == 1) {
+            units.add(literals[0]);
+        } else if (literals.length == 0) {
+            conflict = true;
+        }
+    }
+
+    private byte valueOf(int literal) {
+        final byte value = fixed[Math.abs(literal)];
+        return literal > 0 ? value : (byte) -value;
+    }
+
+    private void propagate(Deque<Integer> units) {
+        while (!units.isEmpty() && !conflict) {
+            final int literal = units.poll();
+            final byte value = valueOf(literal);
+            if (value > 0) {
+                continue;
+            }
+            if (value < 0) {
+                conflict = true;
+                break;
+            }
+            fixed[Math.abs(literal)] = (byte) (literal > 0 ? 1 : -1);
+
+            for (int clause : occurrences(literal)) {
+                removed.set(clause);
+            }
+            for (int clause : occurrences(-literal)) {
+                if (removed.get(clause)) {
+                    continue;
+                }
+                final int[] shrunk = Arrays.stream(clauses.get(clause)).filter(l -> valueOf(l) == 0).toArray();
+                boolean satisfied = false;
+                for (int l : clauses.get(clause)) {
+                    satisfied |= valueOf(l) > 0;
+                }
+                if (satisfied) {
+                    removed.set(clause);
+                } else if (shrunk.length == 0) {
+                    conflict = true;
+                    break;
+                } else {
+                    clauses.set(clause, shrunk);
+                    if (shrunk.length == 1) {
+                        units.add(shrunk[0]);
+                    }
+                }
+            }
+        }
+
+        if (conflict) {
+            logger.fine("Unit propagation found a conflict, the clauses are not preprocessed");
+        }
+    }
+
+    private List<Integer> live(int literal) {
+        final List<Integer> live = new ArrayList<>();
+        for (int clause : occurrences(literal)) {
+            // Shrunk clauses no longer contain the literals propagation removed from them
+            if (!removed.get(clause) && contains(clauses.get(clause), literal)) {
+                live.add(clause);
+            }
+        }
+        return live;
+    }
+
+    private void eliminate() {
+        final List<Integer> candidates = new ArrayList<>();
+        for (int var = 1; var <= totalVars; var++) {
+            final int count = occurrences(var).size() + occurrences(-var).size();
+            if (fixed[var] == 0 && count > 0 && count <= MAX_OCCURRENCES) {
+                candidates.add(var);
+            }
+        }
+        candidates.sort(Comparator.comparingInt(
+                var -> occurrences(var).size() * occurrences(-var).size()));
+
+        for (int var : candidates) {
+            final List<Integer> positive = live(var);
+            final List<Integer> negative = live(-var);
+            if (positive.size() + negative.size() > MAX_OCCURRENCES) {
+                continue;
+            }
+
+            final List<int[]> resolvents = resolve(var, positive, negative);
+            if (resolvents == null) {
+                continue;
+            }
+
+            final List<int[]> saved = new ArrayList<>();
+            for (int clause : positive) {
+                saved.add(clauses.get(clause));
+                removed.set(clause);
+            }
+            for (int clause : negative) {
+                saved.add(clauses.get(clause));
+                removed.set(clause);
+            }
+            eliminated.add(var);
+            eliminatedClauses.add(saved);
+
+            // Unit resolvents are left to the solver
+            final Deque<Integer> ignoredUnits = new ArrayDeque<>();
+            for (int[] resolvent : resolvents) {
+                add(resolvent, ignoredUnits);
+            }
+        }
+    }
+
+    /**
+     * @return the non-tautological resolvents on var, or null if there are more of them than clauses or
+     * one of them is too long or empty
+     */
+    private List<int[]> resolve(int var, List<Integer> positive, List<Integer> negative) {
+        final List<int[]> resolvents = new ArrayList<>();
+        for (int p : positive) {
+            for (int n : negative) {
+                final int[] first = clauses.get(p);
+                final int[] second = clauses.get(n);
+                final int[] merged = new int[first.length + second.length - 2];
+                int size = 0;
+                for (int literal : first) {
+                    if (literal != var) {
+                        merged[size++] = literal;
+                    }
+                }
+                for (int literal : second) {
+                    if (literal != -var) {
+                        merged[size++] = literal;
+                    }
+                }
+
+                final int[] resolvent = normalize(merged, size);
+                if (resolvent == null) {
+                    continue;
+                }
+                if (resolvent.length == 0 || resolvent.length > MAX_RESOLVENT_LENGTH
+                        || resolvents.size() == positive.size() + negative.size()) {
+                    return null;
+                }
+                resolvents.add(resolvent);
+            }
+        }
+        return resolvents;
+    }
+
+    private static boolean contains(int[] clause, int literal) {
+        for (int l : clause) {
+            if (l == literal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSatisfiedWithout(int[] clause, int var, Map<Integer, Boolean> values) {
+        for (int literal : clause) {
+            if (Math.abs(literal) == var) {
+                continue;
+            }
+            final Boolean value = values.get(Math.abs(literal));
+            if (value != null && value == (literal > 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
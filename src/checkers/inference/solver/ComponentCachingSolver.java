@@ -0,0 +1,403 @@
+package checkers.inference.solver;
+
+import org.checkerframework.framework.type.QualifierHierarchy;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+
+import checkers.inference.InferenceOptions;
+import checkers.inference.InferenceSolution;
+import checkers.inference.InferenceSolver;
+import checkers.inference.model.BinaryConstraint;
+import checkers.inference.model.CombineConstraint;
+import checkers.inference.model.ConstantSlot;
+import checkers.inference.model.Constraint;
+import checkers.inference.model.ExistentialConstraint;
+import checkers.inference.model.ExistentialVariableSlot;
+import checkers.inference.model.PreferenceConstraint;
+import checkers.inference.model.Slot;
+import checkers.inference.model.VariableSlot;
+
+/**
+ * Solves the independent components of the constraints with a SolutionCache in front of another solver,
+ * see InferenceOptions.solutionCacheDir.
+ *
+ * The constraints are split into components: two constraints are in the same component if they share
+ * a variable.  Every component is written in a canonical form, where its constraints are sorted by
+ * their shape, its variables are numbered by their first occurrence and constants are written as their
+ * qualifier, and the SHA-256 hash of that form is looked up in the cache.  So identical sub-problems,
+ * e.g. those of the same library-facing classes in different programs, share a cache entry even though
+ * their slot ids differ.
+ *
+ * The constraints of the components that are not cached are solved together by the other solver, in
+ * one call, and the solution of each of these components is added to the cache.  The solver also gets
+ * every slot, so it assigns the variables without constraints as usual.  Solutions that assign none of
+ * the variables of a component, e.g. because the constraints are unsatisfiable, are not cached, nor are
+ * those that are only approximated for some of its variables, e.g. because the solver ran out of time.
+ */
+public class ComponentCachingSolver implements InferenceSolver {
+
+    private static final Logger logger = Logger.getLogger(ComponentCachingSolver.class.getName());
+
+    private final InferenceSolver solver;
+    private final File cacheDir;
+    private final long maxBytes;
+
+    /**
+     * @param solver the solver of the components that are not cached
+     * @param cacheDir the directory of the SolutionCache
+     * @param maxBytes the size of the SolutionCache
+     */
+    public ComponentCachingSolver(InferenceSolver solver, File cacheDir, long maxBytes) {
+        this.solver = solver;
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+    }
+
+    private static class Component {
+        final List<Constraint> constraints = new ArrayList<>();
+        // The variables in the order of their canonical numbers
+        final List<VariableSlot> variables = new ArrayList<>();
+        String hash;
+    }
+
+    @Override
+    public InferenceSolution solve(
+            Map<String, String> configuration,
+            Collection<Slot> slots,
+            Collection<Constraint> constraints,
+            QualifierHierarchy qualHierarchy,
+            ProcessingEnvironment processingEnvironment) {
+
+        final SolutionCache cache = new SolutionCache(cacheDir, configurationKey(configuration, qualHierarchy),
+                                                      maxBytes, processingEnvironment);
+
+        final Set<Constraint> unsolved = new LinkedHashSet<>();
+        final List<Component> misses = new ArrayList<>();
+        final Map<Integer, AnnotationMirror> cached = new HashMap<>();
+        final List<Component> components = decompose(constraints, unsolved);
+        for (Component component : components) {
+            final AnnotationMirror[] solution = component.hash == null ? null : cache.get(component.hash);
+            if (solution == null || solution.length != component.variables.size()) {
+                misses.add(component);
+                unsolved.addAll(component.constraints);
+                continue;
+            }
+            for (int i = 0; i < solution.length; i++) {
+                if (solution[i] != null) {
+                    cached.put(component.variables.get(i).getId(), solution[i]);
+                }
+            }
+        }
+        logger.fine(String.format("%d of %d constraint components are cached",
+                components.size() - misses.size(), components.size()));
+
+        final InferenceSolution solution = solver.solve(configuration, slots, unsolved, qualHierarchy,
+                                                        processingEnvironment);
+        if (solution == null) {
+            return null;
+        }
+
+        for (Component component : misses) {
+            if (component.hash == null) {
+                continue;
+            }
+            final AnnotationMirror[] annotations = new AnnotationMirror[component.variables.size()];
+            boolean assigned = false;
+            boolean approximated = false;
+            for (int i = 0; i < annotations.length; i++) {
+                final int id = component.variables.get(i).getId();
+                if (solution.doesVariableExist(id)) {
+                    annotations[i] = solution.getAnnotation(id);
+                    assigned = true;
+                }
+                approximated |= solution.isApproximated(id);
+            }
+            if (assigned && !approximated) {
+                cache.put(component.hash, annotations);
+            }
+        }
+        cache.save();
+
+        return new InferenceSolution() {
+            @Override
+            public boolean doesVariableExist(int varId) {
+                return cached.containsKey(varId) || solution.doesVariableExist(varId);
+            }
+
+            @Override
+            public AnnotationMirror getAnnotation(int varId) {
+                final AnnotationMirror annotation = cached.get(varId);
+                return annotation != null ? annotation : solution.getAnnotation(varId);
+            }
+
+            @Override
+            public boolean isApproximated(int varId) {
+                return !cached.containsKey(varId) && solution.isApproximated(varId);
+            }
+        };
+    }
+
+    /**
+     * Split constraints into the components of the variables they share, the constraints without
+     * variables are added to unsolved.
+     */
+    private static List<Component> decompose(final Collection<Constraint> constraints, final Set<Constraint> unsolved) {
+        final Map<Integer, Integer> parents = new HashMap<>();
+        final Map<Constraint, List<VariableSlot>> constraintVariables = new LinkedHashMap<>();
+        for (Constraint constraint : constraints) {
+            final List<VariableSlot> variables = new ArrayList<>();
+            for (Slot slot : constraint.getSlots()) {
+                addVariables(slot, variables);
+            }
+            if (variables.isEmpty()) {
+                unsolved.add(constraint);
+                continue;
+            }
+            constraintVariables.put(constraint, variables);
+            for (VariableSlot variable : variables) {
+                union(parents, variables.get(0).getId(), variable.getId());
+            }
+        }
+
+        final Map<Integer, Component> components = new LinkedHashMap<>();
+        for (Map.Entry<Constraint, List<VariableSlot>> entry : constraintVariables.entrySet()) {
+            final int root = find(parents, entry.getValue().get(0).getId());
+            Component component = components.get(root);
+            if (component == null) {
+                component = new Component();
+                components.put(root, component);
+            }
+            component.constraints.add(entry.getKey());
+        }
+
+        for (Component component : components.values()) {
+            component.hash = canonicalHash(component);
+        }
+        return new ArrayList<>(components.values());
+    }
+
+    /**
+     * Add slot and, for an existential variable, the variables it chooses between to variables
+     */
+    private static void addVariables(final Slot slot, final List<VariableSlot> variables) {
+        if (slot == null || !slot.isVariable()) {
+            return;
+        }
+        variables.add((VariableSlot) slot);
+        if (slot instanceof ExistentialVariableSlot) {
+            addVariables(((ExistentialVariableSlot) slot).getPotentialSlot(), variables);
+            addVariables(((ExistentialVariableSlot) slot).getAlternativeSlot(), variables);
+        }
+    }
+
+    private static int find(final Map<Integer, Integer> parents, final int id) {
+        int root = id;
+        Integer parent;
+        while ((parent = parents.get(root)) != null && parent != root) {
+            root = parent;
+        }
+        // Path compression
+        int current = id;
+        while (current != root) {
+            final int next = parents.get(current);
+            parents.put(current, root);
+            current = next;
+        }
+        return root;
+    }
+
+    private static void union(final Map<Integer, Integer> parents, final int first, final int second) {
+        final int firstRoot = find(parents, first);
+        final int secondRoot = find(parents, second);
+        parents.put(secondRoot, firstRoot);
+        parents.putIfAbsent(firstRoot, firstRoot);
+    }
+
+    /**
+     * Sort the constraints of component by their shape, number its variables by their first occurrence
+     * in that order and hash the result.
+     * @return the hash or null if component has constraints this solver cannot write canonically
+     */
+    private static String canonicalHash(final Component component) {
+        final Map<Constraint, String> shapes = new HashMap<>();
+        final Canonicalizer shaper = new Canonicalizer(true);
+        for (Constraint constraint : component.constraints) {
+            final StringBuilder shape = new StringBuilder();
+            if (!shaper.write(constraint, shape)) {
+                return null;
+            }
+            shapes.put(constraint, shape.toString());
+        }
+        // The sort is stable, so constraints of the same shape stay in the order of the input
+        Collections.sort(component.constraints, Comparator.comparing(shapes::get));
+
+        final Canonicalizer canonicalizer = new Canonicalizer(false);
+        final StringBuilder canonical = new StringBuilder();
+        for (Constraint constraint : component.constraints) {
+            canonicalizer.write(constraint, canonical);
+            canonical.append('\n');
+        }
+        component.variables.addAll(canonicalizer.variables);
+
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        return hex(digest.digest(canonical.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Writes constraints with their variables numbered by first occurrence or, for shapes, with their
+     * variables written as their kind and stable key, which does not depend on any numbering.
+     */
+    private static class Canonicalizer {
+        final boolean shapes;
+        // The variables by their number and the number of each variable id
+        final List<VariableSlot> variables = new ArrayList<>();
+        final Map<Integer, Integer> numbers = new HashMap<>();
+        final Map<AnnotationMirror, String> constants = new HashMap<>();
+
+        Canonicalizer(boolean shapes) {
+            this.shapes = shapes;
+        }
+
+        boolean write(final Constraint constraint, final StringBuilder out) {
+            out.append(constraint.getClass().getSimpleName()).append('(');
+            if (constraint instanceof BinaryConstraint) {
+                write(((BinaryConstraint) constraint).getFirst(), out);
+                out.append(',');
+                write(((BinaryConstraint) constraint).getSecond(), out);
+
+            } else if (constraint instanceof CombineConstraint) {
+                final CombineConstraint combine = (CombineConstraint) constraint;
+                write(combine.getTarget(), out);
+                out.append(',');
+                write(combine.getDeclared(), out);
+                out.append(',');
+                write(combine.getResult(), out);
+
+            } else if (constraint instanceof PreferenceConstraint) {
+                final PreferenceConstraint preference = (PreferenceConstraint) constraint;
+                write(preference.getVariable(), out);
+                out.append(',');
+                write(preference.getGoal(), out);
+                out.append(',').append(preference.getWeight());
+
+            } else if (constraint instanceof ExistentialConstraint) {
+                final ExistentialConstraint existential = (ExistentialConstraint) constraint;
+                write(existential.getPotentialVariable(), out);
+                for (List<Constraint> branch : Arrays.asList(existential.potentialConstraints(),
+                                                             existential.getAlternateConstraints())) {
+                    out.append('{');
+                    for (Constraint nested : branch) {
+                        if (!write(nested, out)) {
+                            return false;
+                        }
+                        out.append(';');
+                    }
+                    out.append('}');
+                }
+
+            } else {
+                return false;
+            }
+            out.append(')');
+            return true;
+        }
+
+        void write(final Slot slot, final StringBuilder out) {
+            if (slot == null) {
+                out.append("null");
+                return;
+            }
+
+            if (slot.isConstant()) {
+                final AnnotationMirror value = ((ConstantSlot) slot).getValue();
+                String constant = constants.get(value);
+                if (constant == null) {
+                    constant = value.toString();
+                    constants.put(value, constant);
+                }
+                out.append(constant);
+                return;
+            }
+
+            final VariableSlot variable = (VariableSlot) slot;
+            out.append(variable.getKind().name().charAt(0));
+            if (shapes) {
+                if (variable.hasStableKey()) {
+                    out.append(Long.toHexString(variable.getStableKey()));
+                }
+            } else {
+                Integer number = numbers.get(variable.getId());
+                if (number == null) {
+                    number = variables.size();
+                    numbers.put(variable.getId(), number);
+                    variables.add(variable);
+                }
+                out.append(number);
+            }
+
+            if (slot instanceof ExistentialVariableSlot) {
+                out.append('(');
+                write(((ExistentialVariableSlot) slot).getPotentialSlot(), out);
+                out.append('|');
+                write(((ExistentialVariableSlot) slot).getAlternativeSlot(), out);
+                out.append(')');
+            }
+        }
+    }
+
+    /**
+     * @return a hash of the solver and its configuration and of the type system, which solutions depend on
+     */
+    private String configurationKey(final Map<String, String> configuration, final QualifierHierarchy qualHierarchy) {
+        final StringBuilder key = new StringBuilder();
+        key.append(InferenceOptions.VERSION).append('\n');
+        key.append(solver.getClass().getName()).append('\n');
+        key.append(InferenceOptions.checker).append('\n');
+        key.append(new TreeMap<>(configuration)).append('\n');
+        for (AnnotationMirror top : qualHierarchy.getTopAnnotations()) {
+            key.append(top).append('\n');
+        }
+        for (AnnotationMirror bottom : qualHierarchy.getBottomAnnotations()) {
+            key.append(bottom).append('\n');
+        }
+
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return hex(digest.digest(key.toString().getBytes(StandardCharsets.UTF_8))).substring(0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String hex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,69 @@
+package checkers.inference.solver;
+
+import java.util.Collection;
+import java.util.Map;
+
+import javax.annotation.processing.ProcessingEnvironment;
+
+import org.checkerframework.framework.type.QualifierHierarchy;
+
+import checkers.inference.InferenceSolution;
+import checkers.inference.InferenceSolver;
+import checkers.inference.model.Constraint;
+import checkers.inference.model.Slot;
+
+/**
+ * A solver that can run in a PortfolioSolver, on a thread of its own.
+ *
+ * javac is not thread safe, so the ProcessingEnvironment, the AnnotationMirrors built through it and
+ * the SlotManager may only be used on the thread that calls solve.  A concurrent solver therefore splits
+ * solving in three: prepare, e.g. serializing the constraints and building the annotations of the
+ * solution, and Task.finish run on the calling thread; Task.run, e.g. SAT solving, may run on another
+ * thread and uses neither javac nor the SlotManager.
+ */
+public interface ConcurrentSolver extends InferenceSolver {
+
+    /**
+     * The part of solving between prepare and the solution.
+     */
+    interface Task {
+
+        /**
+         * Solve, on any thread, without javac or the SlotManager.
+         */
+        void run();
+
+        /**
+         * Ask run, on another thread, to give up as soon as it can, e.g. because another solver won.
+         */
+        void stop();
+
+        /**
+         * @return the solution, on the thread that called prepare, after run returned
+         */
+        InferenceSolution finish();
+    }
+
+    /**
+     * Do everything that needs javac or the SlotManager before solving, with the arguments of solve.
+     */
+    Task prepare(Map<String, String> configuration,
+                 Collection<Slot> slots,
+                 Collection<Constraint> constraints,
+                 QualifierHierarchy qualHierarchy,
+                 ProcessingEnvironment processingEnvironment);
+
+    /**
+     * Prepare, run and finish on the calling thread.
+     */
+    static InferenceSolution solve(ConcurrentSolver solver,
+                                   Map<String, String> configuration,
+                                   Collection<Slot> slots,
+                                   Collection<Constraint> constraints,
+                                   QualifierHierarchy qualHierarchy,
+                                   ProcessingEnvironment processingEnvironment) {
+        final Task task = solver.prepare(configuration, slots, constraints, qualHierarchy, processingEnvironment);
+        task.run();
+        return task.finish();
+    }
+}
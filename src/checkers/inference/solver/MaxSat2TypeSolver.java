@@ -5,19 +5,20 @@ import org.checkerframework.javacutil.AnnotationUtils;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.lang.model.element.AnnotationMirror;
 
 import org.sat4j.core.VecInt;
-import org.sat4j.maxsat.WeightedMaxSatDecorator;
+import org.sat4j.specs.IVecInt;
 
 import checkers.inference.DefaultInferenceSolution;
 import checkers.inference.InferenceMain;
 import checkers.inference.InferenceSolution;
-import checkers.inference.InferenceSolver;
 import checkers.inference.SlotManager;
 import checkers.inference.model.ConstantSlot;
 import checkers.inference.model.Constraint;
@@ -28,18 +29,23 @@ import checkers.inference.model.serialization.CnfVecIntSerializer;
  * This solver is used to convert any constraint set using a type system with only 2 types (Top/Bottom),
  * into a SAT problem.  This SAT problem is then solved by SAT4J and the output is converted back
  * into an InferenceSolution.
+ *
+ * Only the SAT solving runs in Task.run, so the solver can run in a PortfolioSolver, see ConcurrentSolver.
  */
-public class MaxSat2TypeSolver implements InferenceSolver {
+public class MaxSat2TypeSolver implements ConcurrentSolver {
 
-    // private QualifierHierarchy qualHierarchy;
+    private QualifierHierarchy qualHierarchy;
     private Collection<Constraint> constraints;
-    // private Collection<Slot> slots;
+    private Collection<Slot> slots;
+    private Map<String, String> configuration;
+    private ProcessingEnvironment processingEnvironment;
 
     // private AnnotationMirror defaultValue;
     private AnnotationMirror top;
     private AnnotationMirror bottom;
     private CnfVecIntSerializer serializer;
     private SlotManager slotManager;
+    private WarmStart warmStart;
 
     @Override
     public InferenceSolution solve(
@@ -48,10 +54,22 @@ public class MaxSat2TypeSolver implements InferenceSolver {
             Collection<Constraint> constraints,
             QualifierHierarchy qualHierarchy,
             ProcessingEnvironment processingEnvironment) {
+        return ConcurrentSolver.solve(this, configuration, slots, constraints, qualHierarchy, processingEnvironment);
+    }
 
-        // this.slots = slots;
+    @Override
+    public Task prepare(
+            Map<String, String> configuration,
+            Collection<Slot> slots,
+            Collection<Constraint> constraints,
+            QualifierHierarchy qualHierarchy,
+            ProcessingEnvironment processingEnvironment) {
+
+        this.configuration = configuration;
+        this.slots = slots;
         this.constraints = constraints;
-        // this.qualHierarchy = qualHierarchy;
+        this.qualHierarchy = qualHierarchy;
+        this.processingEnvironment = processingEnvironment;
 
         this.top = qualHierarchy.getTopAnnotations().iterator().next();
         this.bottom = qualHierarchy.getBottomAnnotations().iterator().next();
@@ -64,13 +82,9 @@ public class MaxSat2TypeSolver implements InferenceSolver {
         };
         // TODO: This needs to be parameterized based on the type system
         // this.defaultValue = top;
+        this.warmStart = WarmStart.fromConfiguration(configuration, slots, processingEnvironment);
 
-        return solve();
-    }
-
-    public InferenceSolution solve() {
-        final Map<Integer, AnnotationMirror> result = new HashMap<>();
-
+        // The serializer creates the existential variables in the slot manager
         final List<VecInt> clauses = serializer.convertAll(constraints);
 
         // nextId describes the LARGEST id that might be found in a variable
@@ -78,56 +92,87 @@ public class MaxSat2TypeSolver implements InferenceSolver {
         // but the slot might not actually be recorded.  Therefore, nextId is NOT
         // the number of slots but the maximum you might encounter.
         final int totalVars = slotManager.nextId();
-        final int totalClauses =  clauses.size();
 
+        final BudgetedSatSolver solver = new BudgetedSatSolver(clauses, totalVars, new TimeBudget());
+        final IVecInt hints = getWarmStartHints();
 
-        // When .newBoth is called, SAT4J will run two solvers and return the result of the first to halt
-        final WeightedMaxSatDecorator solver = new WeightedMaxSatDecorator(org.sat4j.pb.SolverFactory.newBoth());
+        return new Task() {
+            @Override
+            public void run() {
+                try {
+                    solver.solve(hints);
+                } catch (Throwable th) {
+                   throw new RuntimeException("Error MAX-SAT solving!", th);
+                }
+            }
 
-        solver.newVar(totalVars);
-        solver.setExpectedNumberOfClauses(totalClauses);
+            @Override
+            public void stop() {
+                solver.stop();
+            }
 
-        // arbitrary timeout selected for no particular reason
-        solver.setTimeoutMs(1000000);
+            @Override
+            public InferenceSolution finish() {
+                final InferenceSolution solution = toSolution(solver);
+                if (warmStart != null) {
+                    warmStart.save(solution, slots);
+                }
+                return solution;
+            }
+        };
+    }
 
-        VecInt lastClause = null;
-        try {
-            for (VecInt clause : clauses) {
+    /**
+     * @return the previous values of the variables as literals, bottom is true and top is false
+     */
+    private IVecInt getWarmStartHints() {
+        final VecInt hints = new VecInt();
+        if (warmStart == null) {
+            return hints;
+        }
 
-                lastClause = clause;
-                solver.addSoftClause(clause);
+        for (Map.Entry<Integer, AnnotationMirror> hint : warmStart.getHints().entrySet()) {
+            if (AnnotationUtils.areSame(hint.getValue(), top)) {
+                hints.push(-hint.getKey());
+            } else if (AnnotationUtils.areSame(hint.getValue(), bottom)) {
+                hints.push(hint.getKey());
             }
+        }
+        return hints;
+    }
 
-            // isSatisfiable launches the solvers and waits until one of them finishes
-            if (solver.isSatisfiable()) {
-                final Map<Integer, Integer> existentialToPotentialIds = serializer.getExistentialToPotentialVar();
-                int[] solution = solver.model();
+    private InferenceSolution toSolution(BudgetedSatSolver solver) {
+        final Map<Integer, AnnotationMirror> result = new HashMap<>();
 
-                for (Integer var : solution) {
-                    boolean isTop = var < 0;
-                    if (isTop) {
-                        var = -var;
-                    }
+        final Map<Integer, Integer> existentialToPotentialIds = serializer.getExistentialToPotentialVar();
+        for (Map.Entry<Integer, Boolean> value : solver.getValues().entrySet()) {
+            final boolean isTop = !value.getValue();
+            final Integer potential = existentialToPotentialIds.get(value.getKey());
+            if (potential != null) {
+                // idToExistence.put(potential, !isTop);
+                // TODO: which AnnotationMirror should be used?
+                result.put(potential, bottom);
+            } else {
+                result.put(value.getKey(), isTop ? top : bottom);
+            }
+        }
 
-                    Integer potential = existentialToPotentialIds.get(var);
-                    if (potential != null) {
-                        // idToExistence.put(potential, !isTop);
-                        // TODO: which AnnotationMirror should be used?
-                        result.put(potential, bottom);
-                    } else {
-                        result.put(var, isTop ? top : bottom );
+        // The variables of the groups that were cut off get the solution of the PropagationSolver
+        final Set<Integer> approximated = new HashSet<>();
+        if (!solver.getCutOff().isEmpty()) {
+            solver.logCutOff(getClass().getSimpleName(), slotManager);
+            final InferenceSolution fallback = new PropagationSolver().solve(
+                    configuration, slots, constraints, qualHierarchy, processingEnvironment);
+            for (BudgetedSatSolver.Group group : solver.getCutOff()) {
+                for (int var : group.getVariables()) {
+                    if (!existentialToPotentialIds.containsKey(var) && fallback.doesVariableExist(var)) {
+                        result.put(var, fallback.getAnnotation(var));
+                        approximated.add(var);
                     }
-
                 }
-            } else {
-                System.out.println("Not solvable!");
             }
-
-        } catch(Throwable th) {
-           throw new RuntimeException("Error MAX-SAT solving! " + lastClause, th);
         }
 
-
-        return new DefaultInferenceSolution(result);
+        return new DefaultInferenceSolution(result, approximated);
     }
 }
@@ -0,0 +1,303 @@
+package checkers.inference.solver;
+
+import org.checkerframework.framework.type.QualifierHierarchy;
+import org.checkerframework.javacutil.AnnotationUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+
+import checkers.inference.InferenceMain;
+import checkers.inference.InferenceSolution;
+import checkers.inference.InferenceSolver;
+import checkers.inference.model.ComparableConstraint;
+import checkers.inference.model.ConstantSlot;
+import checkers.inference.model.Constraint;
+import checkers.inference.model.EqualityConstraint;
+import checkers.inference.model.ExistentialVariableSlot;
+import checkers.inference.model.InequalityConstraint;
+import checkers.inference.model.Slot;
+import checkers.inference.model.SubtypeConstraint;
+import checkers.inference.model.VariableSlot;
+import checkers.inference.util.InferenceMetrics;
+
+/**
+ * Runs several solvers on the same constraints at the same time and returns the solution of the first
+ * one that finishes with a solution that satisfies the constraints.  The other solvers are then
+ * stopped.  Used when --solver names several solvers, separated by commas.
+ *
+ * javac and the SlotManager are not thread safe, so only ConcurrentSolvers can run in a portfolio: each
+ * is prepared, and its solution finished and checked, on the calling thread; only Task.run runs on a
+ * thread of the portfolio.  The solvers that have not finished when one wins are asked to give up with
+ * Task.stop.
+ *
+ * A solution satisfies the constraints if it assigns every variable of the subtype, equality,
+ * inequality and comparable constraints and none of these constraints is violated under the
+ * qualifier hierarchy.  The other constraints, e.g. combine and existential constraints, cannot be
+ * checked without the type system and are assumed to hold.  If no solver finds such a solution, the
+ * one with the fewest violations is returned.
+ *
+ * How each solver ended (won, lost, rejected, failed or cancelled) and its wall time, from prepare to
+ * the end of Task.finish, are reported through InferenceMetrics.recordSolver.  The threads are daemons, so a solver that is slow to stop
+ * does not keep the JVM alive.
+ *
+ * With the solver argument warm-start, the solvers read the previous solution as usual but only the
+ * portfolio saves one, that of the winner: the solvers get warm-start-save=false, since a loser that
+ * finishes later would otherwise replace the winner's solution, see WarmStart.
+ */
+public class PortfolioSolver implements InferenceSolver {
+
+    private static final Logger logger = Logger.getLogger(PortfolioSolver.class.getName());
+
+    private static final AtomicInteger portfolioCount = new AtomicInteger();
+
+    private final List<ConcurrentSolver> solvers = new ArrayList<>();
+
+    /**
+     * @throws IllegalArgumentException if one of the solvers is not a ConcurrentSolver
+     */
+    public PortfolioSolver(List<InferenceSolver> solvers) {
+        for (InferenceSolver solver : solvers) {
+            if (!(solver instanceof ConcurrentSolver)) {
+                throw new IllegalArgumentException(solver.getClass().getName() + " cannot run in a portfolio,"
+                        + " it does not implement " + ConcurrentSolver.class.getName());
+            }
+            this.solvers.add((ConcurrentSolver) solver);
+        }
+    }
+
+    private static class Result {
+        final int index;
+        final Throwable failure;
+        final long wallNanos;
+
+        Result(int index, Throwable failure, long wallNanos) {
+            this.index = index;
+            this.failure = failure;
+            this.wallNanos = wallNanos;
+        }
+    }
+
+    @Override
+    public InferenceSolution solve(
+            Map<String, String> configuration,
+            Collection<Slot> slots,
+            Collection<Constraint> constraints,
+            QualifierHierarchy qualHierarchy,
+            ProcessingEnvironment processingEnvironment) {
+
+        final int portfolio = portfolioCount.incrementAndGet();
+        final ExecutorService executor = Executors.newFixedThreadPool(solvers.size(), runnable -> {
+            Thread thread = new Thread(runnable, "inference-portfolio-" + portfolio);
+            thread.setDaemon(true);
+            return thread;
+        });
+        final CompletionService<Result> completionService = new ExecutorCompletionService<>(executor);
+        final Map<String, String> solverConfiguration = new HashMap<>(configuration);
+        solverConfiguration.put(WarmStart.SAVE_ARG, "false");
+
+        final String[] outcomes = new String[solvers.size()];
+        final long[] wallNanos = new long[solvers.size()];
+
+        // Everything that uses javac or the slot manager happens on this thread
+        final ConcurrentSolver.Task[] tasks = new ConcurrentSolver.Task[solvers.size()];
+        final List<Future<Result>> futures = new ArrayList<>();
+        for (int i = 0; i < solvers.size(); i++) {
+            final int index = i;
+            final long start = System.nanoTime();
+            try {
+                tasks[i] = solvers.get(i).prepare(new HashMap<>(solverConfiguration), slots, constraints,
+                                                  qualHierarchy, processingEnvironment);
+            } catch (RuntimeException e) {
+                outcomes[i] = "failed";
+                wallNanos[i] = System.nanoTime() - start;
+                logger.log(Level.WARNING, "Solver " + name(i) + " failed", e);
+                continue;
+            }
+
+            final ConcurrentSolver.Task task = tasks[i];
+            futures.add(completionService.submit(() -> {
+                try {
+                    task.run();
+                    return new Result(index, null, System.nanoTime() - start);
+                } catch (Throwable t) {
+                    return new Result(index, t, System.nanoTime() - start);
+                }
+            }));
+        }
+
+        InferenceSolution best = null;
+        int bestViolations = Integer.MAX_VALUE;
+        int winner = -1;
+
+        try {
+            for (int finished = 0; finished < futures.size() && winner < 0; finished++) {
+                final Result result = completionService.take().get();
+                wallNanos[result.index] = result.wallNanos;
+
+                InferenceSolution solution = null;
+                Throwable failure = result.failure;
+                if (failure == null) {
+                    final long finishStart = System.nanoTime();
+                    try {
+                        solution = tasks[result.index].finish();
+                    } catch (RuntimeException e) {
+                        failure = e;
+                    }
+                    wallNanos[result.index] += System.nanoTime() - finishStart;
+                }
+                if (failure != null) {
+                    outcomes[result.index] = "failed";
+                    logger.log(Level.WARNING, "Solver " + name(result.index) + " failed", failure);
+                    continue;
+                }
+
+                final int violations = solution == null
+                        ? Integer.MAX_VALUE : countViolations(solution, constraints, qualHierarchy);
+                if (violations == 0) {
+                    outcomes[result.index] = "won";
+                    winner = result.index;
+                    best = solution;
+                } else {
+                    outcomes[result.index] = "rejected";
+                    logger.info("Solver " + name(result.index) + " found no solution that satisfies the constraints"
+                            + (solution == null ? "" : ", " + violations + " are violated"));
+                    if (solution != null && violations < bestViolations) {
+                        best = solution;
+                        bestViolations = violations;
+                    }
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the solvers", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error running the solvers", e);
+        } finally {
+            for (int i = 0; i < solvers.size(); i++) {
+                if (outcomes[i] == null && tasks[i] != null) {
+                    tasks[i].stop();
+                }
+            }
+            for (Future<Result> future : futures) {
+                future.cancel(true);
+            }
+            executor.shutdownNow();
+        }
+
+        for (int i = 0; i < solvers.size(); i++) {
+            if (outcomes[i] == null) {
+                outcomes[i] = winner >= 0 ? "lost" : "cancelled";
+            }
+        }
+        report(outcomes, wallNanos);
+
+        if (winner < 0 && best != null) {
+            logger.warning("No solver satisfied every constraint, using the solution with " + bestViolations
+                    + " violations");
+        }
+        if (winner >= 0) {
+            final WarmStart warmStart = WarmStart.withoutHints(configuration);
+            if (warmStart != null) {
+                warmStart.save(best, slots);
+            }
+        }
+        return best;
+    }
+
+    private String name(int index) {
+        return solvers.get(index).getClass().getSimpleName();
+    }
+
+    private void report(String[] outcomes, long[] wallNanos) {
+        final InferenceMetrics metrics = InferenceMain.getInstance().getMetrics();
+        final List<String> summary = new ArrayList<>();
+        for (int i = 0; i < solvers.size(); i++) {
+            final String solverName = solvers.get(i).getClass().getName();
+            // The losers were cancelled before they finished, their time is unknown
+            metrics.recordSolver(solverName, outcomes[i], outcomes[i].equals("lost") ? -1 : wallNanos[i]);
+            summary.add(name(i) + ": " + outcomes[i]
+                    + (outcomes[i].equals("lost") ? "" : String.format(" (%.1fs)", wallNanos[i] / 1e9)));
+        }
+        logger.info("Portfolio results: " + String.join(", ", summary));
+    }
+
+    /**
+     * @return the number of checkable constraints that solution violates or leaves unassigned
+     */
+    private static int countViolations(InferenceSolution solution, Collection<Constraint> constraints,
+                                       QualifierHierarchy qualHierarchy) {
+        int violations = 0;
+        for (Constraint constraint : constraints) {
+            if (constraint instanceof SubtypeConstraint) {
+                SubtypeConstraint subtype = (SubtypeConstraint) constraint;
+                violations += violates(solution, subtype.getSubtype(), subtype.getSupertype(),
+                        (sub, sup) -> qualHierarchy.isSubtype(sub, sup));
+            } else if (constraint instanceof EqualityConstraint) {
+                EqualityConstraint equality = (EqualityConstraint) constraint;
+                violations += violates(solution, equality.getFirst(), equality.getSecond(),
+                        AnnotationUtils::areSame);
+            } else if (constraint instanceof InequalityConstraint) {
+                InequalityConstraint inequality = (InequalityConstraint) constraint;
+                violations += violates(solution, inequality.getFirst(), inequality.getSecond(),
+                        (first, second) -> !AnnotationUtils.areSame(first, second));
+            } else if (constraint instanceof ComparableConstraint) {
+                ComparableConstraint comparable = (ComparableConstraint) constraint;
+                violations += violates(solution, comparable.getFirst(), comparable.getSecond(),
+                        (first, second) -> qualHierarchy.isSubtype(first, second)
+                                || qualHierarchy.isSubtype(second, first));
+            }
+        }
+        return violations;
+    }
+
+    private interface Relation {
+        boolean holds(AnnotationMirror first, AnnotationMirror second);
+    }
+
+    private static int violates(InferenceSolution solution, Slot first, Slot second, Relation relation) {
+        // Whether an existential slot exists is not part of the solution, so it cannot be checked
+        if (first instanceof ExistentialVariableSlot || second instanceof ExistentialVariableSlot) {
+            return 0;
+        }
+
+        final AnnotationMirror firstValue = valueOf(solution, first);
+        final AnnotationMirror secondValue = valueOf(solution, second);
+        if (firstValue == null || secondValue == null) {
+            return 1;
+        }
+        return relation.holds(firstValue, secondValue) ? 0 : 1;
+    }
+
+    private static AnnotationMirror valueOf(InferenceSolution solution, Slot slot) {
+        if (slot instanceof ConstantSlot) {
+            return ((ConstantSlot) slot).getValue();
+        }
+        final int id = ((VariableSlot) slot).getId();
+        return solution.doesVariableExist(id) ? solution.getAnnotation(id) : null;
+    }
+
+    @Override
+    public String toString() {
+        final List<String> names = new ArrayList<>();
+        for (InferenceSolver solver : solvers) {
+            names.add(solver.getClass().getName());
+        }
+        return "PortfolioSolver" + names;
+    }
+}
@@ -17,7 +17,6 @@ import javax.lang.model.element.AnnotationMirror;
 import checkers.inference.DefaultInferenceSolution;
 import checkers.inference.InferenceMain;
 import checkers.inference.InferenceSolution;
-import checkers.inference.InferenceSolver;
 import checkers.inference.model.ConstantSlot;
 import checkers.inference.model.Constraint;
 import checkers.inference.model.EqualityConstraint;
@@ -31,10 +30,14 @@ import checkers.inference.model.VariableSlot;
  *
  * TODO: Parameters to configure where to push conflicts?
  *
+ * Finding the variables fixed by constants compares annotations, which needs javac, so it happens in
+ * prepare.  The propagation itself runs in Task.run, which in a PortfolioSolver is on a thread of its
+ * own, and Task.finish only builds the solution, see ConcurrentSolver.
+ *
  * @author mcarthur
  *
  */
-public class PropagationSolver implements InferenceSolver {
+public class PropagationSolver implements ConcurrentSolver {
 
     // private QualifierHierarchy qualHierarchy;
     private Collection<Constraint> constraints;
@@ -51,6 +54,16 @@ public class PropagationSolver implements InferenceSolver {
             Collection<Constraint> constraints,
             QualifierHierarchy qualHierarchy,
             ProcessingEnvironment processingEnvironment) {
+        return ConcurrentSolver.solve(this, configuration, slots, constraints, qualHierarchy, processingEnvironment);
+    }
+
+    @Override
+    public Task prepare(
+            Map<String, String> configuration,
+            Collection<Slot> slots,
+            Collection<Constraint> constraints,
+            QualifierHierarchy qualHierarchy,
+            ProcessingEnvironment processingEnvironment) {
 
         this.slots = slots;
         this.constraints = constraints;
@@ -61,7 +74,31 @@ public class PropagationSolver implements InferenceSolver {
         // TODO: This needs to be parameterized based on the type system
         this.defaultValue = top;
 
-        return solve();
+        final Set<VariableSlot> fixedBottom = new HashSet<VariableSlot>();
+        final Set<VariableSlot> fixedTop = new HashSet<VariableSlot>();
+        final Map<VariableSlot, List<VariableSlot>> superTypePropagation = new HashMap<>();
+        final Map<VariableSlot, List<VariableSlot>> subTypePropagation = new HashMap<>();
+        preprocessConstraints(fixedBottom, fixedTop, superTypePropagation, subTypePropagation);
+
+        return new Task() {
+            private Set<VariableSlot> inferredTop;
+            private Set<VariableSlot> inferredBottom;
+
+            @Override
+            public void run() {
+                inferredTop = propagateValues(fixedTop, superTypePropagation);
+                inferredBottom = propagateValues(fixedBottom, subTypePropagation);
+            }
+
+            @Override
+            public void stop() {
+            }
+
+            @Override
+            public InferenceSolution finish() {
+                return mergeResults(fixedBottom, fixedTop, inferredTop, inferredBottom);
+            }
+        };
     }
 
     /**
@@ -0,0 +1,233 @@
+package checkers.inference.solver;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+
+import checkers.inference.util.StubAnnotationCache;
+
+/**
+ * A persistent, size-capped cache of the solutions of constraint components, see ComponentCachingSolver.
+ *
+ * An entry maps the hash of a component in canonical form to its solution: the annotation of each of
+ * its variables, in the order of their canonical numbers.  The entries for one solver configuration
+ * are kept in one file, least recently used first.  When the file would exceed its size, the least
+ * recently used entries are dropped.
+ *
+ * The file consists of a header with the configuration key, the annotations used by the solutions,
+ * each on a line "a <encoded annotation>" (see StubAnnotationCache.encodeAnnotation), and the solutions,
+ * each on a line "s <hash> <annotation index or - for none> ...".
+ */
+public class SolutionCache {
+
+    private static final Logger logger = Logger.getLogger(SolutionCache.class.getName());
+
+    private static final String HEADER = "# solution cache ";
+    private static final int NO_ANNOTATION = -1;
+
+    private final File cacheFile;
+    private final String configuration;
+    private final long maxBytes;
+    private final ProcessingEnvironment processingEnv;
+
+    private final List<String> encodedAnnotations = new ArrayList<>();
+    private final Map<String, Integer> annotationIndices = new HashMap<>();
+    private final Map<Integer, AnnotationMirror> decodedAnnotations = new HashMap<>();
+
+    // Least recently used first, see get
+    private final LinkedHashMap<String, int[]> solutions = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean modified = false;
+
+    /**
+     * Load the solutions cached for configuration in cacheDir, if any.
+     * @param configuration a hash of everything besides the constraints that solutions depend on
+     * @param maxBytes the size at which the least recently used solutions are dropped
+     */
+    public SolutionCache(File cacheDir, String configuration, long maxBytes, ProcessingEnvironment processingEnv) {
+        this.cacheFile = new File(cacheDir, "solutions-" + configuration + ".cache");
+        this.configuration = configuration;
+        this.maxBytes = maxBytes;
+        this.processingEnv = processingEnv;
+        load();
+    }
+
+    /**
+     * @return the cached solution of the component with the given hash, with null for the variables the
+     * solver did not assign, or null if it is not cached or its annotations cannot be built
+     */
+    public AnnotationMirror[] get(final String hash) {
+        final int[] solution = solutions.get(hash);
+        if (solution == null) {
+            return null;
+        }
+
+        final AnnotationMirror[] annotations = new AnnotationMirror[solution.length];
+        for (int i = 0; i < solution.length; i++) {
+            if (solution[i] == NO_ANNOTATION) {
+                continue;
+            }
+            annotations[i] = decode(solution[i]);
+            if (annotations[i] == null) {
+                return null;
+            }
+        }
+        // The access to solutions moved the entry to the most recently used end
+        modified = true;
+        return annotations;
+    }
+
+    /**
+     * Cache the solution of the component with the given hash, unless one of its annotations cannot be
+     * encoded.
+     */
+    public void put(final String hash, final AnnotationMirror[] annotations) {
+        final int[] solution = new int[annotations.length];
+        for (int i = 0; i < annotations.length; i++) {
+            if (annotations[i] == null) {
+                solution[i] = NO_ANNOTATION;
+                continue;
+            }
+            final String encoded = StubAnnotationCache.encodeAnnotation(annotations[i]);
+            if (encoded == null) {
+                return;
+            }
+            Integer index = annotationIndices.get(encoded);
+            if (index == null) {
+                index = encodedAnnotations.size();
+                encodedAnnotations.add(encoded);
+                annotationIndices.put(encoded, index);
+            }
+            solution[i] = index;
+        }
+        solutions.put(hash, solution);
+        modified = true;
+    }
+
+    public int size() {
+        return solutions.size();
+    }
+
+    /**
+     * Drop the least recently used solutions beyond the size of the cache and write the rest.
+     */
+    public void save() {
+        if (!modified) {
+            return;
+        }
+
+        long bytes = 0;
+        for (String encoded : encodedAnnotations) {
+            bytes += encoded.length() + 3;
+        }
+        for (Map.Entry<String, int[]> entry : solutions.entrySet()) {
+            bytes += entrySize(entry.getKey(), entry.getValue());
+        }
+        final Iterator<Map.Entry<String, int[]>> leastRecentlyUsed = solutions.entrySet().iterator();
+        while (bytes > maxBytes && leastRecentlyUsed.hasNext()) {
+            final Map.Entry<String, int[]> entry = leastRecentlyUsed.next();
+            bytes -= entrySize(entry.getKey(), entry.getValue());
+            leastRecentlyUsed.remove();
+        }
+
+        final Path target = cacheFile.toPath();
+        try {
+            Files.createDirectories(target.getParent());
+            // Write to a temporary file first so that concurrent runs never read a partial cache
+            final Path temp = Files.createTempFile(target.getParent(), cacheFile.getName(), ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(HEADER + configuration);
+                writer.newLine();
+                for (String encoded : encodedAnnotations) {
+                    writer.write("a " + encoded);
+                    writer.newLine();
+                }
+                for (Map.Entry<String, int[]> entry : solutions.entrySet()) {
+                    writer.write("s " + entry.getKey());
+                    for (int annotation : entry.getValue()) {
+                        writer.write(annotation == NO_ANNOTATION ? " -" : " " + annotation);
+                    }
+                    writer.newLine();
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            modified = false;
+            logger.fine("Wrote " + solutions.size() + " solutions to solution cache " + cacheFile);
+
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write solution cache " + cacheFile, e);
+        }
+    }
+
+    private static long entrySize(final String hash, final int[] solution) {
+        return hash.length() + 3 + 4L * solution.length;
+    }
+
+    private AnnotationMirror decode(final int index) {
+        if (!decodedAnnotations.containsKey(index)) {
+            AnnotationMirror annotation = null;
+            try {
+                annotation = StubAnnotationCache.decodeAnnotation(encodedAnnotations.get(index), processingEnv);
+            } catch (RuntimeException e) {
+                logger.fine("Could not build cached annotation " + encodedAnnotations.get(index) + ": " + e.getMessage());
+            }
+            decodedAnnotations.put(index, annotation);
+        }
+        return decodedAnnotations.get(index);
+    }
+
+    private void load() {
+        if (!cacheFile.isFile()) {
+            logger.fine("No solution cache at " + cacheFile);
+            return;
+        }
+
+        try {
+            final List<String> lines = Files.readAllLines(cacheFile.toPath(), StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(HEADER + configuration)) {
+                logger.warning("Ignoring malformed solution cache " + cacheFile);
+                return;
+            }
+            for (String line : lines.subList(1, lines.size())) {
+                if (line.startsWith("a ")) {
+                    final String encoded = line.substring(2);
+                    annotationIndices.put(encoded, encodedAnnotations.size());
+                    encodedAnnotations.add(encoded);
+
+                } else if (line.startsWith("s ")) {
+                    final String[] fields = line.split(" ");
+                    final int[] solution = new int[fields.length - 2];
+                    for (int i = 0; i < solution.length; i++) {
+                        final String field = fields[i + 2];
+                        solution[i] = field.equals("-") ? NO_ANNOTATION : Integer.parseInt(field);
+                        if (solution[i] >= encodedAnnotations.size()) {
+                            throw new NumberFormatException("Unknown annotation " + field);
+                        }
+                    }
+                    solutions.put(fields[1], solution);
+                }
+            }
+            logger.fine("Read " + solutions.size() + " solutions from solution cache " + cacheFile);
+
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Ignoring malformed solution cache " + cacheFile, e);
+            encodedAnnotations.clear();
+            annotationIndices.clear();
+            solutions.clear();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package checkers.inference.solver;
+
+import checkers.inference.InferenceOptions;
+
+/**
+ * The time the SAT solvers may take, see InferenceOptions.solverTimeLimit, shared by the SAT problems
+ * of one solve.  Each problem gets the share of the remaining time that its clauses are of the
+ * remaining clauses, so time a problem does not use goes to the problems after it.
+ *
+ * Without a time limit every problem gets the fixed timeout the solvers always used.
+ */
+public class TimeBudget {
+
+    // arbitrary timeout selected for no particular reason
+    private static final int UNLIMITED_TIMEOUT_MS = 1000000;
+
+    private final long deadline;
+    private final boolean unlimited;
+    private long remainingWork = 0;
+
+    /**
+     * Start the budget of InferenceOptions.solverTimeLimit seconds now.
+     */
+    public TimeBudget() {
+        this.unlimited = InferenceOptions.solverTimeLimit <= 0;
+        this.deadline = System.currentTimeMillis() + InferenceOptions.solverTimeLimit * 1000L;
+    }
+
+    public boolean isUnlimited() {
+        return unlimited;
+    }
+
+    /**
+     * Add a problem of the given size, e.g. its number of clauses, before any problem is started.
+     */
+    public synchronized void addWork(long work) {
+        remainingWork += work;
+    }
+
+    /**
+     * Take the time for a problem of the given size, which was added with addWork.
+     * @return the timeout of the problem in milliseconds, or 0 if the budget is used up
+     */
+    public synchronized int startWork(long work) {
+        final long remainingWorkBefore = remainingWork;
+        remainingWork -= work;
+        if (unlimited) {
+            return UNLIMITED_TIMEOUT_MS;
+        }
+
+        final long remainingMs = deadline - System.currentTimeMillis();
+        if (remainingMs <= 0) {
+            return 0;
+        }
+        if (remainingWorkBefore <= work) {
+            return (int) Math.min(Integer.MAX_VALUE, remainingMs);
+        }
+        return (int) Math.max(1, remainingMs * work / remainingWorkBefore);
+    }
+}
@@ -0,0 +1,235 @@
+package checkers.inference.solver;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+
+import org.sat4j.core.VecInt;
+import org.sat4j.specs.ISolver;
+import org.sat4j.specs.IVecInt;
+import org.sat4j.specs.TimeoutException;
+
+import checkers.inference.InferenceSolution;
+import checkers.inference.model.ExistentialVariableSlot;
+import checkers.inference.model.Slot;
+import checkers.inference.model.VariableSlot;
+import checkers.inference.util.StubAnnotationCache;
+
+/**
+ * The solution of a previous run, used to warm start the SAT solvers.
+ *
+ * Enabled by the solver argument warm-start=&lt;file&gt;.  The file holds the annotation of every variable
+ * with a stable key (see VariableSlot.getStableKey), one "&lt;hex key&gt; &lt;encoded annotation&gt;" per
+ * line, so the previous solution maps onto the variables of this run by location even though their ids
+ * changed.  After solving, the new solution replaces the file for the next run, unless the solver
+ * argument warm-start-save=false is given, which PortfolioSolver passes to its solvers so that only the
+ * solution it returns is saved.
+ *
+ * The solvers turn the hints into SAT4J assumptions over hard clauses, see isSatisfiable, so a hint that
+ * conflicts with the constraints of this run is dropped rather than kept at the cost of a constraint.
+ */
+public class WarmStart {
+
+    private static final Logger logger = Logger.getLogger(WarmStart.class.getName());
+
+    public static final String WARM_START_ARG = "warm-start";
+    public static final String SAVE_ARG = "warm-start-save";
+
+    private static final String HEADER = "# inference solution 1";
+
+    // Give up on the hints after this many rounds of dropping the ones in conflict
+    private static final int MAX_ASSUMPTION_ROUNDS = 3;
+
+    private final File file;
+    private final boolean saved;
+    private final Map<Integer, AnnotationMirror> hints = new HashMap<>();
+
+    private WarmStart(File file, boolean saved) {
+        this.file = file;
+        this.saved = saved;
+    }
+
+    /**
+     * @return the warm start named by the solver arguments, with the hints for the variables in slots,
+     * or null if there is none
+     */
+    public static WarmStart fromConfiguration(Map<String, String> configuration, Collection<Slot> slots,
+                                              ProcessingEnvironment processingEnv) {
+        final WarmStart warmStart = withoutHints(configuration);
+        if (warmStart != null) {
+            warmStart.load(slots, processingEnv);
+        }
+        return warmStart;
+    }
+
+    /**
+     * @return the warm start named by the solver arguments, only to save a solution to, or null if there
+     * is none
+     */
+    public static WarmStart withoutHints(Map<String, String> configuration) {
+        final String fileName = configuration.get(WARM_START_ARG);
+        if (fileName == null || fileName.isEmpty()) {
+            return null;
+        }
+        return new WarmStart(new File(fileName), !"false".equals(configuration.get(SAVE_ARG)));
+    }
+
+    /**
+     * @return the annotation the previous run inferred for each variable id of this run, for the
+     * variables that can be matched
+     */
+    public Map<Integer, AnnotationMirror> getHints() {
+        return hints;
+    }
+
+    /**
+     * Write the annotations of solution for the next run, unless warm-start-save=false.
+     */
+    public void save(InferenceSolution solution, Collection<Slot> slots) {
+        if (!saved) {
+            return;
+        }
+
+        final Path target = file.getAbsoluteFile().toPath();
+        try {
+            Files.createDirectories(target.getParent());
+            final Path temp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+            int written = 0;
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+                for (Map.Entry<Long, AnnotationMirror> entry : solution.getAnnotationsByStableKey(slots).entrySet()) {
+                    final String encoded = entry.getValue() == null
+                            ? null : StubAnnotationCache.encodeAnnotation(entry.getValue());
+                    if (encoded == null) {
+                        continue;
+                    }
+                    writer.write(Long.toHexString(entry.getKey()) + " " + encoded);
+                    writer.newLine();
+                    written++;
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.fine("Wrote " + written + " annotations to warm start file " + file);
+
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write warm start file " + file, e);
+        }
+    }
+
+    /**
+     * Solve under the hints as assumptions.  If the solver cannot satisfy them, drop the assumptions it
+     * blames and try again; after a few rounds solve without any.  Either way the clauses are the same,
+     * the hints only make variables keep their previous values where they can.
+     *
+     * The solver must hold the clauses as hard clauses: the selector variables of soft clauses relax any
+     * clause in conflict with an assumption, which would turn the hints into forced values.
+     *
+     * SAT4J's WeightedMaxSatDecorator does not expose phase selection or an initial bound through
+     * newBoth, so the hints are assumptions rather than phases.
+     */
+    public static boolean isSatisfiable(ISolver solver, IVecInt hints) throws TimeoutException {
+        IVecInt assumptions = hints;
+        for (int round = 0; round < MAX_ASSUMPTION_ROUNDS && assumptions != null && !assumptions.isEmpty(); round++) {
+            if (solver.isSatisfiable(assumptions)) {
+                logger.fine("Satisfied " + assumptions.size() + " of " + hints.size() + " warm start hints");
+                return true;
+            }
+
+            final IVecInt explanation = solver.unsatExplanation();
+            if (explanation == null || explanation.isEmpty()) {
+                break;
+            }
+            assumptions = without(assumptions, explanation);
+        }
+
+        logger.fine("Could not satisfy the warm start hints, solving without them");
+        return solver.isSatisfiable();
+    }
+
+    private static IVecInt without(IVecInt assumptions, IVecInt explanation) {
+        final Set<Integer> blamed = new HashSet<>();
+        for (int i = 0; i < explanation.size(); i++) {
+            blamed.add(Math.abs(explanation.get(i)));
+        }
+
+        final VecInt remaining = new VecInt();
+        for (int i = 0; i < assumptions.size(); i++) {
+            if (!blamed.contains(Math.abs(assumptions.get(i)))) {
+                remaining.push(assumptions.get(i));
+            }
+        }
+        return remaining;
+    }
+
+    private void load(Collection<Slot> slots, ProcessingEnvironment processingEnv) {
+        if (!file.isFile()) {
+            logger.fine("No warm start file at " + file + " yet");
+            return;
+        }
+
+        final Map<Long, AnnotationMirror> annotations = new HashMap<>();
+        try {
+            final List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(HEADER)) {
+                logger.warning("Ignoring malformed warm start file " + file);
+                return;
+            }
+
+            final Map<String, AnnotationMirror> decoded = new HashMap<>();
+            for (String line : lines.subList(1, lines.size())) {
+                final String[] fields = line.split(" ", 2);
+                if (fields.length != 2) {
+                    continue;
+                }
+                if (!decoded.containsKey(fields[1])) {
+                    AnnotationMirror annotation = null;
+                    try {
+                        annotation = StubAnnotationCache.decodeAnnotation(fields[1], processingEnv);
+                    } catch (RuntimeException e) {
+                        logger.fine("Could not build warm start annotation " + fields[1] + ": " + e.getMessage());
+                    }
+                    decoded.put(fields[1], annotation);
+                }
+                if (decoded.get(fields[1]) != null) {
+                    annotations.put(Long.parseUnsignedLong(fields[0], 16), decoded.get(fields[1]));
+                }
+            }
+
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Ignoring malformed warm start file " + file, e);
+            return;
+        }
+
+        for (Slot slot : slots) {
+            // The solvers encode existential slots as separate variables, hint only the slots themselves
+            if (!slot.isVariable() || slot instanceof ExistentialVariableSlot) {
+                continue;
+            }
+
+            final VariableSlot variable = (VariableSlot) slot;
+            if (variable.hasStableKey()) {
+                final AnnotationMirror annotation = annotations.get(variable.getStableKey());
+                if (annotation != null) {
+                    hints.put(variable.getId(), annotation);
+                }
+            }
+        }
+        logger.fine("Matched " + hints.size() + " of " + annotations.size() + " warm start annotations");
+    }
+}
@@ -0,0 +1,57 @@
+package checkers.inference.util;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * An AfuSession inserts JAIFs into source code using the Annotation File Utilities without
+ * spawning a new insert-annotations-to-source process (and JVM) per insertion.
+ *
+ * Unlike the insert-annotations-to-source script, whose output has to be scanned for the files
+ * it wrote, a session reports the files that were written as structured data.  Many JAIFs can
+ * be inserted in one call, in which case the AFU reads the sources once for all of them.
+ *
+ * A session always inserts either in place or into a single output directory, the AFU keeps
+ * these options in static state and cannot switch between them within one JVM.
+ *
+ * @see InProcessAfuSession
+ * @see AfuWorkerSession
+ */
+public interface AfuSession extends AutoCloseable {
+
+    /** The entry point of the Annotation File Utilities insertion tool. */
+    String AFU_MAIN_CLASS = "annotator.Main";
+
+    /** The jar, in the AFU distribution directory, that contains AFU_MAIN_CLASS and its dependencies. */
+    String AFU_JAR = "annotation-file-utilities-all.jar";
+
+    /**
+     * Insert all of the given JAIFs into javaFiles.
+     * @param jaifFiles the JAIFs to insert
+     * @param javaFiles the source files into which annotations may be inserted
+     * @return the outcome of the insertion
+     */
+    Result insert(List<File> jaifFiles, List<String> javaFiles);
+
+    /**
+     * Release any resources held by this session, e.g. a worker process.
+     */
+    @Override
+    void close();
+
+    /**
+     * The outcome of an insertion.
+     */
+    class Result {
+        /** 0 if the AFU succeeded */
+        public final int status;
+
+        /** The absolute paths of the source files written by the AFU */
+        public final List<String> writtenFiles;
+
+        public Result(int status, List<String> writtenFiles) {
+            this.status = status;
+            this.writtenFiles = writtenFiles;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package checkers.inference.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import checkers.inference.InferenceLauncher;
+
+/**
+ * Runs the Annotation File Utilities in a separate, reusable worker JVM.
+ *
+ * The worker is started once per session and runs an InProcessAfuSession; every call to
+ * insert sends one request to the worker and waits for its reply.  This keeps the AFU out of
+ * the caller's JVM (and class path) while still paying for JVM start up only once.
+ *
+ * The request/reply protocol uses the worker's standard input and output, one line per message:
+ * <pre>{@code
+ *   request:  <number of jaifs> TAB <jaif> ... TAB <java file> ...
+ *   reply:    WRITTEN TAB <written file>     (zero or more)
+ *             STATUS TAB <exit status>
+ * }</pre>
+ * The worker's own output, including the AFU's, goes to its standard error.
+ */
+public class AfuWorkerSession implements AfuSession {
+
+    private static final String NO_FILE = "-";
+    private static final String WRITTEN = "WRITTEN";
+    private static final String STATUS = "STATUS";
+
+    private final Process worker;
+    private final BufferedWriter requests;
+    private final BufferedReader replies;
+
+    /**
+     * Start a worker JVM.
+     * @param jvmArgs arguments for the worker JVM, e.g. memory settings
+     * @param classpath the classpath of the worker JVM, it must contain this class
+     * @param outputDir the directory into which annotated sources are written, or null to insert in place
+     * @param afuArgs additional arguments passed to the AFU on every insertion
+     * @param afuJar the AFU jar to load the AFU from if it is not on the classpath, may be null
+     */
+    public AfuWorkerSession(List<String> jvmArgs, String classpath, File outputDir, List<String> afuArgs, File afuJar) {
+        List<String> command = new ArrayList<>();
+        command.add(InferenceLauncher.getJavaCommand(System.getProperty("java.home"), null));
+        command.addAll(jvmArgs);
+        command.add("-classpath");
+        command.add(classpath);
+        command.add(AfuWorkerSession.class.getName());
+        command.add(outputDir == null ? NO_FILE : outputDir.getAbsolutePath());
+        command.add(afuJar == null ? NO_FILE : afuJar.getAbsolutePath());
+        command.addAll(afuArgs);
+
+        try {
+            worker = new ProcessBuilder(command)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not start AFU worker: " + String.join(" ", command), e);
+        }
+
+        requests = new BufferedWriter(new OutputStreamWriter(worker.getOutputStream(), StandardCharsets.UTF_8));
+        replies = new BufferedReader(new InputStreamReader(worker.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Result insert(List<File> jaifFiles, List<String> javaFiles) {
+        List<String> fields = new ArrayList<>();
+        fields.add(String.valueOf(jaifFiles.size()));
+        for (File jaif : jaifFiles) {
+            fields.add(jaif.getAbsolutePath());
+        }
+        fields.addAll(javaFiles);
+
+        try {
+            requests.write(String.join("\t", fields));
+            requests.newLine();
+            requests.flush();
+
+            List<String> writtenFiles = new ArrayList<>();
+            String line;
+            while ((line = replies.readLine()) != null) {
+                String[] reply = line.split("\t", 2);
+                if (reply[0].equals(WRITTEN)) {
+                    writtenFiles.add(reply[1]);
+                } else if (reply[0].equals(STATUS)) {
+                    return new Result(Integer.parseInt(reply[1]), writtenFiles);
+                }
+            }
+
+        } catch (IOException e) {
+            throw new RuntimeException("Lost connection to the AFU worker.", e);
+        }
+
+        throw new RuntimeException("The AFU worker exited before replying.");
+    }
+
+    @Override
+    public void close() {
+        try {
+            // The worker exits when its standard input is closed
+            requests.close();
+            if (!worker.waitFor(30, TimeUnit.SECONDS)) {
+                worker.destroyForcibly();
+            }
+        } catch (IOException e) {
+            worker.destroyForcibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            worker.destroyForcibly();
+        }
+    }
+
+    /**
+     * The entry point of the worker JVM.
+     * Usage: AfuWorkerSession outputDir|- afuJar|- [afuArg ...]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: AfuWorkerSession outputDir|- afuJar|- [afuArg ...]");
+            System.exit(1);
+        }
+
+        File outputDir = args[0].equals(NO_FILE) ? null : new File(args[0]);
+        File afuJar = args[1].equals(NO_FILE) ? null : new File(args[1]);
+        List<String> afuArgs = Arrays.asList(args).subList(2, args.length);
+
+        // Keep standard output for replies only, everything else goes to standard error
+        PrintStream replyStream = new PrintStream(new FileOutputStream(FileDescriptor.out), true, "UTF-8");
+        System.setOut(System.err);
+
+        BufferedReader requestReader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        try (InProcessAfuSession session = new InProcessAfuSession(outputDir, afuArgs, afuJar)) {
+            String line;
+            while ((line = requestReader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t");
+                int numJaifs = Integer.parseInt(fields[0]);
+                List<File> jaifFiles = new ArrayList<>(numJaifs);
+                for (int i = 1; i <= numJaifs; i++) {
+                    jaifFiles.add(new File(fields[i]));
+                }
+                List<String> javaFiles = Arrays.asList(fields).subList(numJaifs + 1, fields.length);
+
+                Result result;
+                try {
+                    result = session.insert(jaifFiles, javaFiles);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    result = new Result(1, new ArrayList<String>());
+                }
+
+                for (String written : result.writtenFiles) {
+                    replyStream.println(WRITTEN + "\t" + written);
+                }
+                replyStream.println(STATUS + "\t" + result.status);
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package checkers.inference.util;
+
+import org.checkerframework.framework.util.ExecUtil;
+import org.checkerframework.javacutil.SystemUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import checkers.inference.InferenceLauncher;
+
+/**
+ * An application class-data sharing (AppCDS) archive of the classes the inference JVMs load from the
+ * dist jars.  Child JVMs started with the archive map the already parsed and verified Checker
+ * Framework, javac and solver classes instead of loading them from the jars.
+ *
+ * The archive is created in two steps, following the JDK's AppCDS workflow:
+ *   1. the first child JVM that may train (the inference JVM) dumps the list of classes it loads,
+ *   2. once it has exited, java -Xshare:dump creates the archive from that list.
+ * A stamp file records the JVM and the path, size and modification time of every jar the archive was
+ * created for.  If any of them changes, the archive is not used and is created again by the next
+ * training run.
+ *
+ * The JVM only uses an archive if its classpath starts with the archived classpath, otherwise it
+ * silently loads classes from the jars as usual.  AppCDS needs Java 11 or later and jars only, this
+ * class does nothing on older JVMs or if the classpath contains anything else.
+ */
+public class AppCdsArchive {
+
+    private static final Logger logger = Logger.getLogger(AppCdsArchive.class.getName());
+
+    private final List<String> classpathJars;
+    private final File archive;
+    private final File classList;
+    private final File stamp;
+
+    private boolean training = false;
+
+    /**
+     * @param archiveDir the directory holding the archive, created if needed
+     * @param classpathJars the jars to archive classes from; every JVM using the archive must have these
+     *                      jars, in this order, at the start of its classpath
+     * @param rebuild whether to discard an existing archive and create it again
+     */
+    public AppCdsArchive(File archiveDir, List<String> classpathJars, boolean rebuild) {
+        this.classpathJars = classpathJars;
+        this.archive = new File(archiveDir, "inference.jsa");
+        this.classList = new File(archiveDir, "inference.classlist");
+        this.stamp = new File(archiveDir, "inference.stamp");
+
+        if (rebuild) {
+            stamp.delete();
+        }
+    }
+
+    /**
+     * @return true if the current JVM and classpath can use an archive
+     */
+    public boolean isSupported() {
+        if (SystemUtil.getJreVersion() < 11 || classpathJars.isEmpty()) {
+            return false;
+        }
+        for (String jar : classpathJars) {
+            if (!jar.endsWith(".jar") || !new File(jar).isFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the archive exists and was created for the current JVM and classpath jars
+     */
+    public boolean isUpToDate() {
+        if (!archive.isFile() || !stamp.isFile()) {
+            return false;
+        }
+        try {
+            return new String(Files.readAllBytes(stamp.toPath()), StandardCharsets.UTF_8).equals(currentStamp());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the arguments that make a child JVM use the archive.  If the archive is not up to date and mayTrain
+     * is true, the arguments instead make the child record the classes it loads, call createArchive once the
+     * child has exited.  Only one child trains per launcher.
+     * @param mayTrain whether the child runs a representative workload, i.e. inference
+     * @return the JVM arguments, possibly none
+     */
+    public List<String> getJvmArgs(boolean mayTrain) {
+        if (!isSupported()) {
+            return Collections.emptyList();
+        }
+
+        if (isUpToDate()) {
+            return Arrays.asList("-Xshare:auto", "-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+        }
+
+        if (mayTrain && !training) {
+            training = true;
+            InferenceLauncher.ensureDirectoryExists(classList.getParentFile());
+            classList.delete();
+            return Collections.singletonList("-XX:DumpLoadedClassList=" + classList.getAbsolutePath());
+        }
+
+        return Collections.emptyList();
+    }
+
+    /**
+     * Create the archive from the class list recorded by the training child, if there was one.
+     * Failing to create the archive is not an error, child JVMs just run without it.
+     */
+    public void createArchive(PrintStream out) {
+        if (!training) {
+            return;
+        }
+        training = false;
+
+        if (!classList.isFile()) {
+            logger.warning("No class list was recorded, not creating a class data sharing archive.");
+            return;
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(InferenceLauncher.getJavaCommand(System.getProperty("java.home"), null));
+        command.add("-Xshare:dump");
+        command.add("-XX:SharedClassListFile=" + classList.getAbsolutePath());
+        command.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+        command.add("-classpath");
+        command.add(String.join(File.pathSeparator, classpathJars));
+
+        // The dump lists every class it could not archive, only show this when asked to
+        ByteArrayOutputStream dumpOutput = new ByteArrayOutputStream();
+        int result = ExecUtil.execute(command.toArray(new String[command.size()]), dumpOutput, dumpOutput);
+        logger.fine(dumpOutput.toString());
+
+        if (result != 0 || !archive.isFile()) {
+            logger.warning("Could not create the class data sharing archive " + archive + ":\n" + dumpOutput);
+            return;
+        }
+
+        try {
+            Files.write(stamp.toPath(), currentStamp().getBytes(StandardCharsets.UTF_8));
+            out.println("Created class data sharing archive " + archive);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write " + stamp, e);
+        }
+    }
+
+    private String currentStamp() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(System.getProperty("java.home")).append('\n');
+        builder.append(System.getProperty("java.vm.version")).append('\n');
+        for (String jar : classpathJars) {
+            File file = new File(jar);
+            builder.append(file.getAbsolutePath()).append('\t')
+                   .append(file.length()).append('\t')
+                   .append(file.lastModified()).append('\n');
+        }
+        return builder.toString();
+    }
+}
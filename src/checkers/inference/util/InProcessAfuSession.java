@@ -0,0 +1,192 @@
+package checkers.inference.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Runs the Annotation File Utilities insertion entry point in the current JVM.
+ *
+ * The AFU's main method calls System.exit on some errors, which ends the current JVM, so long-lived
+ * JVMs such as an InferenceDaemon run this session in a worker JVM, see AfuWorkerSession.
+ *
+ * The AFU is loaded from the current classpath or, if it is not there, from the
+ * annotation-file-utilities-all.jar passed to the constructor.  The AFU classes are loaded once
+ * per session so later insertions do not pay for class loading or JIT warm up.
+ *
+ * The files written by the AFU are found by comparing the modification time and size of the
+ * candidate files before and after insertion: the sources themselves when inserting in place,
+ * otherwise every file under the output directory.
+ */
+public class InProcessAfuSession implements AfuSession {
+
+    private static final Logger logger = Logger.getLogger(InProcessAfuSession.class.getName());
+
+    /** The output directory or null if annotations are inserted in place */
+    private final File outputDir;
+    private final List<String> afuArgs;
+
+    /** The class loader created to load the AFU from its jar, null if the AFU was on the classpath */
+    private URLClassLoader afuLoader;
+    private final Method afuMain;
+
+    /**
+     * @param outputDir the directory into which annotated sources are written, or null to insert in place
+     * @param afuArgs additional arguments passed to the AFU on every insertion
+     * @param afuJar the AFU jar to load the AFU from if it is not on the classpath, may be null
+     */
+    public InProcessAfuSession(File outputDir, List<String> afuArgs, File afuJar) {
+        this.outputDir = outputDir;
+        this.afuArgs = afuArgs;
+        this.afuMain = loadAfuMain(afuJar);
+    }
+
+    private Method loadAfuMain(File afuJar) {
+        ClassLoader loader = InProcessAfuSession.class.getClassLoader();
+        Class<?> mainClass;
+        try {
+            mainClass = Class.forName(AFU_MAIN_CLASS, true, loader);
+        } catch (ClassNotFoundException notOnClasspath) {
+            if (afuJar == null || !afuJar.exists()) {
+                throw new RuntimeException("Could not find " + AFU_MAIN_CLASS + " on the classpath and no "
+                        + AFU_JAR + " was found at: " + afuJar, notOnClasspath);
+            }
+
+            try {
+                afuLoader = new URLClassLoader(new URL[]{ afuJar.toURI().toURL() }, loader);
+                mainClass = Class.forName(AFU_MAIN_CLASS, true, afuLoader);
+            } catch (MalformedURLException | ClassNotFoundException e) {
+                throw new RuntimeException("Could not load " + AFU_MAIN_CLASS + " from " + afuJar, e);
+            }
+        }
+
+        try {
+            return mainClass.getMethod("main", String[].class);
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(AFU_MAIN_CLASS + " has no main method.", e);
+        }
+    }
+
+    /**
+     * Locate the AFU jar given the path to the AFU scripts directory.
+     * @param pathToAfuScripts the AFU scripts directory, may be null
+     * @return the expected location of the AFU jar or null if pathToAfuScripts is null
+     */
+    public static File findAfuJar(String pathToAfuScripts) {
+        if (pathToAfuScripts == null) {
+            return null;
+        }
+        return new File(new File(pathToAfuScripts).getAbsoluteFile().getParentFile(), AFU_JAR);
+    }
+
+    @Override
+    public Result insert(List<File> jaifFiles, List<String> javaFiles) {
+        Map<String, FileState> before = snapshot(javaFiles);
+
+        List<String> args = new ArrayList<>(afuArgs);
+        if (outputDir == null) {
+            args.add("-i");
+        } else {
+            args.add("-d");
+            args.add(outputDir.getAbsolutePath());
+        }
+        for (File jaif : jaifFiles) {
+            args.add(jaif.getAbsolutePath());
+        }
+        args.addAll(javaFiles);
+
+        int status = 0;
+        try {
+            afuMain.invoke(null, (Object) args.toArray(new String[args.size()]));
+        } catch (InvocationTargetException e) {
+            logger.log(Level.SEVERE, "The Annotation File Utilities failed with arguments: " + args, e.getCause());
+            status = 1;
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+
+        Map<String, FileState> after = snapshot(javaFiles);
+        List<String> writtenFiles = new ArrayList<>();
+        for (Map.Entry<String, FileState> entry : after.entrySet()) {
+            if (!entry.getValue().equals(before.get(entry.getKey()))) {
+                writtenFiles.add(entry.getKey());
+            }
+        }
+
+        return new Result(status, writtenFiles);
+    }
+
+    /**
+     * Record the state of every file the AFU might write.
+     */
+    private Map<String, FileState> snapshot(List<String> javaFiles) {
+        Map<String, FileState> states = new HashMap<>();
+        if (outputDir == null) {
+            for (String javaFile : javaFiles) {
+                File file = new File(javaFile).getAbsoluteFile();
+                states.put(file.getPath(), new FileState(file));
+            }
+
+        } else if (outputDir.exists()) {
+            try (Stream<Path> paths = Files.walk(outputDir.toPath())) {
+                paths.filter(Files::isRegularFile)
+                     .forEach(path -> {
+                         File file = path.toFile().getAbsoluteFile();
+                         states.put(file.getPath(), new FileState(file));
+                     });
+            } catch (IOException e) {
+                throw new RuntimeException("Could not list output directory: " + outputDir.getAbsolutePath(), e);
+            }
+        }
+        return states;
+    }
+
+    @Override
+    public void close() {
+        if (afuLoader != null) {
+            try {
+                afuLoader.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not close the AFU class loader.", e);
+            }
+            afuLoader = null;
+        }
+    }
+
+    private static class FileState {
+        private final long lastModified;
+        private final long length;
+
+        FileState(File file) {
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FileState)) {
+                return false;
+            }
+            FileState other = (FileState) obj;
+            return lastModified == other.lastModified && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(lastModified) + Long.hashCode(length);
+        }
+    }
+}
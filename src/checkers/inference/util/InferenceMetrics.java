@@ -0,0 +1,369 @@
+package checkers.inference.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.GsonBuilder;
+
+import checkers.inference.model.Constraint;
+import checkers.inference.model.Slot;
+
+/**
+ * Records the wall time, CPU time and heap usage of the phases of an inference run, together with the
+ * number of slots and constraints, and writes them as a JSON report and optionally in the Prometheus
+ * text format.  See InferenceOptions.metricsFile.
+ *
+ * A phase may be run many times, e.g. once per class, and phases may nest: the time to visit a class
+ * includes the time of its flow analysis.  CPU time is the CPU time of the whole JVM when the JVM
+ * reports it and of the current thread otherwise.  The heap usage of a phase is the largest heap usage
+ * of the JVM sampled when one of its runs started or ended, and the peak heap of the run is the largest
+ * heap usage sampled by any timer.  These are samples rather than the peaks of the memory pools, which
+ * peak at different times and are never reset, so their sum overstates the peak.  On Linux, the report
+ * also contains the peak resident set size of the JVM.
+ *
+ * All methods do nothing if the metrics are disabled, so they can be called unconditionally.  Timers
+ * may be stopped concurrently, e.g. by the threads of InferenceOptions.generationThreads; the CPU time
+ * of a phase then includes the CPU time of every thread running at the same time.
+ */
+public class InferenceMetrics {
+
+    private static final Logger logger = Logger.getLogger(InferenceMetrics.class.getName());
+
+    private final boolean enabled;
+    private final Map<String, PhaseStats> phases = new LinkedHashMap<>();
+    private final List<Map<String, Object>> compilationUnits = new ArrayList<>();
+    private final Map<String, Long> slotCounts = new TreeMap<>();
+    private final Map<String, Long> constraintCounts = new TreeMap<>();
+    private long normalizedConstraintCount = -1;
+    private final Map<String, Map<String, Object>> solverOutcomes = new TreeMap<>();
+    private final Map<String, Long> cutOffGroups = new TreeMap<>();
+
+    private long peakHeapBytes = heapUsedBytes();
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+
+    public InferenceMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start timing one run of phase, call stop on the result once the phase is over.
+     */
+    public Timer start(final String phase) {
+        return enabled ? new Timer(phase) : null;
+    }
+
+    /**
+     * Stop timer if it is not null, i.e. if the metrics are enabled.
+     */
+    public static void stop(final Timer timer) {
+        if (timer != null) {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Time the visit of one compilation unit, recorded as a run of the phase "visit" and individually.
+     */
+    public Timer startCompilationUnit(final String name) {
+        return enabled ? new Timer("visit", name) : null;
+    }
+
+    public void countSlots(final Collection<? extends Slot> slots) {
+        if (!enabled) {
+            return;
+        }
+        slotCounts.clear();
+        for (Slot slot : slots) {
+            slotCounts.merge(slot.getKind().name(), 1L, Long::sum);
+        }
+    }
+
+    public void countConstraints(final Collection<? extends Constraint> constraints) {
+        if (!enabled) {
+            return;
+        }
+        constraintCounts.clear();
+        for (Constraint constraint : constraints) {
+            constraintCounts.merge(constraint.getClass().getSimpleName(), 1L, Long::sum);
+        }
+    }
+
+    public void countNormalizedConstraints(final Collection<? extends Constraint> constraints) {
+        if (enabled) {
+            normalizedConstraintCount = constraints.size();
+        }
+    }
+
+    /**
+     * Record how one solver of a PortfolioSolver ended, e.g. "won" or "lost".
+     * @param wallNanos the time the solver ran, or -1 if it did not finish
+     */
+    public synchronized void recordSolver(final String solver, final String outcome, final long wallNanos) {
+        if (!enabled) {
+            return;
+        }
+        Map<String, Object> solverReport = new LinkedHashMap<>();
+        solverReport.put("outcome", outcome);
+        if (wallNanos >= 0) {
+            solverReport.put("wallMillis", wallNanos / 1e6);
+        }
+        solverOutcomes.put(solver, solverReport);
+    }
+
+    /**
+     * Count the groups of clauses a SAT solver did not solve within --solverTimeLimit.
+     */
+    public synchronized void countCutOffGroups(final String solver, final int groups) {
+        if (enabled) {
+            cutOffGroups.merge(solver, (long) groups, Long::sum);
+        }
+    }
+
+    /**
+     * Write the JSON report to jsonFile and, if prometheusFile is not null, the same metrics in the
+     * Prometheus text exposition format to prometheusFile.
+     */
+    public void write(final String jsonFile, final String prometheusFile, final Map<String, String> runInfo) {
+        if (!enabled) {
+            return;
+        }
+
+        if (jsonFile != null) {
+            writeFile(jsonFile, new GsonBuilder().setPrettyPrinting().create().toJson(toReport(runInfo)));
+        }
+        if (prometheusFile != null) {
+            writeFile(prometheusFile, toPrometheusText());
+        }
+    }
+
+    private Map<String, Object> toReport(final Map<String, String> runInfo) {
+        Map<String, Object> phaseReports = new LinkedHashMap<>();
+        for (Map.Entry<String, PhaseStats> entry : phases.entrySet()) {
+            PhaseStats stats = entry.getValue();
+            Map<String, Object> phaseReport = new LinkedHashMap<>();
+            phaseReport.put("count", stats.count);
+            phaseReport.put("wallMillis", stats.wallNanos / 1e6);
+            phaseReport.put("cpuMillis", stats.cpuNanos / 1e6);
+            phaseReport.put("heapUsedBytes", stats.heapUsedBytes);
+            phaseReports.put(entry.getKey(), phaseReport);
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.putAll(runInfo);
+        report.put("phases", phaseReports);
+        report.put("compilationUnits", compilationUnits);
+        report.put("slots", slotCounts);
+        report.put("constraints", constraintCounts);
+        if (normalizedConstraintCount >= 0) {
+            report.put("normalizedConstraints", normalizedConstraintCount);
+        }
+        if (!solverOutcomes.isEmpty()) {
+            report.put("solvers", solverOutcomes);
+        }
+        if (!cutOffGroups.isEmpty()) {
+            report.put("cutOffGroups", cutOffGroups);
+        }
+        report.put("peakHeapBytes", peakHeapBytes);
+        long peakRss = peakRssBytes();
+        if (peakRss >= 0) {
+            report.put("peakRssBytes", peakRss);
+        }
+        return report;
+    }
+
+    private String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+        prometheusHeader(text, "inference_phase_runs", "Number of times each inference phase ran");
+        for (Map.Entry<String, PhaseStats> entry : phases.entrySet()) {
+            prometheusSample(text, "inference_phase_runs", "phase", entry.getKey(), entry.getValue().count);
+        }
+        prometheusHeader(text, "inference_phase_wall_seconds", "Wall time spent in each inference phase");
+        for (Map.Entry<String, PhaseStats> entry : phases.entrySet()) {
+            prometheusSample(text, "inference_phase_wall_seconds", "phase", entry.getKey(), entry.getValue().wallNanos / 1e9);
+        }
+        prometheusHeader(text, "inference_phase_cpu_seconds", "CPU time spent in each inference phase");
+        for (Map.Entry<String, PhaseStats> entry : phases.entrySet()) {
+            prometheusSample(text, "inference_phase_cpu_seconds", "phase", entry.getKey(), entry.getValue().cpuNanos / 1e9);
+        }
+        prometheusHeader(text, "inference_phase_heap_used_bytes", "Largest heap usage sampled when a run of each inference phase started or ended");
+        for (Map.Entry<String, PhaseStats> entry : phases.entrySet()) {
+            prometheusSample(text, "inference_phase_heap_used_bytes", "phase", entry.getKey(), entry.getValue().heapUsedBytes);
+        }
+        prometheusHeader(text, "inference_slots", "Number of slots by kind");
+        for (Map.Entry<String, Long> entry : slotCounts.entrySet()) {
+            prometheusSample(text, "inference_slots", "kind", entry.getKey(), entry.getValue());
+        }
+        prometheusHeader(text, "inference_constraints", "Number of constraints by class before normalization");
+        for (Map.Entry<String, Long> entry : constraintCounts.entrySet()) {
+            prometheusSample(text, "inference_constraints", "class", entry.getKey(), entry.getValue());
+        }
+        if (normalizedConstraintCount >= 0) {
+            prometheusHeader(text, "inference_normalized_constraints", "Number of constraints after normalization");
+            text.append("inference_normalized_constraints ").append(normalizedConstraintCount).append('\n');
+        }
+        if (!solverOutcomes.isEmpty()) {
+            prometheusHeader(text, "inference_solver_won", "1 for the solver of the portfolio whose solution was used, 0 for the others");
+            for (Map.Entry<String, Map<String, Object>> entry : solverOutcomes.entrySet()) {
+                prometheusSample(text, "inference_solver_won", "solver", entry.getKey(),
+                                 "won".equals(entry.getValue().get("outcome")) ? 1 : 0);
+            }
+        }
+        if (!cutOffGroups.isEmpty()) {
+            prometheusHeader(text, "inference_cut_off_groups", "Number of clause groups not solved within the time limit");
+            for (Map.Entry<String, Long> entry : cutOffGroups.entrySet()) {
+                prometheusSample(text, "inference_cut_off_groups", "solver", entry.getKey(), entry.getValue());
+            }
+        }
+        prometheusHeader(text, "inference_peak_heap_bytes", "Largest heap usage of the inference JVM sampled by the phase timers");
+        text.append("inference_peak_heap_bytes ").append(peakHeapBytes).append('\n');
+        long peakRss = peakRssBytes();
+        if (peakRss >= 0) {
+            prometheusHeader(text, "inference_peak_rss_bytes", "Peak resident set size of the inference JVM");
+            text.append("inference_peak_rss_bytes ").append(peakRss).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void prometheusHeader(final StringBuilder text, final String metric, final String help) {
+        text.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(metric).append(" gauge\n");
+    }
+
+    private static void prometheusSample(final StringBuilder text, final String metric,
+                                         final String label, final String labelValue, final Number value) {
+        text.append(metric).append('{').append(label).append("=\"")
+            .append(labelValue.replace("\\", "\\\\").replace("\"", "\\\""))
+            .append("\"} ").append(value).append('\n');
+    }
+
+    private static void writeFile(final String path, final String content) {
+        File file = new File(path);
+        try {
+            if (file.getAbsoluteFile().getParentFile() != null) {
+                Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+            }
+            try (Writer writer = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+                writer.write(content);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write metrics to " + path, e);
+        }
+    }
+
+    private long cpuNanos() {
+        if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+            long processCpu = ((com.sun.management.OperatingSystemMXBean) osBean).getProcessCpuTime();
+            if (processCpu >= 0) {
+                return processCpu;
+            }
+        }
+        return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * @return the heap the JVM uses now, summed over the heap memory pools
+     */
+    private static long heapUsedBytes() {
+        final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        return memoryBean.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return the peak resident set size of this JVM so far, or -1 if the OS does not report it (only
+     * Linux does, in /proc/self/status)
+     */
+    private static long peakRssBytes() {
+        File status = new File("/proc/self/status");
+        if (!status.canRead()) {
+            return -1;
+        }
+        try {
+            for (String line : Files.readAllLines(status.toPath(), StandardCharsets.UTF_8)) {
+                // e.g. "VmHWM:    123456 kB"
+                if (line.startsWith("VmHWM:")) {
+                    String[] fields = line.substring("VmHWM:".length()).trim().split("\\s+");
+                    return Long.parseLong(fields[0]) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.log(Level.FINE, "Could not read the peak RSS from " + status, e);
+        }
+        return -1;
+    }
+
+    private static class PhaseStats {
+        long count;
+        long wallNanos;
+        long cpuNanos;
+        long heapUsedBytes;
+    }
+
+    /**
+     * One run of a phase, see start.
+     */
+    public class Timer {
+        private final String phase;
+        private final String compilationUnit;
+        private final long wallStart = System.nanoTime();
+        private final long cpuStart = cpuNanos();
+        private final long heapStart = heapUsedBytes();
+
+        private Timer(final String phase) {
+            this(phase, null);
+        }
+
+        private Timer(final String phase, final String compilationUnit) {
+            this.phase = phase;
+            this.compilationUnit = compilationUnit;
+        }
+
+        public void stop() {
+            long wall = System.nanoTime() - wallStart;
+            long cpu = cpuNanos() - cpuStart;
+
+            synchronized (InferenceMetrics.this) {
+                record(wall, cpu);
+            }
+        }
+
+        private void record(final long wall, final long cpu) {
+            PhaseStats stats = phases.computeIfAbsent(phase, name -> new PhaseStats());
+            stats.count += 1;
+            stats.wallNanos += wall;
+            stats.cpuNanos += cpu;
+            long heap = Math.max(heapStart, heapUsedBytes());
+            stats.heapUsedBytes = Math.max(stats.heapUsedBytes, heap);
+            peakHeapBytes = Math.max(peakHeapBytes, heap);
+
+            if (compilationUnit != null) {
+                Map<String, Object> unit = new LinkedHashMap<>();
+                unit.put("name", compilationUnit);
+                unit.put("wallMillis", wall / 1e6);
+                unit.put("cpuMillis", cpu / 1e6);
+                compilationUnits.add(unit);
+            }
+        }
+    }
+}
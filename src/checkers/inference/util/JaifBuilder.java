@@ -4,6 +4,10 @@ import scenelib.annotations.io.ASTRecord;
 import scenelib.annotations.io.ASTPath;
 import scenelib.annotations.io.ASTPath.ASTEntry;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
@@ -14,6 +18,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 import checkers.inference.model.AnnotationLocation;
 import checkers.inference.model.AnnotationLocation.AstPathLocation;
@@ -29,6 +35,11 @@ import org.checkerframework.javacutil.Pair;
  * JaifBuilder first organizes ASTRecords by class and top level member, and then
  * builds a Jaif string.
  *
+ * Classes are independent of each other in a Jaif, so the text for each class is
+ * generated in parallel and then written out in order of fully qualified class name.
+ * Use {@link #writeJaif(Writer)} to stream the Jaif to a file rather than holding
+ * the whole Jaif in memory as one String.
+ *
  * @author mcarthur
  *
  */
@@ -54,7 +65,11 @@ public class JaifBuilder {
     private final Set<? extends Class<? extends Annotation>> supportedAnnotations;
     private final boolean insertMainModOfLocalVar;
 
-    private StringBuilder builder;
+    /**
+     * The number of classes whose Jaif text is generated concurrently before being
+     * written out.  This bounds the amount of Jaif text held in memory at once.
+     */
+    private static final int CLASS_BATCH_SIZE = 256;
 
     public JaifBuilder(Map<AnnotationLocation, String> locationToAnno,
                         Set<? extends Class<? extends Annotation>> annotationMirrors) {
@@ -73,32 +88,54 @@ public class JaifBuilder {
      * @return Jaif String
      */
     public String createJaif() {
-        classesMap = new HashMap<>();
-        builder = new StringBuilder();
-
-        // Organize by classes
+        StringWriter stringWriter = new StringWriter();
+        try {
+            writeJaif(stringWriter);
+        } catch (IOException e) {
+            // StringWriter never throws
+            throw new UncheckedIOException(e);
+        }
+        return stringWriter.toString();
+    }
 
+    /**
+     * Writes a Jaif based on input slots to writer.  Classes are written in order of
+     * their fully qualified names so the output is the same from run to run.
+     *
+     * @param writer the destination of the Jaif, it is not flushed or closed by this method
+     */
+    public void writeJaif(Writer writer) throws IOException {
+        // Organize by classes, sorted so that the output is deterministic
+        classesMap = new TreeMap<>();
         buildClassEntries();
 
         // Write out annotation definition
-        writeAnnotationHeader();
-
-        // Write out each class
-        for (Map.Entry<String, ClassEntry> entry: classesMap.entrySet()) {
-            writeClassJaif(entry.getValue());
-        }
+        writeAnnotationHeader(writer);
 
+        // Write out each class, generating a batch of classes in parallel
+        List<ClassEntry> classEntries = new ArrayList<>(classesMap.values());
         classesMap = null;
-        return builder.toString();
+
+        for (int start = 0; start < classEntries.size(); start += CLASS_BATCH_SIZE) {
+            int end = Math.min(start + CLASS_BATCH_SIZE, classEntries.size());
+            List<String> classJaifs = classEntries.subList(start, end)
+                    .parallelStream()
+                    .map(this::buildClassJaif)
+                    .collect(Collectors.toList());
+
+            for (String classJaif : classJaifs) {
+                writer.write(classJaif);
+            }
+        }
     }
 
     /**
      * Add a header for all supported annotation mirrors.
      */
-    private void writeAnnotationHeader() {
+    private void writeAnnotationHeader(Writer writer) throws IOException {
         for (Class<? extends Annotation> annotation : supportedAnnotations) {
-            builder.append(buildAnnotationHeader(annotation));
-            builder.append("\n");
+            writer.write(buildAnnotationHeader(annotation));
+            writer.write("\n");
         }
     }
 
@@ -109,38 +146,41 @@ public class JaifBuilder {
      * @return the header
      */
     private String buildAnnotationHeader(Class<? extends Annotation> annotation) {
-        String result = "";
+        StringBuilder result = new StringBuilder();
         String packageName = annotation.getPackage().toString();
-        result += packageName + ":\n";
-        String className = annotation.getSimpleName().toString();
-        result += "  annotation @" + className + ":\n";
+        result.append(packageName).append(":\n");
+        String className = annotation.getSimpleName();
+        result.append("  annotation @").append(className).append(":\n");
         for (Method method : annotation.getMethods()) {
             if (method.getDeclaringClass() == annotation) {
-                result += "    ";
+                result.append("    ");
                 if (Enum[].class.isAssignableFrom(method.getReturnType())) {
-                    result += "enum ";
+                    result.append("enum ");
                 }
                 if (method.getReturnType().isArray()) {
-                    result += method.getReturnType().getComponentType().getSimpleName() + "[]";
+                    result.append(method.getReturnType().getComponentType().getSimpleName()).append("[]");
                 } else {
-                    result += method.getReturnType().getCanonicalName();
+                    result.append(method.getReturnType().getCanonicalName());
                 }
-                result += " " + method.getName().toString();
-                result += "\n";
+                result.append(" ").append(method.getName());
+                result.append("\n");
             }
         }
 
-        return result;
+        return result.toString();
     }
 
     /**
-     * Add the jaif for the given classname and members.
+     * Create the jaif for the given classname and members.  This method only reads
+     * classEntry so it is safe to call for different classes concurrently.
      * @param classEntry A unique entry for all members of a class that will be converted to
      *                   a jaif entry for that class
+     * @return the jaif text for classEntry
      */
-    private void writeClassJaif(ClassEntry classEntry) {
-        builder.append("package " + classEntry.packageName + ":\n");
-        builder.append("class " + classEntry.className + ":");
+    private String buildClassJaif(ClassEntry classEntry) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("package ").append(classEntry.packageName).append(":\n");
+        builder.append("class ").append(classEntry.className).append(":");
         if (!classEntry.declAnnos.isEmpty()) {
             builder.append(String.join(" ", classEntry.declAnnos));
         }
@@ -162,24 +202,27 @@ public class JaifBuilder {
         }
 
         for (Entry<String, MemberRecords> entry : initializers) {
-            writeMemberJaif(entry.getKey(), entry.getValue());
+            writeMemberJaif(builder, entry.getKey(), entry.getValue());
         }
 
         for (Entry<String, MemberRecords> entry : fields) {
-            writeMemberJaif(entry.getKey(), entry.getValue());
+            writeMemberJaif(builder, entry.getKey(), entry.getValue());
         }
 
         for (Entry<String, MemberRecords> entry : methods) {
-            writeMemberJaif(entry.getKey(), entry.getValue());
+            writeMemberJaif(builder, entry.getKey(), entry.getValue());
         }
+
+        return builder.toString();
     }
 
     /**
      * Add the Jaif entries for all records under memberName
+     * @param builder the jaif text of the enclosing class
      * @param memberName the member
      * @param memberRecords the records for the member
      */
-    private void writeMemberJaif(String memberName, MemberRecords memberRecords) {
+    private void writeMemberJaif(StringBuilder builder, String memberName, MemberRecords memberRecords) {
 
         // Member name is null for InstanceInitializers
         if (memberName != null) {
@@ -222,6 +265,7 @@ public class JaifBuilder {
                 case AST_PATH:
                     AstPathLocation astLocation = (AstPathLocation) location;
                     ClassEntry classEntry = getClassEntry(astLocation);
+                    // Locations only hold the ids of their interned parts, expand them to a record once here
                     ASTRecord astRecord = astLocation.getAstRecord();
 
                     MemberRecords memberRecords = classEntry.getMemberRecords(astRecord.methodName, astRecord.varName);
@@ -326,7 +370,7 @@ public class JaifBuilder {
     }
 
     private ClassEntry getClassEntry(AstPathLocation location) {
-        return getClassEntry(location.getAstRecord().className);
+        return getClassEntry(location.getClassName());
     }
 
     private ClassEntry getClassEntry(ClassDeclLocation location) {
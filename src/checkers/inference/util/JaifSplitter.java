@@ -33,6 +33,8 @@ import checkers.inference.util.JaifFileReader.JaifPackage;
  *
  *   To use JaifSplitter from source code, create a new JaifSplitter and call jaifSplitter.split()
  *   To use JaifSplitter from the command-line, run scripts/splitJaif or scripts/debugSplitJaif
+ *
+ *   To insert the split jaifs concurrently rather than one-by-one, see ParallelJaifInserter.
  */
 public class JaifSplitter {
 
@@ -0,0 +1,398 @@
+package checkers.inference.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import checkers.inference.InferenceLauncher;
+import checkers.inference.util.JaifFileReader.Block;
+import checkers.inference.util.JaifFileReader.JaifPackage;
+
+/**
+ * Inserts a JAIF into source code by splitting it per package and running the split JAIFs
+ * through a bounded pool of insert-annotations-to-source processes.
+ *
+ * This is the in-Java counterpart of the shell script generated by JaifSplitter.  Rather than
+ * inserting one package at a time, up to numWorkers packages are inserted concurrently.  Each
+ * package's AFU process is only given the source files that declare that package, is killed
+ * if it runs longer than the per-package timeout, and its output is written to a log file
+ * next to its split JAIF.  A failure in one package does not stop insertion into the others;
+ * all failures are reported together in the returned InsertionResult.
+ *
+ * To use ParallelJaifInserter from source code, create a new ParallelJaifInserter and call
+ * insert().  InferenceLauncher uses it for insertion when --afuWorkers is greater than 1.
+ */
+public class ParallelJaifInserter {
+
+    /** Matches the package declaration of a Java source file. */
+    private static final Pattern PACKAGE_DECL = Pattern.compile("^\\s*package\\s+([\\w.]+)\\s*;");
+
+    private final String insertAnnotationsScript;
+    private final List<String> afuArgs;
+    private final int numWorkers;
+    private final long timeoutSeconds;
+    private final PrintStream out;
+
+    /**
+     * @param insertAnnotationsScript the path to the insert-annotations-to-source script
+     * @param afuArgs additional arguments passed to every insert-annotations-to-source invocation
+     * @param numWorkers the maximum number of AFU processes to run at once
+     * @param timeoutSeconds the maximum time the AFU may spend on a single package, 0 for no timeout
+     * @param out the stream to which progress is reported
+     */
+    public ParallelJaifInserter(String insertAnnotationsScript, List<String> afuArgs,
+                                int numWorkers, long timeoutSeconds, PrintStream out) {
+        this.insertAnnotationsScript = insertAnnotationsScript;
+        this.afuArgs = afuArgs;
+        this.numWorkers = Math.max(1, numWorkers);
+        this.timeoutSeconds = timeoutSeconds;
+        this.out = out;
+    }
+
+    /**
+     * Split jaifFile by package and insert each package into the corresponding source files.
+     *
+     * @param jaifFile the JAIF to insert
+     * @param javaFiles the source files into which annotations may be inserted
+     * @param splitDir the directory in which the split JAIFs and AFU logs are written
+     * @param outputDir the AFU output directory or null if annotations should be inserted in place
+     * @return the files written and the packages whose insertion failed
+     */
+    public InsertionResult insert(File jaifFile, List<String> javaFiles, File splitDir, File outputDir) {
+        InferenceLauncher.ensureDirectoryExists(splitDir);
+
+        Map<String, List<String>> packageToSources = groupByPackage(javaFiles);
+        Map<String, File> packageToJaif = split(jaifFile, splitDir);
+
+        List<String> packages = new ArrayList<>();
+        for (String packageName : packageToJaif.keySet()) {
+            if (packageToSources.containsKey(packageName)) {
+                packages.add(packageName);
+            } else {
+                out.println("No source files found for package \"" + packageName + "\", skipping its insertions.");
+            }
+        }
+
+        final int total = packages.size();
+        final AtomicInteger completed = new AtomicInteger(0);
+        final AtomicInteger failed = new AtomicInteger(0);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(numWorkers, Math.max(1, total)));
+        Map<String, Future<PackageResult>> futures = new LinkedHashMap<>();
+        try {
+            for (final String packageName : packages) {
+                futures.put(packageName, executor.submit(() -> {
+                    PackageResult result = insertPackage(packageName, packageToJaif.get(packageName),
+                                                         packageToSources.get(packageName), outputDir);
+                    if (!result.succeeded()) {
+                        failed.incrementAndGet();
+                    }
+                    reportProgress(completed.incrementAndGet(), total, failed.get(), packageName, result);
+                    return result;
+                }));
+            }
+
+            List<String> writtenFiles = new ArrayList<>();
+            Map<String, String> failures = new TreeMap<>();
+            for (Map.Entry<String, Future<PackageResult>> entry : futures.entrySet()) {
+                PackageResult result;
+                try {
+                    result = entry.getValue().get();
+                } catch (ExecutionException e) {
+                    result = PackageResult.failed(String.valueOf(e.getCause()), Collections.<String>emptyList());
+                }
+
+                writtenFiles.addAll(result.writtenFiles);
+                if (!result.succeeded()) {
+                    failures.put(entry.getKey(), result.failure);
+                }
+            }
+
+            return new InsertionResult(writtenFiles, failures);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while inserting annotations.", e);
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private synchronized void reportProgress(int completed, int total, int failed,
+                                             String packageName, PackageResult result) {
+        out.println("Inserted package (" + completed + " / " + total + ", " + failed + " failed) "
+                + packageName + " -- " + (result.succeeded() ? "Done! " : "FAILED! ")
+                + (result.timeMillis / 1000f) + " seconds");
+        out.flush();
+    }
+
+    /**
+     * Run insert-annotations-to-source for one package and wait for it to finish or time out.
+     */
+    private PackageResult insertPackage(String packageName, File packageJaif, List<String> sources, File outputDir) {
+        List<String> command = new ArrayList<>();
+        command.add(insertAnnotationsScript);
+        command.add("-v");
+        command.addAll(afuArgs);
+        if (outputDir == null) {
+            command.add("-i");
+        } else {
+            command.add("-d");
+            command.add(outputDir.getAbsolutePath());
+        }
+        command.add(packageJaif.getAbsolutePath());
+        command.addAll(sources);
+
+        File logFile = new File(packageJaif.getParentFile(), packageJaif.getName() + ".log");
+        long start = System.currentTimeMillis();
+        try {
+            Process process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(logFile)
+                    .start();
+
+            boolean finished;
+            if (timeoutSeconds > 0) {
+                finished = process.waitFor(timeoutSeconds, TimeUnit.SECONDS);
+            } else {
+                process.waitFor();
+                finished = true;
+            }
+
+            long time = System.currentTimeMillis() - start;
+            if (!finished) {
+                process.destroyForcibly();
+                return PackageResult.failed("timed out after " + timeoutSeconds + " seconds, see "
+                        + logFile.getAbsolutePath(), Collections.<String>emptyList()).withTime(time);
+            }
+
+            List<String> writtenFiles = new ArrayList<>();
+            if (outputDir == null) {
+                writtenFiles.addAll(sources);
+            } else {
+                String log = new String(Files.readAllBytes(logFile.toPath()), StandardCharsets.UTF_8);
+                for (File written : InferenceLauncher.findWrittenFiles(log)) {
+                    writtenFiles.add(written.getAbsolutePath());
+                }
+            }
+
+            int exitValue = process.exitValue();
+            if (exitValue != 0) {
+                return PackageResult.failed("exited with status " + exitValue + ", see "
+                        + logFile.getAbsolutePath(), writtenFiles).withTime(time);
+            }
+            return PackageResult.succeeded(writtenFiles).withTime(time);
+
+        } catch (IOException e) {
+            return PackageResult.failed(e.toString(), Collections.<String>emptyList())
+                    .withTime(System.currentTimeMillis() - start);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return PackageResult.failed("interrupted", Collections.<String>emptyList())
+                    .withTime(System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Split jaifFile into one JAIF per package.  Each JAIF starts with all of the annotation
+     * definitions found in jaifFile.
+     * @return a map from package name to the JAIF for that package
+     */
+    public static Map<String, File> split(File jaifFile, File splitDir) {
+        List<JaifPackage> annotationDefinitions = new ArrayList<>();
+        Map<String, List<JaifPackage>> packages = new LinkedHashMap<>();
+
+        for (JaifPackage jaifPackage : new JaifFileReader(jaifFile)) {
+            if (jaifPackage.name == null) {
+                continue;
+            }
+
+            if (isAnnotationDefinition(jaifPackage)) {
+                annotationDefinitions.add(jaifPackage);
+            } else {
+                List<JaifPackage> entries = packages.get(jaifPackage.name);
+                if (entries == null) {
+                    entries = new ArrayList<>();
+                    packages.put(jaifPackage.name, entries);
+                }
+                entries.add(jaifPackage);
+            }
+        }
+
+        List<String> header = new ArrayList<>();
+        for (JaifPackage definition : annotationDefinitions) {
+            header.addAll(definition.getLines());
+        }
+
+        Map<String, File> packageToJaif = new LinkedHashMap<>();
+        for (Map.Entry<String, List<JaifPackage>> entry : packages.entrySet()) {
+            String fileName = entry.getKey().isEmpty() ? "default-package" : entry.getKey();
+            File outputJaif = new File(splitDir, fileName + ".jaif");
+
+            List<String> lines = new ArrayList<>(header);
+            for (JaifPackage jaifPackage : entry.getValue()) {
+                lines.addAll(jaifPackage.getLines());
+            }
+
+            try {
+                Files.write(outputJaif.toPath(), lines, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not write jaif: " + outputJaif.getAbsolutePath(), e);
+            }
+            packageToJaif.put(entry.getKey(), outputJaif);
+        }
+
+        return packageToJaif;
+    }
+
+    /**
+     * @return true if jaifPackage only holds annotation definitions (the header of a JAIF)
+     */
+    private static boolean isAnnotationDefinition(JaifPackage jaifPackage) {
+        if (jaifPackage.entries.isEmpty()) {
+            return false;
+        }
+
+        for (Block block : jaifPackage.entries) {
+            if (block.lines.isEmpty() || !block.lines.get(0).startsWith("annotation ")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Group the given source files by the package they declare.  Files in the default package
+     * are grouped under the empty String.
+     */
+    public static Map<String, List<String>> groupByPackage(List<String> javaFiles) {
+        Map<String, List<String>> packageToSources = new LinkedHashMap<>();
+        for (String javaFile : javaFiles) {
+            String packageName = readPackageName(new File(javaFile));
+            List<String> sources = packageToSources.get(packageName);
+            if (sources == null) {
+                sources = new ArrayList<>();
+                packageToSources.put(packageName, sources);
+            }
+            sources.add(javaFile);
+        }
+        return packageToSources;
+    }
+
+    /**
+     * The directories from which javac reads the given source files, and the other sources of their
+     * packages, when they are on the sourcepath: the directory of each file without the directories of
+     * its package.
+     * @return the directories separated by File.pathSeparator, or null if a file is not in the directory
+     * of its package, as javac would then not find it on the sourcepath
+     */
+    public static String getSourcepath(List<String> javaFiles) {
+        Set<String> roots = new LinkedHashSet<>();
+        for (Map.Entry<String, List<String>> entry : groupByPackage(javaFiles).entrySet()) {
+            String packagePath = entry.getKey().isEmpty()
+                    ? "" : File.separator + entry.getKey().replace('.', File.separatorChar);
+            for (String javaFile : entry.getValue()) {
+                String directory = new File(javaFile).getAbsoluteFile().getParent();
+                if (!directory.endsWith(packagePath) || directory.length() == packagePath.length()) {
+                    return null;
+                }
+                roots.add(directory.substring(0, directory.length() - packagePath.length()));
+            }
+        }
+        return String.join(File.pathSeparator, roots);
+    }
+
+    private static String readPackageName(File javaFile) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(javaFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = PACKAGE_DECL.matcher(line);
+                if (matcher.find()) {
+                    return matcher.group(1);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read source file: " + javaFile.getAbsolutePath(), e);
+        }
+        return "";
+    }
+
+    /**
+     * The outcome of inserting all packages of a JAIF.
+     */
+    public static class InsertionResult {
+        /** The absolute paths of the source files written by the AFU */
+        public final List<String> writtenFiles;
+
+        /** A map from package name to a description of why insertion failed for that package */
+        public final Map<String, String> failures;
+
+        public InsertionResult(List<String> writtenFiles, Map<String, String> failures) {
+            this.writtenFiles = writtenFiles;
+            this.failures = failures;
+        }
+
+        public boolean succeeded() {
+            return failures.isEmpty();
+        }
+
+        public void printFailures(PrintStream out) {
+            if (!failures.isEmpty()) {
+                out.println("Insertion failed for " + failures.size() + " package(s):");
+                for (Map.Entry<String, String> failure : failures.entrySet()) {
+                    out.println("    " + failure.getKey() + ": " + failure.getValue());
+                }
+            }
+        }
+    }
+
+    private static class PackageResult {
+        final List<String> writtenFiles;
+        final String failure;
+        long timeMillis;
+
+        private PackageResult(List<String> writtenFiles, String failure) {
+            this.writtenFiles = writtenFiles;
+            this.failure = failure;
+        }
+
+        static PackageResult succeeded(List<String> writtenFiles) {
+            return new PackageResult(writtenFiles, null);
+        }
+
+        static PackageResult failed(String failure, List<String> writtenFiles) {
+            return new PackageResult(writtenFiles, failure);
+        }
+
+        PackageResult withTime(long timeMillis) {
+            this.timeMillis = timeMillis;
+            return this;
+        }
+
+        boolean succeeded() {
+            return failure == null;
+        }
+    }
+}
@@ -0,0 +1,572 @@
+package checkers.inference.util;
+
+import org.checkerframework.framework.qual.StubFiles;
+import org.checkerframework.framework.type.AnnotatedTypeMirror;
+import org.checkerframework.framework.type.visitor.AnnotatedTypeScanner;
+import org.checkerframework.javacutil.AnnotationBuilder;
+import org.checkerframework.javacutil.SystemUtil;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+
+import checkers.inference.InferenceOptions;
+
+/**
+ * A persistent cache of the "real" annotations the real type factory computes for library elements,
+ * i.e. elements that only exist in bytecode and whose annotations mostly come from stub files.
+ *
+ * Resolving a library element against the parsed stub files is repeated on every inference run even
+ * though the result only changes when the stubs, the checker or the classpath change.  This cache
+ * records, per element, the annotations at every location of its real type and replays them onto the
+ * inference type of the element in later runs (see BytecodeTypeAnnotator).
+ *
+ * One cache file is kept per key, where the key is a SHA-256 hash of:
+ *   the inference version, the JVM version and the checker class (and the jar it was loaded from),
+ *   the content of every stub file the checker uses (its @StubFiles, its jdk stubs and -Astubs),
+ *   the javac options, and the size and modification time of every jar and class file on the classpath
+ *   of this JVM, the target classpath and the classpath options of javac.  The class files of the working
+ *   directory and of directories that contain javac's output directories (-d, -s and -h) are not part of
+ *   the key: they are rewritten by every build and are not libraries, and walking "." would cost more
+ *   than the cache saves.
+ * A change to any of these selects a different cache file, so stale entries are never read.
+ *
+ * Only annotations whose values are strings, booleans, ints, longs or arrays of strings are cached,
+ * elements with any other annotation are resolved by the real type factory every time.
+ */
+public class StubAnnotationCache {
+
+    private static final Logger logger = Logger.getLogger(StubAnnotationCache.class.getName());
+
+    private static final String HEADER = "# stub annotation cache ";
+
+    private final ProcessingEnvironment processingEnv;
+    private final File cacheFile;
+    private final String key;
+
+    /** Element key to the encoded locations of its type, see encode */
+    private final Map<String, String[]> entries = new LinkedHashMap<>();
+    private final Map<String, AnnotationMirror> decodedAnnotations = new HashMap<>();
+    private boolean modified = false;
+
+    /**
+     * Load the cache for the given checker from cacheDir, the cache is empty if there is no file
+     * for the current key yet.
+     * @param cacheDir the directory holding the cache files, created if needed
+     * @param checkerClass the class of the real checker
+     * @param processingEnv the processing environment of the current compilation
+     */
+    public StubAnnotationCache(File cacheDir, Class<?> checkerClass, ProcessingEnvironment processingEnv) {
+        this(cacheDir, checkerClass, processingEnv, null);
+    }
+
+    /**
+     * Load the cache for the given checker, starting from the entries of previous rather than reading the
+     * cache file again if previous is for the same key.
+     * @param previous the cache of an earlier compilation in this JVM, e.g. of the last request of an
+     *                 InferenceDaemon, or null
+     */
+    public StubAnnotationCache(File cacheDir, Class<?> checkerClass, ProcessingEnvironment processingEnv,
+                               StubAnnotationCache previous) {
+        this.processingEnv = processingEnv;
+        this.key = computeKey(checkerClass, processingEnv);
+        this.cacheFile = new File(cacheDir, checkerClass.getSimpleName() + "-" + key + ".cache");
+        if (previous != null && previous.cacheFile.equals(cacheFile)) {
+            entries.putAll(previous.entries);
+            logger.fine("Reused " + entries.size() + " elements of stub annotation cache " + cacheFile);
+        } else {
+            load();
+        }
+    }
+
+    /**
+     * Copy the cached annotations of element onto type, which must be the type of element.
+     * @return true if element was cached and its locations match those of type, false if the
+     * annotations have to be computed by the real type factory
+     */
+    public boolean apply(final Element element, final AnnotatedTypeMirror type) {
+        final String elementKey = elementKey(element);
+        final String[] encoded = elementKey == null ? null : entries.get(elementKey);
+        if (encoded == null) {
+            return false;
+        }
+
+        final List<AnnotatedTypeMirror> locations = locations(type);
+        if (locations.size() != encoded.length) {
+            return false;
+        }
+
+        final List<Set<AnnotationMirror>> annotations = new ArrayList<>(encoded.length);
+        for (int i = 0; i < encoded.length; i++) {
+            final String[] kindAndAnnotations = encoded[i].split("\\|", 2);
+            if (!kindAndAnnotations[0].equals(locations.get(i).getKind().name())) {
+                return false;
+            }
+            final Set<AnnotationMirror> decoded = decodeAnnotations(kindAndAnnotations[1]);
+            if (decoded == null) {
+                return false;
+            }
+            annotations.add(decoded);
+        }
+
+        for (int i = 0; i < encoded.length; i++) {
+            final AnnotatedTypeMirror location = locations.get(i);
+            location.clearAnnotations();
+            location.addAnnotations(annotations.get(i));
+        }
+        return true;
+    }
+
+    /**
+     * Record the annotations of realType, the type the real type factory computed for element.
+     */
+    public void record(final Element element, final AnnotatedTypeMirror realType) {
+        final String elementKey = elementKey(element);
+        if (elementKey == null || entries.containsKey(elementKey)) {
+            return;
+        }
+
+        final List<AnnotatedTypeMirror> locations = locations(realType);
+        final String[] encoded = new String[locations.size()];
+        for (int i = 0; i < encoded.length; i++) {
+            final AnnotatedTypeMirror location = locations.get(i);
+            final List<String> annotations = new ArrayList<>();
+            for (AnnotationMirror annotation : location.getAnnotations()) {
+                final String encodedAnnotation = encodeAnnotation(annotation);
+                if (encodedAnnotation == null) {
+                    return;
+                }
+                annotations.add(encodedAnnotation);
+            }
+            encoded[i] = location.getKind().name() + "|" + String.join(";", annotations);
+        }
+
+        entries.put(elementKey, encoded);
+        modified = true;
+    }
+
+    /**
+     * Add the elements recorded by other, a cache for the same key used by another compilation in this
+     * JVM, that are not in this cache yet.  Entries are encoded, so they do not depend on the processing
+     * environment of either cache.
+     */
+    public void addAll(final StubAnnotationCache other) {
+        for (Map.Entry<String, String[]> entry : other.entries.entrySet()) {
+            if (entries.putIfAbsent(entry.getKey(), entry.getValue()) == null) {
+                modified = true;
+            }
+        }
+    }
+
+    /**
+     * Write the cache file if elements were recorded since it was loaded.
+     */
+    public void save() {
+        if (!modified) {
+            return;
+        }
+
+        final Path target = cacheFile.toPath();
+        try {
+            Files.createDirectories(target.getParent());
+            // Write to a temporary file first so that concurrent runs never read a partial cache
+            final Path temp = Files.createTempFile(target.getParent(), cacheFile.getName(), ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(HEADER + key);
+                writer.newLine();
+                for (Map.Entry<String, String[]> entry : entries.entrySet()) {
+                    writer.write(entry.getKey());
+                    for (String location : entry.getValue()) {
+                        writer.write('\t');
+                        writer.write(location);
+                    }
+                    writer.newLine();
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            modified = false;
+            logger.fine("Wrote " + entries.size() + " elements to stub annotation cache " + cacheFile);
+
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write stub annotation cache " + cacheFile, e);
+        }
+    }
+
+    private void load() {
+        if (!cacheFile.isFile()) {
+            logger.fine("No stub annotation cache at " + cacheFile);
+            return;
+        }
+
+        try {
+            final List<String> lines = Files.readAllLines(cacheFile.toPath(), StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(HEADER + key)) {
+                logger.warning("Ignoring malformed stub annotation cache " + cacheFile);
+                return;
+            }
+            for (String line : lines.subList(1, lines.size())) {
+                final String[] fields = line.split("\t", -1);
+                entries.put(fields[0], Arrays.copyOfRange(fields, 1, fields.length));
+            }
+            logger.fine("Read " + entries.size() + " elements from stub annotation cache " + cacheFile);
+
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read stub annotation cache " + cacheFile, e);
+        }
+    }
+
+    /**
+     * @return a key that identifies element across compilations or null if element is not cached,
+     * e.g. because it is a local variable or type parameter
+     */
+    private static String elementKey(final Element element) {
+        if (element instanceof TypeElement) {
+            return ((TypeElement) element).getQualifiedName().toString();
+        }
+
+        final Element enclosing = element.getEnclosingElement();
+        if (!(enclosing instanceof TypeElement)) {
+            return null;
+        }
+        if (element instanceof ExecutableElement || element instanceof VariableElement) {
+            return ((TypeElement) enclosing).getQualifiedName() + "#" + element;
+        }
+        return null;
+    }
+
+    /**
+     * @return every location of type in a fixed order, visiting each type variable once
+     */
+    private static List<AnnotatedTypeMirror> locations(final AnnotatedTypeMirror type) {
+        final List<AnnotatedTypeMirror> locations = new ArrayList<>();
+        new AnnotatedTypeScanner<Void, Void>() {
+            @Override
+            protected Void scan(AnnotatedTypeMirror location, Void p) {
+                if (location != null) {
+                    locations.add(location);
+                }
+                return super.scan(location, p);
+            }
+        }.visit(type);
+        return locations;
+    }
+
+    /**
+     * Encode annotation as name(element=value,...) where values are s:string, b:boolean, i:int, l:long
+     * or [value value ...] and strings are URL encoded.  See decodeAnnotation.
+     * @return the encoded annotation or null if one of its values is of another kind
+     */
+    public static String encodeAnnotation(final AnnotationMirror annotation) {
+        final TypeElement annotationType = (TypeElement) annotation.getAnnotationType().asElement();
+        final List<String> values = new ArrayList<>();
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                : annotation.getElementValues().entrySet()) {
+            final String value = encodeValue(entry.getValue().getValue());
+            if (value == null) {
+                return null;
+            }
+            values.add(entry.getKey().getSimpleName() + "=" + value);
+        }
+        return annotationType.getQualifiedName() + "(" + String.join(",", values) + ")";
+    }
+
+    private static String encodeValue(final Object value) {
+        if (value instanceof String) {
+            try {
+                return "s:" + URLEncoder.encode((String) value, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        } else if (value instanceof Boolean) {
+            return "b:" + value;
+        } else if (value instanceof Integer) {
+            return "i:" + value;
+        } else if (value instanceof Long) {
+            return "l:" + value;
+        } else if (value instanceof List) {
+            final List<String> elements = new ArrayList<>();
+            for (Object element : (List<?>) value) {
+                final Object elementValue = ((AnnotationValue) element).getValue();
+                if (!(elementValue instanceof String)) {
+                    return null;
+                }
+                elements.add(encodeValue(elementValue));
+            }
+            return "[" + String.join(" ", elements) + "]";
+        }
+        return null;
+    }
+
+    /**
+     * @return the annotations encoded by encodeAnnotation and joined with ';', or null if one of them
+     * can no longer be built, e.g. because its annotation type is not on the classpath
+     */
+    private Set<AnnotationMirror> decodeAnnotations(final String encoded) {
+        final Set<AnnotationMirror> annotations = new LinkedHashSet<>();
+        if (encoded.isEmpty()) {
+            return annotations;
+        }
+
+        for (String encodedAnnotation : encoded.split(";")) {
+            AnnotationMirror annotation = decodedAnnotations.get(encodedAnnotation);
+            if (annotation == null) {
+                try {
+                    annotation = decodeAnnotation(encodedAnnotation, processingEnv);
+                } catch (RuntimeException e) {
+                    logger.log(Level.FINE, "Could not decode cached annotation " + encodedAnnotation, e);
+                    return null;
+                }
+                decodedAnnotations.put(encodedAnnotation, annotation);
+            }
+            annotations.add(annotation);
+        }
+        return annotations;
+    }
+
+    /**
+     * Build the annotation encoded by encodeAnnotation in processingEnv.
+     * @throws RuntimeException if the annotation cannot be built, e.g. because its type is not on the classpath
+     */
+    public static AnnotationMirror decodeAnnotation(final String encoded, final ProcessingEnvironment processingEnv) {
+        final int open = encoded.indexOf('(');
+        final AnnotationBuilder builder = new AnnotationBuilder(processingEnv, encoded.substring(0, open));
+
+        final String values = encoded.substring(open + 1, encoded.length() - 1);
+        if (!values.isEmpty()) {
+            for (String elementAndValue : values.split(",")) {
+                final String[] field = elementAndValue.split("=", 2);
+                final String value = field[1];
+                if (value.startsWith("[")) {
+                    final String elements = value.substring(1, value.length() - 1);
+                    final List<String> strings = new ArrayList<>();
+                    if (!elements.isEmpty()) {
+                        for (String element : elements.split(" ")) {
+                            strings.add(decodeString(element));
+                        }
+                    }
+                    builder.setValue(field[0], strings);
+                } else if (value.startsWith("s:")) {
+                    builder.setValue(field[0], decodeString(value));
+                } else if (value.startsWith("b:")) {
+                    builder.setValue(field[0], Boolean.valueOf(value.substring(2)));
+                } else if (value.startsWith("i:")) {
+                    builder.setValue(field[0], Integer.valueOf(value.substring(2)));
+                } else if (value.startsWith("l:")) {
+                    builder.setValue(field[0], Long.valueOf(value.substring(2)));
+                } else {
+                    throw new IllegalArgumentException("Unknown value: " + value);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private static String decodeString(final String encoded) {
+        try {
+            return URLDecoder.decode(encoded.substring(2), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String computeKey(final Class<?> checkerClass, final ProcessingEnvironment processingEnv) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        update(digest, InferenceOptions.VERSION);
+        update(digest, System.getProperty("java.version"));
+        update(digest, checkerClass.getName());
+        updateWithFileState(digest, codeSource(checkerClass));
+        updateWithFileState(digest, InferenceOptions.checkerJar);
+
+        final StubFiles stubFiles = checkerClass.getAnnotation(StubFiles.class);
+        final List<String> stubResources = new ArrayList<>(Arrays.asList(
+                "jdk.astub", "jdk" + SystemUtil.getJreVersion() + ".astub"));
+        if (stubFiles != null) {
+            stubResources.addAll(Arrays.asList(stubFiles.value()));
+        }
+        for (String stubResource : stubResources) {
+            update(digest, stubResource);
+            try (InputStream in = checkerClass.getResourceAsStream(stubResource)) {
+                if (in != null) {
+                    final byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read stub file " + stubResource, e);
+            }
+        }
+
+        final String stubsOption = processingEnv.getOptions().get("stubs");
+        if (stubsOption != null) {
+            for (String stubPath : stubsOption.split(File.pathSeparator)) {
+                update(digest, stubPath);
+                for (Path stubFile : stubFilesIn(new File(stubPath))) {
+                    try {
+                        update(digest, stubFile.toString());
+                        digest.update(Files.readAllBytes(stubFile));
+                    } catch (IOException e) {
+                        throw new RuntimeException("Could not read stub file " + stubFile, e);
+                    }
+                }
+            }
+        }
+
+        // The working directory and the output directories of javac, whose class files are not walked
+        final List<Path> unwalked = new ArrayList<>();
+        unwalked.add(new File("").getAbsoluteFile().toPath().normalize());
+        if (InferenceOptions.javacOptions != null) {
+            for (int i = 0; i < InferenceOptions.javacOptions.size() - 1; i++) {
+                final String option = InferenceOptions.javacOptions.get(i);
+                if (option.equals("-d") || option.equals("-s") || option.equals("-h")) {
+                    unwalked.add(new File(InferenceOptions.javacOptions.get(i + 1)).getAbsoluteFile().toPath().normalize());
+                }
+            }
+        }
+
+        if (InferenceOptions.javacOptions != null) {
+            update(digest, String.join(" ", InferenceOptions.javacOptions));
+            for (int i = 0; i < InferenceOptions.javacOptions.size() - 1; i++) {
+                final String option = InferenceOptions.javacOptions.get(i);
+                if (option.equals("-cp") || option.equals("-classpath") || option.equals("--class-path")
+                        || option.equals("-bootclasspath")) {
+                    updateWithClasspathState(digest, InferenceOptions.javacOptions.get(i + 1), unwalked);
+                }
+            }
+        }
+        updateWithClasspathState(digest, System.getProperty("java.class.path"), unwalked);
+        updateWithClasspathState(digest, InferenceOptions.targetclasspath, unwalked);
+
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return stubPath if it is a file, the stub files below it if it is a directory
+     */
+    private static List<Path> stubFilesIn(final File stubPath) {
+        if (stubPath.isFile()) {
+            return Arrays.asList(stubPath.toPath());
+        }
+        if (!stubPath.isDirectory()) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> paths = Files.walk(stubPath.toPath())) {
+            return paths.filter(path -> path.toString().endsWith(".astub"))
+                        .sorted()
+                        .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not list stub directory " + stubPath, e);
+        }
+    }
+
+    private static File codeSource(final Class<?> clazz) {
+        if (clazz.getProtectionDomain().getCodeSource() == null) {
+            return null;
+        }
+        try {
+            return new File(clazz.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Update digest with classpath and the state of its jars and of the class files in its directories,
+     * so that a rebuilt library selects another cache file even if its path is the same.  The class files
+     * of a directory that is, or contains, one of unwalked are left out.
+     */
+    private static void updateWithClasspathState(final MessageDigest digest, final String classpath,
+                                                 final List<Path> unwalked) {
+        if (classpath == null) {
+            return;
+        }
+        update(digest, classpath);
+        for (String entry : classpath.split(File.pathSeparator)) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            // A wildcard entry stands for the jars in its directory
+            final boolean wildcard = entry.endsWith("*");
+            final File file = new File(wildcard ? entry.substring(0, entry.length() - 1) : entry);
+            if (!file.isDirectory()) {
+                updateWithFileState(digest, file);
+                continue;
+            }
+            if (!wildcard && containsAny(file, unwalked)) {
+                continue;
+            }
+            final String suffix = wildcard ? ".jar" : ".class";
+            try (Stream<Path> paths = wildcard ? Files.list(file.toPath()) : Files.walk(file.toPath())) {
+                for (Path path : paths.filter(path -> path.toString().endsWith(suffix))
+                                      .sorted()
+                                      .collect(Collectors.toList())) {
+                    updateWithFileState(digest, path.toFile());
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Could not list classpath directory " + file, e);
+            }
+        }
+    }
+
+    private static boolean containsAny(final File directory, final List<Path> paths) {
+        final Path directoryPath = directory.getAbsoluteFile().toPath().normalize();
+        for (Path path : paths) {
+            if (path.startsWith(directoryPath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void updateWithFileState(final MessageDigest digest, final File file) {
+        if (file != null && file.isFile()) {
+            update(digest, file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified());
+        }
+    }
+
+    private static void update(final MessageDigest digest, final String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+}
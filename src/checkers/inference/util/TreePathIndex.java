@@ -0,0 +1,144 @@
+package checkers.inference.util;
+
+import org.checkerframework.javacutil.ElementUtils;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.TreeScanner;
+import com.sun.source.util.Trees;
+
+/**
+ * Finds the TreePath of a tree in any compilation unit without traversing the unit for every lookup.
+ * The first lookup in a compilation unit indexes the TreePath of every tree in the unit, in one pass;
+ * later lookups are identity map lookups.
+ *
+ * The index of the current compilation unit, see setRoot, is kept until the root changes.  The indices
+ * of other units, which are needed when e.g. directSupertypes annotates a class declared in another
+ * file, are kept for the most recently used retainedUnits units only.
+ *
+ * A tree that is not part of the compilation unit, e.g. a tree created by dataflow's desugaring, has
+ * no path.
+ */
+public class TreePathIndex {
+
+    public static final int DEFAULT_RETAINED_UNITS = 16;
+
+    private final Trees trees;
+
+    private CompilationUnitTree root;
+    private Map<Tree, TreePath> rootIndex;
+
+    /** The indices of units other than root, least recently used first */
+    private final Map<CompilationUnitTree, Map<Tree, TreePath>> otherUnits;
+
+    public TreePathIndex(final Trees trees) {
+        this(trees, DEFAULT_RETAINED_UNITS);
+    }
+
+    /**
+     * @param trees used to find the compilation unit that declares an element
+     * @param retainedUnits the number of indices of units other than the current one to keep
+     */
+    public TreePathIndex(final Trees trees, final int retainedUnits) {
+        this.trees = trees;
+        this.otherUnits = new LinkedHashMap<CompilationUnitTree, Map<Tree, TreePath>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CompilationUnitTree, Map<Tree, TreePath>> eldest) {
+                return size() > retainedUnits;
+            }
+        };
+    }
+
+    /**
+     * Make root the current compilation unit.  The index of the previous one is retained like that of
+     * any other unit.
+     */
+    public void setRoot(final CompilationUnitTree root) {
+        if (root == this.root) {
+            return;
+        }
+
+        if (this.root != null && rootIndex != null) {
+            otherUnits.put(this.root, rootIndex);
+        }
+        this.root = root;
+        this.rootIndex = root == null ? null : otherUnits.remove(root);
+    }
+
+    /**
+     * @return the path to tree in the current compilation unit, or null if tree is not part of it
+     */
+    public TreePath getPath(final Tree tree) {
+        if (root == null) {
+            return null;
+        }
+        if (rootIndex == null) {
+            rootIndex = buildIndex(root);
+        }
+        return rootIndex.get(tree);
+    }
+
+    /**
+     * @return the path to tree in unit, or null if tree is not part of unit
+     */
+    public TreePath getPath(final CompilationUnitTree unit, final Tree tree) {
+        if (unit == root) {
+            return getPath(tree);
+        }
+
+        Map<Tree, TreePath> index = otherUnits.get(unit);
+        if (index == null) {
+            index = buildIndex(unit);
+            otherUnits.put(unit, index);
+        }
+        return index.get(tree);
+    }
+
+    /**
+     * @return the path to tree in the compilation unit that declares the class enclosing element, or null if
+     * there is no source for that class or tree is not part of its compilation unit
+     */
+    public TreePath getPath(final Element element, final Tree tree) {
+        CompilationUnitTree unit = getCompilationUnit(element);
+        return unit == null ? null : getPath(unit, tree);
+    }
+
+    /**
+     * @return the compilation unit that declares the class enclosing element, or null if there is no source
+     * for that class
+     */
+    public CompilationUnitTree getCompilationUnit(final Element element) {
+        TypeElement typeElement = ElementUtils.enclosingClass(element);
+        TreePath classPath = typeElement == null ? null : trees.getPath(typeElement);
+        return classPath == null ? null : classPath.getCompilationUnit();
+    }
+
+    private static Map<Tree, TreePath> buildIndex(final CompilationUnitTree unit) {
+        final Map<Tree, TreePath> index = new IdentityHashMap<>();
+        final TreePath unitPath = new TreePath(unit);
+        index.put(unit, unitPath);
+
+        // The parameter of scan is the path to the parent of the scanned tree
+        unit.accept(new TreeScanner<Void, TreePath>() {
+            @Override
+            public Void scan(Tree tree, TreePath parentPath) {
+                if (tree == null) {
+                    return null;
+                }
+                TreePath path = new TreePath(parentPath, tree);
+                index.put(tree, path);
+                return tree.accept(this, path);
+            }
+        }, unitPath);
+
+        return index;
+    }
+}
@@ -5,6 +5,10 @@ import checkers.inference.InferenceSolver;
 import checkers.inference.model.ConstantSlot;
 import checkers.inference.model.Constraint;
 import checkers.inference.model.Slot;
+import checkers.inference.solver.ConcurrentSolver;
+import checkers.inference.solver.TimeBudget;
+import checkers.inference.solver.WarmStart;
+import org.sat4j.core.VecInt;
 import org.checkerframework.framework.type.QualifierHierarchy;
 import sparta.checkers.iflow.util.PFPermission;
 
@@ -14,8 +18,11 @@ import java.util.*;
 
 /**
  * Created by smillst on 9/17/15.
+ *
+ * The permission solvers are configured, and their solutions merged, on javac's thread; only their SAT
+ * solving runs in Task.run, so the solver can run in a PortfolioSolver, see ConcurrentSolver.
  */
-public abstract class IFlowSolver implements InferenceSolver {
+public abstract class IFlowSolver implements ConcurrentSolver {
 
 
     public InferenceSolution solve(Map<String, String> configuration,
@@ -23,23 +30,92 @@ public abstract class IFlowSolver implements InferenceSolver {
                                    Collection<Constraint> constraints,
                                    QualifierHierarchy qualHierarchy,
                                    ProcessingEnvironment processingEnvironment) {
+        return ConcurrentSolver.solve(this, configuration, slots, constraints, qualHierarchy, processingEnvironment);
+    }
+
+    @Override
+    public Task prepare(Map<String, String> configuration,
+                        Collection<Slot> slots,
+                        Collection<Constraint> constraints,
+                        QualifierHierarchy qualHierarchy,
+                        ProcessingEnvironment processingEnvironment) {
         Collection<PFPermission> permissionsUsed = getPermissionsUsed(slots);
         List<PermissionSolver> permissionSolvers = new ArrayList<>();
+        WarmStart warmStart = WarmStart.fromConfiguration(configuration, slots, processingEnvironment);
+        TimeBudget budget = new TimeBudget();
 
         // Configure permission solvers
         for (PFPermission permission : permissionsUsed) {
             PermissionSolver solver = new PermissionSolver(permission);
-            solver.configure(constraints, getSerializer(permission));
+            solver.configure(constraints, getSerializer(permission), budget);
+            if (warmStart != null) {
+                solver.setHints(getWarmStartHints(warmStart, permission));
+            }
             permissionSolvers.add(solver);
         }
 
-        // Solve
         List<PermissionSolution> solutions = new ArrayList<>();
-        for (PermissionSolver solver : permissionSolvers) {
-            solutions.add(solver.solve());
-        }
+        return new Task() {
+            @Override
+            public void run() {
+                // Solve
+                for (PermissionSolver solver : permissionSolvers) {
+                    solutions.add(solver.solve());
+                }
+            }
+
+            @Override
+            public void stop() {
+                for (PermissionSolver solver : permissionSolvers) {
+                    solver.stop();
+                }
+            }
 
-        return getMergedSolution(processingEnvironment, solutions);
+            @Override
+            public InferenceSolution finish() {
+                InferenceSolution fallback = null;
+                for (int i = 0; i < solutions.size(); i++) {
+                    PermissionSolver solver = permissionSolvers.get(i);
+                    PermissionSolution solution = solutions.get(i);
+                    solver.logCutOff();
+                    List<Integer> cutOff = solver.getCutOffVariables();
+                    if (!cutOff.isEmpty()) {
+                        // The variables that did not fit in the time budget get the permission of the fallback solution
+                        if (fallback == null) {
+                            fallback = createFallbackSolver().solve(configuration, slots, constraints, qualHierarchy,
+                                                                    processingEnvironment);
+                        }
+                        for (int var : cutOff) {
+                            if (fallback.doesVariableExist(var)) {
+                                Set<PFPermission> permissions = getPermissionList(fallback.getAnnotation(var));
+                                boolean containsPermission = permissions.contains(solution.getPermission())
+                                        || permissions.contains(PFPermission.ANY);
+                                solution.getResult().put(var, isPermissionVarTrue(containsPermission));
+                            }
+                        }
+                    }
+                }
+
+                InferenceSolution solution = getMergedSolution(processingEnvironment, solutions);
+                if (warmStart != null) {
+                    warmStart.save(solution, slots);
+                }
+                return solution;
+            }
+        };
+    }
+
+    /**
+     * @return the previous values of the variables of the solver for permission as literals
+     */
+    private VecInt getWarmStartHints(WarmStart warmStart, PFPermission permission) {
+        VecInt hints = new VecInt();
+        for (Map.Entry<Integer, AnnotationMirror> hint : warmStart.getHints().entrySet()) {
+            Set<PFPermission> permissions = getPermissionList(hint.getValue());
+            boolean containsPermission = permissions.contains(permission) || permissions.contains(PFPermission.ANY);
+            hints.push(isPermissionVarTrue(containsPermission) ? hint.getKey() : -hint.getKey());
+        }
+        return hints;
     }
 
     private Collection<PFPermission> getPermissionsUsed(Collection<Slot> solts) {
@@ -62,4 +138,16 @@ public abstract class IFlowSolver implements InferenceSolver {
 
     protected abstract Set<PFPermission> getPermissionList(AnnotationMirror anno);
 
+    /**
+     * @return the value of the variable for a permission when the annotation should contain it,
+     * the inverse of IFlowSolution.shouldContainPermission
+     */
+    protected abstract boolean isPermissionVarTrue(boolean containsPermission);
+
+    /**
+     * @return the solver whose solution the variables get that the SAT solvers could not solve within
+     * InferenceOptions.solverTimeLimit
+     */
+    protected abstract InferenceSolver createFallbackSolver();
+
 }
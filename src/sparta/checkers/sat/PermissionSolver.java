@@ -2,10 +2,13 @@ package sparta.checkers.sat;
 
 import checkers.inference.*;
 import checkers.inference.model.Constraint;
+import checkers.inference.solver.BudgetedSatSolver;
+import checkers.inference.solver.TimeBudget;
 import org.sat4j.core.VecInt;
-import org.sat4j.maxsat.WeightedMaxSatDecorator;
+import org.sat4j.specs.IVecInt;
 import sparta.checkers.iflow.util.PFPermission;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -17,15 +20,28 @@ public class PermissionSolver {
     private PFPermission permission;
     private IFlowSerializer serializer;
     List<VecInt> clauses;
+    IVecInt hints = new VecInt();
+    private BudgetedSatSolver solver;
 
     public PermissionSolver(PFPermission permission) {
         this.permission = permission;
     }
 
-    public void configure(Collection<Constraint> constraints, IFlowSerializer serializer) {
+    /**
+     * @param budget the time budget shared by the solvers of all permissions
+     */
+    public void configure(Collection<Constraint> constraints, IFlowSerializer serializer, TimeBudget budget) {
         this.serializer = serializer;
         this.slotManager = InferenceMain.getInstance().getSlotManager();
         this.clauses = convertToCNF(constraints);
+        this.solver = new BudgetedSatSolver(clauses, slotManager.nextId(), budget);
+    }
+
+    /**
+     * Prefer these literals, the values of the variables in the previous run, see WarmStart.
+     */
+    public void setHints(IVecInt hints) {
+        this.hints = hints;
     }
 
     private List<VecInt> convertToCNF(Collection<Constraint> constraints) {
@@ -37,52 +53,54 @@ public class PermissionSolver {
         Map<Integer, Boolean> idToExistence = new HashMap<>();
         Map<Integer, Boolean> result = new HashMap<>();
 
-
-        final int totalVars = slotManager.nextId();
-        final int totalClauses = clauses.size();
-
         try {
-            // **** Prep Solver ****
-            // org.sat4j.pb.SolverFactory.newBoth() Runs both of sat4j solves and uses the result of the first to finish
-            final WeightedMaxSatDecorator solver = new WeightedMaxSatDecorator(org.sat4j.pb.SolverFactory.newBoth());
-
-            solver.newVar(totalVars);
-            solver.setExpectedNumberOfClauses(totalClauses);
-            // Arbitrary timeout
-            solver.setTimeoutMs(1000000);
-            for (VecInt clause : clauses) {
-                solver.addSoftClause(clause);
-            }
-
             // **** Solve ****
-            boolean hasSolution = solver.isSatisfiable();
+            solver.solve(hints);
+        } catch (Throwable th) {
+            VecInt lastClause = clauses.get(clauses.size() - 1);
+            throw new RuntimeException("Error MAX-SAT solving! " + lastClause, th);
+        }
 
-            if (hasSolution) {
+        // **** Remove exatential vars from solution
+        final Map<Integer, Integer> existentialToPotentialIds = serializer.getExistentialToPotentialVar();
+        for (Map.Entry<Integer, Boolean> value : solver.getValues().entrySet()) {
+            Integer potential = existentialToPotentialIds.get(value.getKey());
+            if (potential != null) {
+                idToExistence.put(potential, value.getValue());
+            } else {
+                result.put(value.getKey(), value.getValue());
+            }
+        }
+        return new PermissionSolution(result, idToExistence, permission);
+    }
 
-                // **** Remove exatential vars from solution
-                final Map<Integer, Integer> existentialToPotentialIds = serializer.getExistentialToPotentialVar();
-                int[] solution = solver.model();
+    /**
+     * Make solve, running on another thread, give up as soon as it can.
+     */
+    public void stop() {
+        solver.stop();
+    }
 
-                for (Integer var : solution) {
-                    boolean varIsTrue = !(var < 0);
-                    // Need postive var
-                    var = Math.abs(var);
+    /**
+     * Log the variables cut off by the time budget, on javac's thread after solve.
+     */
+    public void logCutOff() {
+        solver.logCutOff("PermissionSolver(" + permission + ")", slotManager);
+    }
 
-                    Integer potential = existentialToPotentialIds.get(var);
-                    if (potential != null) {
-                        idToExistence.put(potential, varIsTrue);
-                    } else {
-                        result.put(var, varIsTrue);
-                    }
+    /**
+     * @return the variables that were cut off by the time budget and have no value in the solution
+     */
+    public List<Integer> getCutOffVariables() {
+        List<Integer> variables = new ArrayList<>();
+        final Map<Integer, Integer> existentialToPotentialIds = serializer.getExistentialToPotentialVar();
+        for (BudgetedSatSolver.Group group : solver.getCutOff()) {
+            for (int var : group.getVariables()) {
+                if (!existentialToPotentialIds.containsKey(var)) {
+                    variables.add(var);
                 }
-                return new PermissionSolution(result, idToExistence, permission);
             }
-
-        } catch (Throwable th) {
-            VecInt lastClause = clauses.get(clauses.size() - 1);
-            throw new RuntimeException("Error MAX-SAT solving! " + lastClause, th);
         }
-
-        return PermissionSolution.noSolution(permission);
+        return variables;
     }
 }
@@ -1,9 +1,11 @@
 package sparta.checkers.sat;
 
 import checkers.inference.InferenceSolution;
+import checkers.inference.InferenceSolver;
 import org.checkerframework.javacutil.AnnotationUtils;
 import sparta.checkers.iflow.util.IFlowUtils;
 import sparta.checkers.iflow.util.PFPermission;
+import sparta.checkers.propagation.IFlowSinkSolver;
 import sparta.checkers.qual.PolySink;
 
 import javax.annotation.processing.ProcessingEnvironment;
@@ -33,4 +35,15 @@ public class SinkSolver extends IFlowSolver {
     protected InferenceSolution getMergedSolution(ProcessingEnvironment processingEnvironment, List<PermissionSolution> solutions) {
         return new SinkSolution(solutions, processingEnvironment);
     }
+
+    @Override
+    protected boolean isPermissionVarTrue(boolean containsPermission) {
+        // Top, false, is the annotation without the sink
+        return containsPermission;
+    }
+
+    @Override
+    protected InferenceSolver createFallbackSolver() {
+        return new IFlowSinkSolver();
+    }
 }
@@ -1,9 +1,11 @@
 package sparta.checkers.sat;
 
 import checkers.inference.InferenceSolution;
+import checkers.inference.InferenceSolver;
 import org.checkerframework.javacutil.AnnotationUtils;
 import sparta.checkers.iflow.util.IFlowUtils;
 import sparta.checkers.iflow.util.PFPermission;
+import sparta.checkers.propagation.IFlowSourceSolver;
 import sparta.checkers.qual.PolySource;
 
 import javax.annotation.processing.ProcessingEnvironment;
@@ -30,4 +32,15 @@ public class SourceSolver extends IFlowSolver {
     protected InferenceSolution getMergedSolution(ProcessingEnvironment processingEnvironment, List<PermissionSolution> solutions) {
         return new SourceSolution(solutions, processingEnvironment);
     }
+
+    @Override
+    protected boolean isPermissionVarTrue(boolean containsPermission) {
+        // Top, false, is the annotation with the source
+        return !containsPermission;
+    }
+
+    @Override
+    protected InferenceSolver createFallbackSolver() {
+        return new IFlowSourceSolver();
+    }
 }
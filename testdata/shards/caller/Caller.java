@@ -0,0 +1,17 @@
+package caller;
+
+import java.io.IOException;
+
+import commands.Commands;
+
+// Uses the declarations of Commands, whose constraints are generated in another shard
+public class Caller {
+
+    public void run(Commands commands) throws IOException {
+        // Commands.command should be inferred to be @OsTrusted
+        Runtime.getRuntime().exec(commands.command);
+
+        // Commands.argument should be inferred to return @OsTrusted, as the parameter of Commands.run is
+        commands.run(commands.argument());
+    }
+}
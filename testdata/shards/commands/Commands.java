@@ -0,0 +1,23 @@
+package commands;
+
+import java.io.IOException;
+
+import caller.Caller;
+
+// Used by Caller, whose constraints are generated in another shard
+public class Commands {
+
+    public String command = "";
+
+    public String argument() {
+        return "";
+    }
+
+    public void run(String execString) throws IOException {
+        Runtime.getRuntime().exec(execString);
+    }
+
+    public void runCaller(Caller caller) throws IOException {
+        caller.run(this);
+    }
+}
@@ -0,0 +1,38 @@
+package checkers.inference;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class InferenceMainTest {
+
+    // These files do not exist, so they all have the same size
+    private static final String[] FILES = { "A.java", "B.java", "C.java", "D.java", "E.java" };
+
+    @Test
+    public void partitionSourcesKeepsOrderTest() {
+        List<List<String>> shards = InferenceMain.partitionSources(FILES, 2);
+        assertEquals(Arrays.asList(
+                Arrays.asList("A.java", "B.java", "C.java"),
+                Arrays.asList("D.java", "E.java")), shards);
+    }
+
+    @Test
+    public void partitionSourcesNeverCreatesEmptyShardsTest() {
+        List<List<String>> shards = InferenceMain.partitionSources(FILES, 8);
+        assertEquals(FILES.length, shards.size());
+        for (int i = 0; i < FILES.length; i++) {
+            assertEquals(Collections.singletonList(FILES[i]), shards.get(i));
+        }
+    }
+
+    @Test
+    public void partitionSourcesSingleShardTest() {
+        assertEquals(Collections.singletonList(Arrays.asList(FILES)), InferenceMain.partitionSources(FILES, 1));
+        assertEquals(0, InferenceMain.partitionSources(new String[0], 4).size());
+    }
+}
@@ -0,0 +1,261 @@
+package checkers.inference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.source.tree.Tree;
+
+import checkers.inference.model.AnnotationLocation;
+import checkers.inference.model.AnnotationLocation.AstPathLocation;
+import checkers.inference.model.CombVariableSlot;
+import checkers.inference.model.CombineConstraint;
+import checkers.inference.model.ConstantSlot;
+import checkers.inference.model.Constraint;
+import checkers.inference.model.EqualityConstraint;
+import checkers.inference.model.PreferenceConstraint;
+import checkers.inference.model.RefinementVariableSlot;
+import checkers.inference.model.Slot;
+import checkers.inference.model.SubtypeConstraint;
+import checkers.inference.model.VariableSlot;
+import checkers.inference.model.serialization.ConstraintFile;
+import ostrusted.qual.OsTrusted;
+import ostrusted.qual.OsUntrusted;
+import ostrusted.qual.PolyOsTrusted;
+import scenelib.annotations.io.ASTPath;
+import scenelib.annotations.io.ASTRecord;
+
+/**
+ * Writes shards to ConstraintFiles and reads them back, and merges the shards of a --generationJvms run.
+ */
+public class ShardMergerTest {
+
+    private static final Set<Class<? extends Annotation>> QUALIFIERS =
+            new HashSet<>(Arrays.<Class<? extends Annotation>>asList(OsTrusted.class, OsUntrusted.class));
+
+    // The qualifiers of the OsTrustedChecker, for which the shards of mergeTest are written
+    private static final Set<Class<? extends Annotation>> OSTRUSTED_QUALIFIERS = new HashSet<>(
+            Arrays.<Class<? extends Annotation>>asList(OsTrusted.class, OsUntrusted.class, PolyOsTrusted.class));
+
+    private static ProcessingEnvironment processingEnv;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void initProcessingEnvironment() {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        JavaFileObject anchor = new SimpleJavaFileObject(URI.create("string:///ShardAnchor.java"),
+                                                         JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return "class ShardAnchor {}";
+            }
+        };
+
+        CaptureProcessor capture = new CaptureProcessor();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, null,
+                Arrays.asList("-proc:only", "-classpath", System.getProperty("java.class.path")),
+                null, Collections.singletonList(anchor));
+        task.setProcessors(Collections.singletonList(capture));
+        task.call();
+        processingEnv = capture.environment;
+        assertNotNull(processingEnv);
+    }
+
+    private static DefaultSlotManager newSlotManager() {
+        return new DefaultSlotManager(processingEnv, QUALIFIERS, true);
+    }
+
+    // A made up location, the round trip does not depend on the slots of a compilation
+    private static AstPathLocation location(String className, int argument) {
+        ASTRecord record = new ASTRecord(null, className, "m()V", null, ASTPath.empty());
+        return new AstPathLocation(record.extend(Tree.Kind.METHOD, "parameter", argument));
+    }
+
+    private static <T extends VariableSlot> T add(DefaultSlotManager slotManager, T slot) {
+        slotManager.addVariable(slot);
+        return slot;
+    }
+
+    /**
+     * @return the constant the slot manager stores for OsTrusted, the first of the sorted qualifiers
+     */
+    private static ConstantSlot trusted(DefaultSlotManager slotManager) {
+        return slotManager.getConstantSlots().get(0);
+    }
+
+    /**
+     * Write slotManager and constraints to a file and read them into a new slot manager.
+     */
+    private DefaultSlotManager roundTrip(DefaultSlotManager slotManager, List<Constraint> constraints,
+                                         Set<Constraint> readConstraints) throws IOException {
+        File file = folder.newFile();
+        ConstraintFile.write(file, slotManager, constraints);
+
+        DefaultSlotManager read = newSlotManager();
+        readConstraints.addAll(ConstraintFile.read(file, read, processingEnv));
+        return read;
+    }
+
+    @Test
+    public void roundTripTest() throws IOException {
+        DefaultSlotManager shard = newSlotManager();
+        ConstantSlot trusted = trusted(shard);
+        VariableSlot declared = add(shard, new VariableSlot(location("p.A", 0), shard.nextId()));
+        declared.setInsertable(true);
+        VariableSlot other = add(shard, new VariableSlot(location("p.A", 1), shard.nextId()));
+        RefinementVariableSlot refinement = add(shard, new RefinementVariableSlot(location("p.A", 2), shard.nextId(), declared));
+        declared.addRefinedToSlot(refinement);
+        CombVariableSlot comb = add(shard, new CombVariableSlot(AnnotationLocation.MISSING_LOCATION, shard.nextId(), declared, other));
+        declared.addMergedToSlot(comb);
+
+        List<Constraint> constraints = Arrays.asList(
+                new SubtypeConstraint(declared, trusted),
+                new EqualityConstraint(other, refinement),
+                new CombineConstraint(declared, other, comb),
+                new PreferenceConstraint(other, trusted, 2));
+
+        Set<Constraint> readConstraints = new HashSet<>();
+        DefaultSlotManager read = roundTrip(shard, constraints, readConstraints);
+
+        assertEquals(shard.getSlots(), read.getSlots());
+        assertEquals(new HashSet<>(constraints), readConstraints);
+
+        VariableSlot readDeclared = read.getVariable(declared.getId());
+        assertEquals(location("p.A", 0), readDeclared.getLocation());
+        assertTrue(readDeclared.isInsertable());
+        assertEquals(Collections.singleton(refinement), readDeclared.getRefinedToSlots());
+        assertEquals(Collections.singleton(comb), readDeclared.getMergedToSlots());
+        assertSame(readDeclared, ((RefinementVariableSlot) read.getVariable(refinement.getId())).getRefined());
+
+        // The constants of the file are those the new slot manager stores
+        assertSame(trusted(read), read.getVariable(trusted.getId()));
+    }
+
+    /**
+     * @return the locations of the VariableSlots of slotManager for the declared type of Commands.command
+     */
+    private static Set<AnnotationLocation> commandLocations(DefaultSlotManager slotManager) {
+        Set<AnnotationLocation> locations = new HashSet<>();
+        for (Slot slot : slotManager.getSlots()) {
+            if (slot.getClass().equals(VariableSlot.class) && slot.getLocation() instanceof AstPathLocation) {
+                ASTRecord record = ((AstPathLocation) slot.getLocation()).getAstRecord();
+                if ("commands.Commands".equals(record.className) && "command".equals(record.varName)
+                        && record.methodName == null) {
+                    locations.add(slot.getLocation());
+                }
+            }
+        }
+        return locations;
+    }
+
+    private static int countVariables(DefaultSlotManager slotManager, AnnotationLocation location) {
+        int count = 0;
+        for (Slot slot : slotManager.getSlots()) {
+            if (slot.getClass().equals(VariableSlot.class) && location.equals(slot.getLocation())) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Generates the shards of two files that use each other's declarations in their own JVMs, like
+     * --generationJvms, and merges them: the slot the shard of Caller creates for Commands.command is the
+     * slot of the shard of Commands.
+     */
+    @Test
+    public void mergeTest() throws IOException {
+        String output = ShardedInferenceTest.runInference(new File(folder.newFolder(), "inference.jaif"),
+                folder.newFolder(), "--generationJvms=2", "--keepShards");
+        Matcher kept = Pattern.compile("The shards are kept in (.*)").matcher(output);
+        assertTrue(output, kept.find());
+        File shardDir = new File(kept.group(1).trim());
+
+        List<DefaultSlotManager> shards = new ArrayList<>();
+        List<Set<Constraint>> shardConstraints = new ArrayList<>();
+        try {
+            for (int i = 0; i < ShardedInferenceTest.SOURCES.size(); i++) {
+                DefaultSlotManager shard = new DefaultSlotManager(processingEnv, OSTRUSTED_QUALIFIERS, true);
+                shardConstraints.add(ConstraintFile.read(new File(shardDir, "shard-" + i + ".constraints"),
+                                                         shard, processingEnv));
+                shards.add(shard);
+            }
+        } finally {
+            for (File file : shardDir.listFiles()) {
+                file.delete();
+            }
+            shardDir.delete();
+        }
+
+        // Both shards create a slot for the declaration, at the location it has in its own file
+        Set<AnnotationLocation> locations = commandLocations(shards.get(0));
+        assertFalse(locations.isEmpty());
+        assertTrue(commandLocations(shards.get(1)).containsAll(locations));
+
+        DefaultSlotManager target = new DefaultSlotManager(processingEnv, OSTRUSTED_QUALIFIERS, true);
+        ShardMerger merger = new ShardMerger(target);
+        for (int i = 0; i < shards.size(); i++) {
+            merger.add(shards.get(i), shardConstraints.get(i));
+        }
+
+        for (AnnotationLocation location : locations) {
+            assertEquals(1, countVariables(target, location));
+        }
+
+        // The constraints of both shards are over the slots of the target
+        for (Constraint constraint : merger.getConstraints()) {
+            for (Slot slot : constraint.getSlots()) {
+                assertSame(target.getVariable(((VariableSlot) slot).getId()), slot);
+            }
+        }
+    }
+
+    @SupportedAnnotationTypes("*")
+    private static class CaptureProcessor extends AbstractProcessor {
+        private ProcessingEnvironment environment;
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            environment = processingEnv;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package checkers.inference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.checkerframework.framework.util.ExecUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import checkers.inference.solver.MaxSat2TypeSolver;
+
+/**
+ * Runs inference over two files that use each other's declarations, each in its own shard, and checks
+ * that the merged solution is that of a run over both files at once.
+ */
+public class ShardedInferenceTest {
+
+    // In different packages, which --generationJvms puts in different shards
+    static final List<String> SOURCES = Arrays.asList(
+            "testdata/shards/caller/Caller.java", "testdata/shards/commands/Commands.java");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * @return the sorted lines of the jaif that inference writes with the given options
+     */
+    private List<String> infer(String... options) throws IOException {
+        File jaif = new File(folder.newFolder(), "inference.jaif");
+        runInference(jaif, folder.newFolder(), options);
+
+        List<String> lines = new ArrayList<>(Files.readAllLines(jaif.toPath(), StandardCharsets.UTF_8));
+        Collections.sort(lines);
+        return lines;
+    }
+
+    /**
+     * Run inference over SOURCES with the given options and check that it succeeds.
+     * @return the output of inference
+     */
+    static String runInference(File jaif, File classDir, String... options) {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                "./scripts/inference",
+                "--mode=INFER",
+                "--checker=" + ostrusted.OsTrustedChecker.class.getCanonicalName(),
+                "--solver=" + MaxSat2TypeSolver.class.getCanonicalName(),
+                "--jaifFile=" + jaif.getAbsolutePath()));
+        command.addAll(Arrays.asList(options));
+        command.addAll(Arrays.asList("--", "-Astubs=src/ostrusted/jdk.astub", "-d", classDir.getAbsolutePath()));
+        command.addAll(SOURCES);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream outputPrint = new PrintStream(output);
+        int result = ExecUtil.execute(command.toArray(new String[command.size()]), outputPrint, outputPrint);
+        outputPrint.flush();
+        assertEquals(output.toString(), 0, result);
+        return output.toString();
+    }
+
+    private static void assertTrustedUses(List<String> jaif) {
+        int trusted = 0;
+        for (String line : jaif) {
+            if (line.contains("@ostrusted.qual.OsTrusted")) {
+                trusted += 1;
+            }
+        }
+        // Commands.command, the return type of Commands.argument and the parameter of Commands.run
+        assertTrue(String.join("\n", jaif), trusted >= 3);
+    }
+
+    @Test
+    public void generationThreadsTest() throws IOException {
+        List<String> expected = infer();
+        assertTrustedUses(expected);
+        assertEquals(expected, infer("--generationThreads=2"));
+    }
+
+    @Test
+    public void generationJvmsTest() throws IOException {
+        List<String> expected = infer();
+        assertTrustedUses(expected);
+        assertEquals(expected, infer("--generationJvms=2"));
+    }
+}
@@ -0,0 +1,64 @@
+package checkers.inference.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.sun.source.tree.Tree;
+
+import checkers.inference.model.AnnotationLocation.AstPathLocation;
+import checkers.inference.model.AnnotationLocation.ClassDeclLocation;
+import scenelib.annotations.io.ASTPath;
+import scenelib.annotations.io.ASTRecord;
+
+public class StableKeyTest {
+
+    private static AstPathLocation location(String method, int argument) {
+        ASTRecord record = new ASTRecord(null, "p.A", method, null, ASTPath.empty());
+        return new AstPathLocation(record.extend(Tree.Kind.METHOD, "parameter", argument));
+    }
+
+    @Test
+    public void keysDependOnLocationNotIdTest() {
+        VariableSlot slot = new VariableSlot(location("m()V", 0), 10);
+        VariableSlot sameLocation = new VariableSlot(location("m()V", 0), 42);
+        assertEquals(slot.getStableKey(), sameLocation.getStableKey());
+
+        assertNotEquals(slot.getStableKey(), new VariableSlot(location("m()V", 1), 10).getStableKey());
+        assertNotEquals(slot.getStableKey(), new VariableSlot(location("n()V", 0), 10).getStableKey());
+        assertNotEquals(slot.getStableKey(),
+                        new VariableSlot(new ClassDeclLocation("p", "p.A"), 10).getStableKey());
+    }
+
+    @Test
+    public void keysDependOnKindTest() {
+        VariableSlot slot = new VariableSlot(location("m()V", 0), 10);
+        RefinementVariableSlot refinement = new RefinementVariableSlot(location("m()V", 0), 11, slot);
+        assertNotEquals(slot.getStableKey(), refinement.getStableKey());
+    }
+
+    @Test
+    public void combKeysDependOnComponentsTest() {
+        VariableSlot first = new VariableSlot(location("m()V", 0), 1);
+        VariableSlot second = new VariableSlot(location("m()V", 1), 2);
+        CombVariableSlot comb = new CombVariableSlot(AnnotationLocation.MISSING_LOCATION, 3, first, second);
+        CombVariableSlot swapped = new CombVariableSlot(AnnotationLocation.MISSING_LOCATION, 4, second, first);
+
+        assertTrue(comb.hasStableKey());
+        assertNotEquals(comb.getStableKey(), swapped.getStableKey());
+        assertEquals(comb.getStableKey(),
+                     new CombVariableSlot(AnnotationLocation.MISSING_LOCATION, 5, first, second).getStableKey());
+    }
+
+    @Test
+    public void missingLocationsHaveNoStableKeyTest() {
+        VariableSlot missing = new VariableSlot(AnnotationLocation.MISSING_LOCATION, 1);
+        VariableSlot located = new VariableSlot(location("m()V", 0), 2);
+        assertFalse(missing.hasStableKey());
+        assertTrue(located.hasStableKey());
+        assertFalse(new CombVariableSlot(location("m()V", 0), 3, missing, located).hasStableKey());
+    }
+}
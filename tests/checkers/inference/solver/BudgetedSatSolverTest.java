@@ -0,0 +1,132 @@
+package checkers.inference.solver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sat4j.core.VecInt;
+
+import checkers.inference.InferenceOptions;
+
+public class BudgetedSatSolverTest {
+
+    private boolean cnfPreprocessing;
+    private int solverTimeLimit;
+
+    @Before
+    public void saveOptions() {
+        // Unit propagation would decide the variables below before the hints are looked at
+        cnfPreprocessing = InferenceOptions.cnfPreprocessing;
+        solverTimeLimit = InferenceOptions.solverTimeLimit;
+        InferenceOptions.cnfPreprocessing = false;
+    }
+
+    @After
+    public void restoreOptions() {
+        InferenceOptions.cnfPreprocessing = cnfPreprocessing;
+        InferenceOptions.solverTimeLimit = solverTimeLimit;
+    }
+
+    private static List<VecInt> clauses(int[]... literals) {
+        List<VecInt> clauses = new ArrayList<>();
+        for (int[] clause : literals) {
+            clauses.add(new VecInt(clause));
+        }
+        return clauses;
+    }
+
+    private static Map<Integer, Boolean> solve(List<VecInt> clauses, int totalVars, int... hints) throws Exception {
+        BudgetedSatSolver solver = new BudgetedSatSolver(clauses, totalVars, new TimeBudget());
+        solver.solve(new VecInt(hints));
+        assertTrue(solver.getCutOff().isEmpty());
+        return solver.getValues();
+    }
+
+    @Test
+    public void hintsAreKeptTest() throws Exception {
+        // (1 or 2) has three models, the hints pick one
+        Map<Integer, Boolean> values = solve(clauses(new int[] {1, 2}), 2, -1, 2);
+        assertEquals(false, values.get(1));
+        assertEquals(true, values.get(2));
+    }
+
+    @Test
+    public void conflictingHintIsDroppedTest() throws Exception {
+        // The previous run inferred 1, a new constraint 1 -> 2 with not 2 rules it out
+        List<VecInt> clauses = clauses(new int[] {-1, 2}, new int[] {-2}, new int[] {3, 4});
+        Map<Integer, Boolean> values = solve(clauses, 4, 1, -3, 4);
+        assertEquals(false, values.get(1));
+        assertEquals(false, values.get(2));
+        // The hints that do not conflict still hold
+        assertEquals(false, values.get(3));
+        assertEquals(true, values.get(4));
+    }
+
+    @Test
+    public void splitTest() {
+        // {1, 2, 4} and {3} are independent
+        List<VecInt> clauses = clauses(new int[] {1, 2}, new int[] {-3}, new int[] {-2, 4});
+        List<BudgetedSatSolver.Group> groups = BudgetedSatSolver.split(clauses, 1);
+        assertEquals(2, groups.size());
+        assertEquals(Arrays.asList(1, 2, 4), groups.get(0).getVariables());
+        assertEquals(2, groups.get(0).getClauseCount());
+        assertEquals(Arrays.asList(3), groups.get(1).getVariables());
+
+        // Small components are packed together
+        assertEquals(1, BudgetedSatSolver.split(clauses, 3).size());
+    }
+
+    @Test
+    public void renumberingTest() {
+        BudgetedSatSolver.Group group = BudgetedSatSolver.split(clauses(new int[] {5, -9}, new int[] {2, 9}), 1).get(0);
+        assertEquals(Arrays.asList(2, 5, 9), group.getVariables());
+        assertEquals(2, group.toLocal(5));
+        assertEquals(-3, group.toLocal(-9));
+        assertEquals(-2, group.toGlobal(-2));
+        assertEquals(9, group.toGlobal(3));
+        VecInt local = group.toLocal(new VecInt(new int[] {5, -9}));
+        assertEquals(2, local.size());
+        assertEquals(2, local.get(0));
+        assertEquals(-3, local.get(1));
+    }
+
+    @Test
+    public void ungroupedVariablesGetDefaultTest() throws Exception {
+        // With a time limit only the variables of the clauses are in groups
+        InferenceOptions.solverTimeLimit = 60;
+        Map<Integer, Boolean> values = solve(clauses(new int[] {1, 2}, new int[] {-1}), 4);
+        assertEquals(4, values.size());
+        assertEquals(false, values.get(1));
+        assertEquals(true, values.get(2));
+        assertEquals(false, values.get(3));
+        assertEquals(false, values.get(4));
+    }
+
+    @Test
+    public void conflictingPreprocessedClausesTest() throws Exception {
+        // No unit clause, but eliminating 2 and 3 leaves (1) and (-1), which have no model
+        InferenceOptions.cnfPreprocessing = true;
+        List<VecInt> clauses = clauses(new int[] {1, 2}, new int[] {1, -2}, new int[] {-1, 3}, new int[] {-1, -3});
+        Map<Integer, Boolean> values = solve(clauses, 3);
+
+        // The original clauses are solved instead: only one of them is violated
+        int violated = 0;
+        for (VecInt clause : clauses) {
+            boolean satisfied = false;
+            for (int i = 0; i < clause.size(); i++) {
+                satisfied |= values.get(Math.abs(clause.get(i))) == clause.get(i) > 0;
+            }
+            if (!satisfied) {
+                violated += 1;
+            }
+        }
+        assertEquals(1, violated);
+    }
+}
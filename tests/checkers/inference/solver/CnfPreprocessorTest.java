@@ -0,0 +1,88 @@
+package checkers.inference.solver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.sat4j.core.VecInt;
+
+public class CnfPreprocessorTest {
+
+    private static List<VecInt> clauses(int[]... literals) {
+        List<VecInt> clauses = new ArrayList<>();
+        for (int[] clause : literals) {
+            clauses.add(new VecInt(clause));
+        }
+        return clauses;
+    }
+
+    private static boolean isSatisfied(List<VecInt> clauses, Map<Integer, Boolean> values) {
+        for (VecInt clause : clauses) {
+            boolean satisfied = false;
+            for (int i = 0; i < clause.size(); i++) {
+                int literal = clause.get(i);
+                satisfied |= values.get(Math.abs(literal)) == (literal > 0);
+            }
+            if (!satisfied) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void unitPropagationTest() {
+        // 1, 1 -> 2, 2 -> 3, (3 or 4)
+        List<VecInt> original = clauses(new int[] {1}, new int[] {-1, 2}, new int[] {-2, 3}, new int[] {3, 4});
+        CnfPreprocessor preprocessor = new CnfPreprocessor(original, 4);
+
+        assertTrue(preprocessor.isConsistent());
+        assertTrue(preprocessor.getClauses().isEmpty());
+
+        Map<Integer, Boolean> values = new HashMap<>();
+        values.put(4, false);
+        preprocessor.complete(values);
+        assertTrue(isSatisfied(original, values));
+    }
+
+    @Test
+    public void conflictTest() {
+        CnfPreprocessor preprocessor = new CnfPreprocessor(clauses(new int[] {1}, new int[] {-1, 2}, new int[] {-2}), 2);
+        assertFalse(preprocessor.isConsistent());
+    }
+
+    @Test
+    public void eliminationTest() {
+        // A chain 1 -> 5 -> 6 -> 2 through intermediate variables and a choice between 1 and 3
+        List<VecInt> original = clauses(new int[] {-1, 5}, new int[] {-5, 6}, new int[] {-6, 2},
+                                        new int[] {1, 3}, new int[] {-2, -3});
+        CnfPreprocessor preprocessor = new CnfPreprocessor(original, 6);
+
+        assertTrue(preprocessor.isConsistent());
+        assertTrue(preprocessor.getClauses().size() < original.size());
+
+        // Any model of what is left extends to a model of the original clauses
+        for (int assignment = 0; assignment < 1 << 6; assignment++) {
+            Map<Integer, Boolean> values = new HashMap<>();
+            for (int var = 1; var <= 6; var++) {
+                values.put(var, (assignment & (1 << (var - 1))) != 0);
+            }
+            if (isSatisfied(preprocessor.getClauses(), values)) {
+                preprocessor.complete(values);
+                assertTrue(isSatisfied(original, values));
+            }
+        }
+    }
+
+    @Test
+    public void tautologiesAreDroppedTest() {
+        CnfPreprocessor preprocessor = new CnfPreprocessor(clauses(new int[] {1, -1, 2}), 2);
+        assertEquals(0, preprocessor.getClauses().size());
+    }
+}